@@ -0,0 +1,102 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.server.session.SessionData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RoundTripBenchmark
+ *
+ * Measures storing and loading sessions through jedis and a loopback socket, against a
+ * {@link FakeRedis} running in the same process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    @Param({Sessions.MIXED})
+    public String mix;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    private FakeRedis _redis;
+    private RedisSessionDataMap _map;
+
+    @Setup
+    public void setUp() throws Exception {
+        _redis = new FakeRedis();
+        _map = new RedisSessionDataMap("127.0.0.1", Integer.toString(_redis.getPort()));
+        _map.setCompression(compression);
+        _map.setMaxTotal(64);
+        _map.initialize(Sessions.context());
+        _map.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _map.stop();
+        _redis.close();
+    }
+
+    /**
+     * Each thread stores and loads its own session.
+     */
+    @State(Scope.Thread)
+    public static class ThreadSession {
+        private static final AtomicInteger IDS = new AtomicInteger();
+
+        SessionData _data;
+
+        @Setup
+        public void setUp(RoundTripBenchmark benchmark) throws Exception {
+            _data = Sessions.create("session" + IDS.incrementAndGet(), benchmark.mix, benchmark.size);
+            benchmark._map.store(_data.getId(), _data);
+        }
+    }
+
+    @Benchmark
+    public void store(ThreadSession session) throws Exception {
+        _map.store(session._data.getId(), session._data);
+    }
+
+    @Benchmark
+    public SessionData load(ThreadSession session) throws Exception {
+        return _map.load(session._data.getId());
+    }
+}
@@ -0,0 +1,89 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.session.SessionData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SerializationBenchmark
+ *
+ * Measures turning a session into the value that is stored in redis and back, including
+ * compression, without any network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    @Param({Sessions.TEXT, Sessions.MIXED, Sessions.BINARY})
+    public String mix;
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    @Param({"java", "binary"})
+    public String codec;
+
+    private RedisSessionDataMap _map;
+    private SessionData _data;
+    private byte[] _value;
+
+    @Setup
+    public void setUp() throws Exception {
+        _map = new RedisSessionDataMap();
+        _map.setCompression(compression);
+        _map.setCodec("binary".equals(codec) ? new BinarySessionCodec() : new JavaSessionCodec());
+        _map.initialize(Sessions.context());
+        _map.start();
+        _data = Sessions.create("session", mix, size);
+        _value = serialize();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _map.stop();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return _map.valueWrite(_data.getId(), _data).getValue();
+    }
+
+    @Benchmark
+    public SessionData deserialize() throws Exception {
+        return _map.decodeValue(_data.getId(), _value);
+    }
+}
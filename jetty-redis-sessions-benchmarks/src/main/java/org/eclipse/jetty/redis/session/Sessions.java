@@ -0,0 +1,114 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+
+/**
+ * Sessions
+ *
+ * Builds sessions whose attributes resemble those of a typical web application: a few small
+ * strings and numbers identifying the user, and a bulk that makes up the requested size.
+ */
+final class Sessions {
+    /**
+     * Text such as rendered fragments or form state, which compresses well.
+     */
+    static final String TEXT = "text";
+    /**
+     * Random bytes such as uploaded images or encrypted tokens, which do not compress.
+     */
+    static final String BINARY = "binary";
+    /**
+     * Half text, half random bytes.
+     */
+    static final String MIXED = "mixed";
+
+    private static final String[] WORDS = {
+        "order", "item", "quantity", "price", "shipping", "address", "street", "city", "country",
+        "customer", "account", "preference", "newsletter", "discount", "checkout", "payment", "card",
+        "delivery", "status", "pending", "confirmed", "description", "colour", "size", "warehouse"
+    };
+
+    private Sessions() {
+    }
+
+    static SessionContext context() {
+        return new SessionContext("node0", null);
+    }
+
+    /**
+     * @param id the session id
+     * @param mix one of {@link #TEXT}, {@link #BINARY} or {@link #MIXED}
+     * @param size the approximate size of the attributes, in bytes
+     * @return a new session
+     */
+    static SessionData create(String id, String mix, int size) {
+        long now = System.currentTimeMillis();
+        SessionData data = new SessionData(id, "", "0.0.0.0", now, now, now, TimeUnit.MINUTES.toMillis(30));
+        data.setExpiry(now + TimeUnit.MINUTES.toMillis(30));
+        Random random = new Random(size);
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("user", "jdoe" + random.nextInt(10000) + "@example.com");
+        attributes.put("locale", Locale.UK);
+        attributes.put("loginTime", now);
+        attributes.put("visits", random.nextInt(100));
+        attributes.put("authenticated", Boolean.TRUE);
+        attributes.put("roles", new ArrayList<>(Arrays.asList("user", "customer")));
+        HashMap<String, String> preferences = new HashMap<>();
+        preferences.put("theme", "dark");
+        preferences.put("currency", "EUR");
+        preferences.put("pageSize", "50");
+        attributes.put("preferences", preferences);
+
+        int remaining = Math.max(0, size - 256);
+        int text = TEXT.equals(mix) ? remaining : MIXED.equals(mix) ? remaining / 2 : 0;
+        attributes.put("cart", text(random, text));
+        byte[] blob = new byte[remaining - text];
+        random.nextBytes(blob);
+        attributes.put("blob", blob);
+
+        data.putAllAttributes(attributes);
+        return data;
+    }
+
+    private static List<String> text(Random random, int size) {
+        List<String> lines = new ArrayList<>();
+        int length = 0;
+        while (length < size) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                line.append(WORDS[random.nextInt(WORDS.length)]).append(i == 11 ? '.' : ' ');
+            }
+            line.append(' ').append(random.nextInt(100000));
+            lines.add(line.toString());
+            length += line.length();
+        }
+        return lines;
+    }
+}
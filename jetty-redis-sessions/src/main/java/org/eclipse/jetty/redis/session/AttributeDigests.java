@@ -0,0 +1,60 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AttributeDigests
+ *
+ * Remembers, for the most recently used sessions, the fingerprint of each attribute as it
+ * was last read from or written to redis, so that a store only needs to send the attributes
+ * whose serialized form has changed.
+ */
+class AttributeDigests {
+    private final Map<String, Map<String, Long>> _digests;
+
+    /**
+     * @param maxSessions the number of sessions to remember digests for
+     */
+    AttributeDigests(final int maxSessions) {
+        _digests = new LinkedHashMap<String, Map<String, Long>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Long>> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * @param id the session id
+     * @return the attribute digests last seen for the session, or null if not known
+     */
+    synchronized Map<String, Long> get(String id) {
+        return _digests.get(id);
+    }
+
+    synchronized void put(String id, Map<String, Long> digests) {
+        _digests.put(id, digests);
+    }
+
+    synchronized void remove(String id) {
+        _digests.remove(id);
+    }
+}
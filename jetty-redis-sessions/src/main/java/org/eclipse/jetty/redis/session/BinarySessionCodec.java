@@ -0,0 +1,294 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
+
+/**
+ * BinarySessionCodec
+ *
+ * Writes strings, boxed primitives, byte arrays and array lists, hash sets and hash maps of those
+ * with a one byte tag followed by their content, which is smaller and much faster to read and
+ * write than java serialization. Other values are written with java serialization. Values are
+ * written independently, so an object referenced by two attributes is read back as two objects.
+ */
+public class BinarySessionCodec implements SessionCodec {
+    public static final int FORMAT = 2;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int TRUE = 2;
+    private static final int FALSE = 3;
+    private static final int BYTE = 4;
+    private static final int SHORT = 5;
+    private static final int CHARACTER = 6;
+    private static final int INTEGER = 7;
+    private static final int LONG = 8;
+    private static final int FLOAT = 9;
+    private static final int DOUBLE = 10;
+    private static final int BYTES = 11;
+    private static final int ARRAY_LIST = 12;
+    private static final int HASH_SET = 13;
+    private static final int LINKED_HASH_SET = 14;
+    private static final int HASH_MAP = 15;
+    private static final int SERIALIZED = 16;
+
+    @Override
+    public int getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void encodeAttributes(SessionData data, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        Set<String> names = data.getKeys();
+        writeLength(dos, names.size());
+        for (String name : names) {
+            writeString(dos, name);
+            write(dos, data.getAttribute(name));
+        }
+        dos.flush();
+    }
+
+    @Override
+    public void decodeAttributes(SessionData data, InputStream in) throws IOException, ClassNotFoundException {
+        DataInputStream dis = new DataInputStream(in);
+        int count = readLength(dis);
+        Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(dis);
+            attributes.put(name, read(dis));
+        }
+        data.putAllAttributes(attributes);
+    }
+
+    @Override
+    public void encodeAttribute(Object value, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        write(dos, value);
+        dos.flush();
+    }
+
+    @Override
+    public Object decodeAttribute(InputStream in) throws IOException, ClassNotFoundException {
+        return read(new DataInputStream(in));
+    }
+
+    private void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (type == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (type == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (type == Character.class) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        } else if (type == Integer.class) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (type == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (type == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            writeLength(out, bytes.length);
+            out.write(bytes);
+        } else if (type == ArrayList.class) {
+            writeCollection(out, ARRAY_LIST, (Collection<?>) value);
+        } else if (type == HashSet.class) {
+            writeCollection(out, HASH_SET, (Collection<?>) value);
+        } else if (type == LinkedHashSet.class) {
+            writeCollection(out, LINKED_HASH_SET, (Collection<?>) value);
+        } else if (type == HashMap.class) {
+            writeMap(out, HASH_MAP, (Map<?, ?>) value);
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            writeLength(out, baos.size());
+            baos.writeTo(out);
+        }
+    }
+
+    private void writeCollection(DataOutputStream out, int tag, Collection<?> values) throws IOException {
+        Object[] elements = values.toArray();
+        out.writeByte(tag);
+        writeLength(out, elements.length);
+        for (Object element : elements) {
+            write(out, element);
+        }
+    }
+
+    private void writeMap(DataOutputStream out, int tag, Map<?, ?> map) throws IOException {
+        List<Map.Entry<?, ?>> entries = new ArrayList<>(map.entrySet());
+        out.writeByte(tag);
+        writeLength(out, entries.size());
+        for (Map.Entry<?, ?> entry : entries) {
+            write(out, entry.getKey());
+            write(out, entry.getValue());
+        }
+    }
+
+    private Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHARACTER:
+                return in.readChar();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BYTES:
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            case ARRAY_LIST: {
+                int size = readLength(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case HASH_SET:
+            case LINKED_HASH_SET: {
+                int size = readLength(in);
+                Set<Object> set = tag == HASH_SET ? new HashSet<>() : new LinkedHashSet<>();
+                for (int i = 0; i < size; i++) {
+                    set.add(read(in));
+                }
+                return set;
+            }
+            case HASH_MAP: {
+                int size = readLength(in);
+                Map<Object, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    Object key = read(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            }
+            case SERIALIZED:
+                byte[] serialized = new byte[readLength(in)];
+                in.readFully(serialized);
+                try (ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream(
+                        new ByteArrayInputStream(serialized))) {
+                    return ois.readObject();
+                }
+            default:
+                throw new StreamCorruptedException("Tag: " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLength(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a length as an unsigned varint, seven bits per byte, low bits first.
+     */
+    private static void writeLength(DataOutputStream out, int length) throws IOException {
+        while ((length & ~0x7F) != 0) {
+            out.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length < 0) {
+                    throw new StreamCorruptedException("Length: " + length);
+                }
+                return length;
+            }
+        }
+        throw new StreamCorruptedException("Length too long");
+    }
+}
@@ -0,0 +1,112 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CircuitBreaker
+ *
+ * Watches the outcome of the last calls to redis and stops letting calls through once too many
+ * of them failed or were slower than their budget. After a while one call is let through to probe
+ * redis: the circuit closes again if it succeeds in time, and stays open for another while if not.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean[] _window;
+    private final int _failureRate;
+    private final long _openNanos;
+    private State _state = State.CLOSED;
+    private int _next;
+    private int _calls;
+    private int _failures;
+    private long _openedAt;
+
+    /**
+     * @param window the number of recent calls the failure rate is taken over
+     * @param failureRate the percentage of failed or slow calls that opens the circuit
+     * @param openMs how long the circuit stays open before a call is let through to probe redis
+     */
+    CircuitBreaker(int window, int failureRate, long openMs) {
+        _window = new boolean[window];
+        _failureRate = failureRate;
+        _openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    /**
+     * @return true if a call may be made, in which case its outcome must be recorded
+     */
+    synchronized boolean allow() {
+        switch (_state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - _openedAt < _openNanos) {
+                    return false;
+                }
+                _state = State.HALF_OPEN;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param failed true if the call failed or was slower than its budget
+     */
+    synchronized void record(boolean failed) {
+        switch (_state) {
+            case HALF_OPEN:
+                if (failed) {
+                    open();
+                } else {
+                    _state = State.CLOSED;
+                }
+                return;
+            case OPEN:
+                return;
+            default:
+                if (_calls == _window.length) {
+                    _failures -= _window[_next] ? 1 : 0;
+                } else {
+                    _calls++;
+                }
+                _window[_next] = failed;
+                _failures += failed ? 1 : 0;
+                _next = (_next + 1) % _window.length;
+                if (_calls == _window.length && _failures * 100 >= _failureRate * _calls) {
+                    open();
+                }
+        }
+    }
+
+    private void open() {
+        _state = State.OPEN;
+        _openedAt = System.nanoTime();
+        _next = 0;
+        _calls = 0;
+        _failures = 0;
+    }
+
+    synchronized State getState() {
+        return _state;
+    }
+}
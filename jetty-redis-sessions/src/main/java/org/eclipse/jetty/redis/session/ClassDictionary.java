@@ -0,0 +1,246 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClassDictionary
+ *
+ * Numbers the class descriptors of java serialization, so that serialized values can refer to a
+ * descriptor by its number instead of repeating it. The descriptors are kept in a redis hash shared
+ * by every node: the field {@code d:<n>} holds descriptor n, and a field named after the class and a
+ * fingerprint of its descriptor holds n. Descriptors are never changed or removed, so a class whose
+ * serialized form changes gets a new number, and values written with its previous form can still
+ * be read. Numbers and descriptors are cached once read or registered.
+ * <p>
+ * The numbers are only meaningful for as long as the hash exists, so it must not be evicted: it
+ * should not have a ttl and redis should not be configured to evict keys without one. In case it
+ * is lost anyway, the hash holds a random epoch, created along with the hash, that each value
+ * records ahead of the numbers it uses. The cached numbers and descriptors belong to an epoch, which is
+ * checked against redis before a value is read with another epoch and at least every
+ * {@link #EPOCH_CHECK_MS} while values are written, and they are dropped when redis has a new one.
+ * Values written with an epoch that redis no longer has cannot be read.
+ */
+class ClassDictionary {
+    static final String NEXT_FIELD = "#next";
+    static final String EPOCH_FIELD = "#epoch";
+    static final String DESCRIPTOR_FIELD_PREFIX = "d:";
+    static final long EPOCH_CHECK_MS = 1000;
+
+    /**
+     * Returns the epoch of the dictionary, creating the dictionary with the epoch in ARGV[1] if it
+     * does not exist.
+     */
+    static final RedisScript EPOCH = new RedisScript(
+            "redis.call('HSETNX', KEYS[1], '" + EPOCH_FIELD + "', ARGV[1]) " +
+            "return tonumber(redis.call('HGET', KEYS[1], '" + EPOCH_FIELD + "'))");
+
+    /**
+     * Returns the number of the descriptor named by ARGV[1], registering the descriptor in ARGV[2]
+     * under the next number if it is not yet known, or -1 if the epoch of the dictionary is not ARGV[3].
+     */
+    static final RedisScript REGISTER = new RedisScript(
+            "if redis.call('HGET', KEYS[1], '" + EPOCH_FIELD + "') ~= ARGV[3] then return -1 end " +
+            "local id = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "if id then return tonumber(id) end " +
+            "id = redis.call('HINCRBY', KEYS[1], '" + NEXT_FIELD + "', 1) " +
+            "redis.call('HSET', KEYS[1], ARGV[1], id) " +
+            "redis.call('HSET', KEYS[1], '" + DESCRIPTOR_FIELD_PREFIX + "' .. id, ARGV[2]) " +
+            "return id");
+
+    private final RedisTopology _topology;
+    private final byte[] _key;
+    private volatile Epoch _epoch;
+
+    /**
+     * @param topology the topology of the redis holding the dictionary
+     * @param key the key of the dictionary
+     */
+    ClassDictionary(RedisTopology topology, String key) {
+        _topology = topology;
+        _key = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the current epoch, checked against redis if it has not been for {@link #EPOCH_CHECK_MS}
+     * @throws IOException if redis cannot be reached
+     */
+    Epoch epoch() throws IOException {
+        Epoch epoch = _epoch;
+        if (epoch == null || System.nanoTime() - epoch._checked > TimeUnit.MILLISECONDS.toNanos(EPOCH_CHECK_MS)) {
+            epoch = refresh();
+        }
+        return epoch;
+    }
+
+    /**
+     * @param number the epoch a value was written with
+     * @return the epoch, checked against redis if it is not the current one
+     * @throws IOException if redis cannot be reached or no longer has the epoch
+     */
+    Epoch epoch(int number) throws IOException {
+        Epoch epoch = _epoch;
+        if (epoch == null || epoch._number != number) {
+            epoch = refresh();
+            if (epoch._number != number) {
+                throw new StreamCorruptedException("Class dictionary epoch " + number + " was lost, redis has " +
+                        epoch._number);
+            }
+        }
+        return epoch;
+    }
+
+    /**
+     * @return the epoch redis has, with the cached entries if it has not changed
+     * @throws IOException if redis cannot be reached
+     */
+    private synchronized Epoch refresh() throws IOException {
+        byte[] proposed = Integer.toString(ThreadLocalRandom.current().nextInt()).getBytes(StandardCharsets.US_ASCII);
+        int number = ((Long) execute(jedis -> EPOCH.eval(jedis, Collections.singletonList(_key),
+                Collections.singletonList(proposed)))).intValue();
+        Epoch epoch = _epoch;
+        if (epoch == null || epoch._number != number) {
+            epoch = new Epoch(number);
+            _epoch = epoch;
+        }
+        epoch._checked = System.nanoTime();
+        return epoch;
+    }
+
+    /**
+     * @param epoch the epoch the value being written started with
+     * @param descriptor a class descriptor
+     * @return the number of the descriptor, registered in redis if it is not yet known
+     * @throws IOException if redis cannot be reached or has another epoch
+     */
+    int id(Epoch epoch, ObjectStreamClass descriptor) throws IOException {
+        Integer id = epoch._ids.get(descriptor);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = DescriptorOutput.write(descriptor);
+        byte[] name = (descriptor.getName() + "@" + Long.toHexString(Fingerprint.of(bytes)))
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] number = Integer.toString(epoch._number).getBytes(StandardCharsets.US_ASCII);
+        id = ((Long) execute(jedis -> REGISTER.eval(jedis, Collections.singletonList(_key),
+                Arrays.asList(name, bytes, number)))).intValue();
+        if (id < 0) {
+            refresh();
+            throw new IOException("Class dictionary epoch " + epoch._number + " was lost");
+        }
+        epoch._ids.put(descriptor, id);
+        return id;
+    }
+
+    /**
+     * @param epoch the epoch of the value being read
+     * @param id the number of a descriptor
+     * @return the descriptor, read from redis if it is not yet known
+     * @throws IOException if redis cannot be reached or does not have the descriptor
+     */
+    ObjectStreamClass descriptor(Epoch epoch, int id) throws IOException {
+        ObjectStreamClass descriptor = epoch._descriptors.get(id);
+        if (descriptor != null) {
+            return descriptor;
+        }
+        byte[] field = (DESCRIPTOR_FIELD_PREFIX + id).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = execute(jedis -> jedis.hget(_key, field));
+        if (bytes == null) {
+            throw new StreamCorruptedException("Unknown class descriptor " + id);
+        }
+        try {
+            descriptor = new DescriptorInput(bytes).readDescriptor();
+        } catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("Class descriptor " + id + ": " + e);
+        }
+        ObjectStreamClass cached = epoch._descriptors.putIfAbsent(id, descriptor);
+        return cached == null ? descriptor : cached;
+    }
+
+    private <T> T execute(RedisTopology.Command<T> command) throws IOException {
+        try {
+            return _topology.execute(_key, command);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The numbers and descriptors known in an epoch of the dictionary.
+     */
+    static class Epoch {
+        private final int _number;
+        private final ConcurrentMap<ObjectStreamClass, Integer> _ids = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, ObjectStreamClass> _descriptors = new ConcurrentHashMap<>();
+        private volatile long _checked;
+
+        Epoch(int number) {
+            _number = number;
+        }
+
+        int getNumber() {
+            return _number;
+        }
+    }
+
+    /**
+     * Writes a descriptor on its own, as java serialization writes it in a stream.
+     */
+    private static class DescriptorOutput extends ObjectOutputStream {
+        private DescriptorOutput(ByteArrayOutputStream out) throws IOException {
+            super(out);
+        }
+
+        static byte[] write(ObjectStreamClass descriptor) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DescriptorOutput out = new DescriptorOutput(bytes)) {
+                out.writeClassDescriptor(descriptor);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Reads a descriptor written by {@link DescriptorOutput}.
+     */
+    private static class DescriptorInput extends ObjectInputStream {
+        private DescriptorInput(byte[] bytes) throws IOException {
+            super(new ByteArrayInputStream(bytes));
+        }
+
+        ObjectStreamClass readDescriptor() throws IOException, ClassNotFoundException {
+            return readClassDescriptor();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSlotBasedConnectionHandler;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisClusterMaxRedirectionsException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.Pool;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * ClusterTopology
+ *
+ * Routes each key to the redis cluster node that owns its hash slot. The slot map is loaded
+ * from the seed nodes and refreshed whenever a node answers with a MOVED redirect. Commands
+ * are retried, up to the maximum number of attempts, only when they are redirected or when no
+ * connection to the node could be had: a command that fails once sent is not run again, as it
+ * may have taken effect, which would break the compare-and-set scripts of versioned sessions.
+ * Keys route by hash slot, and keys whose slots are owned by the same node share that node,
+ * so that batches need one pipeline per node rather than per slot.
+ */
+class ClusterTopology implements RedisTopology {
+    private final SlotHandler _handler;
+    private final int _maxAttempts;
+    private final SessionMetrics _metrics;
+
+    /**
+     * @param seeds the nodes from which to discover the cluster
+     * @param poolConfig the configuration of the pool for each node
+     * @param connectionTimeout the connection timeout in ms
+     * @param soTimeout the socket timeout in ms
+     * @param password the cluster password or null
+     * @param maxAttempts the maximum number of attempts for a command, following redirects
+     * @param metrics the metrics to record command times in
+     */
+    ClusterTopology(Set<HostAndPort> seeds, GenericObjectPoolConfig poolConfig, int connectionTimeout,
+                    int soTimeout, String password, int maxAttempts, SessionMetrics metrics) {
+        _handler = new SlotHandler(seeds, poolConfig, connectionTimeout, soTimeout, password);
+        _maxAttempts = maxAttempts;
+        _metrics = metrics;
+    }
+
+    @Override
+    public <T> T execute(byte[] key, Command<T> command) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int slot = JedisClusterCRC16.getSlot(key);
+            HostAndPort asking = null;
+            for (int attempt = 1; ; attempt++) {
+                Jedis connection;
+                try {
+                    connection = asking == null
+                            ? _handler.getConnectionFromSlot(slot)
+                            : _handler.getConnectionFromNode(asking);
+                } catch (JedisException e) {
+                    //nothing was sent, so the node that owns the slot may be looked up again and retried
+                    if (attempt >= _maxAttempts) {
+                        throw e;
+                    }
+                    _handler.renewSlotCache();
+                    asking = null;
+                    continue;
+                }
+                try (Jedis jedis = connection) {
+                    if (asking != null) {
+                        jedis.asking();
+                    }
+                    return command.run(jedis);
+                } catch (JedisRedirectionException e) {
+                    //the node did not run the command, but told which node owns the slot
+                    if (attempt >= _maxAttempts) {
+                        throw new JedisClusterMaxRedirectionsException("Too many cluster redirections", e);
+                    }
+                    if (e instanceof JedisAskDataException) {
+                        asking = e.getTargetNode();
+                    } else {
+                        _handler.renewSlotCache();
+                        asking = null;
+                    }
+                }
+            }
+        } finally {
+            _metrics.network(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void executeOnAll(Command<?> command) throws Exception {
+        for (JedisPool pool : _handler.getNodes().values()) {
+            try (Jedis jedis = pool.getResource()) {
+                command.run(jedis);
+            }
+        }
+    }
+
+    @Override
+    public Object route(byte[] key) {
+        return JedisClusterCRC16.getSlot(key);
+    }
+
+    /**
+     * @return the pool of the node that owns the hash slot of the key, or the slot itself if
+     * no node is known to own it yet
+     */
+    @Override
+    public Object server(byte[] key) {
+        int slot = JedisClusterCRC16.getSlot(key);
+        JedisPool pool = _handler.getSlotPool(slot);
+        return pool != null ? pool : slot;
+    }
+
+    @Override
+    public Collection<? extends Pool<Jedis>> getPools() {
+        return _handler.getNodes().values();
+    }
+
+    /**
+     * @return the pools of the nodes that serve hash slots, as listed by the first node that answers CLUSTER SLOTS
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Collection<? extends Pool<Jedis>> getPrimaryPools() throws Exception {
+        Map<String, JedisPool> nodes = _handler.getNodes();
+        List<Object> slots = null;
+        Exception failure = null;
+        for (JedisPool pool : nodes.values()) {
+            try (Jedis jedis = pool.getResource()) {
+                slots = jedis.clusterSlots();
+                break;
+            } catch (JedisConnectionException e) {
+                failure = e;
+            }
+        }
+        if (slots == null) {
+            throw failure != null ? failure : new IllegalStateException("No redis cluster node");
+        }
+        Set<String> primaries = new HashSet<>();
+        for (Object slot : slots) {
+            List<Object> primary = (List<Object>) ((List<Object>) slot).get(2);
+            primaries.add(SafeEncoder.encode((byte[]) primary.get(0)) + ":" + primary.get(1));
+        }
+        List<Pool<Jedis>> pools = new ArrayList<>();
+        for (Map.Entry<String, JedisPool> e : nodes.entrySet()) {
+            if (primaries.contains(e.getKey())) {
+                pools.add(e.getValue());
+            }
+        }
+        return pools;
+    }
+
+    @Override
+    public int getNumActive() {
+        int active = 0;
+        for (JedisPool pool : _handler.getNodes().values()) {
+            active += pool.getNumActive();
+        }
+        return active;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int idle = 0;
+        for (JedisPool pool : _handler.getNodes().values()) {
+            idle += pool.getNumIdle();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getNumWaiters() {
+        int waiters = 0;
+        for (JedisPool pool : _handler.getNodes().values()) {
+            waiters += pool.getNumWaiters();
+        }
+        return waiters;
+    }
+
+    @Override
+    public void close() {
+        for (JedisPool pool : _handler.getNodes().values()) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Exposes the slot map of the connection handler.
+     */
+    private static class SlotHandler extends JedisSlotBasedConnectionHandler {
+        SlotHandler(Set<HostAndPort> seeds, GenericObjectPoolConfig poolConfig, int connectionTimeout,
+                    int soTimeout, String password) {
+            super(seeds, poolConfig, connectionTimeout, soTimeout, password);
+        }
+
+        /**
+         * @param slot the hash slot
+         * @return the pool of the node that owns the slot, or null if it is unknown
+         */
+        JedisPool getSlotPool(int slot) {
+            return cache.getSlotPool(slot);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CompressionStats
+ *
+ * Counts the bytes that went into and came out of compression, and the CPU time of the
+ * threads that compressed and decompressed them.
+ */
+class CompressionStats {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final LongAdder _compressed = new LongAdder();
+    private final LongAdder _uncompressed = new LongAdder();
+    private final LongAdder _rawBytes = new LongAdder();
+    private final LongAdder _compressedBytes = new LongAdder();
+    private final LongAdder _compressNanos = new LongAdder();
+    private final LongAdder _decompressNanos = new LongAdder();
+
+    /**
+     * @return the CPU time of the current thread in ns, or the wall clock time if the JVM
+     * does not measure thread CPU time
+     */
+    static long now() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @param rawBytes the size of a payload before compression
+     * @param compressedBytes its size after compression, or -1 if it was stored uncompressed
+     * @param nanos the time spent compressing it
+     */
+    void compressed(long rawBytes, long compressedBytes, long nanos) {
+        _compressNanos.add(nanos);
+        if (compressedBytes < 0) {
+            _uncompressed.increment();
+            return;
+        }
+        _compressed.increment();
+        _rawBytes.add(rawBytes);
+        _compressedBytes.add(compressedBytes);
+    }
+
+    void decompressed(long nanos) {
+        _decompressNanos.add(nanos);
+    }
+
+    long getCompressed() {
+        return _compressed.sum();
+    }
+
+    long getUncompressed() {
+        return _uncompressed.sum();
+    }
+
+    /**
+     * @return the compressed size of the compressed payloads as a fraction of their raw size
+     */
+    double getRatio() {
+        long raw = _rawBytes.sum();
+        return raw == 0 ? 1.0 : (double) _compressedBytes.sum() / raw;
+    }
+
+    long getCompressMillis() {
+        return _compressNanos.sum() / 1_000_000;
+    }
+
+    long getDecompressMillis() {
+        return _decompressNanos.sum() / 1_000_000;
+    }
+}
@@ -0,0 +1,202 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * DeflateCompressor
+ *
+ * Compresses with deflate at a given level, optionally primed with a preset dictionary of byte
+ * sequences that are common in sessions, which greatly improves the ratio for small sessions.
+ * A dictionary can be any representative sample of session content, such as a few serialized
+ * sessions concatenated, with the most common sequences last.
+ *
+ * Deflaters and inflaters are pooled, and the native memory of those that do not fit in the
+ * pool is released as soon as they are done with rather than when they are finalized.
+ */
+public class DeflateCompressor implements SessionCompressor {
+    public static final int ID = 1;
+    public static final int DICTIONARY_ID = 2;
+    private static final int POOL_SIZE = 64;
+    private static final int CHUNK_SIZE = 8192;
+
+    private final int _level;
+    private final byte[] _dictionary;
+    private final BlockingQueue<Deflating> _deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflating> _inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * A deflater with the buffer it deflates into.
+     */
+    private static class Deflating {
+        final Deflater _deflater;
+        final byte[] _chunk = new byte[CHUNK_SIZE];
+
+        Deflating(int level) {
+            _deflater = new Deflater(level);
+        }
+    }
+
+    /**
+     * An inflater with the buffer it inflates into.
+     */
+    private static class Inflating {
+        final Inflater _inflater = new Inflater();
+        final byte[] _chunk = new byte[CHUNK_SIZE];
+    }
+
+    public DeflateCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * @param level the deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION},
+     *              or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param dictionary the preset dictionary, or null for none
+     */
+    public DeflateCompressor(int level, byte[] dictionary) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Level: " + level);
+        }
+        _level = level;
+        _dictionary = dictionary == null || dictionary.length == 0 ? null : dictionary.clone();
+    }
+
+    @Override
+    public int getId() {
+        return _dictionary == null ? ID : DICTIONARY_ID;
+    }
+
+    public int getLevel() {
+        return _level;
+    }
+
+    @Override
+    public void compress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        Deflating deflating = _deflaters.poll();
+        if (deflating == null) {
+            deflating = new Deflating(_level);
+        }
+        Deflater deflater = deflating._deflater;
+        try {
+            if (_dictionary != null) {
+                deflater.setDictionary(_dictionary);
+            }
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflating._chunk);
+                out.write(deflating._chunk, 0, n);
+            }
+        } finally {
+            deflater.reset();
+            if (!_deflaters.offer(deflating)) {
+                deflater.end();
+            }
+        }
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        Inflating inflating = _inflaters.poll();
+        if (inflating == null) {
+            inflating = new Inflating();
+        }
+        Inflater inflater = inflating._inflater;
+        try {
+            inflater.setInput(data, offset, length);
+            while (!inflater.finished()) {
+                int n = inflater.inflate(inflating._chunk);
+                if (n > 0) {
+                    out.write(inflating._chunk, 0, n);
+                } else if (inflater.needsDictionary()) {
+                    setDictionary(inflater);
+                } else {
+                    throw new ZipException("Truncated deflate stream");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!_inflaters.offer(inflating)) {
+                inflater.end();
+            }
+        }
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+        return new InflaterInputStream(in, new Inflater()) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0 && inf.needsDictionary()) {
+                    setDictionary(inf);
+                    n = super.read(b, off, len);
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    private void setDictionary(Inflater inflater) throws ZipException {
+        if (_dictionary == null) {
+            throw new ZipException("No dictionary");
+        }
+        try {
+            inflater.setDictionary(_dictionary);
+        } catch (IllegalArgumentException e) {
+            throw new ZipException("Wrong dictionary");
+        }
+    }
+
+    /**
+     * Releases the native memory of the pooled deflaters and inflaters.
+     */
+    @Override
+    public void close() {
+        Deflating deflating;
+        while ((deflating = _deflaters.poll()) != null) {
+            deflating._deflater.end();
+        }
+        Inflating inflating;
+        while ((inflating = _inflaters.poll()) != null) {
+            inflating._inflater.end();
+        }
+    }
+}
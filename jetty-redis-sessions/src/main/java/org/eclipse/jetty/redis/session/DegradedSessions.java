@@ -0,0 +1,147 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * DegradedSessions
+ *
+ * Holds the sessions written while redis could not be reached, in the order they were first
+ * written, until they are replayed to redis. Until then they are loaded from here rather than
+ * from redis, so that a node keeps seeing its own writes. When full, the oldest write is dropped.
+ */
+class DegradedSessions {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+
+    /**
+     * The latest write of a session: a copy of the session, or null if it was deleted.
+     */
+    static final class Entry {
+        private final SessionData _data;
+
+        private Entry(SessionData data) {
+            _data = data;
+        }
+
+        /**
+         * @return a copy of the session as last written, or null if it was deleted
+         */
+        SessionData getData() {
+            if (_data == null) {
+                return null;
+            }
+            SessionData copy = copy(_data);
+            copy.setExpiry(_data.getExpiry());
+            return copy;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> _entries;
+    private final LongAdder _dropped = new LongAdder();
+
+    /**
+     * @param maxSessions the number of sessions to hold writes for
+     */
+    DegradedSessions(final int maxSessions) {
+        _entries = new LinkedHashMap<String, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxSessions) {
+                    return false;
+                }
+                LOG.warn("Dropping write of session {} made while redis was unavailable", eldest.getKey());
+                _dropped.increment();
+                return true;
+            }
+        };
+    }
+
+    synchronized void store(String id, SessionData data) {
+        SessionData copy = copy(data);
+        copy.setExpiry(data.getExpiry());
+        _entries.put(id, new Entry(copy));
+    }
+
+    synchronized void delete(String id) {
+        _entries.put(id, new Entry(null));
+    }
+
+    /**
+     * @param id the session id
+     * @return the latest write of the session, or null if there is none to replay
+     */
+    synchronized Entry get(String id) {
+        return _entries.get(id);
+    }
+
+    /**
+     * @return the oldest write to replay, or null if there is none
+     */
+    synchronized Map.Entry<String, Entry> first() {
+        Iterator<Map.Entry<String, Entry>> entries = _entries.entrySet().iterator();
+        if (!entries.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, Entry> first = entries.next();
+        return new AbstractMap.SimpleImmutableEntry<>(first.getKey(), first.getValue());
+    }
+
+    /**
+     * Removes a write once it has been replayed, unless the session was written again since.
+     */
+    synchronized void replayed(String id, Entry entry) {
+        _entries.remove(id, entry);
+    }
+
+    synchronized boolean isEmpty() {
+        return _entries.isEmpty();
+    }
+
+    synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * @return the writes dropped because too many sessions were written while redis was unavailable
+     */
+    long getDropped() {
+        return _dropped.sum();
+    }
+
+    /**
+     * @return a copy of the session as if it had just been loaded
+     */
+    private static SessionData copy(SessionData data) {
+        if (data instanceof LazySessionData) {
+            return ((LazySessionData) data).copy();
+        }
+        SessionData copy = new SessionData(data.getId(), data.getContextPath(), data.getVhost(), data.getCreated(),
+                data.getAccessed(), data.getLastAccessed(), data.getMaxInactiveMs());
+        copy.putAllAttributes(data.getAllAttributes());
+        copy.setDirty(false);
+        return copy;
+    }
+}
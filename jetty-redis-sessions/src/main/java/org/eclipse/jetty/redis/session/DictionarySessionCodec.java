@@ -0,0 +1,178 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
+
+/**
+ * DictionarySessionCodec
+ *
+ * Writes session attributes with java serialization, but refers to each class descriptor by its
+ * number in a {@link ClassDictionary} rather than writing it in full, and without the stream header.
+ * Each stream starts with the epoch of the dictionary its numbers belong to.
+ * The attributes of a session are written in one stream, so an object referenced by two attributes
+ * is read back as one object. Classes are resolved with the context class loader of the web
+ * application, once for each loader.
+ */
+class DictionarySessionCodec implements SessionCodec {
+    public static final int FORMAT = 3;
+
+    private final ClassDictionary _dictionary;
+    private volatile ClassCache _classes = new ClassCache(null);
+
+    /**
+     * @param dictionary the dictionary of class descriptors
+     */
+    DictionarySessionCodec(ClassDictionary dictionary) {
+        _dictionary = dictionary;
+    }
+
+    @Override
+    public int getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public void encodeAttributes(SessionData data, OutputStream out) throws IOException {
+        Output oos = new Output(out);
+        Set<String> names = data.getKeys();
+        oos.writeInt(names.size());
+        for (String name : names) {
+            oos.writeUTF(name);
+            oos.writeObject(data.getAttribute(name));
+        }
+        oos.flush();
+    }
+
+    @Override
+    public void decodeAttributes(SessionData data, InputStream in) throws IOException, ClassNotFoundException {
+        Input ois = new Input(in);
+        int count = ois.readInt();
+        Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = ois.readUTF();
+            attributes.put(name, ois.readObject());
+        }
+        data.putAllAttributes(attributes);
+    }
+
+    @Override
+    public void encodeAttribute(Object value, OutputStream out) throws IOException {
+        Output oos = new Output(out);
+        oos.writeObject(value);
+        oos.flush();
+    }
+
+    @Override
+    public Object decodeAttribute(InputStream in) throws IOException, ClassNotFoundException {
+        return new Input(in).readObject();
+    }
+
+    /**
+     * @return the classes resolved with the context class loader, which is that of the web application
+     */
+    private ClassCache classes() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        ClassCache classes = _classes;
+        if (classes._loader != loader) {
+            classes = new ClassCache(loader);
+            _classes = classes;
+        }
+        return classes;
+    }
+
+    private static class ClassCache {
+        private final ClassLoader _loader;
+        private final ConcurrentMap<String, Class<?>> _classes = new ConcurrentHashMap<>();
+
+        ClassCache(ClassLoader loader) {
+            _loader = loader;
+        }
+    }
+
+    private class Output extends ObjectOutputStream {
+        private final ClassDictionary.Epoch _epoch;
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+            _epoch = _dictionary.epoch();
+            writeInt(_epoch.getNumber());
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass descriptor) throws IOException {
+            int id = _dictionary.id(_epoch, descriptor);
+            while ((id & ~0x7f) != 0) {
+                write((id & 0x7f) | 0x80);
+                id >>>= 7;
+            }
+            write(id);
+        }
+    }
+
+    private class Input extends ClassLoadingObjectInputStream {
+        private final ClassCache _resolved = classes();
+        private final ClassDictionary.Epoch _epoch;
+
+        Input(InputStream in) throws IOException {
+            super(in);
+            _epoch = _dictionary.epoch(readInt());
+        }
+
+        @Override
+        protected void readStreamHeader() {
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException {
+            int id = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = readUnsignedByte();
+                id |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return _dictionary.descriptor(_epoch, id);
+                }
+            }
+        }
+
+        @Override
+        public Class<?> resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException {
+            Class<?> resolved = _resolved._classes.get(descriptor.getName());
+            if (resolved == null) {
+                resolved = super.resolveClass(descriptor);
+                _resolved._classes.put(descriptor.getName(), resolved);
+            }
+            return resolved;
+        }
+    }
+}
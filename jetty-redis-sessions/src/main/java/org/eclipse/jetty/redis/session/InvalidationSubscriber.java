@@ -0,0 +1,157 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.charset.StandardCharsets;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * InvalidationSubscriber
+ *
+ * Subscribes to the channel on which the nodes sharing a session store announce their writes,
+ * and removes the sessions written by other nodes from the near cache. The near cache is only
+ * used while the subscription is established, and is emptied whenever it is lost. The
+ * subscription holds a connection of its own rather than one of the pools, which it would
+ * otherwise take for the life of the map.
+ */
+class InvalidationSubscriber implements Runnable {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+    private static final long RETRY_MS = 1000;
+
+    /**
+     * Opens the connections to subscribe on.
+     */
+    interface Connector {
+        /**
+         * @param channel the channel to subscribe to
+         * @return a new connection, outside of the pools, to a node on which the messages of the channel are published
+         * @throws Exception if no connection can be opened
+         */
+        Jedis connect(byte[] channel) throws Exception;
+    }
+
+    private final Connector _connector;
+    private final String _channel;
+    private final String _nodeId;
+    private final NearCache _cache;
+    private volatile boolean _running;
+    private volatile JedisPubSub _subscription;
+    private volatile Jedis _connection;
+    private Thread _thread;
+
+    /**
+     * @param connector opens the connections to subscribe on
+     * @param channel the invalidation channel
+     * @param nodeId the id with which this node signs its own announcements, which it ignores
+     * @param cache the near cache to invalidate
+     */
+    InvalidationSubscriber(Connector connector, String channel, String nodeId, NearCache cache) {
+        _connector = connector;
+        _channel = channel;
+        _nodeId = nodeId;
+        _cache = cache;
+    }
+
+    /**
+     * @param nodeId the id of the node that wrote the session
+     * @param id the session id
+     * @return the announcement of a write
+     */
+    static String message(String nodeId, String id) {
+        return nodeId + " " + id;
+    }
+
+    synchronized void start(String name) {
+        _running = true;
+        _thread = new Thread(this, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+        JedisPubSub subscription = _subscription;
+        if (subscription != null && subscription.isSubscribed()) {
+            subscription.unsubscribe();
+        }
+        Jedis connection = _connection;
+        if (connection != null) {
+            //unblocks a subscriber that has not subscribed yet
+            connection.disconnect();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+        _cache.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] key = _channel.getBytes(StandardCharsets.UTF_8);
+        while (_running) {
+            JedisPubSub subscription = new JedisPubSub() {
+                @Override
+                public void onSubscribe(String channel, int subscribedChannels) {
+                    if (_running) {
+                        _cache.open();
+                    } else {
+                        unsubscribe();
+                    }
+                }
+
+                @Override
+                public void onMessage(String channel, String message) {
+                    int space = message.indexOf(' ');
+                    if (space > 0 && !_nodeId.equals(message.substring(0, space))) {
+                        _cache.invalidate(message.substring(space + 1));
+                    }
+                }
+            };
+            _subscription = subscription;
+            try (Jedis jedis = _connector.connect(key)) {
+                _connection = jedis;
+                if (_running) {
+                    jedis.subscribe(subscription, _channel);
+                }
+            } catch (Exception e) {
+                if (_running) {
+                    LOG.warn("Lost session invalidation subscription, near cache disabled", e);
+                }
+            } finally {
+                _connection = null;
+            }
+            _cache.close();
+            if (_running) {
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
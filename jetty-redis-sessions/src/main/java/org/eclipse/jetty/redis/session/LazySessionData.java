@@ -0,0 +1,137 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jetty.server.session.SessionData;
+
+/**
+ * LazySessionData
+ *
+ * Session data whose attributes are kept as they were read from redis, and only deserialized when
+ * the application first reads them. Attributes that a request never reads cost nothing to load and
+ * are stored again as they were read.
+ */
+class LazySessionData extends SessionData {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Deserializes attributes.
+     */
+    interface Decoder {
+        Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * The stored form of an attribute, in place of its value until it is first read.
+     */
+    private static final class Serialized {
+        private final byte[] _bytes;
+        private Object _value;
+
+        Serialized(byte[] bytes) {
+            _bytes = bytes;
+        }
+
+        /**
+         * Deserializes the attribute once, so that concurrent readers get the same value.
+         */
+        synchronized Object decode(String name, Decoder decoder) {
+            if (_value == null) {
+                try {
+                    _value = decoder.decode(_bytes);
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException("Cannot deserialize attribute " + name, e);
+                }
+            }
+            return _value;
+        }
+    }
+
+    private final transient Decoder _decoder;
+
+    LazySessionData(String id, String cpath, String vhost, long created, long accessed, long lastAccessed,
+                    long maxInactiveMs, Decoder decoder) {
+        super(id, cpath, vhost, created, accessed, lastAccessed, maxInactiveMs);
+        _decoder = decoder;
+    }
+
+    /**
+     * @param attributes the stored form of attributes, to deserialize when they are first read
+     */
+    void putSerializedAttributes(Map<String, byte[]> attributes) {
+        Map<String, Object> serialized = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : attributes.entrySet()) {
+            serialized.put(e.getKey(), new Serialized(e.getValue()));
+        }
+        putAllAttributes(serialized);
+    }
+
+    /**
+     * @param name the name of an attribute
+     * @return the stored form of the attribute if it has not been read, otherwise null
+     */
+    byte[] getSerializedAttribute(String name) {
+        Object value = _attributes.get(name);
+        return value instanceof Serialized ? ((Serialized) value)._bytes : null;
+    }
+
+    /**
+     * @return a copy of this session, whose attributes that have not been read are still to be
+     * deserialized when first read, and whose other attributes are shared
+     */
+    LazySessionData copy() {
+        LazySessionData copy = new LazySessionData(getId(), getContextPath(), getVhost(), getCreated(), getAccessed(),
+                getLastAccessed(), getMaxInactiveMs(), _decoder);
+        Map<String, Object> attributes = new HashMap<>();
+        for (Map.Entry<String, Object> e : _attributes.entrySet()) {
+            Object value = e.getValue();
+            attributes.put(e.getKey(), value instanceof Serialized ? new Serialized(((Serialized) value)._bytes) : value);
+        }
+        copy.putAllAttributes(attributes);
+        copy.setDirty(false);
+        return copy;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        Object value = _attributes.get(name);
+        if (!(value instanceof Serialized)) {
+            return value;
+        }
+        Object decoded = ((Serialized) value).decode(name, _decoder);
+        _attributes.replace(name, value, decoded);
+        return decoded;
+    }
+
+    @Override
+    public Object setAttribute(String name, Object value) {
+        Object old = super.setAttribute(name, value);
+        return old instanceof Serialized ? ((Serialized) old).decode(name, _decoder) : old;
+    }
+
+    @Override
+    public Map<String, Object> getAllAttributes() {
+        for (String name : getKeys()) {
+            getAttribute(name);
+        }
+        return super.getAllAttributes();
+    }
+}
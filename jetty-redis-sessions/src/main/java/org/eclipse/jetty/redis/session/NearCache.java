@@ -0,0 +1,228 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NearCache
+ *
+ * Keeps the most recently loaded and stored sessions in memory, bounded by count and by
+ * serialized size, and evicts the least recently used ones first.
+ *
+ * Entries are removed when another node reports a write to their session. Every entry is
+ * stamped with the invalidation sequence at the time its session was read from redis, and
+ * a read is only cached if no invalidation of its session can have been processed since;
+ * reports that may have been missed, for instance while the invalidation subscription is
+ * down, make the whole cache unusable until it has been {@link #open() reopened}.
+ *
+ * Sessions are cached in their serialized form, as the write that stores them in full, and are
+ * deserialized again on every hit: the attribute values are mutable objects that the application
+ * changes in place, so no two loads may be handed the same ones.
+ */
+class NearCache {
+    private final int _maxEntries;
+    private final long _maxBytes;
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> _invalidated = new LinkedHashMap<>();
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private long _bytes;
+    private long _sequence;
+    private long _floor;
+    private boolean _open;
+
+    private static class Entry {
+        final SessionWrite _session;
+        final long _size;
+        final long _stamp;
+
+        Entry(SessionWrite session, long stamp) {
+            _session = session;
+            _size = session.getSize();
+            _stamp = stamp;
+        }
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached sessions
+     * @param maxBytes the maximum total serialized size of the cached sessions
+     */
+    NearCache(int maxEntries, long maxBytes) {
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * @param id the session id
+     * @return the serialized form of the cached session, to deserialize, or null if it is not cached
+     */
+    SessionWrite get(String id) {
+        Entry entry;
+        synchronized (this) {
+            entry = _open ? _entries.get(id) : null;
+        }
+        if (entry == null) {
+            _misses.increment();
+            return null;
+        }
+        _hits.increment();
+        return entry._session;
+    }
+
+    /**
+     * @return the stamp to pass to {@link #put(String, SessionWrite, long)} for a session that is
+     * about to be read from redis
+     */
+    synchronized long stamp() {
+        return _sequence;
+    }
+
+    /**
+     * Caches a session read from redis, unless an invalidation of the session may have been
+     * missed since the read started.
+     *
+     * @param id the session id
+     * @param session the session as read, in the form of a {@link SessionWrite.Type#VALUE} or
+     * {@link SessionWrite.Type#HASH} write
+     * @param stamp the {@link #stamp()} taken before the session was read
+     */
+    synchronized void put(String id, SessionWrite session, long stamp) {
+        if (!_open || stamp < _floor) {
+            return;
+        }
+        Long invalidated = _invalidated.get(id);
+        if (invalidated != null && invalidated > stamp) {
+            return;
+        }
+        add(id, new Entry(session, stamp));
+    }
+
+    /**
+     * Caches a session written by this node, which is the latest version of the session.
+     *
+     * @param id the session id
+     * @param session the {@link SessionWrite.Type#VALUE} or {@link SessionWrite.Type#HASH} write
+     * of the whole session
+     */
+    synchronized void put(String id, SessionWrite session) {
+        if (_open) {
+            add(id, new Entry(session, _sequence));
+        }
+    }
+
+    /**
+     * Updates the timestamps of a cached session whose attributes this node has not changed.
+     *
+     * @param touch the {@link SessionWrite.Type#TOUCH} write of the session
+     */
+    synchronized void touch(SessionWrite touch) {
+        Entry entry = _open ? _entries.get(touch.getId()) : null;
+        if (entry != null) {
+            add(touch.getId(), new Entry(entry._session.merge(touch), _sequence));
+        }
+    }
+
+    private void add(String id, Entry entry) {
+        if (entry._size > _maxBytes) {
+            remove(id);
+            return;
+        }
+        Entry old = _entries.put(id, entry);
+        if (old != null) {
+            _bytes -= old._size;
+        }
+        _bytes += entry._size;
+        Iterator<Entry> eldest = _entries.values().iterator();
+        while (_entries.size() > _maxEntries || _bytes > _maxBytes) {
+            _bytes -= eldest.next()._size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes a session that has been written or deleted elsewhere.
+     *
+     * @param id the session id
+     */
+    synchronized void invalidate(String id) {
+        remove(id);
+        _sequence++;
+        _invalidated.remove(id);
+        _invalidated.put(id, _sequence);
+        if (_invalidated.size() > _maxEntries) {
+            Iterator<Long> eldest = _invalidated.values().iterator();
+            _floor = eldest.next();
+            eldest.remove();
+        }
+    }
+
+    synchronized void remove(String id) {
+        Entry old = _entries.remove(id);
+        if (old != null) {
+            _bytes -= old._size;
+        }
+    }
+
+    /**
+     * Starts caching, after the invalidation subscription has been established.
+     */
+    synchronized void open() {
+        reset();
+        _open = true;
+    }
+
+    /**
+     * Empties the cache and stops caching, because invalidations may be missed from now on.
+     */
+    synchronized void close() {
+        reset();
+        _open = false;
+    }
+
+    private void reset() {
+        _entries.clear();
+        _invalidated.clear();
+        _bytes = 0;
+        _sequence++;
+        _floor = _sequence;
+    }
+
+    synchronized boolean isOpen() {
+        return _open;
+    }
+
+    synchronized int getSize() {
+        return _entries.size();
+    }
+
+    synchronized long getBytes() {
+        return _bytes;
+    }
+
+    long getHits() {
+        return _hits.sum();
+    }
+
+    long getMisses() {
+        return _misses.sum();
+    }
+}
@@ -0,0 +1,150 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * RedisScript
+ *
+ * A lua script that is invoked by its SHA1 digest, so that only the digest and not the script
+ * is sent on each call. The script is sent in full if redis does not have it cached.
+ */
+class RedisScript {
+    private final byte[] _script;
+    private final byte[] _sha1;
+
+    RedisScript(String script) {
+        _script = script.getBytes(StandardCharsets.UTF_8);
+        _sha1 = sha1Hex(_script).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    byte[] getScript() {
+        return _script;
+    }
+
+    byte[] getSha1() {
+        return _sha1;
+    }
+
+    /**
+     * @param jedis the connection to run the script on
+     * @param keys the keys passed to the script as KEYS
+     * @param args the arguments passed to the script as ARGV
+     * @return the result of the script
+     */
+    Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return jedis.evalsha(_sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return jedis.eval(_script, keys, args);
+        }
+    }
+
+    /**
+     * Runs the script once for each key, in a pipeline, with the same arguments.
+     *
+     * @param jedis the connection to run the script on
+     * @param keys the keys, each passed to a run of the script as KEYS[1]
+     * @param args the arguments passed to every run as ARGV
+     * @return the result of each run, or the {@link JedisDataException} it failed with
+     */
+    List<Object> evalEach(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        List<Object> results = pipelineEach(jedis, keys, args);
+        for (Object result : results) {
+            if (result instanceof JedisDataException && isNoScript((JedisDataException) result)) {
+                load(jedis);
+                return pipelineEach(jedis, keys, args);
+            }
+        }
+        return results;
+    }
+
+    private List<Object> pipelineEach(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        Pipeline pipeline = jedis.pipelined();
+        for (byte[] key : keys) {
+            pipeline.evalsha(_sha1, Collections.singletonList(key), args);
+        }
+        return pipeline.syncAndReturnAll();
+    }
+
+    /**
+     * @param client the multiplexed connections to run the script on
+     * @param keys the keys passed to the script as KEYS
+     * @param args the arguments passed to the script as ARGV
+     * @return the result of the script
+     */
+    CompletableFuture<Object> send(RespClient client, List<byte[]> keys, List<byte[]> args) {
+        CompletableFuture<Object> reply = client.send(command(Protocol.Command.EVALSHA, _sha1, keys, args));
+        return reply.handle((result, failure) -> {
+            if (failure instanceof JedisDataException && isNoScript((JedisDataException) failure)) {
+                return client.send(command(Protocol.Command.EVAL, _script, keys, args));
+            }
+            return reply;
+        }).thenCompose(future -> future);
+    }
+
+    private static byte[][] command(Protocol.Command command, byte[] script, List<byte[]> keys, List<byte[]> args) {
+        List<byte[]> parts = new ArrayList<>(3 + keys.size() + args.size());
+        parts.add(command.raw);
+        parts.add(script);
+        parts.add(Protocol.toByteArray(keys.size()));
+        parts.addAll(keys);
+        parts.addAll(args);
+        return parts.toArray(new byte[parts.size()][]);
+    }
+
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    /**
+     * Caches the script in redis, so that it is not sent in full on its first call.
+     *
+     * @param jedis the connection to the redis to load the script into
+     */
+    void load(Jedis jedis) {
+        jedis.scriptLoad(_script);
+    }
+
+    private static String sha1Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
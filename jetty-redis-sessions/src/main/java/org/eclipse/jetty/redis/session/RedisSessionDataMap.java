@@ -19,13 +19,44 @@
 package org.eclipse.jetty.redis.session;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.zip.DeflaterOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 import java.util.zip.InflaterInputStream;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLParameters;
@@ -37,11 +68,21 @@ import org.eclipse.jetty.server.session.SessionDataMap;
 import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
 import org.eclipse.jetty.util.annotation.ManagedAttribute;
 import org.eclipse.jetty.util.annotation.ManagedObject;
-import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisClusterMaxRedirectionsException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 import redis.clients.util.JedisURIHelper;
+import redis.clients.util.Pool;
 
 /**
  * RedisSessionDataMap
@@ -49,12 +90,142 @@ import redis.clients.util.JedisURIHelper;
  * Uses redis as a cache for SessionData
  */
 @ManagedObject
-public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDataMap {
+public class RedisSessionDataMap extends ContainerLifeCycle implements SessionDataMap {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
     public static final String DEFAULT_HOST = "localhost";
     public static final String DEFAULT_PORT = "6379";
+    static final String META_FIELD = "#meta";
+    static final byte[] META_FIELD_BYTES = META_FIELD.getBytes(StandardCharsets.UTF_8);
+    static final String ATTRIBUTE_FIELD_PREFIX = "a:";
+    static final String VERSION_FIELD = "#version";
+    static final int COMPRESSOR_MASK = 0x0F; //flags bits holding the id of the compressor, 0 for none
+    static final int ATTRIBUTE_HEADER_LENGTH = 2;
+    static final int TIMESTAMPS_OFFSET = 2;
+    static final int TIMESTAMPS_LENGTH = 4 * Long.BYTES;
+    static final int VALUE_HEADER_LENGTH = TIMESTAMPS_OFFSET + TIMESTAMPS_LENGTH;
+    static final int META_LENGTH = TIMESTAMPS_LENGTH + Integer.BYTES;
+
+    /**
+     * Index maintenance shared by the touch scripts: KEYS[2] is the optional expiry index,
+     * ARGV[3] the session expiry and ARGV[4] the session id.
+     */
+    private static final String INDEX_EXPIRY_LUA =
+            "if KEYS[2] then" +
+            "  if tonumber(ARGV[3]) > 0 then redis.call('ZADD', KEYS[2], ARGV[3], ARGV[4])" +
+            "  else redis.call('ZREM', KEYS[2], ARGV[4]) end " +
+            "end ";
+
+    /**
+     * Sets the ttl of KEYS[1] from the max inactive interval in the timestamps held by the lua
+     * variable {@code timestamps}, which may be false, at the given offset. ARGV[1] is the ttl of
+     * sessions without a max inactive interval, and ARGV[2] the grace period added to it, or -1 to
+     * give every session the ttl in ARGV[1], as {@link #expirySec(long)} does.
+     */
+    private static String expiryLua(int offset) {
+        return "local ttl = tonumber(ARGV[1]) " +
+                "if tonumber(ARGV[2]) >= 0 and timestamps and" +
+                "  string.len(timestamps) >= " + (offset + TIMESTAMPS_LENGTH) + " then" +
+                "  local maxInactive = struct.unpack('>i8', timestamps, " + (offset + 3 * Long.BYTES + 1) + ") " +
+                "  if maxInactive > 0 then ttl = math.floor((maxInactive + 999) / 1000) + tonumber(ARGV[2]) end " +
+                "end " +
+                "if ttl > 0 then redis.call('EXPIRE', KEYS[1], ttl) end ";
+    }
+
+    /**
+     * Gets a value and refreshes its ttl with the max inactive interval in its header,
+     * see {@link #expiryLua(int)}.
+     */
+    static final RedisScript LOAD_VALUE = new RedisScript(
+            "local value = redis.call('GET', KEYS[1]) " +
+            "if not value then return false end " +
+            "local format = string.byte(value, 1) " +
+            "local timestamps = format and format >= 1 and format <= " + SessionCodec.MAX_FORMAT + " and value " +
+            expiryLua(TIMESTAMPS_OFFSET) +
+            "return value");
+
+    /**
+     * Gets all the fields of a hash and refreshes its ttl with the max inactive interval in its
+     * metadata field, see {@link #expiryLua(int)}.
+     */
+    static final RedisScript LOAD_HASH = new RedisScript(
+            "local fields = redis.call('HGETALL', KEYS[1]) " +
+            "if #fields == 0 then return fields end " +
+            "local timestamps = redis.call('HGET', KEYS[1], '" + META_FIELD + "') " +
+            expiryLua(0) +
+            "return fields");
+
+    /**
+     * Overwrites the timestamps in the header of a value (ARGV[1]) and refreshes its ttl (ARGV[2]),
+     * provided the value exists and starts with a codec format.
+     */
+    static final RedisScript TOUCH_VALUE = new RedisScript(
+            "local format = string.byte(redis.call('GETRANGE', KEYS[1], 0, 0)) " +
+            "if not format or format < 1 or format > " + SessionCodec.MAX_FORMAT + " then return 0 end " +
+            "redis.call('SETRANGE', KEYS[1], " + TIMESTAMPS_OFFSET + ", ARGV[1]) " +
+            "if tonumber(ARGV[2]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[2]) end " +
+            INDEX_EXPIRY_LUA +
+            "return 1");
+
+    /**
+     * Overwrites the metadata field of a hash (ARGV[1]) and refreshes its ttl (ARGV[2]),
+     * provided the hash exists.
+     */
+    static final RedisScript TOUCH_HASH = new RedisScript(
+            "if redis.call('HEXISTS', KEYS[1], '" + META_FIELD + "') == 0 then return 0 end " +
+            "redis.call('HSET', KEYS[1], '" + META_FIELD + "', ARGV[1]) " +
+            "if tonumber(ARGV[2]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[2]) end " +
+            INDEX_EXPIRY_LUA +
+            "return 1");
+
+    /**
+     * Stores a session hash if its version (0 if it has none) is ARGV[1], or whatever its version
+     * if ARGV[1] is negative, and increments the version. ARGV[5] is 1 to replace the whole hash,
+     * ARGV[6] is the metadata, whose attribute count is recomputed, and ARGV[7] the number of
+     * fields to delete, which follow, followed by the fields to set, each followed by its value.
+     * Returns 1 and the new version, or 0 and the current version if it was not the expected one.
+     */
+    static final RedisScript STORE_HASH_VERSIONED = new RedisScript(
+            "local version = tonumber(redis.call('HGET', KEYS[1], '" + VERSION_FIELD + "') or '0') " +
+            "if tonumber(ARGV[1]) >= 0 and version ~= tonumber(ARGV[1]) then return {0, version} end " +
+            "if ARGV[5] == '1' then redis.call('DEL', KEYS[1]) end " +
+            "local removed = tonumber(ARGV[7]) " +
+            "for i = 8, 7 + removed do redis.call('HDEL', KEYS[1], ARGV[i]) end " +
+            "for i = 8 + removed, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "local count = 0 " +
+            "for _, field in ipairs(redis.call('HKEYS', KEYS[1])) do " +
+            "  if string.sub(field, 1, " + ATTRIBUTE_FIELD_PREFIX.length() + ") == '" + ATTRIBUTE_FIELD_PREFIX + "'" +
+            "  then count = count + 1 end " +
+            "end " +
+            "redis.call('HSET', KEYS[1], '" + META_FIELD + "', " +
+            "  string.sub(ARGV[6], 1, " + TIMESTAMPS_LENGTH + ") .. struct.pack('>i4', count)) " +
+            "version = redis.call('HINCRBY', KEYS[1], '" + VERSION_FIELD + "', 1) " +
+            "if tonumber(ARGV[2]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[2]) end " +
+            INDEX_EXPIRY_LUA +
+            "return {1, version}");
+
+    /**
+     * Unlinks the keys, whose memory redis then frees in the background.
+     */
+    static final RedisScript UNLINK = new RedisScript("return redis.call('UNLINK', unpack(KEYS))");
+    /**
+     * Appended to the key prefix to name the hash that holds the class dictionary.
+     */
+    static final String CLASS_DICTIONARY_KEY = "#classes";
+
     protected SessionContext _context; //context associated with this session data map
     protected JedisPool _pool;
+    protected RedisTopology _topology;
+    protected String _clusterNodes;
+    protected String _shards;
+    protected int _clusterMaxAttempts = 5;
+    protected String _sentinels;
+    protected String _sentinelMaster;
+    protected boolean _replicaReads = false;
+    protected long _replicaRefreshMs = 5000;
+    protected int _replicaWait = 0;
+    protected long _replicaWaitTimeoutMs = 100;
     protected int _expirySec = 0;
+    protected int _expiryGraceSec = -1;
     protected String _host;
     protected int _port;
     protected int _connectionTimeout = Protocol.DEFAULT_TIMEOUT;
@@ -69,14 +240,79 @@ public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDat
     protected int _maxIdle = GenericObjectPoolConfig.DEFAULT_MAX_IDLE;
     protected int _minIdle = GenericObjectPoolConfig.DEFAULT_MIN_IDLE;
     protected int _maxTotal = GenericObjectPoolConfig.DEFAULT_MAX_TOTAL;
+    protected boolean _warmUp = false;
+    protected volatile long _startupMs = -1;
+    protected long _maxWaitMs = GenericObjectPoolConfig.DEFAULT_MAX_WAIT_MILLIS;
+    protected long _loadBudgetMs = 0;
+    protected long _storeBudgetMs = 0;
+    protected boolean _circuitBreaker = false;
+    protected int _circuitBreakerWindow = 20;
+    protected int _circuitBreakerFailureRate = 50;
+    protected long _circuitBreakerOpenMs = 5000;
+    protected int _degradedSessions = 10000;
+    protected CircuitBreaker _breaker;
+    protected DegradedSessions _degraded;
+    protected final AtomicBoolean _replaying = new AtomicBoolean();
+    protected long _reaperIntervalMs = 0;
+    protected int _reaperOpsPerSec = 1000;
+    protected int _reaperBatchSize = 100;
+    protected int _reaperGraceSec = 3600;
+    protected SessionReaper _reaper;
     protected String _keyPrefix;
-    protected boolean _compression = false;
+    protected boolean _compression = true;
+    protected int _compressionThreshold = 512;
+    protected int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    protected String _compressionDictionary;
+    protected SessionCompressor _compressor;
+    protected SessionCompressor _writeCompressor;
+    protected SessionCompressor[] _compressors;
+    protected final CompressionStats _compressionStats = new CompressionStats();
+    protected final SessionMetrics _metrics = new SessionMetrics();
+    protected byte[] _expiryIndexKey; //sorted set of session expiry times, maintained when set
+    protected boolean _hashLayout = false;
+    protected int _chunkSize = 0;
+    protected boolean _lazyAttributes = false;
+    protected int _digestCacheSize = 10000;
+    protected AttributeDigests _attributeDigests;
+    protected boolean _skipUnchangedWrites = false;
+    protected SessionFingerprints _fingerprints;
+    protected boolean _versioned = false;
+    protected boolean _mergeConflicts = false;
+    protected SessionVersions _versions;
+    protected boolean _writeBehind = false;
+    protected int _writeBehindQueueSize = 10000;
+    protected int _writeBehindBatchSize = 100;
+    protected long _writeBehindFlushIntervalMs = 10;
+    protected long _writeBehindMaxWaitMs = 1000;
+    protected long _writeBehindMaxRetryMs = 60000;
+    protected WriteBehindQueue _writeBehindQueue;
+    protected SessionCodec _codec = new JavaSessionCodec();
+    protected boolean _classDictionary = false;
+    protected SessionCodec _writeCodec;
+    protected SessionCodec[] _codecs;
+    protected int _nearCacheSize = 0;
+    protected long _nearCacheMaxBytes = 64 * 1024 * 1024;
+    protected NearCache _nearCache;
+    protected InvalidationSubscriber _invalidationSubscriber;
+    protected final String _nodeId = UUID.randomUUID().toString();
+    protected int _asyncConnections = 0;
+    protected Executor _asyncExecutor;
+    protected RespClient _asyncClient;
+
+    /**
+     * Connects to redis on {@link #DEFAULT_HOST}:{@link #DEFAULT_PORT}, or to the cluster
+     * set with {@link #setClusterNodes(String)} or the master set with {@link #setSentinels(String)}.
+     */
+    public RedisSessionDataMap() {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
 
     /**
      * @param host address of memcache server
      * @param port address of memcache server
      */
     public RedisSessionDataMap(String host, String port) {
+        addBean(_metrics, false);
         if (host == null || port == null) {
             throw new IllegalArgumentException("Host: " + host + " port: " + port);
         }
@@ -110,6 +346,43 @@ public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDat
         return _expirySec;
     }
 
+    /**
+     * Sets keys to expire with their session rather than after {@link #setExpirySec(int)}: the
+     * key of each session expires after the max inactive interval of that session plus the
+     * grace period, and that expiry is refreshed whenever the session is loaded or stored.
+     * Sessions that never become inactive still expire after {@link #setExpirySec(int)}, if set.
+     * The grace period leaves time for jetty to find expired sessions before redis drops them.
+     *
+     * @param sec the grace period in seconds, or -1 (the default) to expire every key after
+     * {@link #setExpirySec(int)}
+     */
+    public void setExpiryGraceSec(int sec) {
+        _expiryGraceSec = sec;
+    }
+
+    @ManagedAttribute(value = "sec keys outlive the max inactive interval of their session, or -1", readonly = true)
+    public int getExpiryGraceSec() {
+        return _expiryGraceSec;
+    }
+
+    /**
+     * @param maxInactiveMs the max inactive interval of a session
+     * @return the seconds after which the key of the session expires, or 0 if it does not expire
+     */
+    int expirySec(long maxInactiveMs) {
+        if (_expiryGraceSec < 0 || maxInactiveMs <= 0) {
+            return _expirySec;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (maxInactiveMs + 999) / 1000 + _expiryGraceSec);
+    }
+
+    private int expirySec(SessionWrite write) {
+        ByteBuffer timestamps = write.getType() == SessionWrite.Type.VALUE
+                ? ByteBuffer.wrap(write.getValue(), TIMESTAMPS_OFFSET, TIMESTAMPS_LENGTH)
+                : ByteBuffer.wrap(write.getTimestamps());
+        return expirySec(timestamps.getLong(timestamps.position() + 3 * Long.BYTES));
+    }
+
     public String getHost() {
         return _host;
     }
@@ -132,16 +405,142 @@ public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDat
     }
 
     public void setUrl(String url) {
-        URI uri = URI.create(url);
-        if (JedisURIHelper.isValid(uri)) {
-            setHost(uri.getHost());
-            setPort(uri.getPort());
-            setPassword(JedisURIHelper.getPassword(uri));
-            setDatabase(JedisURIHelper.getDBIndex(uri));
-            setSSL(uri.getScheme().equals("rediss"));
-        } else {
+        URI uri = redisUri(url);
+        setHost(uri.getHost());
+        setPort(uri.getPort());
+        setPassword(JedisURIHelper.getPassword(uri));
+        setDatabase(JedisURIHelper.getDBIndex(uri));
+        setSSL(uri.getScheme().equals("rediss"));
+    }
+
+    private static URI redisUri(String url) {
+        URI uri = URI.create(url.trim());
+        if (!JedisURIHelper.isValid(uri)) {
             throw new IllegalArgumentException("Url: " + url);
         }
+        return uri;
+    }
+
+    public String getShards() {
+        return _shards;
+    }
+
+    /**
+     * @param shards comma separated urls of independent redis nodes, in the form accepted by
+     *               {@link #setUrl(String)}; when set, sessions are spread over the nodes by consistent
+     *               hashing of their id and the host and port are ignored. Every node sharing the
+     *               sessions must list the same shards, in any order.
+     */
+    public void setShards(String shards) {
+        this._shards = shards;
+    }
+
+    /**
+     * @return for each shard, the latency of the commands it ran and its pool gauges, or null if not sharded
+     */
+    @ManagedAttribute(value = "latency of the commands and pool gauges of each shard", readonly = true)
+    public String[] getShardStats() {
+        RedisTopology topology = _topology;
+        return topology instanceof ShardedTopology
+                ? ((ShardedTopology) topology).getNodeStats().toArray(new String[0]) : null;
+    }
+
+    public String getClusterNodes() {
+        return _clusterNodes;
+    }
+
+    /**
+     * @param clusterNodes comma separated host:port seed nodes of a redis cluster; when set,
+     *                     each session is routed to the cluster node that owns its key and
+     *                     the host and port are ignored
+     */
+    public void setClusterNodes(String clusterNodes) {
+        this._clusterNodes = clusterNodes;
+    }
+
+    public int getClusterMaxAttempts() {
+        return _clusterMaxAttempts;
+    }
+
+    /**
+     * @param clusterMaxAttempts the maximum number of attempts for a cluster command, following
+     *                           MOVED and ASK redirects and retrying connections that could not
+     *                           be had; a command that fails once sent is not retried
+     */
+    public void setClusterMaxAttempts(int clusterMaxAttempts) {
+        this._clusterMaxAttempts = clusterMaxAttempts;
+    }
+
+    public String getSentinels() {
+        return _sentinels;
+    }
+
+    /**
+     * @param sentinels comma separated host:port addresses of the sentinels monitoring the
+     *                  {@link #setSentinelMaster(String) master}; when set, sessions are stored on
+     *                  whichever node the sentinels report as the primary and the host and port
+     *                  are ignored
+     */
+    public void setSentinels(String sentinels) {
+        this._sentinels = sentinels;
+    }
+
+    public String getSentinelMaster() {
+        return _sentinelMaster;
+    }
+
+    /**
+     * @param sentinelMaster the name under which the sentinels monitor the master
+     */
+    public void setSentinelMaster(String sentinelMaster) {
+        this._sentinelMaster = sentinelMaster;
+    }
+
+    public boolean isReplicaReads() {
+        return _replicaReads;
+    }
+
+    /**
+     * @param replicaReads true to load sessions from the replicas of the sentinel master,
+     *                     falling back to the primary when a replica does not have the session
+     *                     or cannot be reached
+     */
+    public void setReplicaReads(boolean replicaReads) {
+        this._replicaReads = replicaReads;
+    }
+
+    public long getReplicaRefreshMs() {
+        return _replicaRefreshMs;
+    }
+
+    /**
+     * @param replicaRefreshMs how often the replicas to read from are rediscovered from the sentinels
+     */
+    public void setReplicaRefreshMs(long replicaRefreshMs) {
+        this._replicaRefreshMs = replicaRefreshMs;
+    }
+
+    public int getReplicaWait() {
+        return _replicaWait;
+    }
+
+    /**
+     * @param replicaWait the number of replicas that must acknowledge each write before a store or
+     *                    delete returns, or 0 to not wait; bounds how stale a replica read can be
+     */
+    public void setReplicaWait(int replicaWait) {
+        this._replicaWait = replicaWait;
+    }
+
+    public long getReplicaWaitTimeoutMs() {
+        return _replicaWaitTimeoutMs;
+    }
+
+    /**
+     * @param replicaWaitTimeoutMs the longest time a write waits for replicas to acknowledge it
+     */
+    public void setReplicaWaitTimeoutMs(long replicaWaitTimeoutMs) {
+        this._replicaWaitTimeoutMs = replicaWaitTimeoutMs;
     }
 
     public int getConnectionTimeout() {
@@ -240,6 +639,62 @@ public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDat
         this._maxTotal = maxTotal;
     }
 
+    public boolean isWarmUp() {
+        return _warmUp;
+    }
+
+    /**
+     * @param warmUp true to open and check, when starting, {@link #setMinIdle(int) minIdle} connections
+     *               to each redis node, or one if minIdle is 0, and fail to start if any cannot be opened
+     */
+    public void setWarmUp(boolean warmUp) {
+        this._warmUp = warmUp;
+    }
+
+    /**
+     * @return the time the map took to start, including the warm-up of its connections, or -1 if not started
+     */
+    @ManagedAttribute(value = "time taken to start, including the warm-up of connections, in ms", readonly = true)
+    public long getStartupMs() {
+        return _startupMs;
+    }
+
+    public long getMaxWaitMs() {
+        return _maxWaitMs;
+    }
+
+    /**
+     * @param maxWaitMs the longest time an operation waits for a pooled connection before failing,
+     *                  or -1 to wait until one is returned
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this._maxWaitMs = maxWaitMs;
+    }
+
+    public long getLoadBudgetMs() {
+        return _loadBudgetMs;
+    }
+
+    /**
+     * @param loadBudgetMs the time within which a load should complete, or 0 for no budget.
+     *                     Slower loads count as failures towards opening the circuit breaker.
+     */
+    public void setLoadBudgetMs(long loadBudgetMs) {
+        this._loadBudgetMs = loadBudgetMs;
+    }
+
+    public long getStoreBudgetMs() {
+        return _storeBudgetMs;
+    }
+
+    /**
+     * @param storeBudgetMs the time within which a store, touch or delete should complete, or 0 for
+     *                      no budget. Slower ones count as failures towards opening the circuit breaker.
+     */
+    public void setStoreBudgetMs(long storeBudgetMs) {
+        this._storeBudgetMs = storeBudgetMs;
+    }
+
     public String getKeyPrefix() {
         return _keyPrefix;
     }
@@ -252,157 +707,3222 @@ public class RedisSessionDataMap extends AbstractLifeCycle implements SessionDat
         return _compression;
     }
 
+    /**
+     * @param compression true to compress sessions whose serialized size reaches the compression
+     *                    threshold. Whether a session is compressed, and how, is recorded with
+     *                    it, so this can be changed without making stored sessions unreadable.
+     */
     public void setCompression(boolean compression) {
         this._compression = compression;
     }
 
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
     /**
-     * @see SessionDataMap#initialize(SessionContext)
+     * @param compressionThreshold the serialized size in bytes below which sessions and attributes
+     *                             are stored uncompressed
      */
-    @Override
-    public void initialize(SessionContext context) {
-        if (isStarted()) {
-            throw new IllegalStateException("Context set after RedisSessionDataMap started");
-        }
-        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
-        poolConfig.setMaxIdle(_maxIdle);
-        poolConfig.setMinIdle(_minIdle);
-        poolConfig.setMaxTotal(_maxTotal);
-        _pool = new JedisPool(poolConfig, _host, _port, _connectionTimeout, _soTimeout,
-                _password, _database, _clientName, _ssl, _sslSocketFactory, _sslParameters, _hostnameVerifier);
-        _context = context;
+    public void setCompressionThreshold(int compressionThreshold) {
+        this._compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return _compressionLevel;
     }
 
     /**
-     * @see SessionDataMap#load(java.lang.String)
+     * @param compressionLevel the deflate level, from 1 (fastest) to 9 (smallest), or -1 for the default
      */
-    @Override
-    public SessionData load(String id) throws Exception {
-        if (!isStarted()) {
-            throw new IllegalStateException("Not started");
-        }
-        final AtomicReference<SessionData> reference = new AtomicReference<SessionData>();
-        final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+    public void setCompressionLevel(int compressionLevel) {
+        this._compressionLevel = compressionLevel;
+    }
 
-        Runnable r = () ->
-        {
-            try {
-                byte[] bytes;
-                try (Jedis jedis = _pool.getResource()) {
-                    bytes = jedis.get(keyAsBytes(id));
-                }
-                if (bytes == null || bytes.length < 4) {
-                    reference.set(null);
-                    return;
-                }
-                try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-                     InputStream in = _compression ? new InflaterInputStream(bais) : null;
-                     ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream(_compression ? in : bais);) {
-                    long created = ois.readLong();
-                    long accessed = ois.readLong();
-                    long lastAccessed = ois.readLong();
-                    long maxIdle = ois.readLong();
-                    SessionData data =
-                            new SessionData(id, _context.getCanonicalContextPath(), _context.getVhost(), created,
-                                    accessed, lastAccessed, maxIdle);
-                    SessionData.deserializeAttributes(data, ois);
-                    reference.set(data);
-                }
-            } catch (Exception e) {
-                exception.set(e);
-            }
-        };
+    public String getCompressionDictionary() {
+        return _compressionDictionary;
+    }
 
-        _context.run(r);
-        if (exception.get() != null)
-            throw exception.get();
+    /**
+     * @param compressionDictionary the path of a file with a preset deflate dictionary, or null for none;
+     *                              every node must have the same dictionary
+     */
+    public void setCompressionDictionary(String compressionDictionary) {
+        this._compressionDictionary = compressionDictionary;
+    }
 
-        return reference.get();
+    public SessionCompressor getCompressor() {
+        return _compressor;
     }
 
-    private byte[] keyAsBytes(String id) {
-        if (_keyPrefix == null) {
-            return id.getBytes(StandardCharsets.UTF_8);
-        } else {
-            return (_keyPrefix + id).getBytes(StandardCharsets.UTF_8);
-        }
+    /**
+     * @param compressor the compressor to compress with, or null for deflate at the compression level,
+     *                   with the compression dictionary if there is one
+     */
+    public void setCompressor(SessionCompressor compressor) {
+        this._compressor = compressor;
     }
 
+    @ManagedAttribute(value = "compressed size of the compressed sessions as a fraction of their raw size", readonly = true)
+    public double getCompressionRatio() {
+        return _compressionStats.getRatio();
+    }
+
+    @ManagedAttribute(value = "sessions and attributes stored compressed", readonly = true)
+    public long getCompressedValues() {
+        return _compressionStats.getCompressed();
+    }
+
+    @ManagedAttribute(value = "sessions and attributes stored uncompressed", readonly = true)
+    public long getUncompressedValues() {
+        return _compressionStats.getUncompressed();
+    }
+
+    @ManagedAttribute(value = "CPU time spent compressing in ms", readonly = true)
+    public long getCompressionCpuMs() {
+        return _compressionStats.getCompressMillis();
+    }
+
+    @ManagedAttribute(value = "CPU time spent decompressing in ms", readonly = true)
+    public long getDecompressionCpuMs() {
+        return _compressionStats.getDecompressMillis();
+    }
+
+    public SessionCodec getCodec() {
+        return _codec;
+    }
 
     /**
-     * @see SessionDataMap#store(java.lang.String, SessionData)
+     * @param codec the codec with which sessions are written; sessions written with any other
+     *              built in or {@link java.util.ServiceLoader} registered codec can still be read
      */
-    @Override
-    public void store(String id, SessionData data) throws Exception {
-        if (!isStarted()) {
-            throw new IllegalStateException("Not started");
-        }
-        if (data == null) {
-            return;
-        }
+    public void setCodec(SessionCodec codec) {
+        this._codec = codec;
+    }
 
-        final AtomicReference<Exception> exception = new AtomicReference<Exception>();
-
-        Runnable r = () -> {
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                try (DeflaterOutputStream out = _compression ? new DeflaterOutputStream(baos) : null;
-                     ObjectOutputStream oos = new ObjectOutputStream(_compression ? out : baos)) {
-                    oos.writeLong(data.getCreated());
-                    oos.writeLong(data.getAccessed());
-                    oos.writeLong(data.getLastAccessed());
-                    oos.writeLong(data.getMaxInactiveMs());
-                    SessionData.serializeAttributes(data, oos);
-                }
-                byte[] bytes = baos.toByteArray();
-                try (Jedis jedis = _pool.getResource()) {
-                    if (_expirySec > 0) {
-                        jedis.setex(keyAsBytes(id), _expirySec, bytes);
-                    } else {
-                        jedis.set(keyAsBytes(id), bytes);
-                    }
+    public boolean isClassDictionary() {
+        return _classDictionary;
+    }
 
-                }
-            } catch (Exception e) {
-                exception.set(e);
-            }
-        };
+    /**
+     * @param classDictionary true to write sessions with java serialization, replacing the codec, but with
+     *                        each class descriptor written once in a dictionary kept in redis and referred
+     *                        to by its number in the sessions, which makes small sessions much smaller
+     */
+    public void setClassDictionary(boolean classDictionary) {
+        this._classDictionary = classDictionary;
+    }
 
-        _context.run(r);
-        if (exception.get() != null) {
-            throw exception.get();
-        }
+    public boolean isHashLayout() {
+        return _hashLayout;
+    }
+
+    /**
+     * @param hashLayout true to store each session as a redis hash with one field per attribute,
+     *                   so that a store only writes the attributes that changed; false to store
+     *                   each session as a single serialized value
+     */
+    public void setHashLayout(boolean hashLayout) {
+        this._hashLayout = hashLayout;
     }
 
+    public int getChunkSize() {
+        return _chunkSize;
+    }
 
     /**
-     * @see SessionDataMap#delete(java.lang.String)
+     * Sessions stored as single values whose serialized attributes are larger than the chunk size
+     * are stored in chunks of that size, under keys of their own, rather than in one value. They
+     * are serialized on the connection that stores them and each chunk is sent as soon as it is
+     * full, so that storing them holds at most one chunk in memory, and no single command has to
+     * carry, or make redis allocate or free, a whole session. Chunks are read back with one MGET
+     * and deleted with UNLINK, which needs redis 4. Chunked sessions cannot be written behind.
+     *
+     * @param chunkSize the size of a chunk in bytes, or 0 (the default) to store every session in one value
      */
-    @Override
-    public boolean delete(String id) throws Exception {
-        if (!isStarted()) {
-            throw new IllegalStateException("Not started");
-        }
-        try (Jedis jedis = _pool.getResource()) {
-            return jedis.del(keyAsBytes(id)) > 0;
-        }
+    public void setChunkSize(int chunkSize) {
+        _chunkSize = chunkSize;
     }
 
-    @Override
-    protected void doStart() throws Exception {
-        if (_context == null)
-            throw new IllegalStateException("No SessionContext");
+    public boolean isLazyAttributes() {
+        return _lazyAttributes;
+    }
 
-        super.doStart();
+    /**
+     * With the hash layout, loads can leave each attribute serialized until the application first
+     * reads it, and stores write back the attributes that were not read as they were loaded, so
+     * that requests only pay for the attributes they use. The attributes of lazily loaded sessions
+     * are not read to notify {@link javax.servlet.http.HttpSessionActivationListener}s, which are
+     * therefore not notified when the session is stored and loaded.
+     *
+     * @param lazyAttributes true to deserialize attributes when they are first read
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        _lazyAttributes = lazyAttributes;
     }
 
+    public int getDigestCacheSize() {
+        return _digestCacheSize;
+    }
 
-    @Override
-    protected void doStop() throws Exception {
-        super.doStop();
-        if (_pool != null) {
-            _pool.close();
-            ;
-            _pool = null;
+    /**
+     * @param digestCacheSize the number of sessions for which the attribute fingerprints used
+     *                        to compute hash layout deltas, or the fingerprints used to skip
+     *                        unchanged writes, are remembered
+     */
+    public void setDigestCacheSize(int digestCacheSize) {
+        this._digestCacheSize = digestCacheSize;
+    }
+
+    public boolean isSkipUnchangedWrites() {
+        return _skipUnchangedWrites;
+    }
+
+    /**
+     * Remembers a fingerprint of the serialized attributes of each session last loaded or stored,
+     * and stores a session whose attributes serialize to the same bytes by only refreshing its
+     * timestamps and ttl, as {@link #touch(String, SessionData)} does, rather than sending it
+     * whole. This applies to sessions stored as a single value; the hash layout only ever writes
+     * the attributes that changed, and sessions stored in chunks are always written whole. A
+     * session changed by another node since this map last saw it is not overwritten by a store
+     * of the unchanged attributes.
+     *
+     * @param skipUnchangedWrites true to only refresh sessions whose attributes have not changed
+     */
+    public void setSkipUnchangedWrites(boolean skipUnchangedWrites) {
+        _skipUnchangedWrites = skipUnchangedWrites;
+    }
+
+    public boolean isVersioned() {
+        return _versioned;
+    }
+
+    /**
+     * @param versioned true to keep a version in each session hash, and only store a session if
+     *                  it is still at the version this node last read or wrote, so that concurrent
+     *                  stores from several nodes cannot silently overwrite each other. A store that
+     *                  would overwrite another node's update fails with a {@link SessionConflictException},
+     *                  unless conflicts are merged. Needs the hash layout, and cannot be written behind.
+     */
+    public void setVersioned(boolean versioned) {
+        this._versioned = versioned;
+    }
+
+    public boolean isMergeConflicts() {
+        return _mergeConflicts;
+    }
+
+    /**
+     * @param mergeConflicts true to resolve the conflicts of versioned stores by applying the attributes
+     *                       changed and removed by this node over the other node's update, so that
+     *                       concurrent changes to different attributes are all kept. A store that
+     *                       replaces the whole session still fails.
+     */
+    public void setMergeConflicts(boolean mergeConflicts) {
+        this._mergeConflicts = mergeConflicts;
+    }
+
+    public boolean isWriteBehind() {
+        return _writeBehind;
+    }
+
+    /**
+     * @param writeBehind true to return from store and delete as soon as the session is serialized,
+     *                    and send the writes to redis in pipelined batches from a background thread
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this._writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return _writeBehindQueueSize;
+    }
+
+    /**
+     * @param writeBehindQueueSize the maximum number of sessions with writes waiting to be sent
+     */
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this._writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return _writeBehindBatchSize;
+    }
+
+    /**
+     * @param writeBehindBatchSize the maximum number of writes sent in one pipeline
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this._writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public long getWriteBehindFlushIntervalMs() {
+        return _writeBehindFlushIntervalMs;
+    }
+
+    /**
+     * @param writeBehindFlushIntervalMs the longest time a write waits for its batch to fill
+     */
+    public void setWriteBehindFlushIntervalMs(long writeBehindFlushIntervalMs) {
+        this._writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+    }
+
+    public long getWriteBehindMaxWaitMs() {
+        return _writeBehindMaxWaitMs;
+    }
+
+    /**
+     * @param writeBehindMaxWaitMs the longest time a store waits for space in a full queue before failing
+     */
+    public void setWriteBehindMaxWaitMs(long writeBehindMaxWaitMs) {
+        this._writeBehindMaxWaitMs = writeBehindMaxWaitMs;
+    }
+
+    public long getWriteBehindMaxRetryMs() {
+        return _writeBehindMaxRetryMs;
+    }
+
+    /**
+     * @param writeBehindMaxRetryMs the longest time queued writes are retried while redis cannot be
+     * reached, after which the writes of failed batches are dropped
+     */
+    public void setWriteBehindMaxRetryMs(long writeBehindMaxRetryMs) {
+        this._writeBehindMaxRetryMs = writeBehindMaxRetryMs;
+    }
+
+    /**
+     * @return the number of sessions with writes waiting to be sent to redis
+     */
+    @ManagedAttribute(value = "sessions with writes waiting to be sent to redis", readonly = true)
+    public int getWriteBehindPending() {
+        WriteBehindQueue queue = _writeBehindQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public int getNearCacheSize() {
+        return _nearCacheSize;
+    }
+
+    /**
+     * @param nearCacheSize the maximum number of recently loaded or stored sessions kept in memory
+     *                      and returned by load without reading redis, or 0 for no near cache.
+     *                      Every node sharing the sessions must enable the near cache, as nodes
+     *                      only announce their writes to other nodes when they have one.
+     */
+    public void setNearCacheSize(int nearCacheSize) {
+        this._nearCacheSize = nearCacheSize;
+    }
+
+    public long getNearCacheMaxBytes() {
+        return _nearCacheMaxBytes;
+    }
+
+    /**
+     * @param nearCacheMaxBytes the maximum total serialized size of the sessions in the near cache
+     */
+    public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+        this._nearCacheMaxBytes = nearCacheMaxBytes;
+    }
+
+    @ManagedAttribute(value = "loads served from the near cache", readonly = true)
+    public long getNearCacheHits() {
+        NearCache cache = _nearCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @ManagedAttribute(value = "loads not served from the near cache", readonly = true)
+    public long getNearCacheMisses() {
+        NearCache cache = _nearCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @ManagedAttribute(value = "sessions in the near cache", readonly = true)
+    public int getNearCacheEntries() {
+        NearCache cache = _nearCache;
+        return cache == null ? 0 : cache.getSize();
+    }
+
+    @ManagedAttribute(value = "serialized size of the sessions in the near cache", readonly = true)
+    public long getNearCacheBytes() {
+        NearCache cache = _nearCache;
+        return cache == null ? 0 : cache.getBytes();
+    }
+
+    public int getAsyncConnections() {
+        return _asyncConnections;
+    }
+
+    /**
+     * @param asyncConnections the number of connections on which the commands of all threads are
+     *                         multiplexed, instead of each operation borrowing a pooled connection,
+     *                         or 0 to only use the pool. Only used with a single redis, to load, store
+     *                         and delete sessions stored as single values.
+     */
+    public void setAsyncConnections(int asyncConnections) {
+        this._asyncConnections = asyncConnections;
+    }
+
+    public Executor getAsyncExecutor() {
+        return _asyncExecutor;
+    }
+
+    /**
+     * @param asyncExecutor the executor that deserializes the sessions loaded with {@link #loadAsync(String)},
+     *                      and that runs the asynchronous operations that cannot be sent on the multiplexed
+     *                      connections; the common fork join pool if null
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this._asyncExecutor = asyncExecutor;
+    }
+
+    public boolean isCircuitBreaker() {
+        return _circuitBreaker;
+    }
+
+    /**
+     * @param circuitBreaker true to stop calling redis while too many calls fail or exceed their budget,
+     *                       and meanwhile keep the sessions written on this node in memory, to be written
+     *                       to redis once it recovers. Sessions not written on this node meanwhile are
+     *                       loaded from the near cache if there is one, or not found.
+     */
+    public void setCircuitBreaker(boolean circuitBreaker) {
+        this._circuitBreaker = circuitBreaker;
+    }
+
+    public int getCircuitBreakerWindow() {
+        return _circuitBreakerWindow;
+    }
+
+    /**
+     * @param circuitBreakerWindow the number of recent calls the failure rate is taken over
+     */
+    public void setCircuitBreakerWindow(int circuitBreakerWindow) {
+        this._circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    public int getCircuitBreakerFailureRate() {
+        return _circuitBreakerFailureRate;
+    }
+
+    /**
+     * @param circuitBreakerFailureRate the percentage of failed or slow calls that opens the circuit
+     */
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this._circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    public long getCircuitBreakerOpenMs() {
+        return _circuitBreakerOpenMs;
+    }
+
+    /**
+     * @param circuitBreakerOpenMs how long the circuit stays open before a call is let through to probe redis
+     */
+    public void setCircuitBreakerOpenMs(long circuitBreakerOpenMs) {
+        this._circuitBreakerOpenMs = circuitBreakerOpenMs;
+    }
+
+    public int getDegradedSessions() {
+        return _degradedSessions;
+    }
+
+    /**
+     * @param degradedSessions the maximum number of sessions written while the circuit is open that are
+     *                         kept in memory until written to redis; beyond it the oldest writes are lost
+     */
+    public void setDegradedSessions(int degradedSessions) {
+        this._degradedSessions = degradedSessions;
+    }
+
+    @ManagedAttribute(value = "state of the circuit breaker: CLOSED, OPEN or HALF_OPEN", readonly = true)
+    public String getCircuitState() {
+        CircuitBreaker breaker = _breaker;
+        return breaker == null ? CircuitBreaker.State.CLOSED.name() : breaker.getState().name();
+    }
+
+    @ManagedAttribute(value = "sessions written in memory, waiting to be written to redis", readonly = true)
+    public int getDegradedPending() {
+        DegradedSessions degraded = _degraded;
+        return degraded == null ? 0 : degraded.size();
+    }
+
+    @ManagedAttribute(value = "writes made in memory and lost for lack of room", readonly = true)
+    public long getDegradedDropped() {
+        DegradedSessions degraded = _degraded;
+        return degraded == null ? 0 : degraded.getDropped();
+    }
+
+    public long getReaperIntervalMs() {
+        return _reaperIntervalMs;
+    }
+
+    /**
+     * Sets how often the keys under the key prefix are swept for sessions that expired long ago,
+     * which jetty never deleted because the node that last managed them went away, and which
+     * stay in redis forever when keys are not given a ttl. Expired sessions are unlinked,
+     * together with their chunks. The nodes sharing the store take turns, holding the key
+     * prefix + {@code #reaper} while sweeping. A key prefix is required.
+     *
+     * @param reaperIntervalMs the time between sweeps, or 0 not to sweep
+     */
+    public void setReaperIntervalMs(long reaperIntervalMs) {
+        this._reaperIntervalMs = reaperIntervalMs;
+    }
+
+    public int getReaperOpsPerSec() {
+        return _reaperOpsPerSec;
+    }
+
+    /**
+     * @param reaperOpsPerSec the maximum number of redis commands sent per second while sweeping
+     */
+    public void setReaperOpsPerSec(int reaperOpsPerSec) {
+        this._reaperOpsPerSec = reaperOpsPerSec;
+    }
+
+    public int getReaperBatchSize() {
+        return _reaperBatchSize;
+    }
+
+    /**
+     * @param reaperBatchSize the number of keys asked of each SCAN, whose sessions are read in one pipeline
+     */
+    public void setReaperBatchSize(int reaperBatchSize) {
+        this._reaperBatchSize = reaperBatchSize;
+    }
+
+    public int getReaperGraceSec() {
+        return _reaperGraceSec;
+    }
+
+    /**
+     * @param reaperGraceSec how long after a session has expired it is left for jetty to expire,
+     *                       notifying its listeners, before the reaper unlinks it
+     */
+    public void setReaperGraceSec(int reaperGraceSec) {
+        this._reaperGraceSec = reaperGraceSec;
+    }
+
+    /**
+     * @return the latencies, counters and connection pool gauges of this map
+     */
+    public SessionMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Sets the key of a sorted set in which the expiry time of every stored session is
+     * recorded against its id. Sessions that never expire are not indexed.
+     *
+     * @param key the sorted set key, or null to not maintain an expiry index
+     */
+    void setExpiryIndexKey(String key) {
+        _expiryIndexKey = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @see SessionDataMap#initialize(SessionContext)
+     */
+    @Override
+    public void initialize(SessionContext context) {
+        if (isStarted()) {
+            throw new IllegalStateException("Context set after RedisSessionDataMap started");
+        }
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxIdle(_maxIdle);
+        poolConfig.setMinIdle(_minIdle);
+        poolConfig.setMaxTotal(_maxTotal);
+        poolConfig.setMaxWaitMillis(_maxWaitMs);
+        if (_shards != null) {
+            Map<String, JedisPool> pools = new LinkedHashMap<>();
+            for (String url : _shards.split(",")) {
+                if (url.trim().isEmpty()) {
+                    continue;
+                }
+                URI uri = redisUri(url);
+                int database = JedisURIHelper.getDBIndex(uri);
+                pools.put(uri.getHost() + ":" + uri.getPort() + "/" + database, new JedisPool(poolConfig, uri.getHost(),
+                        uri.getPort(), _connectionTimeout, _soTimeout, JedisURIHelper.getPassword(uri), database,
+                        _clientName, uri.getScheme().equals("rediss"), _sslSocketFactory, _sslParameters,
+                        _hostnameVerifier));
+            }
+            _topology = new ShardedTopology(pools, _metrics);
+        } else if (_clusterNodes != null) {
+            _topology = new ClusterTopology(RedisTopology.parseNodes(_clusterNodes), poolConfig,
+                    _connectionTimeout, _soTimeout, _password, _clusterMaxAttempts, _metrics);
+        } else if (_sentinels != null) {
+            if (_sentinelMaster == null) {
+                throw new IllegalStateException("No sentinel master");
+            }
+            _topology = new SentinelTopology(_sentinelMaster, RedisTopology.parseNodes(_sentinels), poolConfig,
+                    _connectionTimeout, _soTimeout, _password, _database, _clientName, _replicaReads,
+                    _replicaRefreshMs, _metrics);
+        } else {
+            _pool = new JedisPool(poolConfig, _host, _port, _connectionTimeout, _soTimeout,
+                    _password, _database, _clientName, _ssl, _sslSocketFactory, _sslParameters, _hostnameVerifier);
+            _topology = new StandaloneTopology(_pool, _metrics);
+        }
+        _metrics.setTopology(_topology);
+        _context = context;
+    }
+
+    /**
+     * @see SessionDataMap#load(java.lang.String)
+     */
+    @Override
+    public SessionData load(String id) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        long start = System.nanoTime();
+        try {
+            SessionData data = loadCached(id);
+            if (data == null) {
+                if (degraded(id)) {
+                    data = loadDegraded(id);
+                } else {
+                    data = inContext(() -> loadInContext(id));
+                    completed(start, _loadBudgetMs);
+                }
+            }
+            _metrics.loaded(System.nanoTime() - start, data != null);
+            return data;
+        } catch (Exception e) {
+            _metrics.loadFailed();
+            if (failed(e)) {
+                return loadDegraded(id);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Loads a session, with the class loader of the web application.
+     *
+     * @param id the session id
+     * @return the session data or null if the session is not stored
+     * @throws Exception if the session cannot be read
+     */
+    private SessionData loadInContext(String id) throws Exception {
+        SessionWrite pending = _writeBehindQueue == null ? null : _writeBehindQueue.get(id);
+        if (pending != null && pending.getType() != SessionWrite.Type.TOUCH) {
+            return decodeWrite(id, pending);
+        }
+        SessionData data = _hashLayout ? loadHash(id) : loadValue(id);
+        if (data != null && pending != null) {
+            ByteBuffer timestamps = ByteBuffer.wrap(pending.getTimestamps(), Long.BYTES, 3 * Long.BYTES);
+            data.setAccessed(timestamps.getLong());
+            data.setLastAccessed(timestamps.getLong());
+            data.setMaxInactiveMs(timestamps.getLong());
+            data.setExpiry(pending.getExpiry());
+        }
+        return data;
+    }
+
+    /**
+     * Runs work in the context of the web application.
+     *
+     * @param work the work
+     * @param <T> the result type
+     * @return the result of the work
+     * @throws Exception if the work fails
+     */
+    private <T> T inContext(Callable<T> work) throws Exception {
+        return new ContextTask<>(work).run(_context);
+    }
+
+    /**
+     * Work to run in the context of the web application, as a single object that carries the
+     * outcome back to the caller.
+     */
+    private static class ContextTask<T> implements Runnable {
+        private final Callable<T> _work;
+        private T _result;
+        private Exception _failure;
+
+        ContextTask(Callable<T> work) {
+            _work = work;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _result = _work.call();
+            } catch (Exception e) {
+                _failure = e;
+            }
+        }
+
+        T run(SessionContext context) throws Exception {
+            context.run(this);
+            if (_failure != null) {
+                throw _failure;
+            }
+            return _result;
+        }
+    }
+
+    /**
+     * Commands on a batch of sessions served by the same node.
+     */
+    private interface Batch<T> {
+        /**
+         * @param items the sessions or writes of the batch
+         * @throws Exception if the commands fail
+         */
+        void run(List<T> items) throws Exception;
+    }
+
+    /**
+     * Loads a session stored as a single serialized value, refreshing the expiry of its key in
+     * the same round trip. When reading from replicas, a session that the replica does not have
+     * is read again from the primary, as the replica may not yet have received it. Only sessions
+     * read from the primary are near cached and have their expiry refreshed on load.
+     *
+     * @param id the session id
+     * @return the session data or null if there is no value for the session
+     * @throws Exception if the value cannot be read
+     */
+    protected SessionData loadValue(String id) throws Exception {
+        byte[] key = keyAsBytes(id);
+        if (readsReplicas()) {
+            SessionData data = decodeValue(id, key, _topology.executeRead(key, jedis -> jedis.get(key)), true);
+            if (data != null) {
+                return data;
+            }
+        }
+        long stamp = _nearCache == null ? 0 : _nearCache.stamp();
+        byte[] bytes;
+        if (_asyncClient != null) {
+            bytes = (byte[]) _asyncClient.await(sendLoad(key));
+        } else {
+            bytes = _topology.execute(key, jedis -> expires()
+                    ? (byte[]) LOAD_VALUE.eval(jedis, Collections.singletonList(key), loadArgs())
+                    : jedis.get(key));
+        }
+        SessionData data = decodeValue(id, key, bytes, false);
+        if (data != null) {
+            cacheValue(id, bytes, stamp);
+        }
+        return data;
+    }
+
+    /**
+     * Deserializes a session stored as a single value, or reads the chunks that its manifest lists.
+     *
+     * @param id the session id
+     * @param key the key of the session
+     * @param bytes the value, or null if there is none
+     * @param replica true if the value was read from a replica
+     * @return the session data, or null if the value is null or not a session, or if its chunks
+     * are missing
+     * @throws Exception if the value or chunks cannot be read
+     */
+    private SessionData decodeValue(String id, byte[] key, byte[] bytes, boolean replica) throws Exception {
+        if (!SessionChunks.isManifest(bytes)) {
+            return decodeValue(id, bytes);
+        }
+        SessionData data = loadChunks(id, key, bytes, replica);
+        if (data != null || replica) {
+            return data;
+        }
+        // the session was stored again since its manifest was read, and its chunks replaced
+        byte[] manifest = _topology.execute(key, jedis -> jedis.get(key));
+        if (!SessionChunks.isManifest(manifest) || Arrays.equals(manifest, bytes)) {
+            return decodeValue(id, manifest);
+        }
+        return loadChunks(id, key, manifest, false);
+    }
+
+    /**
+     * Reads the chunks of a session with a single MGET, refreshing their expiry in the same
+     * round trip, and deserializes them one chunk at a time.
+     *
+     * @param id the session id
+     * @param key the key of the session
+     * @param manifest the manifest of the session
+     * @param replica true to read the chunks from a replica
+     * @return the session data, or null if any of the chunks is missing
+     * @throws Exception if the chunks cannot be read
+     */
+    private SessionData loadChunks(String id, byte[] key, byte[] manifest, boolean replica) throws Exception {
+        byte[][] keys = SessionChunks.keys(key, manifest).toArray(new byte[0][]);
+        SessionData data = newSessionData(id, ByteBuffer.wrap(manifest, TIMESTAMPS_OFFSET, TIMESTAMPS_LENGTH));
+        int expirySec = expirySec(data.getMaxInactiveMs());
+        RedisTopology.Command<List<byte[]>> read = jedis -> {
+            if (replica || expirySec <= 0) {
+                return jedis.mget(keys);
+            }
+            Pipeline pipeline = jedis.pipelined();
+            Response<List<byte[]>> values = pipeline.mget(keys);
+            for (byte[] chunk : keys) {
+                pipeline.expire(chunk, expirySec);
+            }
+            pipeline.sync();
+            return values.get();
+        };
+        List<byte[]> chunks = replica ? _topology.executeRead(key, read) : _topology.execute(key, read);
+        long size = manifest.length;
+        for (byte[] chunk : chunks) {
+            if (chunk == null) {
+                return null;
+            }
+            size += chunk.length;
+        }
+        long start = System.nanoTime();
+        try (InputStream in = new SessionChunks.Input(chunks, chunk -> payload(chunk, SessionChunks.CHUNK_HEADER_LENGTH))) {
+            codec(manifest[0]).decodeAttributes(data, in);
+        }
+        data.setDirty(false);
+        _metrics.deserialized(System.nanoTime() - start, size);
+        return data;
+    }
+
+    /**
+     * Deserializes a session stored as a single value.
+     *
+     * @param id the session id
+     * @param bytes the value, or null if there is none
+     * @return the session data, or null if the value is null or not a session
+     * @throws Exception if the value cannot be deserialized
+     */
+    SessionData decodeValue(String id, byte[] bytes) throws Exception {
+        if (bytes == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        SessionData data = deserializeValue(id, bytes);
+        _metrics.deserialized(System.nanoTime() - start, bytes.length);
+        return data;
+    }
+
+    private SessionData deserializeValue(String id, byte[] bytes) throws Exception {
+        if (bytes.length < 4) {
+            return null;
+        }
+        if (!hasHeader(bytes[0])) {
+            return loadLegacyValue(id, bytes);
+        }
+        if (bytes.length <= VALUE_HEADER_LENGTH || (bytes[1] & SessionChunks.CHUNKED_FLAG) != 0) {
+            return null;
+        }
+        SessionCodec codec = codec(bytes[0]);
+        SessionData data = newSessionData(id, ByteBuffer.wrap(bytes, TIMESTAMPS_OFFSET, TIMESTAMPS_LENGTH));
+        try (InputStream in = payload(bytes, VALUE_HEADER_LENGTH)) {
+            codec.decodeAttributes(data, in);
+        }
+        data.setDirty(false);
+        if (_fingerprints != null) {
+            _fingerprints.put(id, fingerprint(bytes));
+        }
+        return data;
+    }
+
+    /**
+     * Reads a value written before values started with a codec format, where the timestamps are part of the
+     * serialized stream, which is deflated unless it starts with the java serialization magic number.
+     *
+     * @param id the session id
+     * @param bytes the stored value
+     * @return the session data
+     * @throws Exception if the value cannot be read
+     */
+    private SessionData loadLegacyValue(String id, byte[] bytes) throws Exception {
+        boolean deflated = !isJavaSerialized(bytes);
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+             InputStream in = deflated ? new InflaterInputStream(bais) : null;
+             ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream(deflated ? in : bais);) {
+            long created = ois.readLong();
+            long accessed = ois.readLong();
+            long lastAccessed = ois.readLong();
+            long maxIdle = ois.readLong();
+            SessionData data =
+                    new SessionData(id, _context.getCanonicalContextPath(), _context.getVhost(), created,
+                            accessed, lastAccessed, maxIdle);
+            SessionData.deserializeAttributes(data, ois);
+            return data;
+        }
+    }
+
+    /**
+     * @return true if loads are sent to replicas; only sentinel monitored masters have replicas
+     * to read from
+     */
+    private boolean readsReplicas() {
+        return _replicaReads && _topology instanceof SentinelTopology;
+    }
+
+    /**
+     * Loads a session stored as a hash with one field per attribute, refreshing the expiry of its
+     * key in the same round trip. When reading from replicas, a session that the replica does not
+     * have in full is read again from the primary.
+     *
+     * @param id the session id
+     * @return the session data or null if there is no complete hash for the session
+     * @throws Exception if the hash cannot be read
+     */
+    protected SessionData loadHash(String id) throws Exception {
+        byte[] key = keyAsBytes(id);
+        if (readsReplicas()) {
+            SessionData data = decodeFields(id, _topology.executeRead(key, jedis -> jedis.hgetAll(key)));
+            if (data != null) {
+                return data;
+            }
+        }
+        long stamp = _nearCache == null ? 0 : _nearCache.stamp();
+        Map<byte[], byte[]> fields = _topology.execute(key, jedis -> expires()
+                ? fields(LOAD_HASH.eval(jedis, Collections.singletonList(key), loadArgs()))
+                : jedis.hgetAll(key));
+        SessionData data = decodeFields(id, fields);
+        if (data != null) {
+            cacheHash(id, fields, stamp);
+        }
+        return data;
+    }
+
+    /**
+     * @return true if keys expire, so that loads refresh their ttl
+     */
+    private boolean expires() {
+        return _expirySec > 0 || _expiryGraceSec >= 0;
+    }
+
+    /**
+     * Reads a value on the multiplexed connections, refreshing its ttl in the same round trip.
+     *
+     * @param key the key of the session
+     * @return the value, or null
+     */
+    private CompletableFuture<Object> sendLoad(byte[] key) {
+        return expires()
+                ? LOAD_VALUE.send(_asyncClient, Collections.singletonList(key), loadArgs())
+                : _asyncClient.send(Protocol.Command.GET.raw, key);
+    }
+
+    /**
+     * @return the arguments of {@link #LOAD_VALUE} and {@link #LOAD_HASH}
+     */
+    private List<byte[]> loadArgs() {
+        return Arrays.asList(Protocol.toByteArray(_expirySec), Protocol.toByteArray(_expiryGraceSec));
+    }
+
+    /**
+     * @param reply the reply to HGETALL, or to a script that returns it
+     * @return the fields and values of the hash
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<byte[], byte[]> fields(Object reply) {
+        List<byte[]> flat = (List<byte[]>) reply;
+        Map<byte[], byte[]> fields = new LinkedHashMap<>(flat.size());
+        for (int i = 0; i + 1 < flat.size(); i += 2) {
+            fields.put(flat.get(i), flat.get(i + 1));
+        }
+        return fields;
+    }
+
+    private SessionData decodeFields(String id, Map<byte[], byte[]> fields) throws Exception {
+        byte[] meta = null;
+        long version = 0;
+        Map<String, byte[]> values = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> e : fields.entrySet()) {
+            String field = new String(e.getKey(), StandardCharsets.UTF_8);
+            if (META_FIELD.equals(field)) {
+                meta = e.getValue();
+            } else if (VERSION_FIELD.equals(field)) {
+                version = Long.parseLong(new String(e.getValue(), StandardCharsets.US_ASCII));
+            } else if (field.startsWith(ATTRIBUTE_FIELD_PREFIX)) {
+                values.put(field.substring(ATTRIBUTE_FIELD_PREFIX.length()), e.getValue());
+            }
+        }
+        if (meta == null || meta.length < META_LENGTH) {
+            return null;
+        }
+        //the count in the metadata is that of the last writer, which concurrent delta writes from
+        //other nodes may have made stale, so the attribute fields present in the hash are used
+        if (LOG.isDebugEnabled()) {
+            int count = ByteBuffer.wrap(meta, TIMESTAMPS_LENGTH, Integer.BYTES).getInt();
+            if (values.size() != count) {
+                LOG.debug("Session {} has {} attributes, {} when last written", id, values.size(), count);
+            }
+        }
+        long start = System.nanoTime();
+        long size = meta.length;
+        Map<String, Long> digests = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : values.entrySet()) {
+            digests.put(e.getKey(), Fingerprint.of(e.getValue()));
+            size += e.getValue().length;
+        }
+        SessionData data = decodeHash(id, meta, values);
+        _metrics.deserialized(System.nanoTime() - start, size);
+        _attributeDigests.put(id, digests);
+        if (_versions != null) {
+            _versions.put(id, version);
+        }
+        return data;
+    }
+
+    private SessionData decodeHash(String id, byte[] timestamps, Map<String, byte[]> values) throws Exception {
+        if (_lazyAttributes) {
+            ByteBuffer buffer = ByteBuffer.wrap(timestamps, 0, TIMESTAMPS_LENGTH);
+            LazySessionData data = new LazySessionData(id, _context.getCanonicalContextPath(), _context.getVhost(),
+                    buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), this::deserializeAttribute);
+            data.putSerializedAttributes(values);
+            data.setDirty(false);
+            return data;
+        }
+        SessionData data = newSessionData(id, ByteBuffer.wrap(timestamps, 0, TIMESTAMPS_LENGTH));
+        Map<String, Object> attributes = new HashMap<>();
+        for (Map.Entry<String, byte[]> e : values.entrySet()) {
+            attributes.put(e.getKey(), deserializeAttribute(e.getValue()));
+        }
+        data.putAllAttributes(attributes);
+        data.setDirty(false);
+        return data;
+    }
+
+    /**
+     * Reads a session from a write that has not yet been sent to redis, or from the near cache.
+     *
+     * @param id the session id
+     * @param write the queued or cached write
+     * @return the session as it is stored once the write is sent
+     * @throws Exception if the session cannot be read
+     */
+    private SessionData decodeWrite(String id, SessionWrite write) throws Exception {
+        switch (write.getType()) {
+            case VALUE:
+                return decodeValue(id, write.getValue());
+            case HASH:
+                return decodeHash(id, write.getTimestamps(), write.getAttributes());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Deserializes a near cached session, so that every load has its own copy of the attributes.
+     *
+     * @param id the session id
+     * @return the session data, or null if the session is not near cached
+     * @throws Exception if the session cannot be deserialized
+     */
+    private SessionData loadCached(String id) throws Exception {
+        SessionWrite cached = _nearCache == null ? null : _nearCache.get(id);
+        return cached == null ? null : inContext(() -> decodeWrite(id, cached));
+    }
+
+    /**
+     * Near caches a session read from redis as a single value. Values written before values
+     * started with a codec format, and the manifests of sessions stored in chunks, are not cached.
+     *
+     * @param id the session id
+     * @param bytes the value read
+     * @param stamp the {@link NearCache#stamp()} taken before the value was read
+     */
+    private void cacheValue(String id, byte[] bytes, long stamp) {
+        if (_nearCache != null && hasHeader(bytes[0]) && !SessionChunks.isManifest(bytes)) {
+            _nearCache.put(id, SessionWrite.value(id, bytes, 0), stamp);
+        }
+    }
+
+    /**
+     * Near caches a session read from redis as a hash.
+     *
+     * @param id the session id
+     * @param fields the fields read
+     * @param stamp the {@link NearCache#stamp()} taken before the fields were read
+     */
+    private void cacheHash(String id, Map<byte[], byte[]> fields, long stamp) {
+        if (_nearCache == null) {
+            return;
+        }
+        byte[] timestamps = null;
+        Map<String, byte[]> attributes = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> e : fields.entrySet()) {
+            String field = new String(e.getKey(), StandardCharsets.UTF_8);
+            if (META_FIELD.equals(field)) {
+                timestamps = Arrays.copyOf(e.getValue(), TIMESTAMPS_LENGTH);
+            } else if (field.startsWith(ATTRIBUTE_FIELD_PREFIX)) {
+                attributes.put(field.substring(ATTRIBUTE_FIELD_PREFIX.length()), e.getValue());
+            }
+        }
+        _nearCache.put(id, SessionWrite.hash(id, timestamps, 0, attributes, attributes.keySet(),
+                Collections.<String>emptySet(), true), stamp);
+    }
+
+    private SessionData newSessionData(String id, ByteBuffer timestamps) {
+        return new SessionData(id, _context.getCanonicalContextPath(), _context.getVhost(),
+                timestamps.getLong(), timestamps.getLong(), timestamps.getLong(), timestamps.getLong());
+    }
+
+    /**
+     * In a cluster or across shards the session id is a hash tag, so that every key of a session,
+     * such as its chunks, is served by the same node.
+     *
+     * @param id the session id
+     * @return the key of the session
+     */
+    byte[] keyAsBytes(String id) {
+        String key = _clusterNodes == null && _shards == null ? id : "{" + id + "}";
+        if (_keyPrefix == null) {
+            return key.getBytes(StandardCharsets.UTF_8);
+        } else {
+            return (_keyPrefix + key).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Runs commands on the connection that serves a key.
+     *
+     * @param key the key
+     * @param command the commands
+     * @param <T> the result type
+     * @return the result of the commands
+     * @throws Exception if the commands fail
+     */
+    <T> T execute(byte[] key, RedisTopology.Command<T> command) throws Exception {
+        return _topology.execute(key, command);
+    }
+
+    /**
+     * @param ids session ids
+     * @return the ids grouped by the node that serves them, in the order they were given
+     */
+    private Collection<List<String>> routes(Collection<String> ids) {
+        return group(ids, id -> id, _topology::server);
+    }
+
+    /**
+     * @param items sessions or writes
+     * @param id the session id of an item
+     * @param by the node or the route of a key
+     * @return the items grouped by the node or route of their keys, in the order they were given
+     */
+    private <T> Collection<List<T>> group(Collection<T> items, Function<T, String> id, Function<byte[], Object> by) {
+        Map<Object, List<T>> groups = new LinkedHashMap<>();
+        for (T item : items) {
+            groups.computeIfAbsent(by.apply(keyAsBytes(id.apply(item))), r -> new ArrayList<>()).add(item);
+        }
+        return groups.values();
+    }
+
+    /**
+     * Runs a batch in one pipeline on the node that serves it. A cluster redirects the commands
+     * on hash slots that are moving to another node, in which case the batch is run again one
+     * slot at a time, so that each slot follows its redirect.
+     *
+     * @param items the items of the batch, all served by the same node
+     * @param id the session id of an item
+     * @param batch the commands
+     * @throws Exception if the commands fail
+     */
+    private <T> void runBatch(List<T> items, Function<T, String> id, Batch<T> batch) throws Exception {
+        try {
+            batch.run(items);
+        } catch (JedisRedirectionException | JedisClusterMaxRedirectionsException e) {
+            Collection<List<T>> slots = group(items, id, _topology::route);
+            if (slots.size() < 2) {
+                throw e;
+            }
+            for (List<T> slot : slots) {
+                batch.run(slot);
+            }
+        }
+    }
+
+    /**
+     * While redis is unavailable, a session is only reported as missing if it was deleted in
+     * memory, so that sessions are not expired for want of being able to check them.
+     *
+     * @param ids session ids
+     * @return whether a value is stored for each of the sessions, using one pipeline per node
+     * @throws Exception if redis cannot be queried
+     */
+    public Map<String, Boolean> existsAll(Collection<String> ids) throws Exception {
+        Map<String, Boolean> exists = new HashMap<>();
+        for (List<String> route : routes(new LinkedHashSet<>(ids))) {
+            List<String> degraded = new ArrayList<>();
+            List<String> allowed = allowed(route, degraded);
+            if (!allowed.isEmpty()) {
+                long start = System.nanoTime();
+                try {
+                    runBatch(allowed, id -> id, batch -> existsRoute(batch, exists));
+                    completed(start, _loadBudgetMs);
+                } catch (Exception e) {
+                    if (!failed(e)) {
+                        throw e;
+                    }
+                    degraded.addAll(allowed);
+                }
+            }
+            for (String id : degraded) {
+                _metrics.degraded();
+                DegradedSessions.Entry entry = _degraded.get(id);
+                exists.put(id, entry == null || entry.getData() != null);
+            }
+        }
+        return exists;
+    }
+
+    /**
+     * @param ids the ids of sessions all served by the same node
+     * @param exists receives whether a value is stored for each of the sessions
+     * @throws Exception if redis cannot be queried
+     */
+    private void existsRoute(List<String> ids, Map<String, Boolean> exists) throws Exception {
+        _topology.execute(keyAsBytes(ids.get(0)), jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Boolean>> responses = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                responses.add(pipeline.exists(keyAsBytes(id)));
+            }
+            pipeline.sync();
+            for (int i = 0; i < ids.size(); i++) {
+                exists.put(ids.get(i), Boolean.TRUE.equals(responses.get(i).get()));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return true if the expiry index has the same route as the key, so that both can be
+     * updated in one transaction or script
+     */
+    private boolean indexedWith(byte[] key) {
+        return _expiryIndexKey != null && _topology.route(_expiryIndexKey).equals(_topology.route(key));
+    }
+
+
+    /**
+     * Loads sessions with one round trip per redis node: a single MGET of the sessions stored as
+     * single values, or a pipeline of HGETALL for sessions stored as hashes, with the expiry of
+     * the sessions refreshed in the same pipeline. Sessions that are near cached or waiting to be
+     * written behind are not read from redis.
+     *
+     * @param ids session ids
+     * @return the sessions that are stored, by id
+     * @throws Exception if the sessions cannot be read
+     */
+    public Map<String, SessionData> loadAll(Collection<String> ids) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        long start = System.nanoTime();
+        Set<String> unique = new LinkedHashSet<>(ids);
+        Map<String, SessionData> loaded = new HashMap<>();
+        try {
+            List<String> remaining = new ArrayList<>();
+            for (String id : unique) {
+                SessionData cached = loadCached(id);
+                if (cached != null) {
+                    loaded.put(id, cached);
+                } else if (_writeBehindQueue != null && _writeBehindQueue.get(id) != null) {
+                    SessionData data = inContext(() -> loadInContext(id));
+                    if (data != null) {
+                        loaded.put(id, data);
+                    }
+                } else {
+                    remaining.add(id);
+                }
+            }
+            for (List<String> route : routes(remaining)) {
+                List<String> degraded = new ArrayList<>();
+                List<String> allowed = allowed(route, degraded);
+                if (!allowed.isEmpty()) {
+                    long routeStart = System.nanoTime();
+                    try {
+                        inContext(() -> {
+                            runBatch(allowed, id -> id, batch -> {
+                                if (_hashLayout) {
+                                    loadHashes(batch, loaded);
+                                } else {
+                                    loadValues(batch, loaded);
+                                }
+                            });
+                            return null;
+                        });
+                        completed(routeStart, _loadBudgetMs);
+                    } catch (Exception e) {
+                        if (!failed(e)) {
+                            throw e;
+                        }
+                        degraded.addAll(allowed);
+                    }
+                }
+                for (String id : degraded) {
+                    SessionData data = loadDegraded(id);
+                    if (data != null) {
+                        loaded.put(id, data);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            _metrics.loadFailed();
+            throw e;
+        }
+        long nanos = (System.nanoTime() - start) / Math.max(1, unique.size());
+        for (String id : unique) {
+            _metrics.loaded(nanos, loaded.containsKey(id));
+        }
+        return loaded;
+    }
+
+    /**
+     * @param ids the ids of sessions stored as single values, all served by the same node
+     * @param loaded receives the sessions that are stored
+     * @throws Exception if the sessions cannot be read
+     */
+    private void loadValues(List<String> ids, Map<String, SessionData> loaded) throws Exception {
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyAsBytes(ids.get(i));
+        }
+        long stamp = _nearCache == null ? 0 : _nearCache.stamp();
+        List<byte[]> values = _topology.execute(keys[0], jedis -> {
+            if (expires()) {
+                List<byte[]> result = new ArrayList<>(keys.length);
+                for (Object reply : LOAD_VALUE.evalEach(jedis, Arrays.asList(keys), loadArgs())) {
+                    result.add((byte[]) reply(reply));
+                }
+                return result;
+            }
+            //the keys of a cluster are in distinct slots, which a single MGET cannot span
+            if (_clusterNodes == null) {
+                return jedis.mget(keys);
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<byte[]>> gets = new ArrayList<>(keys.length);
+            for (byte[] key : keys) {
+                gets.add(pipeline.get(key));
+            }
+            pipeline.sync();
+            List<byte[]> result = new ArrayList<>(keys.length);
+            for (Response<byte[]> get : gets) {
+                result.add(get.get());
+            }
+            return result;
+        });
+        for (int i = 0; i < keys.length; i++) {
+            String id = ids.get(i);
+            byte[] bytes = values.get(i);
+            SessionData data = decodeValue(id, keys[i], bytes, false);
+            if (data != null) {
+                loaded.put(id, data);
+                cacheValue(id, bytes, stamp);
+            }
+        }
+    }
+
+    /**
+     * @param ids the ids of sessions stored as hashes, all served by the same node
+     * @param loaded receives the sessions that are stored
+     * @throws Exception if the sessions cannot be read
+     */
+    private void loadHashes(List<String> ids, Map<String, SessionData> loaded) throws Exception {
+        long stamp = _nearCache == null ? 0 : _nearCache.stamp();
+        List<Map<byte[], byte[]>> hashes = _topology.execute(keyAsBytes(ids.get(0)), jedis -> {
+            List<Map<byte[], byte[]>> result = new ArrayList<>(ids.size());
+            if (expires()) {
+                List<byte[]> keys = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    keys.add(keyAsBytes(id));
+                }
+                for (Object reply : LOAD_HASH.evalEach(jedis, keys, loadArgs())) {
+                    result.add(fields(reply(reply)));
+                }
+                return result;
+            }
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                responses.add(pipeline.hgetAll(keyAsBytes(id)));
+            }
+            pipeline.sync();
+            for (Response<Map<byte[], byte[]>> response : responses) {
+                result.add(response.get());
+            }
+            return result;
+        });
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            Map<byte[], byte[]> fields = hashes.get(i);
+            SessionData data = decodeFields(id, fields);
+            if (data != null) {
+                loaded.put(id, data);
+                cacheHash(id, fields, stamp);
+            }
+        }
+    }
+
+    /**
+     * @see SessionDataMap#store(java.lang.String, SessionData)
+     */
+    @Override
+    public void store(String id, SessionData data) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        if (data == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (degraded(id)) {
+            storeDegraded(id, data);
+            _metrics.stored(System.nanoTime() - start);
+            return;
+        }
+        try {
+            inContext(() -> {
+                storeInContext(id, data);
+                return null;
+            });
+            _metrics.stored(System.nanoTime() - start);
+            completed(start, _storeBudgetMs);
+        } catch (Exception e) {
+            _metrics.storeFailed();
+            if (failed(e)) {
+                storeDegraded(id, data);
+                return;
+            }
+            throw e;
+        }
+    }
+
+    private void storeInContext(String id, SessionData data) throws Exception {
+        if (_chunkSize > 0 && !_hashLayout) {
+            storeChunked(id, data);
+            _metrics.writePerformed();
+            return;
+        }
+        long start = System.nanoTime();
+        SessionWrite write = _hashLayout ? hashWrite(id, data) : valueWrite(id, data);
+        if (write.getType() == SessionWrite.Type.TOUCH) {
+            _metrics.serialized(System.nanoTime() - start, 0);
+            if (touchSession(write)) {
+                _metrics.writeSkipped();
+                return;
+            }
+            //the session is no longer stored
+            _fingerprints.remove(id);
+            start = System.nanoTime();
+            write = valueWrite(id, data);
+        }
+        _metrics.serialized(System.nanoTime() - start, write.getSize());
+        write(write);
+        _metrics.writePerformed();
+        if (_nearCache != null) {
+            _nearCache.put(id, write);
+        }
+    }
+
+    /**
+     * Serializes a session as a single value.
+     *
+     * When skipping unchanged writes, a session whose stored attributes are the same as when it
+     * was last loaded or stored by this map only has its timestamps and expiry written.
+     *
+     * @param id the session id
+     * @param data the session data
+     * @return the write that replaces the stored value, or that touches it if it is unchanged
+     * @throws Exception if the session cannot be serialized
+     */
+    protected SessionWrite valueWrite(String id, SessionData data) throws Exception {
+        ReusableBuffer buffer = ReusableBuffer.get(ReusableBuffer.SERIALIZED);
+        buffer.write(_writeCodec.getFormat());
+        buffer.write(0);
+        writeTimestamps(buffer, data);
+        _writeCodec.encodeAttributes(data, buffer);
+        byte[] value = compress(buffer, VALUE_HEADER_LENGTH);
+        if (_fingerprints != null && _fingerprints.put(id, fingerprint(value))) {
+            return SessionWrite.touch(id, serializeTimestamps(data), data.getKeys().size(), data.getExpiry(), data);
+        }
+        return SessionWrite.value(id, value, data.getExpiry());
+    }
+
+    /**
+     * @param value a session stored as a single value
+     * @return the fingerprint of its attributes as stored, which does not change with its timestamps
+     */
+    private static long fingerprint(byte[] value) {
+        return Fingerprint.of(value, VALUE_HEADER_LENGTH, value.length - VALUE_HEADER_LENGTH);
+    }
+
+    /**
+     * Stores a session as a single value, or in chunks if its serialized attributes are larger than
+     * the chunk size. The session is serialized on the connection that stores it, each chunk being
+     * sent as soon as it is full, and the manifest or value then replaces the previous one in a
+     * transaction that also reads the start of the previous one, so that the chunks it replaced can
+     * be unlinked.
+     *
+     * @param id the session id
+     * @param data the session data
+     * @throws Exception if the session cannot be serialized or stored
+     */
+    private void storeChunked(String id, SessionData data) throws Exception {
+        byte[] key = keyAsBytes(id);
+        boolean index = indexedWith(key);
+        int expirySec = expirySec(data.getMaxInactiveMs());
+        byte[] stored;
+        try {
+            stored = _topology.execute(key, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                long generation = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+                long[] written = new long[1];
+                long start = System.nanoTime();
+                ReusableBuffer buffer = ReusableBuffer.get(ReusableBuffer.SERIALIZED);
+                buffer.write(_writeCodec.getFormat());
+                buffer.write(0);
+                writeTimestamps(buffer, data);
+                SessionChunks.Output out = new SessionChunks.Output(buffer, _chunkSize, (i, bytes, offset, length) -> {
+                    byte[] chunk = compress(bytes, offset, SessionChunks.CHUNK_HEADER_LENGTH, length);
+                    set(pipeline, SessionChunks.key(key, generation, i), chunk, expirySec);
+                    written[0] += chunk.length;
+                });
+                _writeCodec.encodeAttributes(data, out);
+                byte[] value = out.finish()
+                        ? SessionChunks.manifest(out.getHeader(), out.getChunks(), generation)
+                        : compress(buffer, VALUE_HEADER_LENGTH);
+                written[0] += value.length;
+                _metrics.serialized(System.nanoTime() - start, written[0]);
+
+                pipeline.multi();
+                Response<byte[]> previous = pipeline.getrange(key, 0, SessionChunks.MANIFEST_LENGTH - 1);
+                set(pipeline, key, value, expirySec);
+                pipeline.exec();
+                if (index) {
+                    indexExpiry(pipeline, id, data.getExpiry());
+                }
+                announce(pipeline, id);
+                sync(pipeline);
+                unlinkChunks(jedis, key, previous.get(), generation);
+                awaitReplicas(jedis);
+                return value;
+            });
+        } catch (Exception e) {
+            forget(id);
+            throw e;
+        }
+        if (_expiryIndexKey != null && !index) {
+            _topology.execute(_expiryIndexKey, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                indexExpiry(pipeline, id, data.getExpiry());
+                sync(pipeline);
+                return null;
+            });
+        }
+        if (_nearCache != null) {
+            if (SessionChunks.isManifest(stored)) {
+                _nearCache.remove(id);
+            } else {
+                _nearCache.put(id, SessionWrite.value(id, stored, data.getExpiry()));
+            }
+        }
+    }
+
+    private static void set(Pipeline pipeline, byte[] key, byte[] value, int expirySec) {
+        if (expirySec > 0) {
+            pipeline.setex(key, expirySec, value);
+        } else {
+            pipeline.set(key, value);
+        }
+    }
+
+    /**
+     * Unlinks the chunks of a manifest that has been replaced or deleted.
+     *
+     * @param jedis the connection to the node serving the session
+     * @param key the key of the session
+     * @param previous the start of the previous value of the key, or null
+     * @param generation the generation of the chunks now stored, which are kept, or 0
+     */
+    private static void unlinkChunks(Jedis jedis, byte[] key, byte[] previous, long generation) {
+        if (SessionChunks.isManifest(previous) && SessionChunks.generation(previous) != generation) {
+            UNLINK.eval(jedis, SessionChunks.keys(key, previous), Collections.emptyList());
+        }
+    }
+
+    /**
+     * Serializes a session as a hash with one field per attribute. Only the attributes whose
+     * serialized form differs from when the session was last loaded or stored by this map
+     * are written; attributes that have been removed are deleted from the hash. If the
+     * previous state of the session is not known the whole hash is replaced. Attributes of a
+     * lazily loaded session that have not been read are written as they were loaded.
+     *
+     * @param id the session id
+     * @param data the session data
+     * @return the write that updates the stored hash
+     * @throws Exception if the session cannot be serialized
+     */
+    protected SessionWrite hashWrite(String id, SessionData data) throws Exception {
+        Map<String, Long> previous = _attributeDigests.get(id);
+        Map<String, Long> digests = new HashMap<>();
+        Map<String, byte[]> attributes = new HashMap<>();
+        Set<String> changed = new HashSet<>();
+        LazySessionData lazy = data instanceof LazySessionData ? (LazySessionData) data : null;
+        for (String name : data.getKeys()) {
+            byte[] bytes = lazy == null ? null : lazy.getSerializedAttribute(name);
+            if (bytes == null) {
+                bytes = serializeAttribute(data.getAttribute(name));
+            }
+            long digest = Fingerprint.of(bytes);
+            attributes.put(name, bytes);
+            digests.put(name, digest);
+            Long old = previous == null ? null : previous.get(name);
+            if (old == null || old.longValue() != digest) {
+                changed.add(name);
+            }
+        }
+        Set<String> removed = new HashSet<>();
+        if (previous != null) {
+            removed.addAll(previous.keySet());
+            removed.removeAll(digests.keySet());
+        }
+        _attributeDigests.put(id, digests);
+        return SessionWrite.hash(id, serializeTimestamps(data), data.getExpiry(), attributes, changed, removed,
+                previous == null);
+    }
+
+    /**
+     * Sends a write to redis, or queues it when writing behind.
+     *
+     * @param write the write
+     * @throws Exception if the write fails
+     */
+    protected void write(SessionWrite write) throws Exception {
+        try {
+            if (_writeBehindQueue != null) {
+                _writeBehindQueue.offer(write);
+            } else if (_versions != null && write.getType() == SessionWrite.Type.HASH) {
+                storeVersioned(write);
+            } else if (_asyncClient != null && write.getType() == SessionWrite.Type.VALUE) {
+                _asyncClient.await(send(write));
+            } else {
+                flush(Collections.singletonList(write));
+            }
+        } catch (Exception e) {
+            forget(write.getId());
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a session hash provided that it is still at the version last seen by this map. When
+     * merging conflicts, a write of the changed and removed attributes is applied whatever the
+     * stored version.
+     *
+     * @param write the write of a hash
+     * @throws SessionConflictException if another node stored the session since this map last saw it
+     * @throws Exception if the write fails
+     */
+    private void storeVersioned(SessionWrite write) throws Exception {
+        String id = write.getId();
+        byte[] key = keyAsBytes(id);
+        boolean index = indexedWith(key);
+        long expected = _versions.get(id);
+        List<?> result = storeVersioned(key, write, index, expected);
+        if (Long.valueOf(0).equals(result.get(0)) && _mergeConflicts && !write.isReplace()) {
+            LOG.debug("Merging session {} over version {}, expected {}", id, result.get(1), expected);
+            result = storeVersioned(key, write, index, -1);
+        }
+        long version = (Long) result.get(1);
+        if (Long.valueOf(0).equals(result.get(0))) {
+            throw new SessionConflictException(id, expected, version);
+        }
+        _versions.put(id, version);
+        if (_expiryIndexKey != null && !index) {
+            _topology.execute(_expiryIndexKey, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                indexExpiry(pipeline, id, write.getExpiry());
+                sync(pipeline);
+                return null;
+            });
+        }
+    }
+
+    private List<?> storeVersioned(byte[] key, SessionWrite write, boolean index, long expected) throws Exception {
+        List<byte[]> keys = new ArrayList<>(2);
+        keys.add(key);
+        if (index) {
+            keys.add(_expiryIndexKey);
+        }
+        Collection<String> removed = write.isReplace() ? Collections.emptySet() : write.getRemoved();
+        Collection<String> changed = write.isReplace() ? write.getAttributes().keySet() : write.getChanged();
+        List<byte[]> args = new ArrayList<>(7 + removed.size() + 2 * changed.size());
+        args.add(Long.toString(expected).getBytes(StandardCharsets.UTF_8));
+        args.add(Integer.toString(expirySec(write)).getBytes(StandardCharsets.UTF_8));
+        args.add(Long.toString(write.getExpiry()).getBytes(StandardCharsets.UTF_8));
+        args.add(write.getId().getBytes(StandardCharsets.UTF_8));
+        args.add(write.isReplace() ? new byte[]{'1'} : new byte[]{'0'});
+        args.add(serializeMeta(write.getTimestamps(), write.getAttributeCount()));
+        args.add(Integer.toString(removed.size()).getBytes(StandardCharsets.UTF_8));
+        for (String name : removed) {
+            args.add(attributeField(name));
+        }
+        for (String name : changed) {
+            args.add(attributeField(name));
+            args.add(write.getAttributes().get(name));
+        }
+        return _topology.execute(key, jedis -> {
+            List<?> result = (List<?>) STORE_HASH_VERSIONED.eval(jedis, keys, args);
+            if (Long.valueOf(1).equals(result.get(0))) {
+                announce(jedis, write.getId());
+                awaitReplicas(jedis);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Sends writes to redis in one pipeline per redis node. A touch of a session that redis no
+     * longer holds is replaced by a write of the whole session.
+     *
+     * @param writes the writes
+     * @return the writes that replace touches of sessions no longer stored
+     * @throws Exception if any of the writes fails
+     */
+    protected List<SessionWrite> flush(List<SessionWrite> writes) throws Exception {
+        List<SessionWrite> missed = new ArrayList<>();
+        List<SessionWrite> unindexed = new ArrayList<>();
+        for (SessionWrite write : writes) {
+            if (!indexedWith(keyAsBytes(write.getId()))) {
+                unindexed.add(write);
+            }
+        }
+        for (List<SessionWrite> route : group(writes, SessionWrite::getId, _topology::server)) {
+            runBatch(route, SessionWrite::getId, batch -> _topology.execute(keyAsBytes(batch.get(0).getId()), jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                Map<SessionWrite, Response<Object>> touches = new LinkedHashMap<>();
+                for (SessionWrite write : batch) {
+                    Response<Object> touched = apply(pipeline, write, indexedWith(keyAsBytes(write.getId())));
+                    if (touched != null) {
+                        touches.put(write, touched);
+                    }
+                }
+                sync(pipeline);
+                awaitReplicas(jedis);
+                for (Map.Entry<SessionWrite, Response<Object>> e : touches.entrySet()) {
+                    if (!Long.valueOf(1).equals(e.getValue().get())) {
+                        missed.add(e.getKey());
+                    }
+                }
+                return null;
+            }));
+        }
+        if (_expiryIndexKey != null && !unindexed.isEmpty()) {
+            _topology.execute(_expiryIndexKey, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                for (SessionWrite write : unindexed) {
+                    indexExpiry(pipeline, write.getId(),
+                            write.getType() == SessionWrite.Type.DELETE ? 0 : write.getExpiry());
+                }
+                sync(pipeline);
+                return null;
+            });
+        }
+        List<SessionWrite> replaced = new ArrayList<>(missed.size());
+        for (SessionWrite touch : missed) {
+            String id = touch.getId();
+            SessionData data = touch.getSession();
+            forget(id);
+            replaced.add(inContext(() -> _hashLayout ? hashWrite(id, data) : valueWrite(id, data)));
+        }
+        return replaced;
+    }
+
+    /**
+     * Sends the pipelined commands and throws the first error that redis replied with.
+     */
+    private static void sync(Pipeline pipeline) throws Exception {
+        for (Object result : pipeline.syncAndReturnAll()) {
+            if (result instanceof Exception) {
+                throw (Exception) result;
+            }
+        }
+    }
+
+    /**
+     * @param result a pipelined reply
+     * @return the reply, unless it is an error that redis replied with, which is thrown
+     */
+    private static Object reply(Object result) throws Exception {
+        if (result instanceof Exception) {
+            throw (Exception) result;
+        }
+        return result;
+    }
+
+    /**
+     * @param pipeline the pipeline to queue the commands on
+     * @param write the write
+     * @param index true if the expiry index is updated in the same pipeline
+     * @return for a touch, the reply of the touch script, which is 1 if the session is stored
+     */
+    private Response<Object> apply(Pipeline pipeline, SessionWrite write, boolean index) {
+        byte[] key = keyAsBytes(write.getId());
+        switch (write.getType()) {
+            case VALUE:
+                set(pipeline, key, write.getValue(), expirySec(write));
+                if (index) {
+                    indexExpiry(pipeline, write.getId(), write.getExpiry());
+                }
+                break;
+            case HASH:
+                Map<byte[], byte[]> fields = new HashMap<>();
+                for (String name : write.isReplace() ? write.getAttributes().keySet() : write.getChanged()) {
+                    fields.put(attributeField(name), write.getAttributes().get(name));
+                }
+                fields.put(META_FIELD_BYTES, serializeMeta(write.getTimestamps(), write.getAttributeCount()));
+                if (write.isReplace()) {
+                    pipeline.multi();
+                    pipeline.del(key);
+                } else if (!write.getRemoved().isEmpty()) {
+                    List<byte[]> removed = new ArrayList<>();
+                    for (String name : write.getRemoved()) {
+                        removed.add(attributeField(name));
+                    }
+                    pipeline.hdel(key, removed.toArray(new byte[removed.size()][]));
+                }
+                pipeline.hmset(key, fields);
+                expire(pipeline, key, expirySec(write));
+                if (index) {
+                    indexExpiry(pipeline, write.getId(), write.getExpiry());
+                }
+                if (write.isReplace()) {
+                    pipeline.exec();
+                }
+                break;
+            case TOUCH:
+                Response<Object> touched = pipeline.eval(touchScript().getScript(), touchKeys(write, index),
+                        touchArgs(write));
+                announce(pipeline, write.getId());
+                return touched;
+            case DELETE:
+                pipeline.del(key);
+                if (index) {
+                    indexExpiry(pipeline, write.getId(), 0);
+                }
+                break;
+            default:
+                throw new IllegalStateException(write.toString());
+        }
+        announce(pipeline, write.getId());
+        return null;
+    }
+
+    /**
+     * Tells the other nodes, when they have a near cache, that a session has been written.
+     *
+     * @param pipeline the pipeline on which the session was written
+     * @param id the session id
+     */
+    private void announce(Pipeline pipeline, String id) {
+        if (_nearCacheSize > 0) {
+            pipeline.publish(invalidationChannel(), InvalidationSubscriber.message(_nodeId, id));
+        }
+    }
+
+    private void announce(Jedis jedis, String id) {
+        if (_nearCacheSize > 0) {
+            jedis.publish(invalidationChannel(), InvalidationSubscriber.message(_nodeId, id));
+        }
+    }
+
+    private String invalidationChannel() {
+        return (_keyPrefix == null ? "" : _keyPrefix) + "invalidations";
+    }
+
+    /**
+     * Opens a connection outside of the pools, configured as the pooled ones, to the node that
+     * serves a key.
+     *
+     * @param key the key
+     * @return the connection
+     * @throws Exception if the connection cannot be opened
+     */
+    private Jedis connect(byte[] key) throws Exception {
+        HostAndPort node = _topology.execute(key,
+                jedis -> new HostAndPort(jedis.getClient().getHost(), jedis.getClient().getPort()));
+        Jedis jedis = new Jedis(node.getHost(), node.getPort(), _connectionTimeout, _soTimeout, _ssl,
+                _sslSocketFactory, _sslParameters, _hostnameVerifier);
+        try {
+            if (_password != null) {
+                jedis.auth(_password);
+            }
+            if (_clientName != null) {
+                jedis.clientSetname(_clientName);
+            }
+            return jedis;
+        } catch (RuntimeException e) {
+            jedis.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Updates only the timestamps and the expiry of a stored session, without reserializing
+     * its attributes. This must only be used when the caller knows that the attributes have
+     * not changed since the session was last stored.
+     *
+     * @param id the session id
+     * @param data the session data
+     * @return true if the session was updated, or queued to be updated when writing behind;
+     * false if it is not stored in a form that can be updated in place, in which case it must
+     * be stored in full
+     * @throws Exception if the session cannot be updated
+     */
+    public boolean touch(String id, SessionData data) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        if (data == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        if (degraded(id)) {
+            storeDegraded(id, data);
+            _metrics.touched(System.nanoTime() - start);
+            return true;
+        }
+        try {
+            boolean touched = touchSession(id, data);
+            if (touched) {
+                _metrics.touched(System.nanoTime() - start);
+            }
+            completed(start, _storeBudgetMs);
+            return touched;
+        } catch (Exception e) {
+            _metrics.storeFailed();
+            if (failed(e)) {
+                storeDegraded(id, data);
+                return true;
+            }
+            throw e;
+        }
+    }
+
+    private boolean touchSession(String id, SessionData data) throws Exception {
+        return touchSession(SessionWrite.touch(id, serializeTimestamps(data), data.getKeys().size(), data.getExpiry(),
+                data));
+    }
+
+    private boolean touchSession(SessionWrite write) throws Exception {
+        String id = write.getId();
+        if (_writeBehindQueue != null) {
+            _writeBehindQueue.offer(write);
+            touched(write);
+            return true;
+        }
+        byte[] key = keyAsBytes(id);
+        boolean index = indexedWith(key);
+        Object updated = _topology.execute(key, jedis -> {
+            Object result = touchScript().eval(jedis, touchKeys(write, index), touchArgs(write));
+            if (Long.valueOf(1).equals(result)) {
+                announce(jedis, id);
+                if (_chunkSize > 0 && !_hashLayout) {
+                    refreshChunks(jedis, key, expirySec(write));
+                }
+            }
+            awaitReplicas(jedis);
+            return result;
+        });
+        if (!Long.valueOf(1).equals(updated)) {
+            return false;
+        }
+        touched(write);
+        if (_expiryIndexKey != null && !index) {
+            _topology.execute(_expiryIndexKey, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                indexExpiry(pipeline, id, write.getExpiry());
+                sync(pipeline);
+                return null;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Refreshes the expiry of the chunks of a session, if it is stored in chunks.
+     *
+     * @param jedis the connection to the node serving the session
+     * @param key the key of the session
+     * @param expirySec the expiry of the session
+     */
+    private static void refreshChunks(Jedis jedis, byte[] key, int expirySec) {
+        if (expirySec <= 0) {
+            return;
+        }
+        byte[] manifest = jedis.getrange(key, 0, SessionChunks.MANIFEST_LENGTH - 1);
+        if (!SessionChunks.isManifest(manifest)) {
+            return;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        for (byte[] chunk : SessionChunks.keys(key, manifest)) {
+            pipeline.expire(chunk, expirySec);
+        }
+        pipeline.sync();
+    }
+
+    private void touched(SessionWrite write) {
+        if (_nearCache != null) {
+            _nearCache.touch(write);
+        }
+    }
+
+    private RedisScript touchScript() {
+        return _hashLayout ? TOUCH_HASH : TOUCH_VALUE;
+    }
+
+    private List<byte[]> touchKeys(SessionWrite write, boolean index) {
+        List<byte[]> keys = new ArrayList<>(2);
+        keys.add(keyAsBytes(write.getId()));
+        if (index) {
+            keys.add(_expiryIndexKey);
+        }
+        return keys;
+    }
+
+    private List<byte[]> touchArgs(SessionWrite write) {
+        return Arrays.asList(
+                _hashLayout ? serializeMeta(write.getTimestamps(), write.getAttributeCount()) : write.getTimestamps(),
+                Integer.toString(expirySec(write)).getBytes(StandardCharsets.UTF_8),
+                Long.toString(write.getExpiry()).getBytes(StandardCharsets.UTF_8),
+                write.getId().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeTimestamps(ReusableBuffer buffer, SessionData data) {
+        writeLong(buffer, data.getCreated());
+        writeLong(buffer, data.getAccessed());
+        writeLong(buffer, data.getLastAccessed());
+        writeLong(buffer, data.getMaxInactiveMs());
+    }
+
+    private static void writeLong(ReusableBuffer buffer, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer.write((int) (value >>> shift));
+        }
+    }
+
+    private byte[] serializeTimestamps(SessionData data) {
+        return ByteBuffer.allocate(TIMESTAMPS_LENGTH)
+                .putLong(data.getCreated())
+                .putLong(data.getAccessed())
+                .putLong(data.getLastAccessed())
+                .putLong(data.getMaxInactiveMs())
+                .array();
+    }
+
+    /**
+     * @param timestamps the serialized session timestamps
+     * @param attributeCount the number of attributes of the session as written, which is informative
+     * only: loads read whatever attribute fields the hash holds
+     * @return the timestamps and attribute count of a session stored as a hash
+     */
+    private byte[] serializeMeta(byte[] timestamps, int attributeCount) {
+        return ByteBuffer.allocate(META_LENGTH)
+                .put(timestamps)
+                .putInt(attributeCount)
+                .array();
+    }
+
+    /**
+     * @param value an attribute value
+     * @return the value serialized by the codec, after a header with the codec format and flags
+     * @throws IOException if the value cannot be serialized
+     */
+    protected byte[] serializeAttribute(Object value) throws IOException {
+        ReusableBuffer buffer = ReusableBuffer.get(ReusableBuffer.SERIALIZED);
+        buffer.write(_writeCodec.getFormat());
+        buffer.write(0);
+        _writeCodec.encodeAttribute(value, buffer);
+        return compress(buffer, ATTRIBUTE_HEADER_LENGTH);
+    }
+
+    protected Object deserializeAttribute(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (bytes.length == 0 || !hasHeader(bytes[0])) {
+            return deserializeLegacyAttribute(bytes);
+        }
+        SessionCodec codec = codec(bytes[0]);
+        try (InputStream in = payload(bytes, ATTRIBUTE_HEADER_LENGTH)) {
+            return codec.decodeAttribute(in);
+        }
+    }
+
+    /**
+     * Reads an attribute written before attributes started with a codec format, as a java
+     * serialized object that may be deflated.
+     */
+    private Object deserializeLegacyAttribute(byte[] bytes) throws IOException, ClassNotFoundException {
+        boolean deflated = !isJavaSerialized(bytes);
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+             InputStream in = deflated ? new InflaterInputStream(bais) : null;
+             ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream(deflated ? in : bais)) {
+            return ois.readObject();
+        }
+    }
+
+    private static boolean isJavaSerialized(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED;
+    }
+
+    /**
+     * Compresses the payload that follows the header of a value when it is at least as long as the
+     * compression threshold, and keeps the compressed form if it is smaller, recording the
+     * compressor in the flags of the header.
+     *
+     * @param buffer the header followed by the uncompressed payload
+     * @param headerLength the length of the header
+     * @return the value to store, which is the only copy made of the buffer
+     * @throws IOException if the payload cannot be compressed
+     */
+    private byte[] compress(ReusableBuffer buffer, int headerLength) throws IOException {
+        return compress(buffer.array(), 0, headerLength, buffer.size());
+    }
+
+    /**
+     * @param bytes holds a header followed by a payload
+     * @param offset the offset of the header
+     * @param headerLength the length of the header, whose second byte holds the flags
+     * @param size the length of the header and payload
+     * @return the header and payload, compressed if that makes them smaller
+     * @throws IOException if the payload cannot be compressed
+     */
+    private byte[] compress(byte[] bytes, int offset, int headerLength, int size) throws IOException {
+        int length = size - headerLength;
+        if (!_compression || length < _compressionThreshold) {
+            _compressionStats.compressed(length, -1, 0);
+            return Arrays.copyOfRange(bytes, offset, offset + size);
+        }
+        long wall = System.nanoTime();
+        long start = CompressionStats.now();
+        ReusableBuffer out = ReusableBuffer.get(ReusableBuffer.COMPRESSED);
+        out.write(bytes, offset, headerLength);
+        _writeCompressor.compress(bytes, offset + headerLength, length, out);
+        long nanos = CompressionStats.now() - start;
+        _metrics.compressed(System.nanoTime() - wall);
+        if (out.size() >= size) {
+            _compressionStats.compressed(length, -1, nanos);
+            return Arrays.copyOfRange(bytes, offset, offset + size);
+        }
+        _compressionStats.compressed(length, out.size() - headerLength, nanos);
+        byte[] compressed = out.toByteArray();
+        compressed[1] = (byte) _writeCompressor.getId();
+        return compressed;
+    }
+
+    /**
+     * @param bytes a stored value
+     * @param headerLength the length of its header
+     * @return the uncompressed payload that follows the header, which for a compressed payload
+     * is only valid until the next payload is read by the current thread
+     * @throws IOException if the payload cannot be decompressed
+     */
+    private InputStream payload(byte[] bytes, int headerLength) throws IOException {
+        int id = bytes[1] & COMPRESSOR_MASK;
+        if (id == 0) {
+            return new ByteArrayInputStream(bytes, headerLength, bytes.length - headerLength);
+        }
+        SessionCompressor compressor = _compressors[id];
+        if (compressor == null) {
+            throw new IOException("Unknown session compressor " + id);
+        }
+        long wall = System.nanoTime();
+        long start = CompressionStats.now();
+        ReusableBuffer payload = ReusableBuffer.get(ReusableBuffer.DECOMPRESSED);
+        compressor.decompress(bytes, headerLength, bytes.length - headerLength, payload);
+        _compressionStats.decompressed(CompressionStats.now() - start);
+        _metrics.decompressed(System.nanoTime() - wall);
+        return payload.toInputStream();
+    }
+
+    /**
+     * @param first the first byte of a stored value or attribute
+     * @return true if it is the format of a codec, rather than the start of a java serialized or
+     * deflated stream as written before values had a header
+     */
+    static boolean hasHeader(byte first) {
+        return first >= 1 && first <= SessionCodec.MAX_FORMAT;
+    }
+
+    /**
+     * @param format a codec format
+     * @return the codec that writes the format
+     * @throws IOException if no codec writes the format
+     */
+    private SessionCodec codec(int format) throws IOException {
+        SessionCodec codec = _codecs[format];
+        if (codec == null) {
+            throw new IOException("Unknown session codec format " + format);
+        }
+        return codec;
+    }
+
+    private void registerCompressor(SessionCompressor compressor) {
+        int id = compressor.getId();
+        if (id < 1 || id > SessionCompressor.MAX_ID) {
+            throw new IllegalArgumentException("Id " + id + " of " + compressor);
+        }
+        SessionCompressor registered = _compressors[id];
+        if (registered != null && registered.getClass() != compressor.getClass()) {
+            throw new IllegalStateException("Id " + id + " of " + compressor + " is used by " + registered);
+        }
+        _compressors[id] = compressor;
+    }
+
+    private void registerCodec(SessionCodec codec) {
+        int format = codec.getFormat();
+        if (format < 1 || format > SessionCodec.MAX_FORMAT) {
+            throw new IllegalArgumentException("Format " + format + " of " + codec);
+        }
+        SessionCodec registered = _codecs[format];
+        if (registered != null && registered.getClass() != codec.getClass()) {
+            throw new IllegalStateException("Format " + format + " of " + codec + " is used by " + registered);
+        }
+        _codecs[format] = codec;
+    }
+
+    private static byte[] attributeField(String name) {
+        return (ATTRIBUTE_FIELD_PREFIX + name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void expire(PipelineBase pipeline, byte[] key, int expirySec) {
+        if (expirySec > 0) {
+            pipeline.expire(key, expirySec);
+        }
+    }
+
+    /**
+     * Forgets what is known about the stored state of a session, so that the next store
+     * writes it in full and the next load reads it from redis.
+     *
+     * @param id the session id
+     */
+    private void forget(String id) {
+        if (_attributeDigests != null) {
+            _attributeDigests.remove(id);
+        }
+        if (_fingerprints != null) {
+            _fingerprints.remove(id);
+        }
+        if (_versions != null) {
+            _versions.remove(id);
+        }
+        if (_nearCache != null) {
+            _nearCache.remove(id);
+        }
+    }
+
+    /**
+     * @param key a key under the key prefix
+     * @return the id of the session the key would hold, or null if it is a key of this map that
+     * does not hold a session
+     */
+    private String reapableId(byte[] key) {
+        if (_expiryIndexKey != null && Arrays.equals(key, _expiryIndexKey)) {
+            return null;
+        }
+        String name = new String(key, StandardCharsets.UTF_8).substring(_keyPrefix.length());
+        if (name.startsWith("#")) {
+            //the class dictionary, the reaper lock
+            return null;
+        }
+        if (_clusterNodes == null && _shards == null) {
+            return name;
+        }
+        return name.startsWith("{") && name.endsWith("}") ? name.substring(1, name.length() - 1) : null;
+    }
+
+    /**
+     * Removes sessions unlinked by the reaper from the expiry index and from what this map
+     * remembers of them.
+     *
+     * @param ids the session ids
+     * @throws Exception if the expiry index cannot be updated
+     */
+    private void reaped(List<String> ids) throws Exception {
+        for (String id : ids) {
+            forget(id);
+        }
+        if (_expiryIndexKey != null) {
+            _topology.execute(_expiryIndexKey, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                for (String id : ids) {
+                    indexExpiry(pipeline, id, 0);
+                }
+                sync(pipeline);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Tells whether a session is to be read or written in memory rather than in redis, because the
+     * circuit is open or because the session was written while it was and is yet to be replayed.
+     * If the session is to be read or written in redis, the outcome must be recorded with
+     * {@link #completed(long, long)} or {@link #failed(Exception)}.
+     *
+     * @param id the session id
+     * @return true if the session is to be read or written in memory
+     */
+    private boolean degraded(String id) {
+        if (_breaker == null) {
+            return false;
+        }
+        if (_degraded.get(id) == null && _breaker.allow()) {
+            return false;
+        }
+        replay();
+        return true;
+    }
+
+    /**
+     * Splits a batch of sessions served by the same node, as {@link #degraded(String)} does for
+     * one session, asking the circuit once for the whole batch.
+     *
+     * @param ids session ids
+     * @param degraded receives the ids of the sessions to be read or written in memory
+     * @return the ids of the sessions to be read or written in redis
+     */
+    private List<String> allowed(List<String> ids, List<String> degraded) {
+        if (_breaker == null) {
+            return ids;
+        }
+        List<String> allowed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            (_degraded.get(id) == null ? allowed : degraded).add(id);
+        }
+        if (!allowed.isEmpty() && !_breaker.allow()) {
+            degraded.addAll(allowed);
+            allowed.clear();
+        }
+        if (!degraded.isEmpty()) {
+            replay();
+        }
+        return allowed;
+    }
+
+    /**
+     * Records a call to redis that succeeded, as a failure if it took longer than its budget.
+     *
+     * @param start the nano time the call started
+     * @param budgetMs the budget of the call, or 0 for none
+     */
+    private void completed(long start, long budgetMs) {
+        if (_breaker == null) {
+            return;
+        }
+        boolean slow = budgetMs > 0 && System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        if (slow) {
+            _metrics.slowCall();
+        }
+        _breaker.record(slow);
+        replay();
+    }
+
+    /**
+     * Records a call to redis that failed. Only a failure to reach redis counts against the circuit:
+     * any other failure, such as a session that cannot be deserialized, means that redis answered.
+     *
+     * @param failure the failure
+     * @return true if the failure was to reach redis and the operation is to be done in memory instead
+     */
+    private boolean failed(Exception failure) {
+        if (_breaker == null) {
+            return false;
+        }
+        boolean unavailable = isUnavailable(failure);
+        _breaker.record(unavailable);
+        if (unavailable) {
+            LOG.debug("Redis unavailable, continuing in memory", failure);
+        }
+        return unavailable;
+    }
+
+    /**
+     * @param failure the failure of a call to redis
+     * @return true if redis could not be reached or did not answer in time: the connection failed
+     * or timed out, or no pooled connection could be borrowed in time, which jedis reports as a
+     * plain {@link redis.clients.jedis.exceptions.JedisException} caused by a {@link NoSuchElementException}
+     */
+    static boolean isUnavailable(Throwable failure) {
+        for (int depth = 0; failure != null && depth < 8; depth++, failure = failure.getCause()) {
+            if (failure instanceof JedisConnectionException || failure instanceof NoSuchElementException
+                    || failure instanceof SocketTimeoutException || failure instanceof TimeoutException
+                    || failure instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SessionData loadDegraded(String id) {
+        _metrics.degraded();
+        DegradedSessions.Entry entry = _degraded.get(id);
+        return entry == null ? null : entry.getData();
+    }
+
+    private void storeDegraded(String id, SessionData data) {
+        _metrics.degraded();
+        _degraded.store(id, data);
+        if (_attributeDigests != null) {
+            _attributeDigests.remove(id);
+        }
+        if (_fingerprints != null) {
+            _fingerprints.remove(id);
+        }
+        if (_nearCache != null) {
+            _nearCache.remove(id);
+        }
+    }
+
+    private boolean deleteDegraded(String id) {
+        _metrics.degraded();
+        _degraded.delete(id);
+        forget(id);
+        return true;
+    }
+
+    /**
+     * Replays the writes made in memory in the background, unless there are none or they are
+     * already being replayed.
+     */
+    private void replay() {
+        if (_degraded.isEmpty() || !_replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            asyncExecutor().execute(() -> {
+                try {
+                    replayDegraded();
+                } finally {
+                    _replaying.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            _replaying.set(false);
+            LOG.warn("Unable to replay sessions written while redis was unavailable", e);
+        }
+    }
+
+    /**
+     * Writes to redis, oldest first, the sessions written in memory, for as long as the circuit
+     * lets calls through. A session written again while being replayed is replayed again.
+     */
+    private void replayDegraded() {
+        Map.Entry<String, DegradedSessions.Entry> pending;
+        while (isRunning() && (pending = _degraded.first()) != null) {
+            if (!_breaker.allow()) {
+                return;
+            }
+            String id = pending.getKey();
+            SessionData data = pending.getValue().getData();
+            long start = System.nanoTime();
+            try {
+                if (data == null) {
+                    deleteSession(id);
+                } else {
+                    inContext(() -> {
+                        storeInContext(id, data);
+                        return null;
+                    });
+                }
+                completed(start, _storeBudgetMs);
+            } catch (Exception e) {
+                if (failed(e)) {
+                    return;
+                }
+                LOG.warn("Discarding write of session " + id + " made while redis was unavailable", e);
+            }
+            _degraded.replayed(id, pending.getValue());
+        }
+    }
+
+
+    /**
+     * @see SessionDataMap#delete(java.lang.String)
+     */
+    @Override
+    public boolean delete(String id) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        long start = System.nanoTime();
+        if (degraded(id)) {
+            deleteDegraded(id);
+            _metrics.deleted(System.nanoTime() - start);
+            return true;
+        }
+        try {
+            boolean deleted = deleteSession(id);
+            _metrics.deleted(System.nanoTime() - start);
+            completed(start, _storeBudgetMs);
+            return deleted;
+        } catch (Exception e) {
+            _metrics.deleteFailed();
+            if (failed(e)) {
+                deleteDegraded(id);
+                return true;
+            }
+            throw e;
+        }
+    }
+
+    private boolean deleteSession(String id) throws Exception {
+        forget(id);
+        if (_writeBehindQueue != null) {
+            _writeBehindQueue.offer(SessionWrite.delete(id));
+            return true;
+        }
+        if (_chunkSize > 0 && !_hashLayout) {
+            return deleteChunked(id);
+        }
+        if (_asyncClient != null) {
+            return _asyncClient.await(sendDelete(id));
+        }
+        byte[] key = keyAsBytes(id);
+        if (_expiryIndexKey == null || !indexedWith(key)) {
+            long deleted = _topology.execute(key, jedis -> {
+                Long result = jedis.del(key);
+                announce(jedis, id);
+                awaitReplicas(jedis);
+                return result;
+            });
+            if (_expiryIndexKey != null) {
+                _topology.execute(_expiryIndexKey,
+                        jedis -> jedis.zrem(_expiryIndexKey, id.getBytes(StandardCharsets.UTF_8)));
+            }
+            return deleted > 0;
+        }
+        return _topology.execute(key, jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            Response<Long> deleted = pipeline.del(key);
+            indexExpiry(pipeline, id, 0);
+            announce(pipeline, id);
+            pipeline.sync();
+            awaitReplicas(jedis);
+            return deleted.get() > 0;
+        });
+    }
+
+    /**
+     * Deletes sessions with one round trip per redis node, unlinking their keys so that redis
+     * frees their memory in the background. Sessions stored in chunks have their chunks unlinked
+     * in a second round trip. When writing behind, the deletes are queued instead.
+     *
+     * @param ids session ids
+     * @return whether each of the sessions was stored
+     * @throws Exception if the sessions cannot be deleted
+     */
+    public Map<String, Boolean> deleteAll(Collection<String> ids) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        long start = System.nanoTime();
+        Set<String> unique = new LinkedHashSet<>(ids);
+        Map<String, Boolean> deleted = new HashMap<>();
+        try {
+            if (_writeBehindQueue != null) {
+                for (String id : unique) {
+                    deleted.put(id, degraded(id) ? deleteDegraded(id) : deleteBehind(id));
+                }
+            } else {
+                for (List<String> route : routes(unique)) {
+                    List<String> degraded = new ArrayList<>();
+                    List<String> allowed = allowed(route, degraded);
+                    if (!allowed.isEmpty()) {
+                        long routeStart = System.nanoTime();
+                        try {
+                            runBatch(allowed, id -> id, batch -> deleteRoute(batch, deleted));
+                            completed(routeStart, _storeBudgetMs);
+                        } catch (Exception e) {
+                            if (!failed(e)) {
+                                throw e;
+                            }
+                            degraded.addAll(allowed);
+                        }
+                    }
+                    for (String id : degraded) {
+                        deleted.put(id, deleteDegraded(id));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            _metrics.deleteFailed();
+            throw e;
+        }
+        long nanos = (System.nanoTime() - start) / Math.max(1, unique.size());
+        for (int i = 0; i < unique.size(); i++) {
+            _metrics.deleted(nanos);
+        }
+        return deleted;
+    }
+
+    /**
+     * Queues the delete of a session to be written behind, as {@link #delete(String)} does.
+     *
+     * @param id the session id
+     * @return true
+     * @throws Exception if the delete cannot be queued
+     */
+    private boolean deleteBehind(String id) throws Exception {
+        long start = System.nanoTime();
+        try {
+            boolean deleted = deleteSession(id);
+            completed(start, _storeBudgetMs);
+            return deleted;
+        } catch (Exception e) {
+            if (failed(e)) {
+                return deleteDegraded(id);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param ids the ids of sessions all served by the same node
+     * @param deleted receives whether each of the sessions was stored
+     * @throws Exception if the sessions cannot be deleted
+     */
+    private void deleteRoute(List<String> ids, Map<String, Boolean> deleted) throws Exception {
+        boolean chunked = _chunkSize > 0 && !_hashLayout;
+        List<byte[]> unindexed = new ArrayList<>();
+        for (String id : ids) {
+            if (!indexedWith(keyAsBytes(id))) {
+                unindexed.add(id.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        _topology.execute(keyAsBytes(ids.get(0)), jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<byte[]>> previous = new ArrayList<>(ids.size());
+            List<Response<Object>> unlinked = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                forget(id);
+                byte[] key = keyAsBytes(id);
+                if (chunked) {
+                    pipeline.multi();
+                    previous.add(pipeline.getrange(key, 0, SessionChunks.MANIFEST_LENGTH - 1));
+                }
+                unlinked.add(pipeline.eval(UNLINK.getScript(), Collections.singletonList(key), Collections.emptyList()));
+                if (chunked) {
+                    pipeline.exec();
+                }
+                if (indexedWith(key)) {
+                    indexExpiry(pipeline, id, 0);
+                }
+                announce(pipeline, id);
+            }
+            sync(pipeline);
+            for (int i = 0; i < ids.size(); i++) {
+                deleted.put(ids.get(i), Long.valueOf(1).equals(unlinked.get(i).get()));
+                if (chunked) {
+                    unlinkChunks(jedis, keyAsBytes(ids.get(i)), previous.get(i).get(), 0);
+                }
+            }
+            awaitReplicas(jedis);
+            return null;
+        });
+        if (_expiryIndexKey != null && !unindexed.isEmpty()) {
+            byte[][] members = unindexed.toArray(new byte[unindexed.size()][]);
+            _topology.execute(_expiryIndexKey, jedis -> jedis.zrem(_expiryIndexKey, members));
+        }
+    }
+
+    /**
+     * Unlinks a session, and its chunks if it is stored in chunks.
+     *
+     * @param id the session id
+     * @return true if the session was stored
+     * @throws Exception if the session cannot be deleted
+     */
+    private boolean deleteChunked(String id) throws Exception {
+        byte[] key = keyAsBytes(id);
+        boolean index = indexedWith(key);
+        boolean deleted = _topology.execute(key, jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.multi();
+            Response<byte[]> previous = pipeline.getrange(key, 0, SessionChunks.MANIFEST_LENGTH - 1);
+            pipeline.eval(UNLINK.getScript(), Collections.singletonList(key), Collections.emptyList());
+            pipeline.exec();
+            if (index) {
+                indexExpiry(pipeline, id, 0);
+            }
+            announce(pipeline, id);
+            sync(pipeline);
+            unlinkChunks(jedis, key, previous.get(), 0);
+            awaitReplicas(jedis);
+            return previous.get().length > 0;
+        });
+        if (_expiryIndexKey != null && !index) {
+            _topology.execute(_expiryIndexKey,
+                    jedis -> jedis.zrem(_expiryIndexKey, id.getBytes(StandardCharsets.UTF_8)));
+        }
+        return deleted;
+    }
+
+    /**
+     * Loads a session without holding the calling thread for the round trip to redis when
+     * {@link #setAsyncConnections(int) multiplexed connections} are used and sessions are stored
+     * as single values; otherwise {@link #load(String)} is run by the {@link #setAsyncExecutor(Executor)
+     * async executor}.
+     *
+     * @param id the session id
+     * @return the session data, or null if the session is not stored
+     */
+    public CompletableFuture<SessionData> loadAsync(String id) {
+        if (!isStarted()) {
+            return failedFuture(new IllegalStateException("Not started"));
+        }
+        if (!sendsValues()) {
+            return supplyAsync(() -> load(id));
+        }
+        long start = System.nanoTime();
+        SessionData cached;
+        try {
+            cached = loadCached(id);
+        } catch (Exception e) {
+            _metrics.loadFailed();
+            return failedFuture(e);
+        }
+        if (cached != null) {
+            _metrics.loaded(System.nanoTime() - start, true);
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (degraded(id)) {
+            SessionData data = loadDegraded(id);
+            _metrics.loaded(System.nanoTime() - start, data != null);
+            return CompletableFuture.completedFuture(data);
+        }
+        long stamp = _nearCache == null ? 0 : _nearCache.stamp();
+        byte[] key = keyAsBytes(id);
+        return sendLoad(key).thenApplyAsync(reply -> {
+            byte[] bytes = (byte[]) reply;
+            try {
+                SessionData data = inContext(() -> decodeValue(id, bytes));
+                if (data != null) {
+                    cacheValue(id, bytes, stamp);
+                }
+                return data;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, asyncExecutor()).handle((data, failure) -> {
+            if (failure == null) {
+                completed(start, _loadBudgetMs);
+                _metrics.loaded(System.nanoTime() - start, data != null);
+                return data;
+            }
+            _metrics.loadFailed();
+            Exception cause = unwrap(failure);
+            if (failed(cause)) {
+                return loadDegraded(id);
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * Stores a session without holding the calling thread for the round trip to redis when
+     * {@link #setAsyncConnections(int) multiplexed connections} are used and sessions are stored
+     * as single values. The session is serialized by the calling thread. Otherwise {@link #store(String, SessionData)}
+     * is run by the {@link #setAsyncExecutor(Executor) async executor}.
+     *
+     * @param id the session id
+     * @param data the session data
+     * @return completes when the session is stored
+     */
+    public CompletableFuture<Void> storeAsync(String id, SessionData data) {
+        if (!isStarted()) {
+            return failedFuture(new IllegalStateException("Not started"));
+        }
+        if (data == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!sendsValues()) {
+            return supplyAsync(() -> {
+                store(id, data);
+                return null;
+            });
+        }
+        long start = System.nanoTime();
+        SessionWrite write;
+        try {
+            write = inContext(() -> valueWrite(id, data));
+        } catch (Exception e) {
+            _metrics.storeFailed();
+            return failedFuture(e);
+        }
+        if (write.getType() == SessionWrite.Type.TOUCH) {
+            //the async client does not run the script that refreshes an unchanged session
+            return supplyAsync(() -> {
+                store(id, data);
+                return null;
+            });
+        }
+        _metrics.serialized(System.nanoTime() - start, write.getSize());
+        if (degraded(id)) {
+            storeDegraded(id, data);
+            _metrics.stored(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(null);
+        }
+        return send(write).handle((v, failure) -> {
+            if (failure == null) {
+                if (_nearCache != null) {
+                    _nearCache.put(id, write);
+                }
+                _metrics.stored(System.nanoTime() - start);
+                _metrics.writePerformed();
+                completed(start, _storeBudgetMs);
+                return null;
+            }
+            forget(id);
+            _metrics.storeFailed();
+            Exception cause = unwrap(failure);
+            if (failed(cause)) {
+                storeDegraded(id, data);
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * Deletes a session without holding the calling thread for the round trip to redis when
+     * {@link #setAsyncConnections(int) multiplexed connections} are used; otherwise {@link #delete(String)}
+     * is run by the {@link #setAsyncExecutor(Executor) async executor}.
+     *
+     * @param id the session id
+     * @return true if the session was stored
+     */
+    public CompletableFuture<Boolean> deleteAsync(String id) {
+        if (!isStarted()) {
+            return failedFuture(new IllegalStateException("Not started"));
+        }
+        if (_asyncClient == null || _writeBehindQueue != null || _chunkSize > 0) {
+            return supplyAsync(() -> delete(id));
+        }
+        long start = System.nanoTime();
+        if (degraded(id)) {
+            _metrics.deleted(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(deleteDegraded(id));
+        }
+        forget(id);
+        return sendDelete(id).handle((deleted, failure) -> {
+            if (failure == null) {
+                _metrics.deleted(System.nanoTime() - start);
+                completed(start, _storeBudgetMs);
+                return deleted;
+            }
+            _metrics.deleteFailed();
+            Exception cause = unwrap(failure);
+            if (failed(cause)) {
+                return deleteDegraded(id);
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * @return true if sessions are loaded and stored on the multiplexed connections
+     */
+    private boolean sendsValues() {
+        return _asyncClient != null && !_hashLayout && _writeBehindQueue == null && _chunkSize == 0;
+    }
+
+    private Executor asyncExecutor() {
+        return _asyncExecutor == null ? ForkJoinPool.commonPool() : _asyncExecutor;
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Callable<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return work.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, asyncExecutor());
+    }
+
+    /**
+     * @param failure the failure a future completed with
+     * @return the failure, without the {@link CompletionException} wrapping it
+     */
+    private static Exception unwrap(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        return cause instanceof Exception ? (Exception) cause : new CompletionException(cause);
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Exception failure) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * Sends a value write on the multiplexed connections.
+     *
+     * @param write the write of a value
+     * @return completes when redis has replied
+     */
+    private CompletableFuture<Void> send(SessionWrite write) {
+        byte[] key = keyAsBytes(write.getId());
+        List<byte[][]> commands = new ArrayList<>(4);
+        int expirySec = expirySec(write);
+        if (expirySec > 0) {
+            commands.add(new byte[][]{Protocol.Command.SETEX.raw, key, Protocol.toByteArray(expirySec), write.getValue()});
+        } else {
+            commands.add(new byte[][]{Protocol.Command.SET.raw, key, write.getValue()});
+        }
+        indexExpiry(commands, write.getId(), write.getExpiry());
+        return sendWrites(write.getId(), commands).thenApply(replies -> null);
+    }
+
+    /**
+     * Sends a delete on the multiplexed connections.
+     *
+     * @param id the session id
+     * @return whether the session was stored
+     */
+    private CompletableFuture<Boolean> sendDelete(String id) {
+        List<byte[][]> commands = new ArrayList<>(4);
+        commands.add(new byte[][]{Protocol.Command.DEL.raw, keyAsBytes(id)});
+        indexExpiry(commands, id, 0);
+        return sendWrites(id, commands).thenApply(replies -> ((Long) replies.get(0)) > 0);
+    }
+
+    /**
+     * Pipelines the commands of a write, followed by its announcement and the wait for replicas.
+     *
+     * @param id the session id
+     * @param commands the commands
+     * @return the replies, or the first failure
+     */
+    private CompletableFuture<List<Object>> sendWrites(String id, List<byte[][]> commands) {
+        if (_nearCacheSize > 0) {
+            commands.add(new byte[][]{Protocol.Command.PUBLISH.raw, invalidationChannel().getBytes(StandardCharsets.UTF_8),
+                    InvalidationSubscriber.message(_nodeId, id).getBytes(StandardCharsets.UTF_8)});
+        }
+        if (_replicaWait > 0) {
+            commands.add(new byte[][]{Protocol.Command.WAIT.raw, Protocol.toByteArray(_replicaWait),
+                    Protocol.toByteArray(_replicaWaitTimeoutMs)});
+        }
+        List<CompletableFuture<Object>> replies = _asyncClient.pipeline(commands);
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Object> results = new ArrayList<>(replies.size());
+            for (CompletableFuture<Object> reply : replies) {
+                results.add(reply.join());
+            }
+            return results;
+        });
+    }
+
+    private void indexExpiry(List<byte[][]> commands, String id, long expiry) {
+        if (_expiryIndexKey == null) {
+            return;
+        }
+        byte[] member = id.getBytes(StandardCharsets.UTF_8);
+        if (expiry > 0) {
+            commands.add(new byte[][]{Protocol.Command.ZADD.raw, _expiryIndexKey, Protocol.toByteArray(expiry), member});
+        } else {
+            commands.add(new byte[][]{Protocol.Command.ZREM.raw, _expiryIndexKey, member});
+        }
+    }
+
+    /**
+     * Waits for the configured number of replicas to acknowledge the writes sent on a connection,
+     * so that a session read from a replica afterwards is not older than the write.
+     *
+     * @param jedis the connection the writes were sent on
+     */
+    private void awaitReplicas(Jedis jedis) {
+        if (_replicaWait <= 0) {
+            return;
+        }
+        Long acknowledged = jedis.waitReplicas(_replicaWait, _replicaWaitTimeoutMs);
+        if (acknowledged == null || acknowledged < _replicaWait) {
+            LOG.debug("Write acknowledged by {} of {} replicas", acknowledged, _replicaWait);
+        }
+    }
+
+    /**
+     * Records the expiry of a session in the expiry index, if there is one.
+     *
+     * @param pipeline the pipeline to queue the update on
+     * @param id the session id
+     * @param expiry the expiry time in ms, or &lt;= 0 to remove the session from the index
+     */
+    private void indexExpiry(PipelineBase pipeline, String id, long expiry) {
+        if (_expiryIndexKey == null) {
+            return;
+        }
+        byte[] member = id.getBytes(StandardCharsets.UTF_8);
+        if (expiry > 0) {
+            pipeline.zadd(_expiryIndexKey, expiry, member);
+        } else {
+            pipeline.zrem(_expiryIndexKey, member);
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        long start = System.nanoTime();
+        if (_context == null)
+            throw new IllegalStateException("No SessionContext");
+        if (_versioned && !_hashLayout)
+            throw new IllegalStateException("Versioned sessions need the hash layout");
+        if (_versioned && _writeBehind)
+            throw new IllegalStateException("Versioned sessions cannot be written behind");
+        if (_chunkSize > 0 && _writeBehind)
+            throw new IllegalStateException("Chunked sessions cannot be written behind");
+        if (_lazyAttributes && !_hashLayout)
+            throw new IllegalStateException("Lazy attributes need the hash layout");
+        if (_nearCacheSize > 0 && _shards != null)
+            throw new IllegalStateException("The near cache cannot be used with shards");
+        if (_clusterNodes != null && _ssl)
+            throw new IllegalStateException("SSL cannot be used with a redis cluster");
+        if (_clusterNodes != null && _database != Protocol.DEFAULT_DATABASE)
+            throw new IllegalStateException("A redis cluster only has database " + Protocol.DEFAULT_DATABASE);
+        if (_sentinels != null && _ssl)
+            throw new IllegalStateException("SSL cannot be used with redis sentinel");
+        if (_reaperIntervalMs > 0 && (_keyPrefix == null || _keyPrefix.isEmpty()))
+            throw new IllegalStateException("The reaper needs a key prefix");
+        try {
+            if (_warmUp)
+                warmUp();
+
+            _codecs = new SessionCodec[SessionCodec.MAX_FORMAT + 1];
+            registerCodec(new JavaSessionCodec());
+            registerCodec(new BinarySessionCodec());
+            for (SessionCodec codec : ServiceLoader.load(SessionCodec.class,
+                    RedisSessionDataMap.class.getClassLoader())) {
+                registerCodec(codec);
+            }
+            DictionarySessionCodec dictionaryCodec = new DictionarySessionCodec(new ClassDictionary(_topology,
+                    (_keyPrefix == null ? "" : _keyPrefix) + CLASS_DICTIONARY_KEY));
+            registerCodec(dictionaryCodec);
+            _writeCodec = _classDictionary ? dictionaryCodec : _codec;
+            registerCodec(_writeCodec);
+            _compressors = new SessionCompressor[SessionCompressor.MAX_ID + 1];
+            byte[] dictionary = _compressionDictionary == null
+                    ? null : Files.readAllBytes(Paths.get(_compressionDictionary));
+            registerCompressor(new DeflateCompressor(_compressionLevel, null));
+            if (dictionary != null) {
+                registerCompressor(new DeflateCompressor(_compressionLevel, dictionary));
+            }
+            for (SessionCompressor compressor : ServiceLoader.load(SessionCompressor.class,
+                    RedisSessionDataMap.class.getClassLoader())) {
+                registerCompressor(compressor);
+            }
+            _writeCompressor = _compressor != null ? _compressor : _compressors[dictionary != null
+                    ? DeflateCompressor.DICTIONARY_ID : DeflateCompressor.ID];
+            registerCompressor(_writeCompressor);
+            _attributeDigests = _hashLayout ? new AttributeDigests(_digestCacheSize) : null;
+            _fingerprints = _skipUnchangedWrites && !_hashLayout && _chunkSize <= 0
+                    ? new SessionFingerprints(_digestCacheSize) : null;
+            _versions = _versioned ? new SessionVersions(_digestCacheSize) : null;
+            if (_asyncConnections > 0 && _clusterNodes == null && _sentinels == null && _shards == null) {
+                _asyncClient = new RespClient(_host, _port, _asyncConnections, _connectionTimeout, _soTimeout, _password,
+                        _database, _clientName, _ssl, _sslSocketFactory, _sslParameters, _hostnameVerifier, _metrics);
+            }
+            if (_circuitBreaker) {
+                _breaker = new CircuitBreaker(_circuitBreakerWindow, _circuitBreakerFailureRate, _circuitBreakerOpenMs);
+                _degraded = new DegradedSessions(_degradedSessions);
+            }
+            if (_writeBehind) {
+                _writeBehindQueue = new WriteBehindQueue(new WriteBehindQueue.Flusher() {
+                    @Override
+                    public List<SessionWrite> flush(List<SessionWrite> writes) throws Exception {
+                        return RedisSessionDataMap.this.flush(writes);
+                    }
+
+                    @Override
+                    public void discard(SessionWrite write) {
+                        _metrics.writeDropped();
+                        forget(write.getId());
+                    }
+                }, _writeBehindQueueSize, _writeBehindBatchSize, _writeBehindFlushIntervalMs, _writeBehindMaxWaitMs,
+                        _writeBehindMaxRetryMs);
+                _writeBehindQueue.start("redis-session-writer" + _context.getCanonicalContextPath());
+            }
+            if (_nearCacheSize > 0) {
+                _nearCache = new NearCache(_nearCacheSize, _nearCacheMaxBytes);
+                _invalidationSubscriber = new InvalidationSubscriber(this::connect, invalidationChannel(), _nodeId,
+                        _nearCache);
+                _invalidationSubscriber.start("redis-session-invalidations" + _context.getCanonicalContextPath());
+            }
+            preloadScripts();
+            if (_reaperIntervalMs > 0) {
+                _reaper = new SessionReaper(_topology, new SessionReaper.Keyspace() {
+                    @Override
+                    public String id(byte[] key) {
+                        return reapableId(key);
+                    }
+
+                    @Override
+                    public void reaped(List<String> ids) throws Exception {
+                        RedisSessionDataMap.this.reaped(ids);
+                    }
+                }, _keyPrefix, _nodeId, _hashLayout, _reaperIntervalMs, _reaperOpsPerSec, _reaperBatchSize,
+                        TimeUnit.SECONDS.toMillis(_reaperGraceSec), _metrics);
+                _reaper.start("redis-session-reaper" + _context.getCanonicalContextPath());
+            }
+            super.doStart();
+        } catch (Throwable x) {
+            //stop whatever was started, the threads in particular, as doStop would
+            try {
+                release();
+            } catch (Throwable t) {
+                x.addSuppressed(t);
+            }
+            throw x;
+        }
+        _startupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.debug("Redis session data map started in {} ms", _startupMs);
+    }
+
+    /**
+     * Opens the connections of every pool in parallel, so that requests do not wait for the connection,
+     * authentication and database selection of each, checks them with a PING, and returns them to
+     * their pools.
+     *
+     * @throws IllegalStateException if a connection cannot be opened or checked
+     */
+    private void warmUp() throws Exception {
+        Collection<? extends Pool<Jedis>> pools = _topology.getPools();
+        if (pools.isEmpty()) {
+            throw new IllegalStateException("No redis node to connect to");
+        }
+        int connections = Math.max(1, _minIdle);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections * pools.size(), 16));
+        List<Future<Jedis>> opened = new ArrayList<>();
+        try {
+            for (Pool<Jedis> pool : pools) {
+                for (int i = 0; i < connections; i++) {
+                    opened.add(executor.submit(() -> {
+                        Jedis jedis = pool.getResource();
+                        try {
+                            jedis.ping();
+                            return jedis;
+                        } catch (RuntimeException e) {
+                            jedis.close();
+                            throw e;
+                        }
+                    }));
+                }
+            }
+            for (Future<Jedis> connection : opened) {
+                try {
+                    connection.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Unable to connect to redis", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            for (Future<Jedis> connection : opened) {
+                try {
+                    connection.get().close();
+                } catch (ExecutionException e) {
+                    LOG.ignore(e);
+                }
+            }
+        }
+        LOG.debug("Opened {} connections to each of {} redis nodes", connections, pools.size());
+    }
+
+
+    /**
+     * Caches the scripts this map uses in redis, so that none has to be sent in full while
+     * serving requests. If redis cannot be reached the scripts are sent on their first use.
+     */
+    private void preloadScripts() {
+        List<RedisScript> scripts = new ArrayList<>(2);
+        scripts.add(touchScript());
+        if (expires()) {
+            scripts.add(_hashLayout ? LOAD_HASH : LOAD_VALUE);
+        }
+        if (_versions != null) {
+            scripts.add(STORE_HASH_VERSIONED);
+        }
+        if (_chunkSize > 0 && !_hashLayout) {
+            scripts.add(UNLINK);
+        }
+        if (_classDictionary) {
+            scripts.add(ClassDictionary.EPOCH);
+            scripts.add(ClassDictionary.REGISTER);
+        }
+        if (_reaperIntervalMs > 0) {
+            scripts.add(SessionReaper.RENEW);
+            scripts.add(SessionReaper.RELEASE);
+        }
+        try {
+            _topology.executeOnAll(jedis -> {
+                for (RedisScript script : scripts) {
+                    script.load(jedis);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            LOG.warn("Could not preload scripts, they will be sent on first use: {}", e.toString());
+            LOG.debug(e);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        release();
+    }
+
+    /**
+     * Stops the threads, closes the connections and drops the state set up by {@link #doStart()},
+     * whether it completed or not.
+     *
+     * @throws Exception if writes queued to be written behind were lost
+     */
+    private void release() throws Exception {
+        if (_reaper != null) {
+            _reaper.stop();
+            _reaper = null;
+        }
+        IOException lost = null;
+        if (_writeBehindQueue != null) {
+            try {
+                _writeBehindQueue.stop();
+            } catch (IOException e) {
+                lost = e;
+            }
+            _writeBehindQueue = null;
+        }
+        if (_degraded != null && !_degraded.isEmpty()) {
+            LOG.warn("Losing the writes of {} sessions made while redis was unavailable", _degraded.size());
+        }
+        _breaker = null;
+        _degraded = null;
+        if (_invalidationSubscriber != null) {
+            _invalidationSubscriber.stop();
+            _invalidationSubscriber = null;
+        }
+        _nearCache = null;
+        if (_asyncClient != null) {
+            _asyncClient.close();
+            _asyncClient = null;
+        }
+        if (_compressors != null) {
+            for (SessionCompressor compressor : _compressors) {
+                if (compressor != null) {
+                    compressor.close();
+                }
+            }
+            _compressors = null;
+        }
+        _startupMs = -1;
+        if (_topology != null) {
+            _topology.close();
+            _topology = null;
+            _pool = null;
+        }
+        if (lost != null) {
+            throw lost;
         }
     }
 
@@ -19,6 +19,7 @@
 package org.eclipse.jetty.redis.session;
 
 import java.net.URI;
+import java.util.zip.Deflater;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocketFactory;
@@ -33,6 +34,7 @@ import redis.clients.util.JedisURIHelper;
  */
 public class RedisSessionDataMapFactory implements SessionDataMapFactory {
     protected int _expiry;
+    protected int _expiryGrace = -1;
     protected String _host;
     protected int _port;
     protected int _connectionTimeout = Protocol.DEFAULT_TIMEOUT;
@@ -47,8 +49,52 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
     protected int _maxIdle = GenericObjectPoolConfig.DEFAULT_MAX_IDLE;
     protected int _minIdle = GenericObjectPoolConfig.DEFAULT_MIN_IDLE;
     protected int _maxTotal = GenericObjectPoolConfig.DEFAULT_MAX_TOTAL;
+    protected boolean _warmUp = false;
+    protected long _maxWaitMs = GenericObjectPoolConfig.DEFAULT_MAX_WAIT_MILLIS;
+    protected long _loadBudgetMs = 0;
+    protected long _storeBudgetMs = 0;
+    protected boolean _circuitBreaker = false;
+    protected int _circuitBreakerWindow = 20;
+    protected int _circuitBreakerFailureRate = 50;
+    protected long _circuitBreakerOpenMs = 5000;
+    protected int _degradedSessions = 10000;
+    protected long _reaperIntervalMs = 0;
+    protected int _reaperOpsPerSec = 1000;
+    protected int _reaperBatchSize = 100;
+    protected int _reaperGraceSec = 3600;
     protected String _keyPrefix;
     protected boolean _compression = true;
+    protected int _compressionThreshold = 512;
+    protected int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    protected String _compressionDictionary;
+    protected SessionCompressor _compressor;
+    protected SessionCodec _codec = new JavaSessionCodec();
+    protected boolean _classDictionary = false;
+    protected boolean _hashLayout = false;
+    protected int _chunkSize = 0;
+    protected boolean _lazyAttributes = false;
+    protected boolean _versioned = false;
+    protected boolean _mergeConflicts = false;
+    protected int _digestCacheSize = 10000;
+    protected boolean _skipUnchangedWrites = false;
+    protected String _clusterNodes;
+    protected String _shards;
+    protected int _clusterMaxAttempts = 5;
+    protected String _sentinels;
+    protected String _sentinelMaster;
+    protected boolean _replicaReads = false;
+    protected long _replicaRefreshMs = 5000;
+    protected int _replicaWait = 0;
+    protected long _replicaWaitTimeoutMs = 100;
+    protected boolean _writeBehind = false;
+    protected int _writeBehindQueueSize = 10000;
+    protected int _writeBehindBatchSize = 100;
+    protected long _writeBehindFlushIntervalMs = 10;
+    protected long _writeBehindMaxWaitMs = 1000;
+    protected long _writeBehindMaxRetryMs = 60000;
+    protected int _nearCacheSize = 0;
+    protected long _nearCacheMaxBytes = 64 * 1024 * 1024;
+    protected int _asyncConnections = 0;
 
     public int getExpirySec() {
         return _expiry;
@@ -62,6 +108,19 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
         _expiry = expiry;
     }
 
+    public int getExpiryGraceSec() {
+        return _expiryGrace;
+    }
+
+    /**
+     * @param grace time in secs that redis keeps a session past its max inactive interval, or -1
+     * to keep every session for {@link #setExpirySec(int)}
+     * @see RedisSessionDataMap#setExpiryGraceSec(int)
+     */
+    public void setExpiryGraceSec(int grace) {
+        _expiryGrace = grace;
+    }
+
     public String getHost() {
         return _host;
     }
@@ -96,6 +155,87 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
         }
     }
 
+    public String getShards() {
+        return _shards;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setShards(String)
+     */
+    public void setShards(String shards) {
+        this._shards = shards;
+    }
+
+    public String getClusterNodes() {
+        return _clusterNodes;
+    }
+
+    /**
+     * @param clusterNodes comma separated host:port seed nodes of a redis cluster
+     */
+    public void setClusterNodes(String clusterNodes) {
+        this._clusterNodes = clusterNodes;
+    }
+
+    public int getClusterMaxAttempts() {
+        return _clusterMaxAttempts;
+    }
+
+    public void setClusterMaxAttempts(int clusterMaxAttempts) {
+        this._clusterMaxAttempts = clusterMaxAttempts;
+    }
+
+    public String getSentinels() {
+        return _sentinels;
+    }
+
+    /**
+     * @param sentinels comma separated host:port addresses of the sentinels monitoring the master
+     */
+    public void setSentinels(String sentinels) {
+        this._sentinels = sentinels;
+    }
+
+    public String getSentinelMaster() {
+        return _sentinelMaster;
+    }
+
+    public void setSentinelMaster(String sentinelMaster) {
+        this._sentinelMaster = sentinelMaster;
+    }
+
+    public boolean isReplicaReads() {
+        return _replicaReads;
+    }
+
+    public void setReplicaReads(boolean replicaReads) {
+        this._replicaReads = replicaReads;
+    }
+
+    public long getReplicaRefreshMs() {
+        return _replicaRefreshMs;
+    }
+
+    public void setReplicaRefreshMs(long replicaRefreshMs) {
+        this._replicaRefreshMs = replicaRefreshMs;
+    }
+
+    public int getReplicaWait() {
+        return _replicaWait;
+    }
+
+    public void setReplicaWait(int replicaWait) {
+        this._replicaWait = replicaWait;
+    }
+
+    public long getReplicaWaitTimeoutMs() {
+        return _replicaWaitTimeoutMs;
+    }
+
+    public void setReplicaWaitTimeoutMs(long replicaWaitTimeoutMs) {
+        this._replicaWaitTimeoutMs = replicaWaitTimeoutMs;
+    }
+
     public int getConnectionTimeout() {
         return _connectionTimeout;
     }
@@ -192,6 +332,128 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
         this._maxTotal = maxTotal;
     }
 
+    public boolean isWarmUp() {
+        return _warmUp;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setWarmUp(boolean)
+     */
+    public void setWarmUp(boolean warmUp) {
+        this._warmUp = warmUp;
+    }
+
+    public long getMaxWaitMs() {
+        return _maxWaitMs;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setMaxWaitMs(long)
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this._maxWaitMs = maxWaitMs;
+    }
+
+    public long getLoadBudgetMs() {
+        return _loadBudgetMs;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setLoadBudgetMs(long)
+     */
+    public void setLoadBudgetMs(long loadBudgetMs) {
+        this._loadBudgetMs = loadBudgetMs;
+    }
+
+    public long getStoreBudgetMs() {
+        return _storeBudgetMs;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setStoreBudgetMs(long)
+     */
+    public void setStoreBudgetMs(long storeBudgetMs) {
+        this._storeBudgetMs = storeBudgetMs;
+    }
+
+    public boolean isCircuitBreaker() {
+        return _circuitBreaker;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setCircuitBreaker(boolean)
+     */
+    public void setCircuitBreaker(boolean circuitBreaker) {
+        this._circuitBreaker = circuitBreaker;
+    }
+
+    public int getCircuitBreakerWindow() {
+        return _circuitBreakerWindow;
+    }
+
+    public void setCircuitBreakerWindow(int circuitBreakerWindow) {
+        this._circuitBreakerWindow = circuitBreakerWindow;
+    }
+
+    public int getCircuitBreakerFailureRate() {
+        return _circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+        this._circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    public long getCircuitBreakerOpenMs() {
+        return _circuitBreakerOpenMs;
+    }
+
+    public void setCircuitBreakerOpenMs(long circuitBreakerOpenMs) {
+        this._circuitBreakerOpenMs = circuitBreakerOpenMs;
+    }
+
+    public int getDegradedSessions() {
+        return _degradedSessions;
+    }
+
+    public void setDegradedSessions(int degradedSessions) {
+        this._degradedSessions = degradedSessions;
+    }
+
+    public long getReaperIntervalMs() {
+        return _reaperIntervalMs;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setReaperIntervalMs(long)
+     */
+    public void setReaperIntervalMs(long reaperIntervalMs) {
+        this._reaperIntervalMs = reaperIntervalMs;
+    }
+
+    public int getReaperOpsPerSec() {
+        return _reaperOpsPerSec;
+    }
+
+    public void setReaperOpsPerSec(int reaperOpsPerSec) {
+        this._reaperOpsPerSec = reaperOpsPerSec;
+    }
+
+    public int getReaperBatchSize() {
+        return _reaperBatchSize;
+    }
+
+    public void setReaperBatchSize(int reaperBatchSize) {
+        this._reaperBatchSize = reaperBatchSize;
+    }
+
+    public int getReaperGraceSec() {
+        return _reaperGraceSec;
+    }
+
+    public void setReaperGraceSec(int reaperGraceSec) {
+        this._reaperGraceSec = reaperGraceSec;
+    }
+
     public String getKeyPrefix() {
         return _keyPrefix;
     }
@@ -208,14 +470,230 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
         this._compression = compression;
     }
 
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this._compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return _compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this._compressionLevel = compressionLevel;
+    }
+
+    public String getCompressionDictionary() {
+        return _compressionDictionary;
+    }
+
+    /**
+     * @param compressionDictionary the path of a file with a preset deflate dictionary
+     */
+    public void setCompressionDictionary(String compressionDictionary) {
+        this._compressionDictionary = compressionDictionary;
+    }
+
+    public SessionCompressor getCompressor() {
+        return _compressor;
+    }
+
+    public void setCompressor(SessionCompressor compressor) {
+        this._compressor = compressor;
+    }
+
+    public SessionCodec getCodec() {
+        return _codec;
+    }
+
+    /**
+     * @param codec the codec with which sessions are written
+     */
+    public void setCodec(SessionCodec codec) {
+        this._codec = codec;
+    }
+
+    public boolean isClassDictionary() {
+        return _classDictionary;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setClassDictionary(boolean)
+     */
+    public void setClassDictionary(boolean classDictionary) {
+        this._classDictionary = classDictionary;
+    }
+
+    public boolean isHashLayout() {
+        return _hashLayout;
+    }
+
+    public void setHashLayout(boolean hashLayout) {
+        this._hashLayout = hashLayout;
+    }
+
+    public int getChunkSize() {
+        return _chunkSize;
+    }
+
+    /**
+     * @param chunkSize the size in bytes above which sessions are stored in chunks, or 0 for never
+     * @see RedisSessionDataMap#setChunkSize(int)
+     */
+    public void setChunkSize(int chunkSize) {
+        _chunkSize = chunkSize;
+    }
+
+    public boolean isLazyAttributes() {
+        return _lazyAttributes;
+    }
+
+    /**
+     * @param lazyAttributes true to deserialize the attributes of sessions stored as hashes when they are first read
+     * @see RedisSessionDataMap#setLazyAttributes(boolean)
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        _lazyAttributes = lazyAttributes;
+    }
+
+    public boolean isVersioned() {
+        return _versioned;
+    }
+
+    /**
+     * @param versioned true to only store sessions that no other node has stored since they were read
+     */
+    public void setVersioned(boolean versioned) {
+        this._versioned = versioned;
+    }
+
+    public boolean isMergeConflicts() {
+        return _mergeConflicts;
+    }
+
+    /**
+     * @param mergeConflicts true to merge the attributes of conflicting versioned stores rather than fail
+     */
+    public void setMergeConflicts(boolean mergeConflicts) {
+        this._mergeConflicts = mergeConflicts;
+    }
+
+    public int getDigestCacheSize() {
+        return _digestCacheSize;
+    }
+
+    public void setDigestCacheSize(int digestCacheSize) {
+        this._digestCacheSize = digestCacheSize;
+    }
+
+    public boolean isSkipUnchangedWrites() {
+        return _skipUnchangedWrites;
+    }
+
+    /**
+     * @see RedisSessionDataMap#setSkipUnchangedWrites(boolean)
+     */
+    public void setSkipUnchangedWrites(boolean skipUnchangedWrites) {
+        this._skipUnchangedWrites = skipUnchangedWrites;
+    }
+    public boolean isWriteBehind() {
+        return _writeBehind;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        this._writeBehind = writeBehind;
+    }
+
+    public int getWriteBehindQueueSize() {
+        return _writeBehindQueueSize;
+    }
+
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this._writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return _writeBehindBatchSize;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this._writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public long getWriteBehindFlushIntervalMs() {
+        return _writeBehindFlushIntervalMs;
+    }
+
+    public void setWriteBehindFlushIntervalMs(long writeBehindFlushIntervalMs) {
+        this._writeBehindFlushIntervalMs = writeBehindFlushIntervalMs;
+    }
+
+    public long getWriteBehindMaxWaitMs() {
+        return _writeBehindMaxWaitMs;
+    }
+
+    public void setWriteBehindMaxWaitMs(long writeBehindMaxWaitMs) {
+        this._writeBehindMaxWaitMs = writeBehindMaxWaitMs;
+    }
+
+    public long getWriteBehindMaxRetryMs() {
+        return _writeBehindMaxRetryMs;
+    }
+
+    public void setWriteBehindMaxRetryMs(long writeBehindMaxRetryMs) {
+        this._writeBehindMaxRetryMs = writeBehindMaxRetryMs;
+    }
+
+    public int getNearCacheSize() {
+        return _nearCacheSize;
+    }
+
+    public void setNearCacheSize(int nearCacheSize) {
+        this._nearCacheSize = nearCacheSize;
+    }
+
+    public long getNearCacheMaxBytes() {
+        return _nearCacheMaxBytes;
+    }
+
+    public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+        this._nearCacheMaxBytes = nearCacheMaxBytes;
+    }
+
+    public int getAsyncConnections() {
+        return _asyncConnections;
+    }
+
+    /**
+     * @param asyncConnections the number of connections on which the session operations of all threads
+     *                         are multiplexed, or 0 to borrow a pooled connection for each operation
+     */
+    public void setAsyncConnections(int asyncConnections) {
+        this._asyncConnections = asyncConnections;
+    }
 
     /**
      * @see org.eclipse.jetty.server.session.SessionDataMapFactory#getSessionDataMap()
      */
     @Override
     public SessionDataMap getSessionDataMap() {
-        RedisSessionDataMap m = new RedisSessionDataMap(_host, Integer.toString(_port));
+        RedisSessionDataMap m = _host == null && (_clusterNodes != null || _sentinels != null || _shards != null)
+                ? new RedisSessionDataMap()
+                : new RedisSessionDataMap(_host, Integer.toString(_port));
+        m.setClusterNodes(_clusterNodes);
+        m.setShards(_shards);
+        m.setClusterMaxAttempts(_clusterMaxAttempts);
+        m.setSentinels(_sentinels);
+        m.setSentinelMaster(_sentinelMaster);
+        m.setReplicaReads(_replicaReads);
+        m.setReplicaRefreshMs(_replicaRefreshMs);
+        m.setReplicaWait(_replicaWait);
+        m.setReplicaWaitTimeoutMs(_replicaWaitTimeoutMs);
         m.setExpirySec(_expiry);
+        m.setExpiryGraceSec(_expiryGrace);
         m.setConnectionTimeout(_connectionTimeout);
         m.setSoTimeout(_soTimeout);
         m.setPassword(_password);
@@ -228,8 +706,43 @@ public class RedisSessionDataMapFactory implements SessionDataMapFactory {
         m.setMaxIdle(_maxIdle);
         m.setMinIdle(_minIdle);
         m.setMaxTotal(_maxTotal);
+        m.setWarmUp(_warmUp);
+        m.setMaxWaitMs(_maxWaitMs);
+        m.setLoadBudgetMs(_loadBudgetMs);
+        m.setStoreBudgetMs(_storeBudgetMs);
+        m.setCircuitBreaker(_circuitBreaker);
+        m.setCircuitBreakerWindow(_circuitBreakerWindow);
+        m.setCircuitBreakerFailureRate(_circuitBreakerFailureRate);
+        m.setCircuitBreakerOpenMs(_circuitBreakerOpenMs);
+        m.setDegradedSessions(_degradedSessions);
+        m.setReaperIntervalMs(_reaperIntervalMs);
+        m.setReaperOpsPerSec(_reaperOpsPerSec);
+        m.setReaperBatchSize(_reaperBatchSize);
+        m.setReaperGraceSec(_reaperGraceSec);
         m.setKeyPrefix(_keyPrefix);
         m.setCompression(_compression);
+        m.setCompressionThreshold(_compressionThreshold);
+        m.setCompressionLevel(_compressionLevel);
+        m.setCompressionDictionary(_compressionDictionary);
+        m.setCompressor(_compressor);
+        m.setCodec(_codec);
+        m.setClassDictionary(_classDictionary);
+        m.setHashLayout(_hashLayout);
+        m.setChunkSize(_chunkSize);
+        m.setLazyAttributes(_lazyAttributes);
+        m.setVersioned(_versioned);
+        m.setMergeConflicts(_mergeConflicts);
+        m.setDigestCacheSize(_digestCacheSize);
+        m.setSkipUnchangedWrites(_skipUnchangedWrites);
+        m.setWriteBehind(_writeBehind);
+        m.setWriteBehindQueueSize(_writeBehindQueueSize);
+        m.setWriteBehindBatchSize(_writeBehindBatchSize);
+        m.setWriteBehindFlushIntervalMs(_writeBehindFlushIntervalMs);
+        m.setWriteBehindMaxWaitMs(_writeBehindMaxWaitMs);
+        m.setWriteBehindMaxRetryMs(_writeBehindMaxRetryMs);
+        m.setNearCacheSize(_nearCacheSize);
+        m.setNearCacheMaxBytes(_nearCacheMaxBytes);
+        m.setAsyncConnections(_asyncConnections);
         return m;
     }
 
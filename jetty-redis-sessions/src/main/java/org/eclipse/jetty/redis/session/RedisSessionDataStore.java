@@ -0,0 +1,183 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jetty.server.session.AbstractSessionDataStore;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.server.session.SessionDataStore;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.Tuple;
+
+/**
+ * RedisSessionDataStore
+ *
+ * Uses redis as the only store for SessionData. Session values are read and written by a
+ * {@link RedisSessionDataMap}, and a per-context sorted set records the expiry time of every
+ * session so that finding expired sessions is a single range query.
+ */
+@ManagedObject
+public class RedisSessionDataStore extends AbstractSessionDataStore {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+
+    protected final RedisSessionDataMap _map;
+    protected String _expiryIndexKey;
+
+    /**
+     * @param map the map used to read and write session values
+     */
+    public RedisSessionDataStore(RedisSessionDataMap map) {
+        if (map == null) {
+            throw new IllegalArgumentException("No RedisSessionDataMap");
+        }
+        _map = map;
+        addBean(_map, true);
+    }
+
+    public RedisSessionDataMap getSessionDataMap() {
+        return _map;
+    }
+
+    /**
+     * @return the key of the sorted set holding the expiry time of each session of this context
+     */
+    @ManagedAttribute(value = "redis key of the session expiry index", readonly = true)
+    public String getExpiryIndexKey() {
+        return _expiryIndexKey;
+    }
+
+    /**
+     * @see SessionDataStore#initialize(SessionContext)
+     */
+    @Override
+    public void initialize(SessionContext context) throws Exception {
+        super.initialize(context);
+        String prefix = _map.getKeyPrefix() == null ? "" : _map.getKeyPrefix();
+        _expiryIndexKey = prefix + "expiry:" + context.getCanonicalContextPath() + "_" + context.getVhost();
+        _map.setExpiryIndexKey(_expiryIndexKey);
+        _map.initialize(context);
+    }
+
+    @Override
+    public SessionData doLoad(String id) throws Exception {
+        return _map.load(id);
+    }
+
+    /**
+     * If the attributes of a session are not dirty, only its timestamps and expiry are updated.
+     * Sessions that are not yet in redis are always stored in full.
+     *
+     * @see AbstractSessionDataStore#doStore(String, SessionData, long)
+     */
+    @Override
+    public void doStore(String id, SessionData data, long lastSaveTime) throws Exception {
+        if (!data.isDirty() && _map.touch(id, data)) {
+            return;
+        }
+        _map.store(id, data);
+    }
+
+    @Override
+    public boolean delete(String id) throws Exception {
+        return _map.delete(id);
+    }
+
+    /**
+     * A session exists if it is indexed with an expiry time in the future, or if it is not
+     * indexed at all (it never expires) but its value is present.
+     *
+     * @see SessionDataStore#exists(java.lang.String)
+     */
+    @Override
+    public boolean exists(String id) throws Exception {
+        byte[] index = indexKeyAsBytes();
+        Double expiry = _map.execute(index, jedis -> jedis.zscore(index, id.getBytes(StandardCharsets.UTF_8)));
+        if (expiry != null) {
+            return expiry.longValue() > System.currentTimeMillis();
+        }
+        byte[] key = _map.keyAsBytes(id);
+        return Boolean.TRUE.equals(_map.execute(key, jedis -> jedis.exists(key)));
+    }
+
+    /**
+     * A candidate is expired if its indexed expiry time has passed or it is no longer in redis.
+     * Sessions that are not candidates are only returned once they have been expired for longer
+     * than the grace period, so that the node that last managed them gets the first chance to
+     * expire them.
+     *
+     * @see AbstractSessionDataStore#doGetExpired(Set)
+     */
+    @Override
+    public Set<String> doGetExpired(Set<String> candidates) {
+        long now = System.currentTimeMillis();
+        long graceMs = _gracePeriodSec * 1000L;
+        Set<String> expired = new HashSet<>();
+        try {
+            byte[] index = indexKeyAsBytes();
+            Map<String, Long> indexed = new HashMap<>();
+            for (Tuple t : _map.execute(index, jedis -> jedis.zrangeByScoreWithScores(index, 0, now))) {
+                indexed.put(new String(t.getBinaryElement(), StandardCharsets.UTF_8), (long) t.getScore());
+            }
+            for (Map.Entry<String, Long> e : indexed.entrySet()) {
+                if (candidates.contains(e.getKey()) || e.getValue() <= now - graceMs) {
+                    expired.add(e.getKey());
+                }
+            }
+
+            //candidates that are not expired according to the index may have been deleted by another node
+            Set<String> unknown = new HashSet<>(candidates);
+            unknown.removeAll(indexed.keySet());
+            for (Map.Entry<String, Boolean> e : _map.existsAll(unknown).entrySet()) {
+                if (!e.getValue()) {
+                    expired.add(e.getKey());
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to check expired sessions in " + _expiryIndexKey, e);
+        }
+        return expired;
+    }
+
+    /**
+     * Jetty reads every attribute of a passivated session to notify the activation listeners, so
+     * sessions whose attributes are deserialized lazily are not passivated.
+     *
+     * @see RedisSessionDataMap#setLazyAttributes(boolean)
+     */
+    @Override
+    public boolean isPassivating() {
+        return !_map.isLazyAttributes();
+    }
+
+    private byte[] indexKeyAsBytes() {
+        return _expiryIndexKey.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[expiryIndex=%s,map=%s]", super.toString(), _expiryIndexKey, _map);
+    }
+}
@@ -0,0 +1,53 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import org.eclipse.jetty.server.session.AbstractSessionDataStoreFactory;
+import org.eclipse.jetty.server.session.SessionDataStore;
+import org.eclipse.jetty.server.session.SessionHandler;
+
+/**
+ * RedisSessionDataStoreFactory
+ */
+public class RedisSessionDataStoreFactory extends AbstractSessionDataStoreFactory {
+    protected RedisSessionDataMapFactory _sessionDataMapFactory = new RedisSessionDataMapFactory();
+
+    public RedisSessionDataMapFactory getSessionDataMapFactory() {
+        return _sessionDataMapFactory;
+    }
+
+    /**
+     * @param sessionDataMapFactory the factory holding the redis connection and serialization settings
+     */
+    public void setSessionDataMapFactory(RedisSessionDataMapFactory sessionDataMapFactory) {
+        this._sessionDataMapFactory = sessionDataMapFactory;
+    }
+
+    /**
+     * @see org.eclipse.jetty.server.session.SessionDataStoreFactory#getSessionDataStore(SessionHandler)
+     */
+    @Override
+    public SessionDataStore getSessionDataStore(SessionHandler handler) throws Exception {
+        RedisSessionDataStore store =
+                new RedisSessionDataStore((RedisSessionDataMap) _sessionDataMapFactory.getSessionDataMap());
+        store.setGracePeriodSec(getGracePeriodSec());
+        store.setSavePeriodSec(getSavePeriodSec());
+        return store;
+    }
+
+}
@@ -0,0 +1,149 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * RedisTopology
+ *
+ * Provides the redis connection on which to run the commands for a key.
+ */
+interface RedisTopology {
+    /**
+     * Commands to run on a connection. The connection must not be closed by the command.
+     */
+    interface Command<T> {
+        T run(Jedis jedis) throws Exception;
+    }
+
+    /**
+     * @param key the key the commands operate on
+     * @param command the commands
+     * @param <T> the result type
+     * @return the result of the commands
+     * @throws Exception if the commands fail
+     */
+    <T> T execute(byte[] key, Command<T> command) throws Exception;
+
+    /**
+     * Runs read only commands, on a replica of the node that serves the key when the topology
+     * has replicas to read from. The result may be stale.
+     *
+     * @param key the key the commands operate on
+     * @param command the read only commands
+     * @param <T> the result type
+     * @return the result of the commands
+     * @throws Exception if the commands fail
+     */
+    default <T> T executeRead(byte[] key, Command<T> command) throws Exception {
+        return execute(key, command);
+    }
+
+    /**
+     * Runs commands on every node, such as to load scripts.
+     *
+     * @param command the commands
+     * @throws Exception if the commands fail on any node
+     */
+    default void executeOnAll(Command<?> command) throws Exception {
+        execute(null, command);
+    }
+
+    /**
+     * Keys with equal routes can share a transaction or a script, which in a redis cluster
+     * requires them to be in the same hash slot.
+     *
+     * @param key the key
+     * @return the route of the key
+     */
+    Object route(byte[] key);
+
+    /**
+     * Keys with equal servers are served by the same node, so commands on them can share a
+     * pipeline, even when their routes differ.
+     *
+     * @param key the key
+     * @return the node serving the key, by default its route
+     */
+    default Object server(byte[] key) {
+        return route(key);
+    }
+
+    /**
+     * @return the connection pools of the nodes currently known
+     */
+    Collection<? extends Pool<Jedis>> getPools();
+
+    /**
+     * @return the connection pools of the primary nodes, which between them hold every key
+     * @throws Exception if the primary nodes cannot be found
+     */
+    default Collection<? extends Pool<Jedis>> getPrimaryPools() throws Exception {
+        return getPools();
+    }
+
+    /**
+     * @return the number of pooled connections in use
+     */
+    int getNumActive();
+
+    /**
+     * @return the number of idle pooled connections
+     */
+    int getNumIdle();
+
+    /**
+     * @return the number of threads waiting for a pooled connection
+     */
+    int getNumWaiters();
+
+    void close();
+
+    /**
+     * @param nodes comma separated host:port pairs
+     * @return the nodes
+     */
+    static Set<HostAndPort> parseNodes(String nodes) {
+        Set<HostAndPort> result = new LinkedHashSet<>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            int colon = node.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Node: " + node);
+            }
+            try {
+                result.add(new HostAndPort(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Node: " + node, e);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Nodes: " + nodes);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,507 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * RespClient
+ *
+ * A multiplexed redis client: the commands of any number of threads are pipelined on a few
+ * connections, and their replies complete futures rather than blocking the threads, so that
+ * the number of session operations in flight is not bounded by the number of connections.
+ *
+ * Replies are bulk strings as {@code byte[]}, simple strings as {@code String}, integers as
+ * {@code Long} and arrays as {@code List}. Error replies complete the future of their command
+ * with a {@link JedisDataException}, and connection failures with a {@link JedisConnectionException}.
+ * Futures are completed on the thread that reads the connection, so dependent work that is not
+ * trivial should be run asynchronously on another executor.
+ *
+ * A connection on which a command has waited longer than the socket timeout for its reply is
+ * broken, failing every command waiting on it with a {@link JedisConnectionException}, so that
+ * a redis that stops answering is reported as unavailable rather than blocking its callers.
+ */
+class RespClient implements AutoCloseable {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String _host;
+    private final int _port;
+    private final int _connectionTimeout;
+    private final int _soTimeout;
+    private final String _password;
+    private final int _database;
+    private final String _clientName;
+    private final boolean _ssl;
+    private final SSLSocketFactory _sslSocketFactory;
+    private final SSLParameters _sslParameters;
+    private final HostnameVerifier _hostnameVerifier;
+    private final SessionMetrics _metrics;
+    private final Connection[] _connections;
+    private final Object[] _connecting;
+    private final AtomicInteger _next = new AtomicInteger();
+    private volatile boolean _closed;
+
+    RespClient(String host, int port, int connections, int connectionTimeout, int soTimeout, String password,
+               int database, String clientName, boolean ssl, SSLSocketFactory sslSocketFactory, SSLParameters sslParameters,
+               HostnameVerifier hostnameVerifier, SessionMetrics metrics) {
+        _host = host;
+        _port = port;
+        _connectionTimeout = connectionTimeout;
+        _soTimeout = soTimeout;
+        _password = password;
+        _database = database;
+        _clientName = clientName;
+        _ssl = ssl;
+        _sslSocketFactory = sslSocketFactory;
+        _sslParameters = sslParameters;
+        _hostnameVerifier = hostnameVerifier;
+        _metrics = metrics;
+        _connections = new Connection[connections];
+        _connecting = new Object[connections];
+        for (int i = 0; i < connections; i++) {
+            _connecting[i] = new Object();
+        }
+    }
+
+    /**
+     * @param command the command and its arguments
+     * @return the reply
+     */
+    CompletableFuture<Object> send(byte[]... command) {
+        return pipeline(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Sends commands one after the other on the same connection, without waiting for replies.
+     *
+     * @param commands the commands
+     * @return the reply of each command
+     */
+    List<CompletableFuture<Object>> pipeline(List<byte[][]> commands) {
+        List<CompletableFuture<Object>> replies = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            replies.add(new CompletableFuture<>());
+        }
+        try {
+            connection().send(commands, replies);
+        } catch (Exception e) {
+            JedisConnectionException failure = e instanceof JedisConnectionException
+                    ? (JedisConnectionException) e : new JedisConnectionException(e);
+            for (CompletableFuture<Object> reply : replies) {
+                reply.completeExceptionally(failure);
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Waits for a reply, as a blocking call would, for at most the socket timeout.
+     *
+     * @param reply the reply
+     * @param <T> the type of the reply
+     * @return the reply
+     * @throws Exception the failure of the command, or a {@link JedisConnectionException} if
+     * there was no reply in time
+     */
+    <T> T await(CompletableFuture<T> reply) throws Exception {
+        try {
+            if (_soTimeout <= 0) {
+                return reply.get();
+            }
+            return reply.get(_soTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            JedisConnectionException failure = new JedisConnectionException("Read timed out", e);
+            expire(failure);
+            throw failure;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of connections that are open
+     */
+    int getOpenConnections() {
+        int open = 0;
+        synchronized (_connections) {
+            for (Connection connection : _connections) {
+                if (connection != null && !connection._broken) {
+                    open++;
+                }
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        synchronized (_connections) {
+            for (Connection connection : _connections) {
+                if (connection != null) {
+                    connection.fail(new JedisConnectionException("Closed"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Breaks the connections with a command that has waited longer than the socket timeout.
+     *
+     * @param failure the failure of the commands waiting on them
+     */
+    private void expire(JedisConnectionException failure) {
+        synchronized (_connections) {
+            for (Connection connection : _connections) {
+                if (connection != null && connection.isExpired(System.nanoTime())) {
+                    connection.fail(failure);
+                }
+            }
+        }
+    }
+
+    private Connection connection() throws IOException {
+        if (_closed) {
+            throw new JedisConnectionException("Closed");
+        }
+        int index = Math.floorMod(_next.getAndIncrement(), _connections.length);
+        Connection connection = open(index);
+        if (connection != null) {
+            return connection;
+        }
+        // connecting, with its handshake and authentication, only holds up the threads that want
+        // the same connection, so that one slow or unreachable host does not stall the others
+        synchronized (_connecting[index]) {
+            connection = open(index);
+            if (connection != null) {
+                return connection;
+            }
+            connection = new Connection(index);
+            synchronized (_connections) {
+                if (_closed) {
+                    connection.fail(new JedisConnectionException("Closed"));
+                    throw new JedisConnectionException("Closed");
+                }
+                _connections[index] = connection;
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * @param index the index of a connection
+     * @return the connection, or null if it is not open
+     */
+    private Connection open(int index) {
+        synchronized (_connections) {
+            Connection connection = _connections[index];
+            return connection == null || connection._broken ? null : connection;
+        }
+    }
+
+    /**
+     * A connection with a thread reading its replies, in the order the commands were sent.
+     */
+    private class Connection implements Runnable {
+        private final Socket _socket;
+        private final OutputStream _out;
+        private final Queue<Pending> _pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean _broken;
+
+        Connection(int index) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(_host, _port), _connectionTimeout);
+                if (_ssl) {
+                    socket = secure(socket);
+                }
+                // the reader wakes up every socket timeout to check that no command has waited that long
+                socket.setSoTimeout(_soTimeout);
+                _socket = socket;
+                _out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            } catch (IOException e) {
+                socket.close();
+                throw new JedisConnectionException(e);
+            }
+            Thread reader = new Thread(this, "redis-session-client-" + _host + ":" + _port + "-" + index);
+            reader.setDaemon(true);
+            reader.start();
+            try {
+                List<byte[][]> setup = new ArrayList<>();
+                if (_password != null) {
+                    setup.add(command("AUTH", _password));
+                }
+                if (_database != 0) {
+                    setup.add(command("SELECT", Integer.toString(_database)));
+                }
+                if (_clientName != null) {
+                    setup.add(command("CLIENT", "SETNAME", _clientName));
+                }
+                if (!setup.isEmpty()) {
+                    List<CompletableFuture<Object>> replies = new ArrayList<>();
+                    for (int i = 0; i < setup.size(); i++) {
+                        replies.add(new CompletableFuture<>());
+                    }
+                    send(setup, replies);
+                    for (CompletableFuture<Object> reply : replies) {
+                        await(reply);
+                    }
+                }
+            } catch (Exception e) {
+                fail(e);
+                throw e instanceof JedisConnectionException ? (JedisConnectionException) e : new JedisConnectionException(e);
+            }
+        }
+
+        private Socket secure(Socket socket) throws IOException {
+            SSLSocketFactory factory = _sslSocketFactory == null
+                    ? (SSLSocketFactory) SSLSocketFactory.getDefault() : _sslSocketFactory;
+            SSLSocket ssl = (SSLSocket) factory.createSocket(socket, _host, _port, true);
+            if (_sslParameters != null) {
+                ssl.setSSLParameters(_sslParameters);
+            }
+            ssl.startHandshake();
+            if (_hostnameVerifier != null && !_hostnameVerifier.verify(_host, ssl.getSession())) {
+                ssl.close();
+                throw new JedisConnectionException("The connection to '" + _host + "' failed ssl/tls hostname verification.");
+            }
+            return ssl;
+        }
+
+        void send(List<byte[][]> commands, List<CompletableFuture<Object>> replies) throws IOException {
+            // the pending replies are queued under the same lock as the commands are written, so that
+            // they are in the same order; the reader does not take the lock, so that a large write
+            // waiting for redis to read does not stop the replies that redis sends meanwhile from being read.
+            // They are all queued before any command is written, so that a failed write fails every one of them
+            synchronized (_out) {
+                if (_broken) {
+                    throw new JedisConnectionException("Connection broken");
+                }
+                long now = System.nanoTime();
+                for (CompletableFuture<Object> reply : replies) {
+                    _pending.add(new Pending(reply, now));
+                }
+                try {
+                    for (byte[][] command : commands) {
+                        write(command);
+                    }
+                    _out.flush();
+                } catch (IOException | RuntimeException e) {
+                    fail(new JedisConnectionException(e));
+                }
+                if (_broken) {
+                    // broken by the reader while the replies were queued
+                    fail(new JedisConnectionException("Connection broken"));
+                }
+            }
+        }
+
+        private void write(byte[][] command) throws IOException {
+            _out.write('*');
+            writeLine(Integer.toString(command.length));
+            for (byte[] arg : command) {
+                _out.write('$');
+                writeLine(Integer.toString(arg.length));
+                _out.write(arg);
+                _out.write(CRLF);
+            }
+        }
+
+        private void writeLine(String line) throws IOException {
+            _out.write(line.getBytes(StandardCharsets.US_ASCII));
+            _out.write(CRLF);
+        }
+
+        /**
+         * @param now the current time in ns
+         * @return true if the oldest command waiting for its reply was sent longer than the socket timeout ago
+         */
+        boolean isExpired(long now) {
+            Pending oldest = _pending.peek();
+            return _soTimeout > 0 && oldest != null && now - oldest._sent >= TimeUnit.MILLISECONDS.toNanos(_soTimeout);
+        }
+
+        @Override
+        public void run() {
+            try (InputStream in = new BufferedInputStream(_socket.getInputStream(), 16 * 1024)) {
+                while (true) {
+                    Object reply;
+                    try {
+                        reply = readReply(in);
+                    } catch (SocketTimeoutException e) {
+                        // an idle connection, or a reply not yet due, is kept; a reply stalled part way
+                        // through is always overdue, so reading never resumes in the middle of one
+                        if (isExpired(System.nanoTime())) {
+                            throw new JedisConnectionException("Read timed out", e);
+                        }
+                        continue;
+                    }
+                    Pending pending = _pending.poll();
+                    if (pending == null) {
+                        throw new JedisConnectionException("Unexpected reply");
+                    }
+                    _metrics.network(System.nanoTime() - pending._sent);
+                    if (reply instanceof JedisDataException) {
+                        pending._reply.completeExceptionally((JedisDataException) reply);
+                    } else {
+                        pending._reply.complete(reply);
+                    }
+                }
+            } catch (Exception e) {
+                if (!_broken && !_closed) {
+                    LOG.warn("Redis connection to " + _host + ":" + _port + " failed", e);
+                }
+                fail(e instanceof JedisConnectionException ? (JedisConnectionException) e : new JedisConnectionException(e));
+            }
+        }
+
+        /**
+         * Breaks the connection, failing the commands that are waiting for a reply.
+         */
+        void fail(Exception failure) {
+            _broken = true;
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                LOG.ignore(e);
+            }
+            Pending pending;
+            while ((pending = _pending.poll()) != null) {
+                pending._reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<Object> _reply;
+        final long _sent;
+
+        Pending(CompletableFuture<Object> reply, long sent) {
+            _reply = reply;
+            _sent = sent;
+        }
+    }
+
+    static byte[][] command(String... args) {
+        byte[][] command = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            command[i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return command;
+    }
+
+    private static Object readReply(InputStream in) throws IOException {
+        int type = in.read();
+        switch (type) {
+            case '+':
+                return readLine(in);
+            case '-':
+                return new JedisDataException(readLine(in));
+            case ':':
+                return Long.parseLong(readLine(in));
+            case '$': {
+                int length = Integer.parseInt(readLine(in));
+                if (length < 0) {
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                readFully(in, bytes);
+                readFully(in, new byte[2]);
+                return bytes;
+            }
+            case '*': {
+                int count = Integer.parseInt(readLine(in));
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> array = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    array.add(readReply(in));
+                }
+                return array;
+            }
+            case -1:
+                throw new EOFException();
+            default:
+                throw new JedisConnectionException("Unknown reply: " + (char) type);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b == '\r') {
+                in.read();
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ReusableBuffer
+ *
+ * A per thread output buffer that is reused from one session to the next, so that serializing
+ * or decompressing a session does not grow a fresh buffer each time. A buffer that grew for an
+ * unusually large session is replaced rather than retained.
+ *
+ * Each thread that reads or writes sessions holds up to three buffers of at most
+ * {@link #MAX_RETAINED_SIZE} each for as long as it lives, so at worst 192 KB per thread, or
+ * about 40 MB for a pool of 200 threads. Larger sessions still go through the buffers, but pay
+ * for growing them again each time.
+ */
+class ReusableBuffer extends ByteArrayOutputStream {
+    private static final int INITIAL_SIZE = 4096;
+    static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    /**
+     * Holds serialized sessions and attributes before compression.
+     */
+    static final ThreadLocal<ReusableBuffer> SERIALIZED = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    /**
+     * Holds compressed sessions and attributes.
+     */
+    static final ThreadLocal<ReusableBuffer> COMPRESSED = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    /**
+     * Holds decompressed sessions and attributes while they are deserialized.
+     */
+    static final ThreadLocal<ReusableBuffer> DECOMPRESSED = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    private ReusableBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @param local the thread local holding the buffer
+     * @return the empty buffer of the current thread
+     */
+    static ReusableBuffer get(ThreadLocal<ReusableBuffer> local) {
+        ReusableBuffer buffer = local.get();
+        if (buffer.buf.length > MAX_RETAINED_SIZE) {
+            buffer.buf = new byte[INITIAL_SIZE];
+        }
+        buffer.count = 0;
+        return buffer;
+    }
+
+    /**
+     * @return the internal array, valid up to {@link #size()}, without copying it
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @param size the number of bytes to keep, at most {@link #size()}
+     */
+    void truncate(int size) {
+        count = size;
+    }
+
+    /**
+     * @return a stream over the content of the buffer, without copying it
+     */
+    ByteArrayInputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
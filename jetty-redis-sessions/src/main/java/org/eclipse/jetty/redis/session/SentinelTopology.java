@@ -0,0 +1,264 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
+
+/**
+ * SentinelTopology
+ *
+ * All keys are served by the primary of a sentinel monitored master, which is followed
+ * through failovers. Reads may be spread over the replicas of the master, which are
+ * discovered from the sentinels and rediscovered periodically.
+ */
+class SentinelTopology implements RedisTopology {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+    private static final Object ROUTE = "sentinel";
+
+    private final JedisSentinelPool _pool;
+    private final String _masterName;
+    private final Set<HostAndPort> _sentinels;
+    private final GenericObjectPoolConfig _poolConfig;
+    private final int _connectionTimeout;
+    private final int _soTimeout;
+    private final String _password;
+    private final int _database;
+    private final String _clientName;
+    private final boolean _replicaReads;
+    private final long _replicaRefreshMs;
+    private final SessionMetrics _metrics;
+    private final AtomicInteger _next = new AtomicInteger();
+    private volatile Map<HostAndPort, JedisPool> _replicas = Collections.emptyMap();
+    private volatile List<JedisPool> _readPools = Collections.emptyList();
+    private volatile long _replicasRefreshed;
+    private boolean _closed;
+
+    /**
+     * @param masterName the name of the master monitored by the sentinels
+     * @param sentinels the sentinels
+     * @param poolConfig the configuration of the primary pool and of each replica pool
+     * @param connectionTimeout the connection timeout in ms
+     * @param soTimeout the socket timeout in ms
+     * @param password the redis password or null
+     * @param database the redis database
+     * @param clientName the client name or null
+     * @param replicaReads true to send reads to the replicas
+     * @param replicaRefreshMs how often the replicas are rediscovered from the sentinels
+     * @param metrics the metrics to record connection waits and command times in
+     */
+    SentinelTopology(String masterName, Set<HostAndPort> sentinels, GenericObjectPoolConfig poolConfig,
+                     int connectionTimeout, int soTimeout, String password, int database, String clientName,
+                     boolean replicaReads, long replicaRefreshMs, SessionMetrics metrics) {
+        Set<String> addresses = new LinkedHashSet<>();
+        for (HostAndPort sentinel : sentinels) {
+            addresses.add(sentinel.toString());
+        }
+        _pool = new JedisSentinelPool(masterName, addresses, poolConfig, connectionTimeout, soTimeout, password,
+                database, clientName);
+        _masterName = masterName;
+        _sentinels = sentinels;
+        _poolConfig = poolConfig;
+        _connectionTimeout = connectionTimeout;
+        _soTimeout = soTimeout;
+        _password = password;
+        _database = database;
+        _clientName = clientName;
+        _replicaReads = replicaReads;
+        _replicaRefreshMs = replicaRefreshMs;
+        _metrics = metrics;
+    }
+
+    /**
+     * @return the address of the current primary
+     */
+    HostAndPort getPrimary() {
+        return _pool.getCurrentHostMaster();
+    }
+
+    /**
+     * @return the addresses of the replicas that reads are sent to
+     */
+    Set<HostAndPort> getReplicas() {
+        return _replicas.keySet();
+    }
+
+    @Override
+    public <T> T execute(byte[] key, Command<T> command) throws Exception {
+        return run(_pool, command);
+    }
+
+    private <T> T run(Pool<Jedis> pool, Command<T> command) throws Exception {
+        long start = System.nanoTime();
+        try (Jedis jedis = pool.getResource()) {
+            long borrowed = System.nanoTime();
+            _metrics.borrowed(borrowed - start);
+            try {
+                return command.run(jedis);
+            } finally {
+                _metrics.network(System.nanoTime() - borrowed);
+            }
+        }
+    }
+
+    /**
+     * Runs the commands on the next replica in turn, or on the primary if there is no
+     * replica or the replica cannot be reached.
+     */
+    @Override
+    public <T> T executeRead(byte[] key, Command<T> command) throws Exception {
+        if (!_replicaReads) {
+            return execute(key, command);
+        }
+        if (System.currentTimeMillis() - _replicasRefreshed > _replicaRefreshMs) {
+            refreshReplicas();
+        }
+        List<JedisPool> pools = _readPools;
+        if (!pools.isEmpty()) {
+            JedisPool pool = pools.get((_next.getAndIncrement() & Integer.MAX_VALUE) % pools.size());
+            try {
+                return run(pool, command);
+            } catch (JedisException e) {
+                LOG.debug("Replica read failed, reading from the primary", e);
+                _replicasRefreshed = 0;
+            }
+        }
+        return execute(key, command);
+    }
+
+    /**
+     * Asks the sentinels for the replicas of the master that are up and in sync, opening pools
+     * to new replicas and closing the pools of replicas that are gone.
+     */
+    private synchronized void refreshReplicas() {
+        if (_closed || System.currentTimeMillis() - _replicasRefreshed <= _replicaRefreshMs) {
+            return;
+        }
+        _replicasRefreshed = System.currentTimeMillis();
+        Set<HostAndPort> found = null;
+        for (HostAndPort sentinel : _sentinels) {
+            try (Jedis jedis = new Jedis(sentinel.getHost(), sentinel.getPort(), _connectionTimeout, _soTimeout)) {
+                found = new LinkedHashSet<>();
+                for (Map<String, String> replica : jedis.sentinelSlaves(_masterName)) {
+                    String flags = replica.get("flags");
+                    if (flags == null || flags.contains("down") || flags.contains("disconnected")
+                            || !"ok".equals(replica.get("master-link-status"))) {
+                        continue;
+                    }
+                    found.add(new HostAndPort(replica.get("ip"), Integer.parseInt(replica.get("port"))));
+                }
+                break;
+            } catch (JedisException | NumberFormatException e) {
+                LOG.debug("Cannot list replicas from sentinel " + sentinel, e);
+                found = null;
+            }
+        }
+        if (found == null) {
+            LOG.warn("No sentinel could list the replicas of {}, keeping {}", _masterName, _replicas.keySet());
+            return;
+        }
+        Map<HostAndPort, JedisPool> replicas = new HashMap<>();
+        for (HostAndPort address : found) {
+            JedisPool pool = _replicas.get(address);
+            if (pool == null) {
+                pool = new JedisPool(_poolConfig, address.getHost(), address.getPort(), _connectionTimeout,
+                        _soTimeout, _password, _database, _clientName);
+            }
+            replicas.put(address, pool);
+        }
+        for (Map.Entry<HostAndPort, JedisPool> e : _replicas.entrySet()) {
+            if (!replicas.containsKey(e.getKey())) {
+                e.getValue().close();
+            }
+        }
+        _replicas = replicas;
+        _readPools = new ArrayList<>(replicas.values());
+    }
+
+    @Override
+    public Object route(byte[] key) {
+        return ROUTE;
+    }
+
+    @Override
+    public Collection<? extends Pool<Jedis>> getPrimaryPools() {
+        return Collections.singletonList(_pool);
+    }
+
+    @Override
+    public Collection<? extends Pool<Jedis>> getPools() {
+        List<Pool<Jedis>> pools = new ArrayList<>();
+        pools.add(_pool);
+        pools.addAll(_readPools);
+        return pools;
+    }
+
+    @Override
+    public int getNumActive() {
+        int active = _pool.getNumActive();
+        for (JedisPool pool : _readPools) {
+            active += pool.getNumActive();
+        }
+        return active;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int idle = _pool.getNumIdle();
+        for (JedisPool pool : _readPools) {
+            idle += pool.getNumIdle();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getNumWaiters() {
+        int waiters = _pool.getNumWaiters();
+        for (JedisPool pool : _readPools) {
+            waiters += pool.getNumWaiters();
+        }
+        return waiters;
+    }
+
+    @Override
+    public synchronized void close() {
+        _closed = true;
+        _pool.close();
+        for (JedisPool pool : _replicas.values()) {
+            pool.close();
+        }
+        _replicas = Collections.emptyMap();
+        _readPools = Collections.emptyList();
+    }
+}
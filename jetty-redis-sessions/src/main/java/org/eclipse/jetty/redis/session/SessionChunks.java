@@ -0,0 +1,270 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SessionChunks
+ *
+ * The layout of sessions stored in chunks. The key of such a session holds a manifest: the header
+ * of a value, with {@link #CHUNKED_FLAG} set in its flags, followed by the number of chunks and
+ * the generation of the chunks. Each chunk is stored under the key of the session suffixed with
+ * the generation and the index of the chunk, and holds a two byte header, whose second byte is the
+ * id of the compressor of the chunk, followed by a part of the serialized attributes. Every store
+ * writes a new generation of chunks before it replaces the manifest, so a reader never mixes the
+ * chunks of two stores.
+ */
+final class SessionChunks {
+    /**
+     * The flag of the header of a value that is a manifest.
+     */
+    static final int CHUNKED_FLAG = 0x10;
+    static final int CHUNK_HEADER_LENGTH = 2;
+    static final int MANIFEST_LENGTH = RedisSessionDataMap.VALUE_HEADER_LENGTH + Integer.BYTES + Long.BYTES;
+
+    /**
+     * Receives the chunks of a session as they are serialized.
+     */
+    interface Sink {
+        /**
+         * @param index the index of the chunk
+         * @param bytes holds the chunk, starting with {@link #CHUNK_HEADER_LENGTH} zero bytes; it is
+         * reused for the next chunk once this method returns
+         * @param offset the offset of the chunk
+         * @param length the length of the chunk, header included
+         * @throws IOException if the chunk cannot be stored
+         */
+        void chunk(int index, byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Reads the payload of a chunk.
+     */
+    interface Payload {
+        /**
+         * @param chunk a chunk
+         * @return its payload, decompressed, which only needs to be valid until the next chunk is read
+         * @throws IOException if the payload cannot be decompressed
+         */
+        InputStream of(byte[] chunk) throws IOException;
+    }
+
+    private SessionChunks() {
+    }
+
+    /**
+     * @param value a stored value, or the start of one
+     * @return true if the value is a manifest
+     */
+    static boolean isManifest(byte[] value) {
+        return value != null && value.length >= MANIFEST_LENGTH && RedisSessionDataMap.hasHeader(value[0])
+                && (value[1] & CHUNKED_FLAG) != 0;
+    }
+
+    /**
+     * @param header the header of the value of the session
+     * @param chunks the number of chunks
+     * @param generation the generation of the chunks
+     * @return the manifest
+     */
+    static byte[] manifest(byte[] header, int chunks, long generation) {
+        ByteBuffer manifest = ByteBuffer.allocate(MANIFEST_LENGTH);
+        manifest.put(header, 0, RedisSessionDataMap.VALUE_HEADER_LENGTH).putInt(chunks).putLong(generation);
+        manifest.array()[1] = (byte) CHUNKED_FLAG;
+        return manifest.array();
+    }
+
+    static int chunks(byte[] manifest) {
+        return ByteBuffer.wrap(manifest).getInt(RedisSessionDataMap.VALUE_HEADER_LENGTH);
+    }
+
+    static long generation(byte[] manifest) {
+        return ByteBuffer.wrap(manifest).getLong(RedisSessionDataMap.VALUE_HEADER_LENGTH + Integer.BYTES);
+    }
+
+    /**
+     * @param key the key of a session
+     * @param generation the generation of its chunks
+     * @param index the index of a chunk
+     * @return the key of the chunk, which is served by the same node as the key of the session
+     */
+    static byte[] key(byte[] key, long generation, int index) {
+        byte[] suffix = (":" + Long.toHexString(generation) + ":" + index).getBytes(StandardCharsets.UTF_8);
+        byte[] chunk = Arrays.copyOf(key, key.length + suffix.length);
+        System.arraycopy(suffix, 0, chunk, key.length, suffix.length);
+        return chunk;
+    }
+
+    /**
+     * @param key the key of a session
+     * @param manifest its manifest
+     * @return the keys of its chunks, in order
+     */
+    static List<byte[]> keys(byte[] key, byte[] manifest) {
+        int chunks = chunks(manifest);
+        long generation = generation(manifest);
+        List<byte[]> keys = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            keys.add(key(key, generation, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Serialized attributes, written after the header of a value. The bytes are kept in the buffer
+     * of the value for as long as they fit in a chunk; once they outgrow it they are handed to the
+     * {@link Sink} a chunk at a time, and the buffer is reused for the next chunk.
+     */
+    static final class Output extends OutputStream {
+        private final ReusableBuffer _buffer;
+        private final int _chunkSize;
+        private final Sink _sink;
+        private int _headerLength;
+        private byte[] _header;
+        private int _chunks;
+
+        /**
+         * @param buffer the buffer holding the header of the value
+         * @param chunkSize the number of serialized bytes in a chunk
+         * @param sink receives the chunks
+         */
+        Output(ReusableBuffer buffer, int chunkSize, Sink sink) {
+            _buffer = buffer;
+            _headerLength = buffer.size();
+            _chunkSize = chunkSize;
+            _sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_buffer.size() == _headerLength + _chunkSize) {
+                spill();
+            }
+            _buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_buffer.size() == _headerLength + _chunkSize) {
+                    spill();
+                }
+                int n = Math.min(len, _headerLength + _chunkSize - _buffer.size());
+                _buffer.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Hands the full buffer to the sink as a chunk. The header of the value is set aside for the
+         * manifest first, as its last bytes are overwritten by the header of the first chunk.
+         */
+        private void spill() throws IOException {
+            byte[] bytes = _buffer.array();
+            if (_chunks == 0) {
+                _header = Arrays.copyOf(bytes, _headerLength);
+            }
+            int offset = _headerLength - CHUNK_HEADER_LENGTH;
+            Arrays.fill(bytes, offset, _headerLength, (byte) 0);
+            _sink.chunk(_chunks++, bytes, offset, _buffer.size() - offset);
+            _buffer.truncate(CHUNK_HEADER_LENGTH);
+            _headerLength = CHUNK_HEADER_LENGTH;
+        }
+
+        /**
+         * @return true if the attributes outgrew a chunk, in which case the last chunk has been
+         * handed to the sink; otherwise the buffer holds the whole value
+         * @throws IOException if the last chunk cannot be stored
+         */
+        boolean finish() throws IOException {
+            if (_chunks == 0) {
+                return false;
+            }
+            spill();
+            return true;
+        }
+
+        /**
+         * @return the header of the value, once the attributes outgrew a chunk
+         */
+        byte[] getHeader() {
+            return _header;
+        }
+
+        int getChunks() {
+            return _chunks;
+        }
+    }
+
+    /**
+     * The serialized attributes of a session, read from its chunks one after the other.
+     */
+    static final class Input extends InputStream {
+        private final Iterator<byte[]> _chunks;
+        private final Payload _payload;
+        private InputStream _in;
+
+        Input(List<byte[]> chunks, Payload payload) {
+            _chunks = chunks.iterator();
+            _payload = payload;
+        }
+
+        /**
+         * @return the payload of the current chunk, or null once all have been read
+         */
+        private InputStream current() throws IOException {
+            while (_in == null || _in.available() == 0) {
+                if (!_chunks.hasNext()) {
+                    return null;
+                }
+                _in = _payload.of(_chunks.next());
+            }
+            return _in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            InputStream in = current();
+            return in == null ? -1 : in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            InputStream in = current();
+            return in == null ? -1 : in.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return _in == null ? 0 : _in.available();
+        }
+    }
+}
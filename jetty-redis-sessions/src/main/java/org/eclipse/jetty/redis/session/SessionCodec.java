@@ -0,0 +1,76 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.eclipse.jetty.server.session.SessionData;
+
+/**
+ * SessionCodec
+ *
+ * Serializes session attributes. Every stored value starts with the format of the codec that
+ * wrote it, so values written by any known codec can be read whichever codec is configured
+ * for writing. Codecs other than the built in ones are found with {@link java.util.ServiceLoader}.
+ *
+ * Codecs are called with the context class loader of the web application.
+ */
+public interface SessionCodec {
+    /**
+     * The highest format a codec may have.
+     */
+    int MAX_FORMAT = 31;
+
+    /**
+     * @return the format recorded in front of the values written by this codec, between 1 and
+     * {@link #MAX_FORMAT}; formats 1, 2 and 3 are taken by {@link JavaSessionCodec},
+     * {@link BinarySessionCodec} and the class dictionary of {@link RedisSessionDataMap#setClassDictionary(boolean)}
+     */
+    int getFormat();
+
+    /**
+     * @param data the session whose attributes to write
+     * @param out the stream to write to
+     * @throws IOException if an attribute cannot be written
+     */
+    void encodeAttributes(SessionData data, OutputStream out) throws IOException;
+
+    /**
+     * @param data the session to add the attributes to
+     * @param in the stream to read from
+     * @throws IOException if the attributes cannot be read
+     * @throws ClassNotFoundException if the class of an attribute is not found
+     */
+    void decodeAttributes(SessionData data, InputStream in) throws IOException, ClassNotFoundException;
+
+    /**
+     * @param value an attribute value
+     * @param out the stream to write to
+     * @throws IOException if the value cannot be written
+     */
+    void encodeAttribute(Object value, OutputStream out) throws IOException;
+
+    /**
+     * @param in the stream to read from
+     * @return the attribute value
+     * @throws IOException if the value cannot be read
+     * @throws ClassNotFoundException if the class of the value is not found
+     */
+    Object decodeAttribute(InputStream in) throws IOException, ClassNotFoundException;
+}
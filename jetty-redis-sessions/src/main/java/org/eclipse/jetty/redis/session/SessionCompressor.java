@@ -0,0 +1,81 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.eclipse.jetty.util.IO;
+
+/**
+ * SessionCompressor
+ *
+ * Compresses serialized sessions. The id of the compressor is recorded in the flags of every
+ * value it compressed, so values are read back with the compressor that wrote them whichever
+ * compressor is configured. Compressors other than the built in ones are found with
+ * {@link java.util.ServiceLoader}, which is how LZ4 or Zstd implementations can be plugged in.
+ */
+public interface SessionCompressor {
+    /**
+     * The highest id a compressor may have.
+     */
+    int MAX_ID = 15;
+
+    /**
+     * @return the id recorded in the flags of the values compressed by this compressor, between 1
+     * and {@link #MAX_ID}; ids 1 and 2 are taken by {@link DeflateCompressor} without and with a
+     * dictionary
+     */
+    int getId();
+
+    /**
+     * @param data the buffer holding the bytes to compress
+     * @param offset the offset of the bytes in the buffer
+     * @param length the number of bytes
+     * @param out the stream to write the compressed bytes to
+     * @throws IOException if the bytes cannot be compressed
+     */
+    void compress(byte[] data, int offset, int length, OutputStream out) throws IOException;
+
+    /**
+     * @param in the compressed bytes
+     * @return the decompressed bytes; closing the stream releases any resources of the compressor
+     * @throws IOException if the bytes cannot be decompressed
+     */
+    InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * @param data the buffer holding the compressed bytes
+     * @param offset the offset of the bytes in the buffer
+     * @param length the number of bytes
+     * @param out the stream to write the decompressed bytes to
+     * @throws IOException if the bytes cannot be decompressed
+     */
+    default void decompress(byte[] data, int offset, int length, OutputStream out) throws IOException {
+        try (InputStream in = decompress(new ByteArrayInputStream(data, offset, length))) {
+            IO.copy(in, out);
+        }
+    }
+
+    /**
+     * Releases the resources held by the compressor, once it is no longer used.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,55 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+/**
+ * SessionConflictException
+ *
+ * Thrown by a versioned store when the session was stored by another node since this node
+ * last read or wrote it, so that storing it would lose the other node's update.
+ */
+public class SessionConflictException extends Exception {
+    private final String _id;
+    private final long _expected;
+    private final long _actual;
+
+    public SessionConflictException(String id, long expected, long actual) {
+        super("Session " + id + " is at version " + actual + ", not " + expected);
+        _id = id;
+        _expected = expected;
+        _actual = actual;
+    }
+
+    public String getId() {
+        return _id;
+    }
+
+    /**
+     * @return the version the store expected the session to be at
+     */
+    public long getExpected() {
+        return _expected;
+    }
+
+    /**
+     * @return the version the session is at
+     */
+    public long getActual() {
+        return _actual;
+    }
+}
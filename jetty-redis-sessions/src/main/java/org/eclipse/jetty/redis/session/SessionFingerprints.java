@@ -0,0 +1,60 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SessionFingerprints
+ *
+ * Remembers, for the most recently used sessions, the fingerprint of the serialized attributes
+ * of each session as they were last read from or written to redis, so that a store of a session
+ * whose attributes serialize to the same bytes only needs to refresh its timestamps and ttl.
+ */
+class SessionFingerprints {
+    private final Map<String, Long> _fingerprints;
+
+    /**
+     * @param maxSessions the number of sessions to remember fingerprints for
+     */
+    SessionFingerprints(final int maxSessions) {
+        _fingerprints = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * Remembers the fingerprint of a session.
+     *
+     * @param id the session id
+     * @param fingerprint the fingerprint of the serialized attributes now stored
+     * @return true if it is the fingerprint last seen for the session
+     */
+    synchronized boolean put(String id, long fingerprint) {
+        Long previous = _fingerprints.put(id, fingerprint);
+        return previous != null && previous == fingerprint;
+    }
+
+    synchronized void remove(String id) {
+        _fingerprints.remove(id);
+    }
+}
@@ -0,0 +1,317 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+/**
+ * SessionMetrics
+ *
+ * Latency distributions, counters and connection pool gauges of a {@link RedisSessionDataMap}.
+ * Recording uses striped counters only, so it is cheap enough to leave on.
+ *
+ * The latency of each operation is broken down into the time spent waiting for a pooled
+ * connection, talking to redis, and serializing or deserializing sessions; the last includes
+ * the time spent compressing or decompressing them, which is also reported on its own.
+ * In a redis cluster the wait for a connection is part of the network time.
+ */
+@ManagedObject("Redis session metrics")
+public class SessionMetrics {
+    private final LatencyHistogram _load = new LatencyHistogram();
+    private final LatencyHistogram _store = new LatencyHistogram();
+    private final LatencyHistogram _delete = new LatencyHistogram();
+    private final LatencyHistogram _borrow = new LatencyHistogram();
+    private final LatencyHistogram _network = new LatencyHistogram();
+    private final LatencyHistogram _serialize = new LatencyHistogram();
+    private final LatencyHistogram _deserialize = new LatencyHistogram();
+    private final LatencyHistogram _compress = new LatencyHistogram();
+    private final LatencyHistogram _decompress = new LatencyHistogram();
+    private final LongAdder _loadHits = new LongAdder();
+    private final LongAdder _loadMisses = new LongAdder();
+    private final LongAdder _loadErrors = new LongAdder();
+    private final LongAdder _storeErrors = new LongAdder();
+    private final LongAdder _touches = new LongAdder();
+    private final LongAdder _writesPerformed = new LongAdder();
+    private final LongAdder _writesSkipped = new LongAdder();
+    private final LongAdder _writesDropped = new LongAdder();
+    private final LongAdder _deleteErrors = new LongAdder();
+    private final LongAdder _bytesRead = new LongAdder();
+    private final LongAdder _bytesWritten = new LongAdder();
+    private final LongAdder _slowCalls = new LongAdder();
+    private final LongAdder _degraded = new LongAdder();
+    private final LongAdder _reaped = new LongAdder();
+    private volatile RedisTopology _topology;
+
+    void setTopology(RedisTopology topology) {
+        _topology = topology;
+    }
+
+    void loaded(long nanos, boolean hit) {
+        _load.record(nanos);
+        (hit ? _loadHits : _loadMisses).increment();
+    }
+
+    void loadFailed() {
+        _loadErrors.increment();
+    }
+
+    void stored(long nanos) {
+        _store.record(nanos);
+    }
+
+    void touched(long nanos) {
+        _store.record(nanos);
+        _touches.increment();
+    }
+
+    void writePerformed() {
+        _writesPerformed.increment();
+    }
+
+    void writeSkipped() {
+        _writesSkipped.increment();
+    }
+
+    void writeDropped() {
+        _writesDropped.increment();
+    }
+
+    void storeFailed() {
+        _storeErrors.increment();
+    }
+
+    void deleted(long nanos) {
+        _delete.record(nanos);
+    }
+
+    void deleteFailed() {
+        _deleteErrors.increment();
+    }
+
+    void slowCall() {
+        _slowCalls.increment();
+    }
+
+    void degraded() {
+        _degraded.increment();
+    }
+
+    void reaped(int sessions) {
+        _reaped.add(sessions);
+    }
+
+    void borrowed(long nanos) {
+        _borrow.record(nanos);
+    }
+
+    void network(long nanos) {
+        _network.record(nanos);
+    }
+
+    void serialized(long nanos, long bytes) {
+        _serialize.record(nanos);
+        _bytesWritten.add(bytes);
+    }
+
+    void deserialized(long nanos, long bytes) {
+        _deserialize.record(nanos);
+        _bytesRead.add(bytes);
+    }
+
+    void compressed(long nanos) {
+        _compress.record(nanos);
+    }
+
+    void decompressed(long nanos) {
+        _decompress.record(nanos);
+    }
+
+    @ManagedAttribute(value = "load latency", readonly = true)
+    public String getLoadLatency() {
+        return _load.toString();
+    }
+
+    @ManagedAttribute(value = "99th percentile of the load latency in us", readonly = true)
+    public long getLoadLatencyP99() {
+        return _load.getPercentile(99);
+    }
+
+    @ManagedAttribute(value = "store latency, including touches", readonly = true)
+    public String getStoreLatency() {
+        return _store.toString();
+    }
+
+    @ManagedAttribute(value = "99th percentile of the store latency in us", readonly = true)
+    public long getStoreLatencyP99() {
+        return _store.getPercentile(99);
+    }
+
+    @ManagedAttribute(value = "delete latency", readonly = true)
+    public String getDeleteLatency() {
+        return _delete.toString();
+    }
+
+    @ManagedAttribute(value = "99th percentile of the delete latency in us", readonly = true)
+    public long getDeleteLatencyP99() {
+        return _delete.getPercentile(99);
+    }
+
+    @ManagedAttribute(value = "time waiting for a pooled connection", readonly = true)
+    public String getBorrowLatency() {
+        return _borrow.toString();
+    }
+
+    @ManagedAttribute(value = "time spent on redis commands, including the network round trips", readonly = true)
+    public String getNetworkLatency() {
+        return _network.toString();
+    }
+
+    @ManagedAttribute(value = "time spent serializing sessions, including compression", readonly = true)
+    public String getSerializeLatency() {
+        return _serialize.toString();
+    }
+
+    @ManagedAttribute(value = "time spent deserializing sessions, including decompression", readonly = true)
+    public String getDeserializeLatency() {
+        return _deserialize.toString();
+    }
+
+    @ManagedAttribute(value = "time spent compressing", readonly = true)
+    public String getCompressLatency() {
+        return _compress.toString();
+    }
+
+    @ManagedAttribute(value = "time spent decompressing", readonly = true)
+    public String getDecompressLatency() {
+        return _decompress.toString();
+    }
+
+    @ManagedAttribute(value = "loads that found the session", readonly = true)
+    public long getLoadHits() {
+        return _loadHits.sum();
+    }
+
+    @ManagedAttribute(value = "loads that did not find the session", readonly = true)
+    public long getLoadMisses() {
+        return _loadMisses.sum();
+    }
+
+    @ManagedAttribute(value = "loads that failed", readonly = true)
+    public long getLoadErrors() {
+        return _loadErrors.sum();
+    }
+
+    @ManagedAttribute(value = "stores", readonly = true)
+    public long getStores() {
+        return _store.getCount();
+    }
+
+    @ManagedAttribute(value = "stores that only updated the timestamps of the session", readonly = true)
+    public long getTouches() {
+        return _touches.sum();
+    }
+
+    @ManagedAttribute(value = "stores that wrote the serialized session", readonly = true)
+    public long getWritesPerformed() {
+        return _writesPerformed.sum();
+    }
+
+    @ManagedAttribute(value = "stores of unchanged sessions that only refreshed their ttl", readonly = true)
+    public long getWritesSkipped() {
+        return _writesSkipped.sum();
+    }
+
+    @ManagedAttribute(value = "write-behind writes dropped without reaching redis", readonly = true)
+    public long getWritesDropped() {
+        return _writesDropped.sum();
+    }
+
+    @ManagedAttribute(value = "stores that failed", readonly = true)
+    public long getStoreErrors() {
+        return _storeErrors.sum();
+    }
+
+    @ManagedAttribute(value = "deletes", readonly = true)
+    public long getDeletes() {
+        return _delete.getCount();
+    }
+
+    @ManagedAttribute(value = "deletes that failed", readonly = true)
+    public long getDeleteErrors() {
+        return _deleteErrors.sum();
+    }
+
+    @ManagedAttribute(value = "serialized bytes read from redis", readonly = true)
+    public long getBytesRead() {
+        return _bytesRead.sum();
+    }
+
+    @ManagedAttribute(value = "serialized bytes written to redis", readonly = true)
+    public long getBytesWritten() {
+        return _bytesWritten.sum();
+    }
+
+    @ManagedAttribute(value = "calls to redis that took longer than their budget", readonly = true)
+    public long getSlowCalls() {
+        return _slowCalls.sum();
+    }
+
+    @ManagedAttribute(value = "loads, stores and deletes done in memory while redis was unavailable", readonly = true)
+    public long getDegraded() {
+        return _degraded.sum();
+    }
+
+    @ManagedAttribute(value = "expired sessions unlinked by the reaper of this node", readonly = true)
+    public long getReaped() {
+        return _reaped.sum();
+    }
+
+    @ManagedAttribute(value = "connections in use", readonly = true)
+    public int getPoolActive() {
+        RedisTopology topology = _topology;
+        return topology == null ? 0 : topology.getNumActive();
+    }
+
+    @ManagedAttribute(value = "idle connections", readonly = true)
+    public int getPoolIdle() {
+        RedisTopology topology = _topology;
+        return topology == null ? 0 : topology.getNumIdle();
+    }
+
+    @ManagedAttribute(value = "threads waiting for a connection", readonly = true)
+    public int getPoolWaiters() {
+        RedisTopology topology = _topology;
+        return topology == null ? 0 : topology.getNumWaiters();
+    }
+
+    @ManagedOperation(value = "reset the latencies and counters", impact = "ACTION")
+    public void reset() {
+        for (LatencyHistogram histogram : new LatencyHistogram[]{_load, _store, _delete, _borrow, _network,
+                _serialize, _deserialize, _compress, _decompress}) {
+            histogram.reset();
+        }
+        for (LongAdder counter : new LongAdder[]{_loadHits, _loadMisses, _loadErrors, _storeErrors, _touches,
+                _deleteErrors, _bytesRead, _bytesWritten, _slowCalls, _degraded, _writesPerformed, _writesSkipped,
+                _writesDropped, _reaped}) {
+            counter.reset();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
+
+/**
+ * SessionReaper
+ *
+ * Periodically walks the keys under the key prefix with SCAN on every primary node, reads the
+ * timestamps of each session, and unlinks the sessions that have not been accessed for longer
+ * than their max inactive interval plus a grace period, together with their chunks. This removes
+ * the sessions that jetty will never expire, such as those last managed by a node that crashed,
+ * when keys are not given a ttl. Sessions that never become inactive are kept.
+ *
+ * The nodes sharing a session store take turns: a node only sweeps while it holds a lock key,
+ * which it renews as it goes, and which it leaves to expire one interval after its sweep ends,
+ * so that the keyspace is swept about once per interval whatever the number of nodes. Each
+ * sweep sends at most a configured number of commands per second.
+ */
+class SessionReaper implements Runnable {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+    /**
+     * Appended to the key prefix to name the lock held by the sweeping node.
+     */
+    static final String LOCK_KEY = "#reaper";
+    private static final long LOCK_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final byte[] SCAN_START = {'0'};
+
+    /**
+     * Unlinks a session (KEYS[1]) and its chunks (the other KEYS) provided that the start of its
+     * value, or the metadata field of its hash if ARGV[2] is 1, is still ARGV[1]. Returns 1 if
+     * the session was unlinked.
+     */
+    static final RedisScript REAP = new RedisScript(
+            "local current " +
+            "if ARGV[2] == '1' then current = redis.call('HGET', KEYS[1], '" + RedisSessionDataMap.META_FIELD + "') " +
+            "else current = redis.call('GETRANGE', KEYS[1], 0, string.len(ARGV[1]) - 1) end " +
+            "if current ~= ARGV[1] then return 0 end " +
+            "redis.call('UNLINK', unpack(KEYS)) " +
+            "return 1");
+
+    /**
+     * Sets the ttl of the lock (KEYS[1]) to ARGV[2] ms provided that it is held by ARGV[1].
+     */
+    static final RedisScript RENEW = new RedisScript(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "return redis.call('PEXPIRE', KEYS[1], ARGV[2])");
+
+    /**
+     * Deletes the lock (KEYS[1]) provided that it is held by ARGV[1].
+     */
+    static final RedisScript RELEASE = new RedisScript(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "return redis.call('DEL', KEYS[1])");
+
+    /**
+     * The sessions under the key prefix.
+     */
+    interface Keyspace {
+        /**
+         * @param key a key under the key prefix
+         * @return the id of the session stored under the key, or null if the key cannot be that of a session
+         */
+        String id(byte[] key);
+
+        /**
+         * Called once sessions have been unlinked.
+         *
+         * @param ids the ids of the sessions
+         * @throws Exception if the sessions cannot be removed from the indexes that refer to them
+         */
+        void reaped(List<String> ids) throws Exception;
+    }
+
+    private final RedisTopology _topology;
+    private final Keyspace _keyspace;
+    private final byte[] _pattern;
+    private final byte[] _lockKey;
+    private final byte[] _owner;
+    private final boolean _hashLayout;
+    private final long _intervalMs;
+    private final int _opsPerSec;
+    private final int _batchSize;
+    private final long _graceMs;
+    private final SessionMetrics _metrics;
+    private volatile boolean _running;
+    private Thread _thread;
+    private long _sweepStart;
+    private long _sweepOps;
+    private long _renewed;
+
+    /**
+     * @param topology the topology whose primary nodes are swept
+     * @param keyspace the sessions under the key prefix
+     * @param keyPrefix the key prefix, which must not be empty
+     * @param owner the value of the lock while this node holds it, unique to this node
+     * @param hashLayout true if sessions are stored as hashes
+     * @param intervalMs the time between sweeps
+     * @param opsPerSec the maximum number of commands sent per second while sweeping
+     * @param batchSize the number of keys asked of each SCAN, whose sessions are read in one pipeline
+     * @param graceMs the time a session is kept after it has expired, during which jetty can expire it
+     * @param metrics counts the sessions reaped
+     */
+    SessionReaper(RedisTopology topology, Keyspace keyspace, String keyPrefix, String owner, boolean hashLayout,
+                  long intervalMs, int opsPerSec, int batchSize, long graceMs, SessionMetrics metrics) {
+        _topology = topology;
+        _keyspace = keyspace;
+        _pattern = (escape(keyPrefix) + "*").getBytes(StandardCharsets.UTF_8);
+        _lockKey = (keyPrefix + LOCK_KEY).getBytes(StandardCharsets.UTF_8);
+        _owner = owner.getBytes(StandardCharsets.UTF_8);
+        _hashLayout = hashLayout;
+        _intervalMs = intervalMs;
+        _opsPerSec = opsPerSec;
+        _batchSize = batchSize;
+        _graceMs = graceMs;
+        _metrics = metrics;
+    }
+
+    /**
+     * @param prefix a key prefix
+     * @return a SCAN pattern that matches the prefix literally
+     */
+    static String escape(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 4);
+        for (char c : prefix.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        return pattern.toString();
+    }
+
+    synchronized void start(String name) {
+        _running = true;
+        _thread = new Thread(this, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (_running) {
+            try {
+                //spread the nodes out so that they do not all race for the lock
+                Thread.sleep(_intervalMs + ThreadLocalRandom.current().nextLong(_intervalMs / 10 + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean locked = false;
+            try {
+                locked = lock();
+                if (locked) {
+                    long reaped = sweep();
+                    LOG.debug("Reaped {} sessions in {} ms", reaped,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _sweepStart));
+                    //leave the lock to expire, so that no node sweeps again until the next interval
+                    renew(_intervalMs);
+                    locked = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (_running) {
+                    LOG.warn("Unable to reap expired sessions", e);
+                }
+            } finally {
+                if (locked) {
+                    release();
+                }
+            }
+        }
+    }
+
+    private boolean lock() throws Exception {
+        String reply = _topology.execute(_lockKey, jedis -> jedis.set(_lockKey, _owner,
+                "NX".getBytes(StandardCharsets.US_ASCII), "PX".getBytes(StandardCharsets.US_ASCII), LOCK_MS));
+        _renewed = System.nanoTime();
+        return "OK".equals(reply);
+    }
+
+    private boolean renew(long ttlMs) throws Exception {
+        Object renewed = _topology.execute(_lockKey, jedis -> RENEW.eval(jedis, Collections.singletonList(_lockKey),
+                Arrays.asList(_owner, Long.toString(ttlMs).getBytes(StandardCharsets.US_ASCII))));
+        _renewed = System.nanoTime();
+        return Long.valueOf(1).equals(renewed);
+    }
+
+    private void release() {
+        try {
+            _topology.execute(_lockKey, jedis -> RELEASE.eval(jedis, Collections.singletonList(_lockKey),
+                    Collections.singletonList(_owner)));
+        } catch (Exception e) {
+            LOG.ignore(e);
+        }
+    }
+
+    /**
+     * @return the number of sessions reaped
+     * @throws Exception if a node cannot be swept
+     * @throws InterruptedException if stopped while sweeping
+     */
+    private long sweep() throws Exception {
+        _sweepStart = System.nanoTime();
+        _sweepOps = 0;
+        long reaped = 0;
+        ScanParams params = new ScanParams().match(_pattern).count(_batchSize);
+        for (Pool<Jedis> pool : _topology.getPrimaryPools()) {
+            byte[] cursor = SCAN_START;
+            do {
+                if (!_running) {
+                    throw new InterruptedException();
+                }
+                List<String> ids;
+                try (Jedis jedis = pool.getResource()) {
+                    ScanResult<byte[]> page = jedis.scan(cursor, params);
+                    cursor = page.getCursorAsBytes();
+                    ids = reap(jedis, page.getResult());
+                }
+                if (!ids.isEmpty()) {
+                    _keyspace.reaped(ids);
+                    _metrics.reaped(ids.size());
+                    reaped += ids.size();
+                }
+                if (System.nanoTime() - _renewed > TimeUnit.MILLISECONDS.toNanos(LOCK_MS / 3) && !renew(LOCK_MS)) {
+                    LOG.debug("Lost the reaper lock, another node is sweeping");
+                    return reaped;
+                }
+            } while (!Arrays.equals(cursor, SCAN_START));
+        }
+        return reaped;
+    }
+
+    /**
+     * Reads the timestamps of the sessions found by a SCAN, and unlinks those that have expired,
+     * on the node that was scanned.
+     *
+     * @param jedis the connection to the node
+     * @param keys the keys found by the SCAN
+     * @return the ids of the sessions unlinked
+     * @throws InterruptedException if stopped while waiting to send more commands
+     */
+    private List<String> reap(Jedis jedis, List<byte[]> keys) throws InterruptedException {
+        List<byte[]> candidates = new ArrayList<>(keys.size());
+        List<String> ids = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            String id = _keyspace.id(key);
+            if (id != null) {
+                candidates.add(key);
+                ids.add(id);
+            }
+        }
+        throttle(1 + candidates.size());
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<byte[]>> headers = new ArrayList<>(candidates.size());
+        for (byte[] key : candidates) {
+            headers.add(_hashLayout
+                    ? pipeline.hget(key, RedisSessionDataMap.META_FIELD_BYTES)
+                    : pipeline.getrange(key, 0, SessionChunks.MANIFEST_LENGTH - 1));
+        }
+        pipeline.sync();
+
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<>();
+        List<Response<Object>> unlinked = new ArrayList<>();
+        pipeline = jedis.pipelined();
+        for (int i = 0; i < candidates.size(); i++) {
+            byte[] header;
+            try {
+                header = headers.get(i).get();
+            } catch (JedisDataException e) {
+                //not a session, such as an index
+                continue;
+            }
+            if (!isExpired(header, now)) {
+                continue;
+            }
+            List<byte[]> reaped = new ArrayList<>();
+            reaped.add(candidates.get(i));
+            if (!_hashLayout && SessionChunks.isManifest(header)) {
+                reaped.addAll(SessionChunks.keys(candidates.get(i), header));
+            }
+            expired.add(ids.get(i));
+            unlinked.add(pipeline.eval(REAP.getScript(), reaped,
+                    Arrays.asList(header, _hashLayout ? new byte[]{'1'} : new byte[]{'0'})));
+        }
+        if (expired.isEmpty()) {
+            return Collections.emptyList();
+        }
+        throttle(expired.size());
+        pipeline.sync();
+
+        List<String> reaped = new ArrayList<>(expired.size());
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                if (Long.valueOf(1).equals(unlinked.get(i).get())) {
+                    reaped.add(expired.get(i));
+                }
+            } catch (JedisDataException e) {
+                LOG.debug("Unable to reap session {}: {}", expired.get(i), e.toString());
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * @param header the start of the value of a session, or the metadata field of its hash
+     * @param now the current time
+     * @return true if the session has been inactive for longer than its max inactive interval and the grace period
+     */
+    private boolean isExpired(byte[] header, long now) {
+        ByteBuffer timestamps;
+        if (_hashLayout) {
+            if (header == null || header.length < RedisSessionDataMap.META_LENGTH) {
+                return false;
+            }
+            timestamps = ByteBuffer.wrap(header, 0, RedisSessionDataMap.TIMESTAMPS_LENGTH);
+        } else {
+            if (header == null || header.length < RedisSessionDataMap.VALUE_HEADER_LENGTH
+                    || !RedisSessionDataMap.hasHeader(header[0])) {
+                return false;
+            }
+            timestamps = ByteBuffer.wrap(header, RedisSessionDataMap.TIMESTAMPS_OFFSET,
+                    RedisSessionDataMap.TIMESTAMPS_LENGTH);
+        }
+        timestamps.getLong(); //created
+        long accessed = timestamps.getLong();
+        timestamps.getLong(); //last accessed
+        long maxInactiveMs = timestamps.getLong();
+        return maxInactiveMs > 0 && accessed + maxInactiveMs + _graceMs < now;
+    }
+
+    /**
+     * Waits as long as needed for the commands about to be sent to keep the sweep under its
+     * rate of commands per second.
+     *
+     * @param ops the number of commands about to be sent
+     * @throws InterruptedException if stopped while waiting
+     */
+    private void throttle(int ops) throws InterruptedException {
+        _sweepOps += ops;
+        long due = _sweepStart + TimeUnit.SECONDS.toNanos(1) * _sweepOps / _opsPerSec;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SessionVersions
+ *
+ * Remembers, for the most recently used sessions, the version of each session as it was
+ * last read from or written to redis, which a versioned store expects to still be current.
+ */
+class SessionVersions {
+    private final Map<String, Long> _versions;
+
+    /**
+     * @param maxSessions the number of sessions to remember versions for
+     */
+    SessionVersions(final int maxSessions) {
+        _versions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * @param id the session id
+     * @return the version last seen for the session, or 0 if not known, which a versioned
+     * store takes to mean that the session is not yet stored
+     */
+    synchronized long get(String id) {
+        Long version = _versions.get(id);
+        return version == null ? 0 : version;
+    }
+
+    synchronized void put(String id, long version) {
+        _versions.put(id, version);
+    }
+
+    synchronized void remove(String id) {
+        _versions.remove(id);
+    }
+}
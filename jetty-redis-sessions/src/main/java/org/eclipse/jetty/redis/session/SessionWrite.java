@@ -0,0 +1,207 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jetty.server.session.SessionData;
+
+/**
+ * SessionWrite
+ *
+ * A change to the stored form of one session, already serialized so that it can be sent to
+ * redis from any thread. Writes to the same session can be merged so that only the latest
+ * state is sent.
+ */
+class SessionWrite {
+    enum Type {
+        VALUE, //replace the single serialized value
+        HASH, //update the fields of a hash
+        TOUCH, //update only the timestamps and expiry
+        DELETE
+    }
+
+    private final String _id;
+    private final Type _type;
+    private final long _expiry;
+    private byte[] _value; //VALUE: the complete value including its header
+    private byte[] _timestamps; //HASH, TOUCH: the session timestamps
+    private Map<String, byte[]> _attributes; //HASH: serialized form of every attribute
+    private Set<String> _changed; //HASH: attributes to write
+    private Set<String> _removed; //HASH: attributes to delete
+    private boolean _replace; //HASH: replace the whole hash rather than update it
+    private int _attributeCount; //TOUCH: the number of attributes of the session
+    private SessionData _session; //TOUCH: the session, to store in full if redis no longer holds it
+    private int _attempts;
+
+    private SessionWrite(String id, Type type, long expiry) {
+        _id = id;
+        _type = type;
+        _expiry = expiry;
+    }
+
+    static SessionWrite value(String id, byte[] value, long expiry) {
+        SessionWrite write = new SessionWrite(id, Type.VALUE, expiry);
+        write._value = value;
+        return write;
+    }
+
+    static SessionWrite hash(String id, byte[] timestamps, long expiry, Map<String, byte[]> attributes,
+                             Set<String> changed, Set<String> removed, boolean replace) {
+        SessionWrite write = new SessionWrite(id, Type.HASH, expiry);
+        write._timestamps = timestamps;
+        write._attributes = attributes;
+        write._changed = changed;
+        write._removed = removed;
+        write._replace = replace;
+        return write;
+    }
+
+    static SessionWrite touch(String id, byte[] timestamps, int attributeCount, long expiry, SessionData session) {
+        SessionWrite write = new SessionWrite(id, Type.TOUCH, expiry);
+        write._timestamps = timestamps;
+        write._attributeCount = attributeCount;
+        write._session = session;
+        return write;
+    }
+
+    static SessionWrite delete(String id) {
+        return new SessionWrite(id, Type.DELETE, 0);
+    }
+
+    String getId() {
+        return _id;
+    }
+
+    Type getType() {
+        return _type;
+    }
+
+    long getExpiry() {
+        return _expiry;
+    }
+
+    byte[] getValue() {
+        return _value;
+    }
+
+    byte[] getTimestamps() {
+        return _timestamps;
+    }
+
+    Map<String, byte[]> getAttributes() {
+        return _attributes;
+    }
+
+    Set<String> getChanged() {
+        return _changed;
+    }
+
+    Set<String> getRemoved() {
+        return _removed;
+    }
+
+    boolean isReplace() {
+        return _replace;
+    }
+
+    /**
+     * @return the session touched, or null if this is not a touch
+     */
+    SessionData getSession() {
+        return _session;
+    }
+
+    int getAttributeCount() {
+        return _type == Type.HASH ? _attributes.size() : _attributeCount;
+    }
+
+    /**
+     * @return the serialized size of the session written, or -1 if the write does not carry the session
+     */
+    long getSize() {
+        switch (_type) {
+            case VALUE:
+                return _value.length;
+            case HASH:
+                long size = _timestamps.length;
+                for (byte[] attribute : _attributes.values()) {
+                    size += attribute.length;
+                }
+                return size;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the number of times this write has been attempted
+     */
+    int attempted() {
+        return ++_attempts;
+    }
+
+    /**
+     * @param newer a write to the same session made after this one
+     * @return a single write with the combined effect of this write followed by the newer one
+     */
+    SessionWrite merge(SessionWrite newer) {
+        switch (newer._type) {
+            case TOUCH:
+                if (_type == Type.VALUE) {
+                    byte[] value = _value.clone();
+                    if (RedisSessionDataMap.hasHeader(value[0])) {
+                        System.arraycopy(newer._timestamps, 0, value, RedisSessionDataMap.TIMESTAMPS_OFFSET,
+                                RedisSessionDataMap.TIMESTAMPS_LENGTH);
+                    }
+                    return value(_id, value, newer._expiry);
+                }
+                if (_type == Type.HASH) {
+                    return hash(_id, newer._timestamps, newer._expiry, _attributes, _changed, _removed, _replace);
+                }
+                if (_type == Type.DELETE) {
+                    return this;
+                }
+                return newer;
+            case HASH:
+                if (_type == Type.HASH && !newer._replace) {
+                    Set<String> changed = new HashSet<>(_changed);
+                    changed.addAll(newer._changed);
+                    changed.retainAll(newer._attributes.keySet());
+                    Set<String> removed = new HashSet<>(_removed);
+                    removed.addAll(newer._removed);
+                    removed.removeAll(newer._attributes.keySet());
+                    return hash(_id, newer._timestamps, newer._expiry, newer._attributes, changed, removed, _replace);
+                }
+                if (_type == Type.DELETE) {
+                    return hash(_id, newer._timestamps, newer._expiry, newer._attributes,
+                            newer._attributes.keySet(), Collections.<String>emptySet(), true);
+                }
+                return newer;
+            default:
+                return newer;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s,%s]", getClass().getSimpleName(), _id, _type);
+    }
+}
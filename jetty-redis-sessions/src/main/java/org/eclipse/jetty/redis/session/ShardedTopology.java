@@ -0,0 +1,207 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * ShardedTopology
+ *
+ * Spreads keys over independent redis nodes by consistent hashing. Each node owns many points
+ * on a ring of 64-bit hashes, and a key is served by the owner of the first point at or after
+ * the hash of the key, so that adding or removing one of N nodes only moves about 1/N of the keys.
+ * As in a redis cluster, only the part of a key between the first { and the next } is hashed
+ * when there is one, so that keys sharing that tag are served by the same node.
+ */
+class ShardedTopology implements RedisTopology {
+    private static final int POINTS_PER_NODE = 160;
+
+    private final String[] _names;
+    private final List<Pool<Jedis>> _pools;
+    private final LatencyHistogram[] _latencies;
+    private final long[] _points;
+    private final int[] _owners;
+    private final SessionMetrics _metrics;
+
+    /**
+     * @param pools the pool of each node, by the name it is hashed by, such as its host:port, which
+     *              must not change when other nodes are added or removed
+     * @param metrics the metrics to record command times in
+     */
+    ShardedTopology(Map<String, ? extends Pool<Jedis>> pools, SessionMetrics metrics) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        _names = pools.keySet().toArray(new String[0]);
+        _pools = new ArrayList<>(pools.values());
+        _latencies = new LatencyHistogram[_names.length];
+        _metrics = metrics;
+
+        long[][] ring = new long[_names.length * POINTS_PER_NODE][];
+        for (int node = 0; node < _names.length; node++) {
+            _latencies[node] = new LatencyHistogram();
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                byte[] point = (_names[node] + "#" + i).getBytes(StandardCharsets.UTF_8);
+                ring[node * POINTS_PER_NODE + i] = new long[]{hash(point, 0, point.length), node};
+            }
+        }
+        //points that collide are ordered by node name, so that every node builds the same ring
+        Arrays.sort(ring, (a, b) -> a[0] != b[0]
+                ? Long.compare(a[0], b[0]) : _names[(int) a[1]].compareTo(_names[(int) b[1]]));
+        _points = new long[ring.length];
+        _owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            _points[i] = ring[i][0];
+            _owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * FNV-1a followed by the murmur3 finalizer, which spreads keys that differ only in their last
+     * bytes over the whole ring.
+     */
+    private static long hash(byte[] bytes, int offset, int length) {
+        long h = Fingerprint.of(bytes, offset, length);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @param key the key
+     * @return the index of the node that serves the key
+     */
+    int node(byte[] key) {
+        int offset = 0;
+        int length = key.length;
+        for (int open = 0; open < key.length; open++) {
+            if (key[open] == '{') {
+                for (int close = open + 1; close < key.length; close++) {
+                    if (key[close] == '}') {
+                        if (close > open + 1) {
+                            offset = open + 1;
+                            length = close - offset;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        long hash = hash(key, offset, length);
+        int i = Arrays.binarySearch(_points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return _owners[i == _points.length ? 0 : i];
+    }
+
+    @Override
+    public <T> T execute(byte[] key, Command<T> command) throws Exception {
+        int node = key == null ? 0 : node(key);
+        long start = System.nanoTime();
+        try (Jedis jedis = _pools.get(node).getResource()) {
+            long borrowed = System.nanoTime();
+            _metrics.borrowed(borrowed - start);
+            try {
+                return command.run(jedis);
+            } finally {
+                long elapsed = System.nanoTime() - borrowed;
+                _metrics.network(elapsed);
+                _latencies[node].record(elapsed);
+            }
+        }
+    }
+
+    @Override
+    public void executeOnAll(Command<?> command) throws Exception {
+        for (Pool<Jedis> pool : _pools) {
+            try (Jedis jedis = pool.getResource()) {
+                command.run(jedis);
+            }
+        }
+    }
+
+    @Override
+    public Object route(byte[] key) {
+        return node(key);
+    }
+
+    /**
+     * @return for each node, its name, the latency of the commands it ran and its pool gauges,
+     * to tell hot nodes apart
+     */
+    List<String> getNodeStats() {
+        List<String> stats = new ArrayList<>(_names.length);
+        for (int node = 0; node < _names.length; node++) {
+            Pool<Jedis> pool = _pools.get(node);
+            stats.add(_names[node] + ": " + _latencies[node] + ", active=" + pool.getNumActive() +
+                    ", idle=" + pool.getNumIdle() + ", waiters=" + pool.getNumWaiters());
+        }
+        return stats;
+    }
+
+    @Override
+    public Collection<? extends Pool<Jedis>> getPools() {
+        return _pools;
+    }
+
+    @Override
+    public int getNumActive() {
+        int active = 0;
+        for (Pool<Jedis> pool : _pools) {
+            active += pool.getNumActive();
+        }
+        return active;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int idle = 0;
+        for (Pool<Jedis> pool : _pools) {
+            idle += pool.getNumIdle();
+        }
+        return idle;
+    }
+
+    @Override
+    public int getNumWaiters() {
+        int waiters = 0;
+        for (Pool<Jedis> pool : _pools) {
+            waiters += pool.getNumWaiters();
+        }
+        return waiters;
+    }
+
+    @Override
+    public void close() {
+        for (Pool<Jedis> pool : _pools) {
+            pool.close();
+        }
+    }
+}
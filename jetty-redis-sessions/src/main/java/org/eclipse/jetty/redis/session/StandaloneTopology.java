@@ -0,0 +1,88 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.Collection;
+import java.util.Collections;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * StandaloneTopology
+ *
+ * All keys are served by the redis node behind a single pool.
+ */
+class StandaloneTopology implements RedisTopology {
+    private static final Object ROUTE = "standalone";
+
+    private final Pool<Jedis> _pool;
+    private final SessionMetrics _metrics;
+
+    StandaloneTopology(Pool<Jedis> pool, SessionMetrics metrics) {
+        _pool = pool;
+        _metrics = metrics;
+    }
+
+    Pool<Jedis> getPool() {
+        return _pool;
+    }
+
+    @Override
+    public <T> T execute(byte[] key, Command<T> command) throws Exception {
+        long start = System.nanoTime();
+        try (Jedis jedis = _pool.getResource()) {
+            long borrowed = System.nanoTime();
+            _metrics.borrowed(borrowed - start);
+            try {
+                return command.run(jedis);
+            } finally {
+                _metrics.network(System.nanoTime() - borrowed);
+            }
+        }
+    }
+
+    @Override
+    public Object route(byte[] key) {
+        return ROUTE;
+    }
+
+    @Override
+    public Collection<? extends Pool<Jedis>> getPools() {
+        return Collections.singletonList(_pool);
+    }
+
+    @Override
+    public int getNumActive() {
+        return _pool.getNumActive();
+    }
+
+    @Override
+    public int getNumIdle() {
+        return _pool.getNumIdle();
+    }
+
+    @Override
+    public int getNumWaiters() {
+        return _pool.getNumWaiters();
+    }
+
+    @Override
+    public void close() {
+        _pool.close();
+    }
+}
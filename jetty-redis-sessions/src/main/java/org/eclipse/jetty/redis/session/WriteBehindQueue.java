@@ -0,0 +1,333 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * WriteBehindQueue
+ *
+ * Holds session writes until a flusher thread sends them to redis in pipelined batches.
+ * A batch is sent when it is full or when its oldest write has waited for the flush interval.
+ * There is at most one queued write per session: a newer write is merged into the queued one.
+ * Writes remain visible through {@link #get(String)} until redis has acknowledged them.
+ *
+ * While redis cannot be reached, the writes of a failed batch are queued again, merged with any
+ * newer write, and retried with an exponential backoff. Once redis has been unreachable for
+ * longer than the maximum retry time, the writes of failed batches are dropped instead, until a
+ * batch succeeds again. A write that redis rejects is dropped after a few attempts. Writes that
+ * redis cannot apply, such as touches of sessions it no longer holds, are replaced by the
+ * flusher and queued again. Sessions with writes in flight count against the capacity, so that
+ * queuing writes again never exceeds it. On stop the queue keeps retrying for up to
+ * {@link #STOP_TIMEOUT_MS}, then drops the writes it still holds and fails the stop.
+ */
+class WriteBehindQueue implements Runnable {
+    private static final Logger LOG = Log.getLogger("org.eclipse.jetty.server.session");
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long MAX_BACKOFF_MS = 1000;
+    static final long STOP_TIMEOUT_MS = 5000;
+
+    /**
+     * Sends batches of writes to redis.
+     */
+    interface Flusher {
+        /**
+         * @param writes the writes to send
+         * @return writes to queue in place of writes that redis could not apply
+         * @throws Exception if the writes could not be sent
+         */
+        List<SessionWrite> flush(List<SessionWrite> writes) throws Exception;
+
+        /**
+         * Called for a write that could not be written to redis and has been dropped.
+         */
+        void discard(SessionWrite write);
+    }
+
+    private final Flusher _flusher;
+    private final int _capacity;
+    private final int _batchSize;
+    private final long _flushIntervalNanos;
+    private final long _maxWaitNanos;
+    private final long _maxRetryNanos;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    private final LinkedHashMap<String, SessionWrite> _pending = new LinkedHashMap<>();
+    private final Map<String, SessionWrite> _inFlight = new HashMap<>();
+    private long _oldestPending;
+    private long _retryAt;
+    private int _failures;
+    private long _failingSince;
+    private long _stoppedAt;
+    private int _lost;
+    private boolean _running;
+    private Thread _thread;
+
+    /**
+     * @param flusher sends batches of writes to redis
+     * @param capacity the maximum number of sessions with queued writes
+     * @param batchSize the maximum number of writes sent in one pipeline
+     * @param flushIntervalMs the longest time a write waits for its batch to fill
+     * @param maxWaitMs the longest time a writer waits for space in a full queue
+     * @param maxRetryMs the longest time writes are retried while redis cannot be reached
+     */
+    WriteBehindQueue(Flusher flusher, int capacity, int batchSize, long flushIntervalMs, long maxWaitMs,
+                     long maxRetryMs) {
+        _flusher = flusher;
+        _capacity = capacity;
+        _batchSize = batchSize;
+        _flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        _maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        _maxRetryNanos = TimeUnit.MILLISECONDS.toNanos(maxRetryMs);
+    }
+
+    void start(String name) {
+        _lock.lock();
+        try {
+            _running = true;
+            _thread = new Thread(this, name);
+            _thread.setDaemon(true);
+            _thread.start();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits for the queued ones to be flushed.
+     *
+     * @throws IOException if writes could not be flushed before the stop timeout and were lost
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void stop() throws IOException, InterruptedException {
+        Thread thread;
+        _lock.lock();
+        try {
+            _running = false;
+            _stoppedAt = System.nanoTime();
+            _notEmpty.signalAll();
+            thread = _thread;
+            _thread = null;
+        } finally {
+            _lock.unlock();
+        }
+        if (thread != null) {
+            thread.join();
+        }
+        if (_lost > 0) {
+            throw new IOException("Lost the writes of " + _lost + " sessions that could not be written to redis");
+        }
+    }
+
+    /**
+     * Queues a write, merging it with any write already queued for the same session.
+     * If the queue is full the caller waits for space.
+     *
+     * @param write the write to queue
+     * @throws IOException if the queue stays full for longer than the maximum wait
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    void offer(SessionWrite write) throws IOException, InterruptedException {
+        _lock.lock();
+        try {
+            if (!_running) {
+                throw new IllegalStateException("Not running");
+            }
+            long remaining = _maxWaitNanos;
+            while (!_pending.containsKey(write.getId()) && !_inFlight.containsKey(write.getId())
+                    && size() >= _capacity) {
+                if (remaining <= 0) {
+                    throw new IOException("Write-behind queue full, unable to store session " + write.getId());
+                }
+                remaining = _notFull.awaitNanos(remaining);
+            }
+            SessionWrite queued = _pending.get(write.getId());
+            _pending.put(write.getId(), queued == null ? write : queued.merge(write));
+            if (_pending.size() == 1) {
+                _oldestPending = System.nanoTime();
+            }
+            if (_pending.size() == 1 || _pending.size() >= _batchSize) {
+                _notEmpty.signal();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @param id the session id
+     * @return the latest write for the session not yet acknowledged by redis, or null
+     */
+    SessionWrite get(String id) {
+        _lock.lock();
+        try {
+            SessionWrite write = _pending.get(id);
+            return write != null ? write : _inFlight.get(id);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sessions with writes that redis has not acknowledged yet
+     */
+    int size() {
+        _lock.lock();
+        try {
+            int size = _pending.size();
+            for (String id : _inFlight.keySet()) {
+                if (!_pending.containsKey(id)) {
+                    size++;
+                }
+            }
+            return size;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<SessionWrite> batch;
+            _lock.lock();
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (_pending.isEmpty()) {
+                        if (!_running) {
+                            return;
+                        }
+                        _notEmpty.await();
+                        continue;
+                    }
+                    if (!_running && now - _stoppedAt > TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MS)) {
+                        _lost = _pending.size();
+                        LOG.warn("Dropping the writes of {} sessions not written to redis before stopping", _lost);
+                        for (SessionWrite write : _pending.values()) {
+                            _flusher.discard(write);
+                        }
+                        _pending.clear();
+                        _notFull.signalAll();
+                        return;
+                    }
+                    long backoff = _retryAt - now;
+                    long wait = _running ? Math.max(backoff, _flushIntervalNanos - (now - _oldestPending)) : backoff;
+                    if (wait <= 0 || backoff <= 0 && _pending.size() >= _batchSize) {
+                        break;
+                    }
+                    _notEmpty.awaitNanos(wait);
+                }
+                batch = new ArrayList<>(Math.min(_batchSize, _pending.size()));
+                Iterator<SessionWrite> writes = _pending.values().iterator();
+                while (writes.hasNext() && batch.size() < _batchSize) {
+                    SessionWrite write = writes.next();
+                    writes.remove();
+                    _inFlight.put(write.getId(), write);
+                    batch.add(write);
+                }
+                _oldestPending = System.nanoTime();
+            } catch (InterruptedException e) {
+                LOG.ignore(e);
+                continue;
+            } finally {
+                _lock.unlock();
+            }
+
+            Exception failure = null;
+            List<SessionWrite> replaced = null;
+            try {
+                replaced = _flusher.flush(batch);
+            } catch (Exception e) {
+                failure = e;
+            }
+            boolean unavailable = failure != null && RedisSessionDataMap.isUnavailable(failure);
+
+            _lock.lock();
+            try {
+                boolean expired = false;
+                if (failure == null) {
+                    _failures = 0;
+                    _retryAt = 0;
+                } else {
+                    if (_failures++ == 0) {
+                        _failingSince = System.nanoTime();
+                    }
+                    expired = unavailable && System.nanoTime() - _failingSince > _maxRetryNanos;
+                    long backoffMs = Math.min(MAX_BACKOFF_MS,
+                            Math.max(1, TimeUnit.NANOSECONDS.toMillis(_flushIntervalNanos)) << Math.min(_failures, 16));
+                    _retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+                    LOG.warn("Unable to write " + batch.size() + " sessions to redis, retrying in " + backoffMs + " ms",
+                            failure);
+                }
+                for (SessionWrite write : batch) {
+                    _inFlight.remove(write.getId());
+                    if (failure == null) {
+                        continue;
+                    }
+                    if (!unavailable && write.attempted() >= MAX_ATTEMPTS) {
+                        LOG.warn("Discarding write of session {} after {} attempts", write.getId(), MAX_ATTEMPTS);
+                        _flusher.discard(write);
+                        continue;
+                    }
+                    if (expired) {
+                        LOG.warn("Discarding write of session {}, redis unreachable for over {} ms", write.getId(),
+                                TimeUnit.NANOSECONDS.toMillis(_maxRetryNanos));
+                        _flusher.discard(write);
+                        continue;
+                    }
+                    requeue(write);
+                }
+                if (replaced != null) {
+                    for (SessionWrite write : replaced) {
+                        requeue(write);
+                    }
+                }
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues again a write that was in flight, merged with any newer write to the same session.
+     * Called with the lock held.
+     *
+     * @param write the write
+     */
+    private void requeue(SessionWrite write) {
+        SessionWrite newer = _pending.get(write.getId());
+        if (_pending.isEmpty()) {
+            _oldestPending = System.nanoTime();
+        }
+        _pending.put(write.getId(), newer == null ? write : write.merge(newer));
+    }
+}
@@ -0,0 +1,1273 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * FakeRedis
+ *
+ * An in-process redis that speaks enough of the RESP protocol for the session map: strings,
+ * hashes and sorted sets with expiry, MULTI/EXEC, pipelining and publish/subscribe. Lua is not
+ * interpreted: the scripts of the session map are emulated, and other scripts are unknown to it.
+ * Several instances can act as the nodes of a cluster, and one can act as a sentinel.
+ *
+ * The latency of every round trip and the rate at which commands fail can be set, and it can
+ * be made unavailable, to exercise the map under adverse conditions. It counts the commands
+ * and round trips it serves.
+ */
+public class FakeRedis implements AutoCloseable {
+    /**
+     * The emulation of a lua script, run atomically with the keys and arguments of the call.
+     */
+    @FunctionalInterface
+    public interface Script {
+        Object run(FakeRedis redis, List<byte[]> keys, List<byte[]> args);
+    }
+
+    /**
+     * A simple string reply, as opposed to a bulk string.
+     */
+    private static final class Status {
+        private final String _text;
+
+        Status(String text) {
+            _text = text;
+        }
+    }
+
+    /**
+     * An error reply.
+     */
+    private static final class RedisError extends RuntimeException {
+        RedisError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Several replies to a single command, as for SUBSCRIBE.
+     */
+    private static final class Replies extends ArrayList<Object> {
+    }
+
+    private static final class Entry {
+        final Object _value;
+        long _expiresAt;
+
+        Entry(Object value) {
+            _value = value;
+        }
+    }
+
+    private static final Status OK = new Status("OK");
+    private static final Status QUEUED = new Status("QUEUED");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final String HOST = "127.0.0.1";
+
+    private final Map<ByteBuffer, Entry> _data = new HashMap<>();
+    private final Map<String, Script> _scripts = new ConcurrentHashMap<>();
+    private final Set<Socket> _sockets = ConcurrentHashMap.newKeySet();
+    private final Map<ByteBuffer, Set<OutputStream>> _subscribers = new ConcurrentHashMap<>();
+    private final LongAdder _operations = new LongAdder();
+    private final LongAdder _roundTrips = new LongAdder();
+    private final ServerSocket _serverSocket;
+    private volatile long _latencyMs;
+    private volatile double _failureRate;
+    private volatile boolean _unavailable;
+    private volatile List<FakeRedis> _cluster;
+    private volatile String _masterName;
+    private volatile FakeRedis _primary;
+    private volatile List<FakeRedis> _replicas;
+
+    public FakeRedis() throws IOException {
+        this(0);
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public FakeRedis(int port) throws IOException {
+        _serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        script(RedisSessionDataMap.LOAD_VALUE, (redis, keys, args) -> {
+            byte[] value = redis.string(keys.get(0));
+            if (value != null) {
+                boolean header = value.length > 0 && RedisSessionDataMap.hasHeader(value[0]);
+                redis.loaded(keys.get(0), header ? value : null, RedisSessionDataMap.TIMESTAMPS_OFFSET, args);
+            }
+            return value;
+        });
+        script(RedisSessionDataMap.LOAD_HASH, (redis, keys, args) -> {
+            Object fields = redis.command("HGETALL", keys);
+            Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), false);
+            if (hash != null) {
+                redis.loaded(keys.get(0), hash.get(ByteBuffer.wrap(RedisSessionDataMap.META_FIELD_BYTES)), 0, args);
+            }
+            return fields;
+        });
+        script(RedisSessionDataMap.TOUCH_VALUE, (redis, keys, args) -> {
+            byte[] value = redis.string(keys.get(0));
+            if (value == null || !RedisSessionDataMap.hasHeader(value[0])) {
+                return 0L;
+            }
+            System.arraycopy(args.get(0), 0, value, RedisSessionDataMap.TIMESTAMPS_OFFSET, args.get(0).length);
+            redis.touched(keys, args);
+            return 1L;
+        });
+        script(RedisSessionDataMap.TOUCH_HASH, (redis, keys, args) -> {
+            Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), false);
+            if (hash == null || !hash.containsKey(ByteBuffer.wrap(RedisSessionDataMap.META_FIELD_BYTES))) {
+                return 0L;
+            }
+            hash.put(ByteBuffer.wrap(RedisSessionDataMap.META_FIELD_BYTES), args.get(0));
+            redis.touched(keys, args);
+            return 1L;
+        });
+        script(RedisSessionDataMap.STORE_HASH_VERSIONED, (redis, keys, args) -> {
+            ByteBuffer versionField = ByteBuffer.wrap(RedisSessionDataMap.VERSION_FIELD.getBytes(StandardCharsets.UTF_8));
+            Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), false);
+            long version = hash == null || !hash.containsKey(versionField) ? 0 : integer(hash.get(versionField));
+            long expected = integer(args.get(0));
+            if (expected >= 0 && version != expected) {
+                return Arrays.asList(0L, version);
+            }
+            if ("1".equals(text(args.get(4)))) {
+                redis._data.remove(ByteBuffer.wrap(keys.get(0)));
+            }
+            hash = redis.hash(keys.get(0), true);
+            int removed = (int) integer(args.get(6));
+            for (int i = 7; i < 7 + removed; i++) {
+                hash.remove(ByteBuffer.wrap(args.get(i)));
+            }
+            for (int i = 7 + removed; i + 1 < args.size(); i += 2) {
+                hash.put(ByteBuffer.wrap(args.get(i)), args.get(i + 1));
+            }
+            int count = 0;
+            for (ByteBuffer field : hash.keySet()) {
+                if (text(bytes(field)).startsWith(RedisSessionDataMap.ATTRIBUTE_FIELD_PREFIX)) {
+                    count++;
+                }
+            }
+            ByteBuffer meta = ByteBuffer.allocate(RedisSessionDataMap.META_LENGTH);
+            meta.put(args.get(5), 0, RedisSessionDataMap.TIMESTAMPS_LENGTH).putInt(count);
+            hash.put(ByteBuffer.wrap(RedisSessionDataMap.META_FIELD_BYTES), meta.array());
+            hash.put(versionField, Long.toString(++version).getBytes(StandardCharsets.UTF_8));
+            redis.touched(keys, args);
+            return Arrays.asList(1L, version);
+        });
+        script(RedisSessionDataMap.UNLINK, (redis, keys, args) -> redis.command("UNLINK", keys));
+        script(ClassDictionary.EPOCH, (redis, keys, args) -> {
+            Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), true);
+            ByteBuffer field = ByteBuffer.wrap(ClassDictionary.EPOCH_FIELD.getBytes(StandardCharsets.UTF_8));
+            return integer(hash.computeIfAbsent(field, f -> args.get(0)));
+        });
+        script(ClassDictionary.REGISTER, (redis, keys, args) -> {
+            Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), true);
+            byte[] epoch = hash.get(ByteBuffer.wrap(ClassDictionary.EPOCH_FIELD.getBytes(StandardCharsets.UTF_8)));
+            if (epoch == null || !Arrays.equals(epoch, args.get(2))) {
+                return -1L;
+            }
+            byte[] id = hash.get(ByteBuffer.wrap(args.get(0)));
+            if (id == null) {
+                ByteBuffer next = ByteBuffer.wrap(ClassDictionary.NEXT_FIELD.getBytes(StandardCharsets.UTF_8));
+                id = Long.toString(hash.containsKey(next) ? integer(hash.get(next)) + 1 : 1)
+                        .getBytes(StandardCharsets.US_ASCII);
+                hash.put(next, id);
+                hash.put(ByteBuffer.wrap(args.get(0)), id);
+                hash.put(ByteBuffer.wrap((ClassDictionary.DESCRIPTOR_FIELD_PREFIX + text(id))
+                        .getBytes(StandardCharsets.UTF_8)), args.get(1));
+            }
+            return integer(id);
+        });
+        script(SessionReaper.REAP, (redis, keys, args) -> {
+            byte[] current;
+            if ("1".equals(text(args.get(1)))) {
+                Map<ByteBuffer, byte[]> hash = redis.hash(keys.get(0), false);
+                current = hash == null ? null : hash.get(ByteBuffer.wrap(RedisSessionDataMap.META_FIELD_BYTES));
+            } else {
+                byte[] value = redis.string(keys.get(0));
+                current = value == null ? null : Arrays.copyOf(value, Math.min(value.length, args.get(0).length));
+            }
+            if (!Arrays.equals(current, args.get(0))) {
+                return 0L;
+            }
+            redis.command("UNLINK", keys);
+            return 1L;
+        });
+        script(SessionReaper.RENEW, (redis, keys, args) -> Arrays.equals(redis.string(keys.get(0)), args.get(0))
+                ? redis.command("PEXPIRE", Arrays.asList(keys.get(0), args.get(1))) : (Object) 0L);
+        script(SessionReaper.RELEASE, (redis, keys, args) -> Arrays.equals(redis.string(keys.get(0)), args.get(0))
+                ? redis.command("DEL", keys) : (Object) 0L);
+        Thread acceptor = new Thread(this::accept, "fake-redis-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Makes the nodes a redis cluster, each serving an equal range of hash slots in the given
+     * order, and moves every key to the node that serves it. Called again with another order,
+     * it moves slots between the nodes, which clients learn of from MOVED redirects.
+     *
+     * @param nodes the nodes of the cluster
+     */
+    public static void cluster(FakeRedis... nodes) {
+        List<FakeRedis> cluster = Arrays.asList(nodes);
+        Map<ByteBuffer, Entry> keys = new HashMap<>();
+        for (FakeRedis node : nodes) {
+            synchronized (node._data) {
+                node._cluster = cluster;
+                keys.putAll(node._data);
+                node._data.clear();
+            }
+        }
+        for (Map.Entry<ByteBuffer, Entry> e : keys.entrySet()) {
+            FakeRedis node = node(cluster, JedisClusterCRC16.getSlot(bytes(e.getKey())));
+            synchronized (node._data) {
+                node._data.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Makes this node a sentinel monitoring a master. Called again with another primary, it
+     * announces the failover to the clients subscribed to {@code +switch-master}.
+     *
+     * @param masterName the name of the master
+     * @param primary the node that serves the master
+     * @param replicas the replicas of the master, which are not kept in sync with the primary
+     */
+    public void monitor(String masterName, FakeRedis primary, FakeRedis... replicas) {
+        FakeRedis previous = _primary;
+        _masterName = masterName;
+        _replicas = Arrays.asList(replicas);
+        _primary = primary;
+        if (previous != null && previous != primary) {
+            String message = masterName + " " + HOST + " " + previous.getPort() + " " + HOST + " " + primary.getPort();
+            publish("+switch-master".getBytes(StandardCharsets.US_ASCII), message.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * @param channel a channel
+     * @return the number of connections subscribed to the channel
+     */
+    public int getSubscribers(String channel) {
+        Set<OutputStream> subscribers = _subscribers.get(ByteBuffer.wrap(channel.getBytes(StandardCharsets.UTF_8)));
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    private Object sentinel(String subcommand, String masterName) {
+        boolean monitored = masterName.equals(_masterName);
+        switch (subcommand) {
+            case "get-master-addr-by-name":
+                return monitored ? bulk(HOST, Integer.toString(_primary.getPort())) : null;
+            case "slaves":
+            case "replicas": {
+                if (!monitored) {
+                    throw new RedisError("ERR No such master with that name");
+                }
+                List<Object> replicas = new ArrayList<>();
+                for (FakeRedis replica : _replicas) {
+                    replicas.add(bulk("ip", HOST, "port", Integer.toString(replica.getPort()),
+                            "flags", "slave", "master-link-status", "ok"));
+                }
+                return replicas;
+            }
+            default:
+                throw new RedisError("ERR unsupported SENTINEL " + subcommand);
+        }
+    }
+
+    private static List<Object> bulk(String... texts) {
+        List<Object> bulk = new ArrayList<>(texts.length);
+        for (String text : texts) {
+            bulk.add(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bulk;
+    }
+
+    /**
+     * @return the node of the cluster that serves the hash slot
+     */
+    private static FakeRedis node(List<FakeRedis> cluster, int slot) {
+        return cluster.get(slot * cluster.size() / JedisCluster.HASHSLOTS);
+    }
+
+    /**
+     * @return the reply to CLUSTER SLOTS: the first and last slot of each node, and its address
+     */
+    private static List<Object> clusterSlots(List<FakeRedis> cluster) {
+        int nodes = cluster.size();
+        List<Object> slots = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            long first = ((long) i * JedisCluster.HASHSLOTS + nodes - 1) / nodes;
+            long last = ((long) (i + 1) * JedisCluster.HASHSLOTS + nodes - 1) / nodes - 1;
+            slots.add(Arrays.asList(first, last,
+                    Arrays.asList(HOST.getBytes(StandardCharsets.US_ASCII), (long) cluster.get(i).getPort())));
+        }
+        return slots;
+    }
+
+    /**
+     * @return the keys of a command, which must all be served by a node of a cluster
+     */
+    private static List<byte[]> keys(String name, List<byte[]> args) {
+        switch (name) {
+            case "MGET":
+            case "DEL":
+            case "UNLINK":
+            case "EXISTS":
+                return args;
+            case "EVAL":
+            case "EVALSHA":
+                return args.subList(2, 2 + (int) integer(args.get(1)));
+            case "PUBLISH":
+            case "WAIT":
+            case "SCRIPT":
+            case "SCAN":
+            case "FLUSHALL":
+            case "FLUSHDB":
+            case "DBSIZE":
+            case "CLUSTER":
+            case "SENTINEL":
+                return Collections.emptyList();
+            default:
+                return args.isEmpty() ? args : args.subList(0, 1);
+        }
+    }
+
+    /**
+     * @param latencyMs the time added to every round trip, that is to every command or to
+     * every batch of pipelined commands
+     */
+    public void setLatency(long latencyMs) {
+        _latencyMs = latencyMs;
+    }
+
+    /**
+     * @param failureRate the probability, from 0 to 1, that a command fails with an error
+     */
+    public void setFailureRate(double failureRate) {
+        _failureRate = failureRate;
+    }
+
+    /**
+     * @param unavailable true to drop all connections and refuse new ones, as if redis were down
+     */
+    public void setUnavailable(boolean unavailable) {
+        _unavailable = unavailable;
+        if (unavailable) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Registers the emulation of a script, so that it can be run with EVAL or EVALSHA.
+     *
+     * @param script the script
+     * @param emulation what the script does
+     */
+    public void script(RedisScript script, Script emulation) {
+        _scripts.put(new String(script.getSha1(), StandardCharsets.US_ASCII), emulation);
+    }
+
+    /**
+     * @return the number of commands served, not counting connection setup
+     */
+    public long getOperations() {
+        return _operations.sum();
+    }
+
+    /**
+     * @return the number of round trips served, a batch of pipelined commands counting as one
+     */
+    public long getRoundTrips() {
+        return _roundTrips.sum();
+    }
+
+    public void resetCounts() {
+        _operations.reset();
+        _roundTrips.reset();
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        synchronized (_data) {
+            _data.values().removeIf(this::expired);
+            return _data.size();
+        }
+    }
+
+    public void flushAll() {
+        synchronized (_data) {
+            _data.clear();
+        }
+    }
+
+    /**
+     * Drops all connections; clients reconnect on their next command.
+     */
+    public void disconnect() {
+        for (Socket socket : _sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _serverSocket.close();
+        disconnect();
+    }
+
+    private void accept() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                Socket socket = _serverSocket.accept();
+                if (_unavailable) {
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                _sockets.add(socket);
+                Thread connection = new Thread(() -> serve(socket), "fake-redis-connection-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        List<List<byte[]>> transaction = null;
+        Set<ByteBuffer> channels = new HashSet<>();
+        OutputStream subscriber = null;
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            subscriber = out;
+            boolean flushed = true;
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                if (flushed) {
+                    _roundTrips.increment();
+                    if (_latencyMs > 0) {
+                        Thread.sleep(_latencyMs);
+                    }
+                }
+                String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ENGLISH);
+                Object reply;
+                if (transaction != null && !"EXEC".equals(name) && !"DISCARD".equals(name)) {
+                    transaction.add(command);
+                    reply = QUEUED;
+                } else if ("MULTI".equals(name)) {
+                    transaction = new ArrayList<>();
+                    reply = OK;
+                } else if ("DISCARD".equals(name)) {
+                    transaction = null;
+                    reply = OK;
+                } else if ("EXEC".equals(name)) {
+                    reply = exec(transaction);
+                    transaction = null;
+                } else if ("SUBSCRIBE".equals(name)) {
+                    reply = subscribe(command.subList(1, command.size()), channels, out);
+                } else if ("UNSUBSCRIBE".equals(name)) {
+                    reply = unsubscribe(command.subList(1, command.size()), channels, out);
+                } else {
+                    reply = execute(name, command);
+                }
+                // messages published to a subscribed connection are written by the publishing connection
+                synchronized (out) {
+                    writeReply(out, reply);
+                    if ("QUIT".equals(name)) {
+                        out.flush();
+                        return;
+                    }
+                    // pipelined commands are answered together, once they have all been read
+                    flushed = in.available() == 0;
+                    if (flushed) {
+                        out.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // disconnected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ByteBuffer channel : channels) {
+                _subscribers.get(channel).remove(subscriber);
+            }
+            _sockets.remove(socket);
+        }
+    }
+
+    private Replies subscribe(List<byte[]> args, Set<ByteBuffer> channels, OutputStream out) {
+        Replies replies = new Replies();
+        for (byte[] channel : args) {
+            channels.add(ByteBuffer.wrap(channel));
+            _subscribers.computeIfAbsent(ByteBuffer.wrap(channel), c -> ConcurrentHashMap.newKeySet()).add(out);
+            replies.add(Arrays.asList("subscribe".getBytes(StandardCharsets.US_ASCII), channel, (long) channels.size()));
+        }
+        return replies;
+    }
+
+    private Replies unsubscribe(List<byte[]> args, Set<ByteBuffer> channels, OutputStream out) {
+        List<ByteBuffer> unsubscribed = new ArrayList<>();
+        if (args.isEmpty()) {
+            unsubscribed.addAll(channels);
+        } else {
+            for (byte[] channel : args) {
+                unsubscribed.add(ByteBuffer.wrap(channel));
+            }
+        }
+        Replies replies = new Replies();
+        for (ByteBuffer channel : unsubscribed) {
+            channels.remove(channel);
+            Set<OutputStream> subscribers = _subscribers.get(channel);
+            if (subscribers != null) {
+                subscribers.remove(out);
+            }
+            replies.add(Arrays.asList("unsubscribe".getBytes(StandardCharsets.US_ASCII), bytes(channel),
+                    (long) channels.size()));
+        }
+        if (replies.isEmpty()) {
+            replies.add(Arrays.asList("unsubscribe".getBytes(StandardCharsets.US_ASCII), null, 0L));
+        }
+        return replies;
+    }
+
+    /**
+     * Writes a message to the connections subscribed to its channel.
+     *
+     * @return the number of connections the message was written to
+     */
+    private long publish(byte[] channel, byte[] message) {
+        Set<OutputStream> subscribers = _subscribers.get(ByteBuffer.wrap(channel));
+        if (subscribers == null) {
+            return 0L;
+        }
+        List<Object> push = Arrays.asList("message".getBytes(StandardCharsets.US_ASCII), channel, message);
+        long received = 0;
+        for (OutputStream out : subscribers) {
+            synchronized (out) {
+                try {
+                    writeReply(out, push);
+                    out.flush();
+                    received++;
+                } catch (IOException e) {
+                    subscribers.remove(out);
+                }
+            }
+        }
+        return received;
+    }
+
+    private Object exec(List<List<byte[]>> transaction) {
+        if (transaction == null) {
+            return new RedisError("ERR EXEC without MULTI");
+        }
+        synchronized (_data) {
+            List<Object> replies = new ArrayList<>(transaction.size());
+            for (List<byte[]> command : transaction) {
+                replies.add(execute(new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ENGLISH),
+                        command));
+            }
+            return replies;
+        }
+    }
+
+    private Object execute(String name, List<byte[]> command) {
+        switch (name) {
+            case "PING":
+                return new Status("PONG");
+            case "AUTH":
+            case "SELECT":
+            case "CLIENT":
+            case "QUIT":
+                return OK;
+            default:
+                break;
+        }
+        List<FakeRedis> cluster = _cluster;
+        if (cluster != null) {
+            for (byte[] key : keys(name, command.subList(1, command.size()))) {
+                int slot = JedisClusterCRC16.getSlot(key);
+                FakeRedis node = node(cluster, slot);
+                if (node != this) {
+                    return new RedisError("MOVED " + slot + " " + HOST + ":" + node.getPort());
+                }
+            }
+        }
+        _operations.increment();
+        if (_failureRate > 0 && ThreadLocalRandom.current().nextDouble() < _failureRate) {
+            return new RedisError("ERR injected failure");
+        }
+        try {
+            synchronized (_data) {
+                return command(name, command.subList(1, command.size()));
+            }
+        } catch (RedisError e) {
+            return e;
+        } catch (RuntimeException e) {
+            return new RedisError("ERR " + e);
+        }
+    }
+
+    private Object command(String name, List<byte[]> args) {
+        switch (name) {
+            case "GET":
+                return string(args.get(0));
+            case "MGET": {
+                List<Object> values = new ArrayList<>(args.size());
+                for (byte[] key : args) {
+                    values.add(string(key));
+                }
+                return values;
+            }
+            case "GETRANGE": {
+                byte[] value = string(args.get(0));
+                int length = value == null ? 0 : value.length;
+                long start = integer(args.get(1));
+                long end = integer(args.get(2));
+                start = start < 0 ? Math.max(0, length + start) : start;
+                end = Math.min(end < 0 ? length + end : end, length - 1);
+                return start > end ? new byte[0] : Arrays.copyOfRange(value, (int) start, (int) end + 1);
+            }
+            case "SET":
+                return set(args);
+            case "SETEX":
+                put(args.get(0), args.get(2), TimeUnit.SECONDS.toMillis(integer(args.get(1))));
+                return OK;
+            case "PSETEX":
+                put(args.get(0), args.get(2), integer(args.get(1)));
+                return OK;
+            case "DEL":
+            case "UNLINK": {
+                long deleted = 0;
+                for (byte[] key : args) {
+                    if (entry(key) != null) {
+                        _data.remove(ByteBuffer.wrap(key));
+                        deleted++;
+                    }
+                }
+                return deleted;
+            }
+            case "EXISTS": {
+                long exists = 0;
+                for (byte[] key : args) {
+                    if (entry(key) != null) {
+                        exists++;
+                    }
+                }
+                return exists;
+            }
+            case "EXPIRE":
+                return expire(args.get(0), TimeUnit.SECONDS.toMillis(integer(args.get(1))));
+            case "PEXPIRE":
+                return expire(args.get(0), integer(args.get(1)));
+            case "PERSIST": {
+                Entry entry = entry(args.get(0));
+                if (entry == null || entry._expiresAt == 0) {
+                    return 0L;
+                }
+                entry._expiresAt = 0;
+                return 1L;
+            }
+            case "TTL":
+            case "PTTL": {
+                Entry entry = entry(args.get(0));
+                if (entry == null) {
+                    return -2L;
+                }
+                if (entry._expiresAt == 0) {
+                    return -1L;
+                }
+                long ttl = entry._expiresAt - System.currentTimeMillis();
+                return "TTL".equals(name) ? TimeUnit.MILLISECONDS.toSeconds(ttl + 999) : ttl;
+            }
+            case "HGETALL": {
+                Map<ByteBuffer, byte[]> hash = hash(args.get(0), false);
+                List<Object> fields = new ArrayList<>();
+                if (hash != null) {
+                    for (Map.Entry<ByteBuffer, byte[]> e : hash.entrySet()) {
+                        fields.add(bytes(e.getKey()));
+                        fields.add(e.getValue());
+                    }
+                }
+                return fields;
+            }
+            case "HGET": {
+                Map<ByteBuffer, byte[]> hash = hash(args.get(0), false);
+                return hash == null ? null : hash.get(ByteBuffer.wrap(args.get(1)));
+            }
+            case "HSET":
+            case "HMSET": {
+                Map<ByteBuffer, byte[]> hash = hash(args.get(0), true);
+                long added = 0;
+                for (int i = 1; i + 1 < args.size(); i += 2) {
+                    if (hash.put(ByteBuffer.wrap(args.get(i)), args.get(i + 1)) == null) {
+                        added++;
+                    }
+                }
+                return "HMSET".equals(name) ? OK : (Object) added;
+            }
+            case "HDEL": {
+                Map<ByteBuffer, byte[]> hash = hash(args.get(0), false);
+                long deleted = 0;
+                for (int i = 1; hash != null && i < args.size(); i++) {
+                    if (hash.remove(ByteBuffer.wrap(args.get(i))) != null) {
+                        deleted++;
+                    }
+                }
+                removeIfEmpty(args.get(0), hash);
+                return deleted;
+            }
+            case "HEXISTS": {
+                Map<ByteBuffer, byte[]> hash = hash(args.get(0), false);
+                return hash != null && hash.containsKey(ByteBuffer.wrap(args.get(1))) ? 1L : 0L;
+            }
+            case "ZADD": {
+                Map<ByteBuffer, Double> set = sortedSet(args.get(0), true);
+                long added = 0;
+                for (int i = 1; i + 1 < args.size(); i += 2) {
+                    if (set.put(ByteBuffer.wrap(args.get(i + 1)), Double.parseDouble(text(args.get(i)))) == null) {
+                        added++;
+                    }
+                }
+                return added;
+            }
+            case "ZREM": {
+                Map<ByteBuffer, Double> set = sortedSet(args.get(0), false);
+                long removed = 0;
+                for (int i = 1; set != null && i < args.size(); i++) {
+                    if (set.remove(ByteBuffer.wrap(args.get(i))) != null) {
+                        removed++;
+                    }
+                }
+                removeIfEmpty(args.get(0), set);
+                return removed;
+            }
+            case "ZSCORE": {
+                Map<ByteBuffer, Double> set = sortedSet(args.get(0), false);
+                Double score = set == null ? null : set.get(ByteBuffer.wrap(args.get(1)));
+                return score == null ? null : score(score);
+            }
+            case "ZRANGEBYSCORE":
+                return rangeByScore(args);
+            case "PUBLISH":
+                return publish(args.get(0), args.get(1));
+            case "WAIT":
+                return 0L;
+            case "EVAL":
+                return eval(new String(new RedisScript(text(args.get(0))).getSha1(), StandardCharsets.US_ASCII),
+                        args, "ERR unknown script");
+            case "EVALSHA":
+                return eval(text(args.get(0)), args, "NOSCRIPT No matching script. Please use EVAL.");
+            case "SCRIPT": {
+                String subcommand = text(args.get(0)).toUpperCase(Locale.ENGLISH);
+                if ("LOAD".equals(subcommand)) {
+                    String sha1 = new String(new RedisScript(text(args.get(1))).getSha1(), StandardCharsets.US_ASCII);
+                    if (!_scripts.containsKey(sha1)) {
+                        throw new RedisError("ERR unknown script");
+                    }
+                    return sha1.getBytes(StandardCharsets.US_ASCII);
+                }
+                if ("EXISTS".equals(subcommand)) {
+                    List<Object> exists = new ArrayList<>();
+                    for (byte[] sha1 : args.subList(1, args.size())) {
+                        exists.add(_scripts.containsKey(text(sha1)) ? 1L : 0L);
+                    }
+                    return exists;
+                }
+                throw new RedisError("ERR unsupported SCRIPT " + subcommand);
+            }
+            case "SCAN":
+                return scan(args);
+            case "SENTINEL":
+                return sentinel(text(args.get(0)).toLowerCase(Locale.ENGLISH), text(args.get(1)));
+            case "CLUSTER": {
+                List<FakeRedis> cluster = _cluster;
+                if (cluster == null || !"SLOTS".equalsIgnoreCase(text(args.get(0)))) {
+                    throw new RedisError("ERR This instance has cluster support disabled");
+                }
+                return clusterSlots(cluster);
+            }
+            case "FLUSHALL":
+            case "FLUSHDB":
+                _data.clear();
+                return OK;
+            case "DBSIZE":
+                _data.values().removeIf(this::expired);
+                return (long) _data.size();
+            default:
+                throw new RedisError("ERR unknown command '" + name + "'");
+        }
+    }
+
+    private Object set(List<byte[]> args) {
+        long ttlMs = 0;
+        boolean nx = false;
+        boolean xx = false;
+        for (int i = 2; i < args.size(); i++) {
+            String option = text(args.get(i)).toUpperCase(Locale.ENGLISH);
+            switch (option) {
+                case "EX":
+                    ttlMs = TimeUnit.SECONDS.toMillis(integer(args.get(++i)));
+                    break;
+                case "PX":
+                    ttlMs = integer(args.get(++i));
+                    break;
+                case "NX":
+                    nx = true;
+                    break;
+                case "XX":
+                    xx = true;
+                    break;
+                default:
+                    throw new RedisError("ERR syntax error");
+            }
+        }
+        boolean exists = entry(args.get(0)) != null;
+        if (nx && exists || xx && !exists) {
+            return null;
+        }
+        put(args.get(0), args.get(1), ttlMs);
+        return OK;
+    }
+
+    /**
+     * Returns the keys in the order of their fingerprints, the cursor being the fingerprint from
+     * which to resume, so that keys added or removed during a scan do not make it miss others.
+     */
+    private List<Object> scan(List<byte[]> args) {
+        long cursor = integer(args.get(0));
+        String pattern = "*";
+        long count = 10;
+        for (int i = 1; i + 1 < args.size(); i += 2) {
+            String option = text(args.get(i)).toUpperCase(Locale.ENGLISH);
+            if ("MATCH".equals(option)) {
+                pattern = text(args.get(i + 1));
+            } else if ("COUNT".equals(option)) {
+                count = integer(args.get(i + 1));
+            } else {
+                throw new RedisError("ERR syntax error");
+            }
+        }
+        _data.values().removeIf(this::expired);
+        TreeMap<Long, List<byte[]>> positions = new TreeMap<>();
+        for (ByteBuffer key : _data.keySet()) {
+            byte[] bytes = bytes(key);
+            long position = (Fingerprint.of(bytes) >>> 1) + 1;
+            if (position >= cursor) {
+                positions.computeIfAbsent(position, p -> new ArrayList<>()).add(bytes);
+            }
+        }
+        List<Object> keys = new ArrayList<>();
+        long next = 0;
+        long scanned = 0;
+        for (Map.Entry<Long, List<byte[]>> e : positions.entrySet()) {
+            if (scanned >= count) {
+                next = e.getKey();
+                break;
+            }
+            for (byte[] key : e.getValue()) {
+                scanned++;
+                if (matches(pattern, 0, text(key), 0)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return Arrays.asList(Long.toString(next).getBytes(StandardCharsets.US_ASCII), keys);
+    }
+
+    /**
+     * @return true if the text from t matches the glob pattern from p, with {@code *}, {@code ?} and {@code \}
+     */
+    private static boolean matches(String pattern, int p, String text, int t) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int i = t; i <= text.length(); i++) {
+                    if (matches(pattern, p + 1, text, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (c == '\\' && p + 1 < pattern.length()) {
+                c = pattern.charAt(++p);
+            } else if (c == '?') {
+                c = t < text.length() ? text.charAt(t) : c;
+            }
+            if (t >= text.length() || text.charAt(t) != c) {
+                return false;
+            }
+            p++;
+            t++;
+        }
+        return t == text.length();
+    }
+
+    private Object eval(String sha1, List<byte[]> args, String unknown) {
+        Script script = _scripts.get(sha1);
+        if (script == null) {
+            throw new RedisError(unknown);
+        }
+        int numKeys = (int) integer(args.get(1));
+        List<byte[]> keys = args.subList(2, 2 + numKeys);
+        List<byte[]> argv = args.subList(2 + numKeys, args.size());
+        return script.run(this, keys, argv);
+    }
+
+    private List<Object> rangeByScore(List<byte[]> args) {
+        Map<ByteBuffer, Double> set = sortedSet(args.get(0), false);
+        List<Object> range = new ArrayList<>();
+        if (set == null) {
+            return range;
+        }
+        double min = bound(text(args.get(1)));
+        double max = bound(text(args.get(2)));
+        boolean withScores = false;
+        long offset = 0;
+        long count = Long.MAX_VALUE;
+        for (int i = 3; i < args.size(); i++) {
+            String option = text(args.get(i)).toUpperCase(Locale.ENGLISH);
+            if ("WITHSCORES".equals(option)) {
+                withScores = true;
+            } else if ("LIMIT".equals(option)) {
+                offset = integer(args.get(++i));
+                count = integer(args.get(++i));
+                if (count < 0) {
+                    count = Long.MAX_VALUE;
+                }
+            }
+        }
+        List<Map.Entry<ByteBuffer, Double>> entries = new ArrayList<>(set.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<ByteBuffer, Double> e : entries) {
+            if (e.getValue() < min || e.getValue() > max) {
+                continue;
+            }
+            if (offset > 0) {
+                offset--;
+                continue;
+            }
+            if (count-- <= 0) {
+                break;
+            }
+            range.add(bytes(e.getKey()));
+            if (withScores) {
+                range.add(score(e.getValue()));
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Refreshes the ttl (ARGV[2]) and expiry index entry (KEYS[2], ARGV[3], ARGV[4]) of a
+     * touched session, as the touch scripts do.
+     */
+    private void touched(List<byte[]> keys, List<byte[]> args) {
+        long ttlSec = integer(args.get(1));
+        if (ttlSec > 0) {
+            expire(keys.get(0), TimeUnit.SECONDS.toMillis(ttlSec));
+        }
+        if (keys.size() > 1) {
+            if (integer(args.get(2)) > 0) {
+                command("ZADD", Arrays.asList(keys.get(1), args.get(2), args.get(3)));
+            } else {
+                command("ZREM", Arrays.asList(keys.get(1), args.get(3)));
+            }
+        }
+    }
+
+    /**
+     * Refreshes the ttl of a loaded session from the max inactive interval in its timestamps,
+     * if it has any, at the offset.
+     */
+    private void loaded(byte[] key, byte[] timestamps, int offset, List<byte[]> args) {
+        long ttlSec = integer(args.get(0));
+        long graceSec = integer(args.get(1));
+        if (graceSec >= 0 && timestamps != null && timestamps.length >= offset + RedisSessionDataMap.TIMESTAMPS_LENGTH) {
+            long maxInactiveMs = ByteBuffer.wrap(timestamps).getLong(offset + 3 * Long.BYTES);
+            if (maxInactiveMs > 0) {
+                ttlSec = (maxInactiveMs + 999) / 1000 + graceSec;
+            }
+        }
+        if (ttlSec > 0) {
+            expire(key, TimeUnit.SECONDS.toMillis(ttlSec));
+        }
+    }
+
+    private Entry entry(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        Entry entry = _data.get(k);
+        if (entry != null && expired(entry)) {
+            _data.remove(k);
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean expired(Entry entry) {
+        return entry._expiresAt != 0 && entry._expiresAt <= System.currentTimeMillis();
+    }
+
+    private void put(byte[] key, Object value, long ttlMs) {
+        Entry entry = new Entry(value);
+        if (ttlMs > 0) {
+            entry._expiresAt = System.currentTimeMillis() + ttlMs;
+        }
+        _data.put(ByteBuffer.wrap(key), entry);
+    }
+
+    private long expire(byte[] key, long ttlMs) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            return 0;
+        }
+        if (ttlMs <= 0) {
+            _data.remove(ByteBuffer.wrap(key));
+        } else {
+            entry._expiresAt = System.currentTimeMillis() + ttlMs;
+        }
+        return 1;
+    }
+
+    byte[] string(byte[] key) {
+        return value(key, byte[].class, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<ByteBuffer, byte[]> hash(byte[] key, boolean create) {
+        return value(key, Map.class, create);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<ByteBuffer, Double> sortedSet(byte[] key, boolean create) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            entry = new Entry(new SortedSet());
+            _data.put(ByteBuffer.wrap(key), entry);
+        }
+        if (!(entry._value instanceof SortedSet)) {
+            throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return (Map<ByteBuffer, Double>) entry._value;
+    }
+
+    private <T> T value(byte[] key, Class<T> type, boolean create) {
+        Entry entry = entry(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            entry = new Entry(new HashMap<ByteBuffer, byte[]>());
+            _data.put(ByteBuffer.wrap(key), entry);
+        }
+        if (!type.isInstance(entry._value) || entry._value instanceof SortedSet) {
+            throw new RedisError("WRONGTYPE Operation against a key holding the wrong kind of value");
+        }
+        return type.cast(entry._value);
+    }
+
+    private void removeIfEmpty(byte[] key, Map<?, ?> collection) {
+        if (collection != null && collection.isEmpty()) {
+            _data.remove(ByteBuffer.wrap(key));
+        }
+    }
+
+    /**
+     * The members and scores of a sorted set, ordered when ranged over.
+     */
+    private static final class SortedSet extends HashMap<ByteBuffer, Double> {
+    }
+
+    private static double bound(String bound) {
+        switch (bound) {
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+            case "+inf":
+            case "inf":
+                return Double.POSITIVE_INFINITY;
+            default:
+                return Double.parseDouble(bound.startsWith("(") ? bound.substring(1) : bound);
+        }
+    }
+
+    private static byte[] score(double score) {
+        String text = score == Math.rint(score) && !Double.isInfinite(score)
+                ? Long.toString((long) score) : Double.toString(score);
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long integer(byte[] bytes) {
+        try {
+            return Long.parseLong(text(bytes));
+        } catch (NumberFormatException e) {
+            throw new RedisError("ERR value is not an integer or out of range");
+        }
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Expected an array, not " + (char) type);
+        }
+        int count = (int) readLong(in);
+        List<byte[]> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Expected a bulk string");
+            }
+            byte[] arg = new byte[(int) readLong(in)];
+            readFully(in, arg);
+            readFully(in, new byte[2]);
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        boolean negative = false;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b == '-') {
+                negative = true;
+            } else if (b == '\r') {
+                in.read();
+                return negative ? -value : value;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write('$');
+            writeLine(out, "-1");
+        } else if (reply instanceof byte[]) {
+            byte[] bytes = (byte[]) reply;
+            out.write('$');
+            writeLine(out, Integer.toString(bytes.length));
+            out.write(bytes);
+            out.write(CRLF);
+        } else if (reply instanceof Long) {
+            out.write(':');
+            writeLine(out, reply.toString());
+        } else if (reply instanceof Status) {
+            out.write('+');
+            writeLine(out, ((Status) reply)._text);
+        } else if (reply instanceof RedisError) {
+            out.write('-');
+            writeLine(out, ((RedisError) reply).getMessage());
+        } else if (reply instanceof Replies) {
+            for (Object each : (Replies) reply) {
+                writeReply(out, each);
+            }
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            out.write('*');
+            writeLine(out, Integer.toString(list.size()));
+            for (Iterator<?> i = list.iterator(); i.hasNext(); ) {
+                writeReply(out, i.next());
+            }
+        } else {
+            throw new IllegalArgumentException(reply.toString());
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+    }
+}
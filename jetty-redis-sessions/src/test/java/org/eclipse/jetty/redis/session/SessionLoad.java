@@ -0,0 +1,229 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.server.NetworkConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.session.SessionDataStore;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * SessionLoad
+ *
+ * Drives many concurrent http sessions through a jetty server running {@link TestRedisSessions.TestServlet}
+ * on top of a redis session store, and reports the throughput, the latency of requests and, when the
+ * store uses a {@link FakeRedis}, the redis commands and round trips per request.
+ *
+ * Each session sets a value, then reads it back three times for every time it sets it again, checking
+ * that it reads what it last set.
+ *
+ * Run from the test classpath with system properties such as {@code -Dsessions=200 -Drequests=500
+ * -Dlatency=1 -DmaxTotal=16 -Dcompression=false -DwriteBehind=true -DhashLayout=true}.
+ */
+public class SessionLoad {
+    private static final Logger LOG = Log.getLogger(SessionLoad.class);
+
+    private final SessionDataStore _store;
+    private final FakeRedis _redis;
+    private int _sessions = 32;
+    private int _requests = 100;
+
+    /**
+     * @param store the session store to put under load
+     * @param redis the fake redis the store uses, to count its commands, or null
+     */
+    public SessionLoad(SessionDataStore store, FakeRedis redis) {
+        _store = store;
+        _redis = redis;
+    }
+
+    /**
+     * @param sessions the number of sessions making requests concurrently
+     */
+    public void setSessions(int sessions) {
+        _sessions = sessions;
+    }
+
+    /**
+     * @param requests the number of requests made by each session
+     */
+    public void setRequests(int requests) {
+        _requests = requests;
+    }
+
+    public Result run() throws Exception {
+        Server server = new Server(0);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        server.setHandler(context);
+        TestRedisSessions.NullSessionCache cache = new TestRedisSessions.NullSessionCache(context.getSessionHandler());
+        cache.setSessionDataStore(_store);
+        context.getSessionHandler().setSessionCache(cache);
+        context.addServlet(new ServletHolder(new TestRedisSessions.TestServlet()), "/");
+
+        HttpClient client = new HttpClient();
+        client.setCookieStore(new HttpCookieStore.Empty());
+        client.setMaxConnectionsPerDestination(_sessions);
+        ExecutorService executor = Executors.newFixedThreadPool(_sessions);
+        try {
+            server.start();
+            client.start();
+            String uri = "http://localhost:" + ((NetworkConnector) server.getConnectors()[0]).getLocalPort() + "/";
+
+            Result result = new Result();
+            if (_redis != null) {
+                _redis.resetCounts();
+            }
+            long start = System.nanoTime();
+            List<Future<?>> sessions = new ArrayList<>(_sessions);
+            for (int i = 0; i < _sessions; i++) {
+                sessions.add(executor.submit(() -> {
+                    session(client, uri, result);
+                    return null;
+                }));
+            }
+            for (Future<?> session : sessions) {
+                session.get();
+            }
+            result._elapsedNanos = System.nanoTime() - start;
+            if (_redis != null) {
+                result._operations = _redis.getOperations();
+                result._roundTrips = _redis.getRoundTrips();
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private void session(HttpClient client, String uri, Result result) throws Exception {
+        String cookie = null;
+        String value = null;
+        for (int i = 0; i < _requests; i++) {
+            boolean set = i % 4 == 0;
+            String expected = set ? Integer.toString(i) : value;
+            long start = System.nanoTime();
+            ContentResponse response;
+            try {
+                response = client.newRequest(uri + (set ? "?action=set&value=" + expected : "?action=get"))
+                        .header("Cookie", cookie)
+                        .timeout(30, TimeUnit.SECONDS)
+                        .send();
+            } catch (Exception e) {
+                result._errors.increment();
+                continue;
+            }
+            result._latency.record(System.nanoTime() - start);
+            if (response.getStatus() != 200 || !expected.equals(response.getContentAsString().trim())) {
+                result._errors.increment();
+                continue;
+            }
+            value = expected;
+            String setCookie = response.getHeaders().get("Set-Cookie");
+            if (setCookie != null) {
+                cookie = setCookie.split(";", 2)[0];
+            }
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+        private final LatencyHistogram _latency = new LatencyHistogram();
+        private final LongAdder _errors = new LongAdder();
+        private long _elapsedNanos;
+        private long _operations = -1;
+        private long _roundTrips = -1;
+
+        /**
+         * @return the number of requests that completed, successfully or not
+         */
+        public long getRequests() {
+            return _latency.getCount();
+        }
+
+        /**
+         * @return the number of requests that failed or did not read back the value last set
+         */
+        public long getErrors() {
+            return _errors.sum();
+        }
+
+        public double getRequestsPerSecond() {
+            return getRequests() * (double) TimeUnit.SECONDS.toNanos(1) / _elapsedNanos;
+        }
+
+        public LatencyHistogram getLatency() {
+            return _latency;
+        }
+
+        /**
+         * @return the redis commands per request, or -1 if not known
+         */
+        public double getOperationsPerRequest() {
+            return _operations < 0 ? -1 : _operations / (double) getRequests();
+        }
+
+        /**
+         * @return the redis round trips per request, or -1 if not known
+         */
+        public double getRoundTripsPerRequest() {
+            return _roundTrips < 0 ? -1 : _roundTrips / (double) getRequests();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d errors, %.0f req/s, p50=%.3fms p99=%.3fms, %.2f redis ops/request, " +
+                            "%.2f round trips/request",
+                    getRequests(), getErrors(), getRequestsPerSecond(),
+                    _latency.getPercentile(50) / 1e6, _latency.getPercentile(99) / 1e6,
+                    getOperationsPerRequest(), getRoundTripsPerRequest());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (FakeRedis redis = new FakeRedis()) {
+            redis.setLatency(Long.getLong("latency", 0));
+            RedisSessionDataMap map = new RedisSessionDataMap("localhost", Integer.toString(redis.getPort()));
+            map.setMaxTotal(Integer.getInteger("maxTotal", 8));
+            map.setCompression(Boolean.parseBoolean(System.getProperty("compression", "true")));
+            map.setWriteBehind(Boolean.getBoolean("writeBehind"));
+            map.setHashLayout(Boolean.getBoolean("hashLayout"));
+            SessionLoad load = new SessionLoad(new RedisSessionDataStore(map), redis);
+            load.setSessions(Integer.getInteger("sessions", 64));
+            load.setRequests(Integer.getInteger("requests", 200));
+            LOG.info("{}", load.run());
+        }
+    }
+}
@@ -0,0 +1,333 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * TestRedisScripts
+ *
+ * Runs each lua script against a live redis on localhost:6379, and checks that the script
+ * and what it leaves in redis are what {@link FakeRedis} emulates, so that the other tests,
+ * which only run the emulations, also vouch for the scripts. Keys are created under a prefix
+ * of their own and deleted afterwards.
+ */
+public class TestRedisScripts {
+    private static final String PREFIX = "TestRedisScripts:";
+
+    /**
+     * Runs scripts and returns what is to be compared: their results and the state of the keys.
+     */
+    private interface Scenario {
+        List<Object> run(Jedis jedis) throws Exception;
+    }
+
+    private FakeRedis _redis;
+
+    @BeforeEach
+    public void startRedis() throws Exception {
+        _redis = new FakeRedis();
+        deleteKeys();
+    }
+
+    @AfterEach
+    public void stopRedis() throws Exception {
+        _redis.close();
+        deleteKeys();
+    }
+
+    private static void deleteKeys() {
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            Set<String> keys = jedis.keys(PREFIX + "*");
+            if (!keys.isEmpty()) {
+                jedis.del(keys.toArray(new String[keys.size()]));
+            }
+        }
+    }
+
+    private void assertEmulated(Scenario scenario) throws Exception {
+        Object live;
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            live = normalize(scenario.run(jedis));
+        }
+        Object emulated;
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            emulated = normalize(scenario.run(jedis));
+        }
+        assertEquals(live, emulated);
+    }
+
+    /**
+     * @return the reply with binary strings as text, so that replies can be compared with equals
+     */
+    private static Object normalize(Object reply) {
+        if (reply instanceof byte[]) {
+            return new String((byte[]) reply, StandardCharsets.ISO_8859_1);
+        }
+        if (reply instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object o : (List<?>) reply) {
+                list.add(normalize(o));
+            }
+            return list;
+        }
+        if (reply instanceof Map) {
+            Map<Object, Object> map = new TreeMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) reply).entrySet()) {
+                map.put(normalize(e.getKey()), normalize(e.getValue()));
+            }
+            return map;
+        }
+        return reply;
+    }
+
+    /**
+     * @return the fields of a hash, as replied flat by HGETALL, in an order of their own
+     */
+    private static Object fields(Object reply) {
+        List<?> flat = (List<?>) reply;
+        Map<Object, Object> fields = new TreeMap<>();
+        for (int i = 0; i + 1 < flat.size(); i += 2) {
+            fields.put(normalize(flat.get(i)), normalize(flat.get(i + 1)));
+        }
+        return fields;
+    }
+
+    /**
+     * @return the ttl of the key, to the nearest ten seconds so that the clock does not matter
+     */
+    private static long ttl(Jedis jedis, byte[] key) {
+        long ttl = jedis.ttl(key);
+        return ttl < 0 ? ttl : Math.round(ttl / 10.0) * 10;
+    }
+
+    private static byte[] key(String name) {
+        return bytes(PREFIX + name);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] timestamps(long time) {
+        return ByteBuffer.allocate(RedisSessionDataMap.TIMESTAMPS_LENGTH)
+                .putLong(time).putLong(time + 1).putLong(time + 2).putLong(60000).array();
+    }
+
+    private static byte[] meta(long time, int count) {
+        return ByteBuffer.allocate(RedisSessionDataMap.META_LENGTH).put(timestamps(time)).putInt(count).array();
+    }
+
+    private static List<byte[]> args(String... args) {
+        List<byte[]> list = new ArrayList<>();
+        for (String arg : args) {
+            list.add(bytes(arg));
+        }
+        return list;
+    }
+
+    @Test
+    public void testLoadValue() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] session = key("session");
+            byte[] immortal = key("immortal");
+            byte[] legacy = key("legacy");
+            jedis.set(session, ByteBuffer.allocate(RedisSessionDataMap.VALUE_HEADER_LENGTH + 4)
+                    .put((byte) JavaSessionCodec.FORMAT).put((byte) 0).put(timestamps(1)).put(bytes("data")).array());
+            jedis.set(immortal, ByteBuffer.allocate(RedisSessionDataMap.VALUE_HEADER_LENGTH)
+                    .put((byte) JavaSessionCodec.FORMAT).put((byte) 0).putLong(1).putLong(2).putLong(3).putLong(-1)
+                    .array());
+            jedis.set(legacy, bytes("a value without a header"));
+            List<Object> results = new ArrayList<>();
+            results.add(RedisSessionDataMap.LOAD_VALUE.eval(jedis, Collections.singletonList(session), args("0", "30")));
+            results.add(ttl(jedis, session));
+            results.add(RedisSessionDataMap.LOAD_VALUE.eval(jedis, Collections.singletonList(immortal), args("0", "30")));
+            results.add(ttl(jedis, immortal));
+            results.add(RedisSessionDataMap.LOAD_VALUE.eval(jedis, Collections.singletonList(legacy), args("500", "30")));
+            results.add(ttl(jedis, legacy));
+            results.add(RedisSessionDataMap.LOAD_VALUE.eval(jedis, Collections.singletonList(key("missing")),
+                    args("500", "30")));
+            results.addAll(RedisSessionDataMap.LOAD_VALUE.evalEach(jedis, Arrays.asList(session, key("missing")),
+                    args("1000", "-1")));
+            results.add(ttl(jedis, session));
+            return results;
+        });
+    }
+
+    @Test
+    public void testLoadHash() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] key = key("hash");
+            jedis.hset(key, RedisSessionDataMap.META_FIELD_BYTES, meta(1, 1));
+            jedis.hset(key, bytes(RedisSessionDataMap.ATTRIBUTE_FIELD_PREFIX + "name"), bytes("value"));
+            List<Object> results = new ArrayList<>();
+            results.add(fields(RedisSessionDataMap.LOAD_HASH.eval(jedis, Collections.singletonList(key),
+                    args("0", "30"))));
+            results.add(ttl(jedis, key));
+            results.add(RedisSessionDataMap.LOAD_HASH.eval(jedis, Collections.singletonList(key("missing")),
+                    args("500", "30")));
+            return results;
+        });
+    }
+
+    @Test
+    public void testTouchValue() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] key = key("value");
+            byte[] index = key("index");
+            byte[] value = ByteBuffer.allocate(RedisSessionDataMap.VALUE_HEADER_LENGTH + 4)
+                    .put((byte) JavaSessionCodec.FORMAT).put((byte) 0).put(timestamps(1)).put(bytes("data")).array();
+            jedis.set(key, value);
+            byte[] unformatted = key("unformatted");
+            jedis.set(unformatted, bytes("not a session value at all, long enough to hold timestamps"));
+            List<Object> results = new ArrayList<>();
+            List<byte[]> touch = new ArrayList<>(Arrays.asList(timestamps(100)));
+            touch.addAll(args("60", "12345", "value"));
+            results.add(RedisSessionDataMap.TOUCH_VALUE.eval(jedis, Arrays.asList(key, index), touch));
+            results.add(RedisSessionDataMap.TOUCH_VALUE.eval(jedis, Arrays.asList(key("missing"), index), touch));
+            results.add(RedisSessionDataMap.TOUCH_VALUE.eval(jedis, Collections.singletonList(unformatted), touch));
+            results.add(jedis.get(key));
+            results.add(jedis.ttl(key) > 0);
+            results.add(jedis.zscore(index, bytes("value")));
+            results.add(jedis.get(unformatted));
+            return results;
+        });
+    }
+
+    @Test
+    public void testTouchHash() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] key = key("hash");
+            byte[] index = key("index");
+            jedis.hset(key, RedisSessionDataMap.META_FIELD_BYTES, meta(1, 1));
+            jedis.hset(key, bytes(RedisSessionDataMap.ATTRIBUTE_FIELD_PREFIX + "name"), bytes("value"));
+            jedis.zadd(index, 1, bytes("hash"));
+            List<Object> results = new ArrayList<>();
+            List<byte[]> touch = new ArrayList<>(Arrays.asList(meta(100, 1)));
+            touch.addAll(args("0", "0", "hash"));
+            results.add(RedisSessionDataMap.TOUCH_HASH.eval(jedis, Arrays.asList(key, index), touch));
+            results.add(RedisSessionDataMap.TOUCH_HASH.eval(jedis, Arrays.asList(key("missing"), index), touch));
+            results.add(jedis.hgetAll(key));
+            results.add(jedis.ttl(key));
+            results.add(jedis.zscore(index, bytes("hash")));
+            return results;
+        });
+    }
+
+    @Test
+    public void testStoreHashVersioned() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] key = key("versioned");
+            List<Object> results = new ArrayList<>();
+            List<byte[]> first = args("0", "60", "12345", "versioned", "1");
+            first.add(meta(1, 0));
+            first.addAll(args("0", "a:kept", "1", "a:removed", "2"));
+            results.add(RedisSessionDataMap.STORE_HASH_VERSIONED.eval(jedis, Collections.singletonList(key), first));
+            //a writer that expected the hash not to exist yet has lost the race
+            results.add(RedisSessionDataMap.STORE_HASH_VERSIONED.eval(jedis, Collections.singletonList(key), first));
+            List<byte[]> delta = args("1", "60", "12345", "versioned", "0");
+            delta.add(meta(2, 5));
+            delta.addAll(args("1", "a:removed", "a:added", "3"));
+            results.add(RedisSessionDataMap.STORE_HASH_VERSIONED.eval(jedis, Collections.singletonList(key), delta));
+            results.add(jedis.hgetAll(key));
+            results.add(jedis.ttl(key) > 0);
+            return results;
+        });
+    }
+
+    @Test
+    public void testUnlink() throws Exception {
+        assertEmulated(jedis -> {
+            jedis.set(key("one"), bytes("1"));
+            jedis.set(key("two"), bytes("2"));
+            List<Object> results = new ArrayList<>();
+            results.add(RedisSessionDataMap.UNLINK.eval(jedis, Arrays.asList(key("one"), key("two"), key("three")),
+                    Collections.emptyList()));
+            results.add(jedis.exists(key("one"), key("two")));
+            return results;
+        });
+    }
+
+    @Test
+    public void testClassDictionary() throws Exception {
+        assertEmulated(jedis -> {
+            List<byte[]> key = Collections.singletonList(key("classes"));
+            List<Object> results = new ArrayList<>();
+            results.add(ClassDictionary.EPOCH.eval(jedis, key, args("42")));
+            results.add(ClassDictionary.EPOCH.eval(jedis, key, args("7")));
+            results.add(ClassDictionary.REGISTER.eval(jedis, key, args("java.lang.String@1", "descriptor1", "42")));
+            results.add(ClassDictionary.REGISTER.eval(jedis, key, args("java.lang.Long@2", "descriptor2", "42")));
+            results.add(ClassDictionary.REGISTER.eval(jedis, key, args("java.lang.String@1", "descriptor1", "42")));
+            results.add(ClassDictionary.REGISTER.eval(jedis, key, args("java.lang.Integer@3", "descriptor3", "7")));
+            results.add(jedis.hgetAll(key.get(0)));
+            return results;
+        });
+    }
+
+    @Test
+    public void testReap() throws Exception {
+        assertEmulated(jedis -> {
+            byte[] value = key("value");
+            byte[] chunk = key("value:1:0");
+            byte[] hash = key("hash");
+            jedis.set(value, bytes("header and attributes"));
+            jedis.set(chunk, bytes("chunk"));
+            jedis.hset(hash, RedisSessionDataMap.META_FIELD_BYTES, meta(1, 0));
+            List<Object> results = new ArrayList<>();
+            results.add(SessionReaper.REAP.eval(jedis, Collections.singletonList(value), args("changed", "0")));
+            results.add(SessionReaper.REAP.eval(jedis, Arrays.asList(value, chunk), args("header", "0")));
+            results.add(jedis.exists(value, chunk));
+            List<byte[]> changed = new ArrayList<>(Arrays.asList(meta(2, 0), bytes("1")));
+            results.add(SessionReaper.REAP.eval(jedis, Collections.singletonList(hash), changed));
+            List<byte[]> same = new ArrayList<>(Arrays.asList(meta(1, 0), bytes("1")));
+            results.add(SessionReaper.REAP.eval(jedis, Collections.singletonList(hash), same));
+            results.add(jedis.exists(hash));
+            return results;
+        });
+    }
+
+    @Test
+    public void testReaperLock() throws Exception {
+        assertEmulated(jedis -> {
+            List<byte[]> lock = Collections.singletonList(key("#reaper"));
+            jedis.set(lock.get(0), bytes("node0"));
+            List<Object> results = new ArrayList<>();
+            results.add(SessionReaper.RENEW.eval(jedis, lock, args("node1", "5000")));
+            results.add(SessionReaper.RENEW.eval(jedis, lock, args("node0", "5000")));
+            results.add(jedis.pttl(lock.get(0)) > 0);
+            results.add(SessionReaper.RELEASE.eval(jedis, lock, args("node1")));
+            results.add(SessionReaper.RELEASE.eval(jedis, lock, args("node0")));
+            results.add(jedis.exists(lock.get(0)));
+            return results;
+        });
+    }
+}
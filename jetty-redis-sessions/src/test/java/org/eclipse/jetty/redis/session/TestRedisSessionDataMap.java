@@ -0,0 +1,1671 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * TestRedisSessionDataMap
+ *
+ * Exercises the map directly against a {@link FakeRedis}, with several maps standing in for
+ * several nodes sharing the sessions.
+ */
+public class TestRedisSessionDataMap {
+    private FakeRedis _redis;
+    private final List<RedisSessionDataMap> _maps = new ArrayList<>();
+
+    @BeforeEach
+    public void startRedis() throws Exception {
+        _redis = new FakeRedis();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        for (RedisSessionDataMap map : _maps) {
+            map.stop();
+        }
+        _redis.close();
+    }
+
+    private RedisSessionDataMap newMap() {
+        RedisSessionDataMap map = new RedisSessionDataMap("localhost", Integer.toString(_redis.getPort()));
+        _maps.add(map);
+        return map;
+    }
+
+    private RedisSessionDataMap start(RedisSessionDataMap map) throws Exception {
+        map.initialize(new SessionContext("node" + _maps.indexOf(map), null));
+        map.start();
+        return map;
+    }
+
+    private static SessionData newSession(String id) {
+        return new SessionData(id, "", "0.0.0.0", 1, 2, 3, 60000);
+    }
+
+    private RedisSessionDataMap newVersionedMap(boolean mergeConflicts) throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setHashLayout(true);
+        map.setVersioned(true);
+        map.setMergeConflicts(mergeConflicts);
+        return start(map);
+    }
+
+    @Test
+    public void testVersionedStoreConflict() throws Exception {
+        RedisSessionDataMap node0 = newVersionedMap(false);
+        RedisSessionDataMap node1 = newVersionedMap(false);
+
+        SessionData data = newSession("versioned");
+        data.setAttribute("a", "0");
+        node0.store("versioned", data);
+
+        SessionData loaded = node1.load("versioned");
+        loaded.setAttribute("a", "1");
+        node1.store("versioned", loaded);
+
+        data.setAttribute("a", "2");
+        SessionConflictException conflict = assertThrows(SessionConflictException.class,
+                () -> node0.store("versioned", data));
+        assertEquals(1, conflict.getExpected());
+        assertEquals(2, conflict.getActual());
+        assertEquals("1", node0.load("versioned").getAttribute("a"));
+
+        SessionData reloaded = node0.load("versioned");
+        reloaded.setAttribute("a", "3");
+        node0.store("versioned", reloaded);
+        assertEquals("3", node1.load("versioned").getAttribute("a"));
+    }
+
+    @Test
+    public void testVersionedStoreMerge() throws Exception {
+        RedisSessionDataMap node0 = newVersionedMap(true);
+        RedisSessionDataMap node1 = newVersionedMap(true);
+
+        SessionData data = newSession("merged");
+        data.setAttribute("a", "0");
+        data.setAttribute("b", "0");
+        node0.store("merged", data);
+
+        SessionData loaded = node1.load("merged");
+        loaded.setAttribute("b", "1");
+        loaded.setAttribute("c", "1");
+        node1.store("merged", loaded);
+
+        data.setAttribute("a", "2");
+        node0.store("merged", data);
+
+        SessionData merged = node1.load("merged");
+        assertEquals("2", merged.getAttribute("a"));
+        assertEquals("1", merged.getAttribute("b"));
+        assertEquals("1", merged.getAttribute("c"));
+        assertEquals(3, merged.getKeys().size());
+    }
+
+    @Test
+    public void testExpiryFromMaxInactiveInterval() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setExpiryGraceSec(60);
+        start(map);
+
+        SessionData shortLived = newSession("short");
+        shortLived.setMaxInactiveMs(30000);
+        map.store("short", shortLived);
+        SessionData longLived = newSession("long");
+        longLived.setMaxInactiveMs(3600000);
+        map.store("long", longLived);
+        SessionData immortal = newSession("immortal");
+        immortal.setMaxInactiveMs(-1);
+        map.store("immortal", immortal);
+
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            assertTtl(90, jedis.ttl("short"));
+            assertTtl(3660, jedis.ttl("long"));
+            assertEquals(-1, (long) jedis.ttl("immortal"));
+
+            //each load refreshes the ttl of its own session, in the same command as the read
+            jedis.expire("short", 5);
+            jedis.expire("long", 5);
+            _redis.resetCounts();
+            map.load("short");
+            map.load("long");
+            map.load("immortal");
+            assertEquals(3, _redis.getOperations());
+            assertTtl(90, jedis.ttl("short"));
+            assertTtl(3660, jedis.ttl("long"));
+            assertEquals(-1, (long) jedis.ttl("immortal"));
+
+            jedis.expire("short", 5);
+            jedis.expire("long", 5);
+            _redis.resetCounts();
+            assertEquals(3, map.loadAll(Arrays.asList("short", "long", "immortal")).size());
+            assertEquals(1, _redis.getRoundTrips());
+            assertTtl(90, jedis.ttl("short"));
+            assertTtl(3660, jedis.ttl("long"));
+            assertEquals(-1, (long) jedis.ttl("immortal"));
+        }
+
+        RedisSessionDataMap hashes = newMap();
+        hashes.setHashLayout(true);
+        hashes.setExpiryGraceSec(60);
+        start(hashes);
+        hashes.store("hashed", shortLived);
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            jedis.expire("hashed", 5);
+            _redis.resetCounts();
+            assertNotNull(hashes.load("hashed"));
+            assertEquals(1, _redis.getOperations());
+            assertTtl(90, jedis.ttl("hashed"));
+        }
+    }
+
+    private static void assertTtl(long expected, long ttl) {
+        assertTrue(ttl > expected - 5 && ttl <= expected, "ttl " + ttl + " expected " + expected);
+    }
+
+    @Test
+    public void testHashDeltaWrites() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setHashLayout(true);
+        start(map);
+        RedisSessionDataMap other = newMap();
+        other.setHashLayout(true);
+        start(other);
+
+        SessionData data = newSession("delta");
+        data.setAttribute("changed", 1);
+        data.setAttribute("unchanged", "same");
+        data.setAttribute("removed", "gone");
+        map.store("delta", data);
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            assertTrue(jedis.hexists("delta", "a:changed"));
+            assertTrue(jedis.hexists("delta", "a:unchanged"));
+            assertTrue(jedis.hexists("delta", "a:removed"));
+
+            //an unchanged attribute is not written again, so one dropped behind the map's back stays dropped
+            jedis.hdel("delta", "a:unchanged");
+            data.setAttribute("changed", 2);
+            data.setAttribute("removed", null);
+            map.store("delta", data);
+            assertFalse(jedis.hexists("delta", "a:unchanged"));
+            assertFalse(jedis.hexists("delta", "a:removed"));
+        }
+
+        //the attribute count written with the session no longer matches, yet the session is readable
+        SessionData loaded = other.load("delta");
+        assertNotNull(loaded);
+        assertEquals(2, loaded.getAttribute("changed"));
+        assertEquals(1, loaded.getKeys().size());
+    }
+
+    @Test
+    public void testTouchUnchangedSessions() throws Exception {
+        for (boolean hashLayout : new boolean[]{false, true}) {
+            _redis.flushAll();
+            RedisSessionDataMap map = newMap();
+            map.setHashLayout(hashLayout);
+            map.setExpiryGraceSec(60);
+            start(map);
+            RedisSessionDataMap other = newMap();
+            other.setHashLayout(hashLayout);
+            start(other);
+
+            SessionData data = newSession("touched");
+            data.setAttribute("name", "value");
+            map.store("touched", data);
+            try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+                byte[] key = "touched".getBytes(StandardCharsets.UTF_8);
+                byte[] attributes = attributes(jedis, key, hashLayout);
+                jedis.expire(key, 5);
+
+                //only the timestamps and the ttl are written, in a single command
+                data.setAccessed(1000);
+                data.setLastAccessed(500);
+                data.setMaxInactiveMs(120000);
+                _redis.resetCounts();
+                assertTrue(map.touch("touched", data));
+                assertEquals(1, _redis.getOperations());
+                assertTtl(180, jedis.ttl(key));
+                assertArrayEquals(attributes, attributes(jedis, key, hashLayout));
+
+                SessionData loaded = other.load("touched");
+                assertEquals(1, loaded.getCreated());
+                assertEquals(1000, loaded.getAccessed());
+                assertEquals(500, loaded.getLastAccessed());
+                assertEquals(120000, loaded.getMaxInactiveMs());
+                assertEquals("value", loaded.getAttribute("name"));
+
+                //a session that is no longer stored is not recreated without its attributes
+                jedis.del(key);
+                assertFalse(map.touch("touched", data));
+                assertFalse(jedis.exists(key));
+            }
+        }
+    }
+
+    /**
+     * @return the stored form of the attributes of a session, without its timestamps
+     */
+    private static byte[] attributes(Jedis jedis, byte[] key, boolean hashLayout) {
+        if (hashLayout) {
+            return jedis.hget(key, "a:name".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] value = jedis.get(key);
+        return Arrays.copyOfRange(value, RedisSessionDataMap.VALUE_HEADER_LENGTH, value.length);
+    }
+
+    @Test
+    public void testChunkedSessions() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setChunkSize(1024);
+        start(map);
+
+        byte[] blob = new byte[10000];
+        new Random(0).nextBytes(blob);
+        SessionData large = newSession("large");
+        large.setAttribute("blob", blob);
+        large.setAttribute("name", "large");
+        map.store("large", large);
+        int chunks = _redis.size() - 1;
+        assertTrue(chunks >= 10, chunks + " chunks");
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            assertEquals(SessionChunks.MANIFEST_LENGTH, jedis.get("large".getBytes()).length);
+        }
+
+        SessionData loaded = map.load("large");
+        assertArrayEquals(blob, (byte[]) loaded.getAttribute("blob"));
+        assertEquals("large", loaded.getAttribute("name"));
+
+        SessionData small = newSession("small");
+        small.setAttribute("name", "small");
+        map.store("small", small);
+        assertEquals(chunks + 2, _redis.size());
+        assertEquals("small", map.load("small").getAttribute("name"));
+
+        loaded.removeAttribute("blob");
+        map.store("large", loaded);
+        assertEquals(2, _redis.size());
+        assertEquals("large", map.load("large").getAttribute("name"));
+
+        loaded.setAttribute("blob", blob);
+        map.store("large", loaded);
+        assertEquals(chunks + 2, _redis.size());
+        assertTrue(map.delete("large"));
+        assertEquals(1, _redis.size());
+        assertFalse(map.delete("large"));
+        assertEquals(null, map.load("large"));
+    }
+
+    /**
+     * An attribute that counts how many times it is deserialized.
+     */
+    public static class Counted implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger READS = new AtomicInteger();
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            READS.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testBinarySessionCodec() throws Exception {
+        char[] chars = new char[200];
+        Arrays.fill(chars, '\u00e9');
+        byte[] bytes = new byte[300];
+        new Random(0).nextBytes(bytes);
+        Set<Object> linked = new LinkedHashSet<>(Arrays.asList("z", "a", 3));
+        Map<Object, Object> map = new HashMap<>();
+        map.put("key", new ArrayList<>(Arrays.asList(1L, null, new HashSet<>(Collections.singleton('c')))));
+        map.put(7, new HashMap<>());
+        List<Object> values = Arrays.asList(null, "", "text", new String(chars), true, false, (byte) -1, (short) 300,
+                'x', Integer.MIN_VALUE, Long.MAX_VALUE, 1.5f, Double.NaN, bytes, new ArrayList<>(Arrays.asList("a", 1)),
+                new HashSet<>(Arrays.asList("a", "b")), linked, map, new TreeMap<>(Collections.singletonMap("k", "v")),
+                UUID.randomUUID());
+
+        BinarySessionCodec codec = new BinarySessionCodec();
+        for (Object value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.encodeAttribute(value, out);
+            Object decoded = codec.decodeAttribute(new ByteArrayInputStream(out.toByteArray()));
+            if (value instanceof byte[]) {
+                assertArrayEquals((byte[]) value, (byte[]) decoded);
+            } else {
+                assertEquals(value, decoded);
+                assertEquals(value == null ? null : value.getClass(), decoded == null ? null : decoded.getClass());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encodeAttribute(linked, out);
+        assertEquals(new ArrayList<>(linked),
+                new ArrayList<>((Set<?>) codec.decodeAttribute(new ByteArrayInputStream(out.toByteArray()))));
+
+        //attributes are written independently, so shared values are read back as copies
+        SessionData data = newSession("binary");
+        List<String> shared = new ArrayList<>(Collections.singletonList("shared"));
+        data.setAttribute("first", shared);
+        data.setAttribute("second", shared);
+        data.setAttribute("map", map);
+        out = new ByteArrayOutputStream();
+        codec.encodeAttributes(data, out);
+        SessionData decoded = newSession("binary");
+        codec.decodeAttributes(decoded, new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(data.getAllAttributes(), decoded.getAllAttributes());
+        assertNotSame(decoded.getAttribute("first"), decoded.getAttribute("second"));
+
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        assertThrows(EOFException.class, () -> codec.decodeAttributes(newSession("binary"),
+                new ByteArrayInputStream(truncated)));
+        assertThrows(StreamCorruptedException.class, () -> codec.decodeAttribute(new ByteArrayInputStream(new byte[]{99})));
+
+        //sessions written by the binary codec are read by maps configured with another codec
+        for (boolean hashLayout : new boolean[]{false, true}) {
+            RedisSessionDataMap binary = newMap();
+            binary.setCodec(codec);
+            binary.setHashLayout(hashLayout);
+            start(binary);
+            RedisSessionDataMap java = newMap();
+            java.setHashLayout(hashLayout);
+            start(java);
+            binary.store("binary", data);
+            assertEquals(data.getAllAttributes(), java.load("binary").getAllAttributes());
+            _redis.flushAll();
+        }
+    }
+
+    @Test
+    public void testLazyAttributes() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setHashLayout(true);
+        map.setLazyAttributes(true);
+        start(map);
+
+        SessionData data = newSession("lazy");
+        data.setAttribute("counted", new Counted());
+        data.setAttribute("name", "lazy");
+        map.store("lazy", data);
+
+        Counted.READS.set(0);
+        SessionData loaded = map.load("lazy");
+        assertEquals(2, loaded.getKeys().size());
+        assertEquals("lazy", loaded.getAttribute("name"));
+        assertEquals(0, Counted.READS.get());
+        Object counted = loaded.getAttribute("counted");
+        assertTrue(counted instanceof Counted);
+        assertSame(counted, loaded.getAttribute("counted"));
+        assertEquals(1, Counted.READS.get());
+
+        loaded = map.load("lazy");
+        loaded.setAttribute("name", "changed");
+        map.store("lazy", loaded);
+        assertEquals(1, Counted.READS.get());
+
+        loaded = map.load("lazy");
+        assertEquals("changed", loaded.getAttribute("name"));
+        assertTrue(loaded.setAttribute("counted", null) instanceof Counted);
+        assertEquals(2, Counted.READS.get());
+        map.store("lazy", loaded);
+        assertEquals(1, map.load("lazy").getKeys().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNearCacheDeserializesEveryHit() throws Exception {
+        for (int layout = 0; layout < 3; layout++) {
+            _redis.flushAll();
+            RedisSessionDataMap map = newMap();
+            map.setNearCacheSize(16);
+            map.setHashLayout(layout > 0);
+            map.setLazyAttributes(layout > 1);
+            awaitNearCache(start(map));
+
+            SessionData data = newSession("cached");
+            data.setAttribute("list", new ArrayList<>(Collections.singletonList("stored")));
+            map.store("cached", data);
+            ((List<String>) data.getAttribute("list")).add("changed after store");
+
+            List<String> list = (List<String>) map.load("cached").getAttribute("list");
+            assertEquals(Collections.singletonList("stored"), list);
+            list.add("changed after load");
+            assertEquals(Collections.singletonList("stored"), map.load("cached").getAttribute("list"));
+            assertEquals(2, map.getNearCacheHits());
+        }
+    }
+
+    @Test
+    public void testNearCacheInvalidation() throws Exception {
+        RedisSessionDataMap node0 = newMap();
+        node0.setNearCacheSize(16);
+        awaitNearCache(start(node0));
+        SessionData data = newSession("shared");
+        data.setAttribute("a", "0");
+        node0.store("shared", data);
+
+        //started after the first store, so that its announcement cannot reach the cache late
+        RedisSessionDataMap node1 = newMap();
+        node1.setNearCacheSize(16);
+        awaitNearCache(start(node1));
+        assertEquals("0", node1.load("shared").getAttribute("a"));
+        assertEquals("0", node1.load("shared").getAttribute("a"));
+        assertEquals(1, node1.getNearCacheHits());
+        assertEquals(1, node1.getNearCacheEntries());
+
+        data.setAttribute("a", "1");
+        node0.store("shared", data);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (node1.getNearCacheEntries() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, node1.getNearCacheEntries());
+        assertEquals("1", node1.load("shared").getAttribute("a"));
+        assertEquals(1, node1.getNearCacheHits());
+
+        SessionData loaded = node1.load("shared");
+        loaded.setAccessed(100);
+        assertTrue(node1.touch("shared", loaded));
+        assertEquals(100, node1.load("shared").getAccessed());
+        assertEquals(3, node1.getNearCacheHits());
+    }
+
+    @Test
+    public void testNearCacheSubscribesOutsideThePool() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setNearCacheSize(16);
+        map.setMaxTotal(1);
+        map.setMaxWaitMs(500);
+        awaitNearCache(start(map));
+        assertEquals(1, _redis.getSubscribers("invalidations"));
+        assertEquals(0, map.getMetrics().getPoolActive());
+
+        //the only pooled connection is left for the sessions
+        map.store("pooled", newSession("pooled"));
+        assertNotNull(map.load("pooled"));
+
+        _maps.remove(map);
+        map.stop();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (_redis.getSubscribers("invalidations") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, _redis.getSubscribers("invalidations"));
+    }
+
+    @Test
+    public void testNearCacheStamps() {
+        NearCache cache = new NearCache(2, 1000);
+        SessionWrite a = SessionWrite.value("a", new byte[100], 0);
+        cache.put("a", a);
+        assertNull(cache.get("a"));
+        cache.open();
+
+        //a read that started before an invalidation of its session is not cached
+        long stamp = cache.stamp();
+        cache.invalidate("a");
+        cache.put("a", a, stamp);
+        assertNull(cache.get("a"));
+        cache.put("a", a, cache.stamp());
+        assertSame(a, cache.get("a"));
+        cache.put("b", SessionWrite.value("b", new byte[100], 0), stamp);
+        assertNotNull(cache.get("b"));
+
+        //bounded by count and by size, evicting the least recently used first
+        cache.put("c", SessionWrite.value("c", new byte[100], 0));
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.getSize());
+        assertEquals(200, cache.getBytes());
+        cache.put("c", SessionWrite.value("c", new byte[2000], 0));
+        assertNull(cache.get("c"));
+        assertEquals(100, cache.getBytes());
+
+        //once more invalidations have been seen than are remembered, older reads are not cached
+        stamp = cache.stamp();
+        cache.invalidate("x");
+        cache.invalidate("y");
+        cache.invalidate("z");
+        cache.put("d", SessionWrite.value("d", new byte[100], 0), stamp);
+        assertNull(cache.get("d"));
+
+        //nor are reads that started before the cache was last reopened
+        stamp = cache.stamp();
+        cache.close();
+        cache.open();
+        assertEquals(0, cache.getSize());
+        cache.put("e", SessionWrite.value("e", new byte[100], 0), stamp);
+        assertNull(cache.get("e"));
+
+        //touches update the timestamps of the cached value
+        byte[] value = new byte[RedisSessionDataMap.VALUE_HEADER_LENGTH + 1];
+        value[0] = 1;
+        cache.put("t", SessionWrite.value("t", value, 0));
+        byte[] timestamps = new byte[RedisSessionDataMap.TIMESTAMPS_LENGTH];
+        Arrays.fill(timestamps, (byte) 7);
+        cache.touch(SessionWrite.touch("t", timestamps, 0, 0, null));
+        byte[] touched = cache.get("t").getValue();
+        assertArrayEquals(timestamps, Arrays.copyOfRange(touched, RedisSessionDataMap.TIMESTAMPS_OFFSET,
+                RedisSessionDataMap.VALUE_HEADER_LENGTH));
+        assertEquals(0, value[RedisSessionDataMap.TIMESTAMPS_OFFSET]);
+        cache.touch(SessionWrite.touch("u", timestamps, 0, 0, null));
+        assertNull(cache.get("u"));
+    }
+
+    private static void awaitNearCache(RedisSessionDataMap map) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!map._nearCache.isOpen() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(map._nearCache.isOpen());
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        for (boolean hashLayout : new boolean[]{false, true}) {
+            _redis.flushAll();
+            RedisSessionDataMap map = newMap();
+            map.setHashLayout(hashLayout);
+            start(map);
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                SessionData data = newSession("batch" + i);
+                data.setAttribute("index", i);
+                map.store("batch" + i, data);
+                ids.add("batch" + i);
+            }
+            List<String> requested = new ArrayList<>(ids);
+            requested.addAll(Arrays.asList("missing0", "missing1"));
+
+            _redis.resetCounts();
+            Map<String, SessionData> loaded = map.loadAll(requested);
+            assertEquals(1, _redis.getRoundTrips());
+            assertEquals(10, loaded.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, loaded.get("batch" + i).getAttribute("index"));
+            }
+
+            _redis.resetCounts();
+            Map<String, Boolean> exists = map.existsAll(requested);
+            assertEquals(1, _redis.getRoundTrips());
+            assertTrue(exists.get("batch0"));
+            assertFalse(exists.get("missing0"));
+
+            _redis.resetCounts();
+            Map<String, Boolean> deleted = map.deleteAll(Arrays.asList("batch0", "batch1", "missing0"));
+            assertEquals(1, _redis.getRoundTrips());
+            assertTrue(deleted.get("batch0"));
+            assertTrue(deleted.get("batch1"));
+            assertFalse(deleted.get("missing0"));
+            assertEquals(8, map.loadAll(requested).size());
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(4);
+        map.setCircuitBreakerOpenMs(200);
+        start(map);
+        map.store("before", newSession("before"));
+
+        _redis.setUnavailable(true);
+        for (int i = 0; i < 4; i++) {
+            SessionData data = newSession("during" + i);
+            data.setAttribute("count", i);
+            map.store("during" + i, data);
+        }
+        assertEquals("OPEN", map.getCircuitState());
+        assertEquals(3, map.load("during3").getAttribute("count"));
+        assertNull(map.load("before"));
+        assertTrue(map.delete("before"));
+        assertEquals(5, map.getDegradedPending());
+
+        _redis.setUnavailable(false);
+        Thread.sleep(300);
+        map.store("after", newSession("after"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (map.getDegradedPending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("CLOSED", map.getCircuitState());
+        assertEquals(0, map.getDegradedPending());
+        RedisSessionDataMap other = start(newMap());
+        assertEquals(3, other.load("during3").getAttribute("count"));
+        assertNull(other.load("before"));
+        assertNotNull(other.load("after"));
+    }
+
+    @Test
+    public void testBatchAndAsyncOperationsDegrade() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setAsyncConnections(1);
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(2);
+        map.setCircuitBreakerOpenMs(60000);
+        start(map);
+        RedisSessionDataMap async = newMap();
+        async.setAsyncConnections(1);
+        async.setCircuitBreaker(true);
+        async.setCircuitBreakerWindow(10);
+        start(async);
+        map.store("kept", newSession("kept"));
+
+        _redis.setUnavailable(true);
+        map.store("during0", newSession("during0"));
+        map.store("during1", newSession("during1"));
+        assertEquals("OPEN", map.getCircuitState());
+
+        //while the circuit is open batches are served from memory
+        Map<String, SessionData> loaded = map.loadAll(Arrays.asList("during0", "kept", "missing"));
+        assertEquals(Collections.singleton("during0"), loaded.keySet());
+        Map<String, Boolean> exists = map.existsAll(Arrays.asList("during0", "kept"));
+        assertTrue(exists.get("during0"));
+        assertTrue(exists.get("kept"));
+        assertEquals(Collections.singletonMap("during1", true), map.deleteAll(Collections.singleton("during1")));
+        assertFalse(map.existsAll(Collections.singleton("during1")).get("during1"));
+        assertTrue(map.loadAll(Collections.singleton("during1")).isEmpty());
+
+        //and so are asynchronous operations
+        map.storeAsync("async", newSession("async")).get(5, TimeUnit.SECONDS);
+        assertNotNull(map.loadAsync("async").get(5, TimeUnit.SECONDS));
+        assertTrue(map.deleteAsync("async").get(5, TimeUnit.SECONDS));
+        assertNull(map.loadAsync("async").get(5, TimeUnit.SECONDS));
+        assertEquals(3, map.getDegradedPending());
+
+        //asynchronous operations that cannot reach redis are done in memory and counted by the circuit
+        async.storeAsync("async", newSession("async")).get(5, TimeUnit.SECONDS);
+        assertNotNull(async.loadAsync("async").get(5, TimeUnit.SECONDS));
+        assertEquals(1, async.getDegradedPending());
+        assertTrue(async.getMetrics().getDegraded() >= 2);
+    }
+
+    @Test
+    public void testCorruptSessionsKeepCircuitClosed() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(2);
+        start(map);
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            jedis.set("corrupt", "not a session");
+        }
+        for (int i = 0; i < 4; i++) {
+            assertThrows(Exception.class, () -> map.load("corrupt"));
+        }
+        assertEquals("CLOSED", map.getCircuitState());
+        assertEquals(0, map.getMetrics().getDegraded());
+        map.store("stored", newSession("stored"));
+        assertNotNull(start(newMap()).load("stored"));
+    }
+
+    @Test
+    public void testSlowCallsOpenCircuit() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(2);
+        map.setStoreBudgetMs(5);
+        start(map);
+        _redis.setLatency(20);
+        map.store("slow", newSession("slow"));
+        map.store("slow", newSession("slow"));
+        assertEquals("OPEN", map.getCircuitState());
+        assertEquals(2, map.getMetrics().getSlowCalls());
+        _redis.resetCounts();
+        assertNull(map.load("slow"));
+        assertEquals(0, _redis.getOperations());
+        assertEquals(1, map.getMetrics().getDegraded());
+    }
+
+    @Test
+    public void testExhaustedPoolDegrades() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(2);
+        map.setMaxTotal(1);
+        map.setMaxWaitMs(20);
+        start(map);
+        _redis.setLatency(300);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> holding = executor.submit(() -> {
+                map.store("holding", newSession("holding"));
+                return null;
+            });
+            Thread.sleep(100);
+            SessionData data = newSession("waiting");
+            data.setAttribute("count", 1);
+            map.store("waiting", data);
+            assertEquals(1, map.getMetrics().getDegraded());
+            assertEquals(1, map.getDegradedPending());
+            holding.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, map.load("waiting").getAttribute("count"));
+    }
+
+    @Test
+    public void testSocketTimeoutDegrades() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setCircuitBreaker(true);
+        map.setCircuitBreakerWindow(2);
+        map.setSoTimeout(50);
+        start(map);
+        _redis.setLatency(200);
+        map.store("timeout0", newSession("timeout0"));
+        map.store("timeout1", newSession("timeout1"));
+        assertEquals("OPEN", map.getCircuitState());
+        assertEquals(2, map.getDegradedPending());
+    }
+
+    @Test
+    public void testMultiplexedReadTimeout() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setAsyncConnections(1);
+        map.setSoTimeout(50);
+        start(map);
+        map.store("answered", newSession("answered"));
+        _redis.setLatency(1000);
+        long start = System.nanoTime();
+        assertThrows(JedisConnectionException.class, () -> map.load("answered"));
+        CompletableFuture<SessionData> pending = map.loadAsync("answered");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof JedisConnectionException, e.getCause().toString());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+
+        //the broken connection is replaced once redis answers again
+        _redis.setLatency(0);
+        assertNotNull(map.load("answered"));
+    }
+
+    @Test
+    public void testMultiplexedWriteFailure() throws Exception {
+        try (RespClient client = new RespClient("localhost", _redis.getPort(), 1, 2000, 2000, null, 0, null,
+                false, null, null, null, new SessionMetrics())) {
+            //a command that cannot be written fails the commands pipelined after it too
+            List<CompletableFuture<Object>> replies = client.pipeline(Arrays.asList(
+                    RespClient.command("GET", "a"), new byte[][]{"GET".getBytes(), null}, RespClient.command("GET", "b")));
+            for (CompletableFuture<Object> reply : replies) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof JedisConnectionException, e.getCause().toString());
+            }
+            assertNull(client.await(client.send(RespClient.command("GET", "a"))));
+        }
+    }
+
+    @Test
+    public void testWriteBehindMergesAndRetries() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        map.setWriteBehindFlushIntervalMs(10);
+        start(map);
+        _redis.setUnavailable(true);
+        for (int i = 1; i <= 3; i++) {
+            SessionData data = newSession("queued");
+            data.setAttribute("count", i);
+            map.store("queued", data);
+        }
+        assertEquals(1, map.getWriteBehindPending());
+        Thread.sleep(500);
+        assertEquals(1, map.getWriteBehindPending());
+        assertEquals(0, map.getMetrics().getWritesDropped());
+        assertEquals(3, map.load("queued").getAttribute("count"));
+
+        _redis.setUnavailable(false);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (map.getWriteBehindPending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, map.getWriteBehindPending());
+        assertEquals(3, start(newMap()).load("queued").getAttribute("count"));
+    }
+
+    @Test
+    public void testWriteBehindFailsStop() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        start(map);
+        _redis.setUnavailable(true);
+        map.store("lost", newSession("lost"));
+        _maps.remove(map);
+        assertThrows(IOException.class, map::stop);
+        assertEquals(1, map.getMetrics().getWritesDropped());
+    }
+
+    @Test
+    public void testWriteBehindTouchOfMissingSession() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        start(map);
+        SessionData data = newSession("evicted");
+        data.setAttribute("a", "1");
+        map.store("evicted", data);
+        awaitWrittenBehind(map);
+
+        //redis lost the session, so the queued touch is written as a store of the whole session
+        _redis.flushAll();
+        assertTrue(map.touch("evicted", data));
+        awaitWrittenBehind(map);
+        assertEquals("1", start(newMap()).load("evicted").getAttribute("a"));
+        assertEquals(0, map.getMetrics().getWritesDropped());
+    }
+
+    @Test
+    public void testWriteBehindBoundsRetries() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        map.setWriteBehindMaxRetryMs(200);
+        start(map);
+        _redis.setUnavailable(true);
+        map.store("dropped", newSession("dropped"));
+        awaitWrittenBehind(map);
+        assertEquals(1, map.getMetrics().getWritesDropped());
+    }
+
+    @Test
+    public void testWriteBehindCapacityCountsWritesInFlight() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        map.setWriteBehindQueueSize(1);
+        map.setWriteBehindMaxWaitMs(100);
+        start(map);
+        _redis.setLatency(500);
+        map.store("first", newSession("first"));
+        Thread.sleep(100);
+
+        //the write of the first session is in flight, and still fills the queue
+        assertThrows(IOException.class, () -> map.store("second", newSession("second")));
+        _redis.setLatency(0);
+        awaitWrittenBehind(map);
+        map.store("second", newSession("second"));
+        awaitWrittenBehind(map);
+        assertNotNull(start(newMap()).load("second"));
+    }
+
+    private static void awaitWrittenBehind(RedisSessionDataMap map) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (map.getWriteBehindPending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, map.getWriteBehindPending());
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setWarmUp(true);
+        map.setMinIdle(4);
+        start(map);
+        assertEquals(4, map.getMetrics().getPoolIdle());
+        assertTrue(map.getStartupMs() >= 0);
+
+        _redis.setUnavailable(true);
+        RedisSessionDataMap unreachable = newMap();
+        unreachable.setWarmUp(true);
+        assertThrows(IllegalStateException.class, () -> start(unreachable));
+    }
+
+    @Test
+    public void testFailedStartStopsThreads() throws Exception {
+        Set<Thread> before = sessionThreads();
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        map.setNearCacheSize(16);
+        map.setKeyPrefix("failing:");
+        map.setReaperIntervalMs(60000);
+        map.addBean(new AbstractLifeCycle() {
+            @Override
+            protected void doStart() {
+                throw new IllegalStateException("failed");
+            }
+        }, true);
+        assertThrows(IllegalStateException.class, () -> start(map));
+        Set<Thread> after = sessionThreads();
+        after.removeAll(before);
+        assertEquals(Collections.emptySet(), after);
+        assertEquals(0, map.getWriteBehindPending());
+    }
+
+    private static Set<Thread> sessionThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("redis-session-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void testCluster() throws Exception {
+        try (FakeRedis second = new FakeRedis(); FakeRedis third = new FakeRedis()) {
+            FakeRedis.cluster(_redis, second, third);
+            RedisSessionDataMap map = newMap();
+            map.setClusterNodes("127.0.0.1:" + _redis.getPort());
+            map.setChunkSize(1024);
+            start(map);
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < 90; i++) {
+                SessionData data = newSession("slot" + i);
+                data.setAttribute("index", i);
+                map.store("slot" + i, data);
+                ids.add("slot" + i);
+            }
+            assertEquals(90, _redis.size() + second.size() + third.size());
+            for (FakeRedis node : Arrays.asList(_redis, second, third)) {
+                assertTrue(node.size() > 15, node.size() + " sessions on a node");
+            }
+
+            //the chunks of a session are in the hash slot of its id, with its manifest
+            byte[] blob = new byte[10000];
+            new Random(0).nextBytes(blob);
+            SessionData large = newSession("large");
+            large.setAttribute("blob", blob);
+            map.store("large", large);
+            assertArrayEquals(blob, (byte[]) map.load("large").getAttribute("blob"));
+
+            Map<String, SessionData> loaded = map.loadAll(ids);
+            assertEquals(90, loaded.size());
+            assertEquals(7, loaded.get("slot7").getAttribute("index"));
+
+            //batches take one round trip per node, however many hash slots the node serves
+            List<FakeRedis> nodes = Arrays.asList(_redis, second, third);
+            nodes.forEach(FakeRedis::resetCounts);
+            assertEquals(90, map.loadAll(ids).size());
+            for (FakeRedis node : nodes) {
+                assertEquals(1, node.getRoundTrips());
+            }
+            nodes.forEach(FakeRedis::resetCounts);
+            assertTrue(map.existsAll(ids).values().stream().allMatch(Boolean::booleanValue));
+            for (FakeRedis node : nodes) {
+                assertEquals(1, node.getRoundTrips());
+            }
+
+            //hash slots moved to other nodes are followed, by batches too
+            FakeRedis.cluster(third, _redis, second);
+            loaded = map.loadAll(ids);
+            assertEquals(90, loaded.size());
+            assertEquals(7, loaded.get("slot7").getAttribute("index"));
+            FakeRedis.cluster(second, third, _redis);
+            for (int i = 0; i < 90; i++) {
+                assertEquals(i, map.load("slot" + i).getAttribute("index"));
+            }
+            assertArrayEquals(blob, (byte[]) map.load("large").getAttribute("blob"));
+        }
+    }
+
+    @Test
+    public void testClusterRejectsSslAndDatabase() throws Exception {
+        FakeRedis.cluster(_redis);
+        RedisSessionDataMap ssl = newMap();
+        ssl.setClusterNodes("127.0.0.1:" + _redis.getPort());
+        ssl.setSSL(true);
+        assertThrows(IllegalStateException.class, () -> start(ssl));
+        RedisSessionDataMap database = newMap();
+        database.setClusterNodes("127.0.0.1:" + _redis.getPort());
+        database.setDatabase(1);
+        assertThrows(IllegalStateException.class, () -> start(database));
+    }
+
+    @Test
+    public void testClusterDoesNotRetrySentCommands() throws Exception {
+        try (FakeRedis second = new FakeRedis()) {
+            FakeRedis.cluster(_redis, second);
+            RedisSessionDataMap map = newMap();
+            map.setClusterNodes("127.0.0.1:" + _redis.getPort());
+            map.setSoTimeout(100);
+            start(map);
+            AtomicInteger touches = new AtomicInteger();
+            for (FakeRedis node : Arrays.asList(_redis, second)) {
+                node.script(RedisSessionDataMap.TOUCH_VALUE, (redis, keys, args) -> (long) touches.incrementAndGet());
+                node.setLatency(300);
+            }
+
+            //the touch times out once sent, and may have run, so it is not sent again
+            assertThrows(JedisConnectionException.class, () -> map.touch("once", newSession("once")));
+            Thread.sleep(1000);
+            assertEquals(1, touches.get());
+        }
+    }
+
+    @Test
+    public void testSentinelRejectsSsl() throws Exception {
+        try (FakeRedis sentinel = new FakeRedis()) {
+            sentinel.monitor("sessions", _redis);
+            RedisSessionDataMap map = newMap();
+            map.setSentinels("127.0.0.1:" + sentinel.getPort());
+            map.setSentinelMaster("sessions");
+            map.setSSL(true);
+            assertThrows(IllegalStateException.class, () -> start(map));
+        }
+    }
+
+    @Test
+    public void testSentinel() throws Exception {
+        try (FakeRedis sentinel = new FakeRedis(); FakeRedis replica = new FakeRedis(); FakeRedis standby = new FakeRedis()) {
+            sentinel.monitor("sessions", _redis, replica);
+            RedisSessionDataMap map = newMap();
+            map.setSentinels("127.0.0.1:" + sentinel.getPort());
+            map.setSentinelMaster("sessions");
+            map.setReplicaReads(true);
+            start(map);
+
+            SessionData data = newSession("replicated");
+            data.setAttribute("a", "0");
+            map.store("replicated", data);
+            assertEquals(1, _redis.size());
+            assertEquals(0, replica.size());
+
+            //a session that the replica does not have is read from the primary
+            assertEquals("0", map.load("replicated").getAttribute("a"));
+
+            //otherwise it is read from the replica, however stale
+            try (Jedis primary = new Jedis("127.0.0.1", _redis.getPort());
+                 Jedis copy = new Jedis("127.0.0.1", replica.getPort())) {
+                byte[] key = "replicated".getBytes(StandardCharsets.UTF_8);
+                copy.set(key, primary.get(key));
+            }
+            data.setAttribute("a", "1");
+            map.store("replicated", data);
+            assertEquals("0", map.load("replicated").getAttribute("a"));
+            SentinelTopology topology = (SentinelTopology) map._topology;
+            assertEquals(replica.getPort(), topology.getReplicas().iterator().next().getPort());
+
+            //or from the primary when the replica cannot be reached
+            replica.setUnavailable(true);
+            assertEquals("1", map.load("replicated").getAttribute("a"));
+            replica.setUnavailable(false);
+
+            //writes follow the primary through a failover
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (sentinel.getSubscribers("+switch-master") == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            sentinel.monitor("sessions", standby, replica);
+            while (topology.getPrimary().getPort() != standby.getPort() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            map.store("failover", data);
+            assertEquals(1, standby.size());
+        }
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        try (FakeRedis second = new FakeRedis()) {
+            RedisSessionDataMap map = newMap();
+            map.setShards("redis://localhost:" + _redis.getPort() + ", redis://localhost:" + second.getPort());
+            map.setChunkSize(1024);
+            start(map);
+            for (int i = 0; i < 100; i++) {
+                SessionData data = newSession("shard" + i);
+                data.setAttribute("index", i);
+                map.store("shard" + i, data);
+            }
+            assertEquals(100, _redis.size() + second.size());
+            assertTrue(_redis.size() > 20 && second.size() > 20, _redis.size() + " and " + second.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, map.load("shard" + i).getAttribute("index"));
+            }
+
+            byte[] blob = new byte[10000];
+            new Random(0).nextBytes(blob);
+            SessionData large = newSession("large");
+            large.setAttribute("blob", blob);
+            map.store("large", large);
+            assertArrayEquals(blob, (byte[]) map.load("large").getAttribute("blob"));
+            assertEquals(2, map.getShardStats().length);
+        }
+    }
+
+    @Test
+    public void testShardRebalancing() {
+        Map<String, JedisPool> pools = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            pools.put("node" + i + ":6379/0", new JedisPool("node" + i, 6379));
+        }
+        ShardedTopology three = new ShardedTopology(pools, new SessionMetrics());
+        pools.put("node3:6379/0", new JedisPool("node3", 6379));
+        ShardedTopology four = new ShardedTopology(pools, new SessionMetrics());
+
+        int keys = 10000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String key = "session:{" + UUID.randomUUID() + "}";
+            int before = three.node(key.getBytes());
+            int after = four.node(key.getBytes());
+            if (before != after) {
+                assertEquals(3, after);
+                moved++;
+            }
+            //chunks go with their session
+            assertEquals(after, four.node((key + ":1f:0").getBytes()));
+        }
+        assertTrue(moved > keys / 6 && moved < keys / 3, moved + " keys moved");
+        three.close();
+        four.close();
+    }
+
+    @Test
+    public void testClassDictionary() throws Exception {
+        RedisSessionDataMap plain = newMap();
+        plain.setCompression(false);
+        start(plain);
+        RedisSessionDataMap dictionary = newMap();
+        dictionary.setCompression(false);
+        dictionary.setClassDictionary(true);
+        start(dictionary);
+
+        SessionData data = newSession("dictionary");
+        data.setAttribute("counted", new Counted());
+        data.setAttribute("roles", new ArrayList<>(Arrays.asList("user", "admin")));
+        data.setAttribute("visits", 42);
+        plain.store("plain", data);
+        dictionary.store("dictionary", data);
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            int plainSize = jedis.get("plain".getBytes()).length;
+            int dictionarySize = jedis.get("dictionary".getBytes()).length;
+            assertTrue(dictionarySize < plainSize * 2 / 3, dictionarySize + " bytes, " + plainSize + " without dictionary");
+        }
+
+        RedisSessionDataMap other = start(newMap());
+        SessionData loaded = other.load("dictionary");
+        assertTrue(loaded.getAttribute("counted") instanceof Counted);
+        assertEquals(Arrays.asList("user", "admin"), loaded.getAttribute("roles"));
+        assertEquals(42, loaded.getAttribute("visits"));
+        assertEquals(loaded.getAllAttributes().keySet(), plain.load("plain").getAllAttributes().keySet());
+
+        //a lost dictionary starts a new epoch: sessions numbered in the old one fail to load rather than
+        //being read with the wrong descriptors, and writers drop their cached numbers
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            jedis.del(RedisSessionDataMap.CLASS_DICTIONARY_KEY);
+        }
+        assertThrows(Exception.class, () -> start(newMap()).load("dictionary"));
+        Thread.sleep(ClassDictionary.EPOCH_CHECK_MS + 100);
+        dictionary.store("dictionary", data);
+        loaded = start(newMap()).load("dictionary");
+        assertTrue(loaded.getAttribute("counted") instanceof Counted);
+        assertEquals(Arrays.asList("user", "admin"), loaded.getAttribute("roles"));
+    }
+
+    @Test
+    public void testSkipUnchangedWrites() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setSkipUnchangedWrites(true);
+        start(map);
+        RedisSessionDataMap other = start(newMap());
+
+        SessionData data = newSession("unchanged");
+        data.setAttribute("roles", new ArrayList<>(Arrays.asList("user", "admin")));
+        map.store("unchanged", data);
+        data.setAttribute("roles", new ArrayList<>(Arrays.asList("user", "admin")));
+        data.setAccessed(10);
+        map.store("unchanged", data);
+        assertEquals(1, map.getMetrics().getWritesPerformed());
+        assertEquals(1, map.getMetrics().getWritesSkipped());
+        SessionData loaded = other.load("unchanged");
+        assertEquals(10, loaded.getAccessed());
+        assertEquals(Arrays.asList("user", "admin"), loaded.getAttribute("roles"));
+
+        data.setAttribute("visits", 1);
+        map.store("unchanged", data);
+        assertEquals(2, map.getMetrics().getWritesPerformed());
+        assertEquals(1, other.load("unchanged").getAttribute("visits"));
+
+        //a session that is no longer in redis is written in full
+        _redis.flushAll();
+        map.store("unchanged", data);
+        assertEquals(3, map.getMetrics().getWritesPerformed());
+        assertEquals(1, other.load("unchanged").getAttribute("visits"));
+
+        //sessions stored by another node are fingerprinted when loaded
+        other.store("loaded", data);
+        SessionData copy = map.load("loaded");
+        copy.setLastAccessed(20);
+        map.store("loaded", copy);
+        assertEquals(2, map.getMetrics().getWritesSkipped());
+        assertEquals(20, other.load("loaded").getLastAccessed());
+    }
+
+    @Test
+    public void testReaper() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setKeyPrefix("s:");
+        map.setChunkSize(1024);
+        map.setReaperIntervalMs(50);
+        map.setReaperBatchSize(3);
+        map.setReaperGraceSec(0);
+        start(map);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            map.store("expired" + i, newSession("expired" + i));
+        }
+        SessionData large = newSession("large");
+        byte[] bytes = new byte[4096];
+        new Random(0).nextBytes(bytes);
+        large.setAttribute("bytes", bytes);
+        map.store("large", large);
+        map.store("live", new SessionData("live", "", "0.0.0.0", now, now, now, 60000));
+        map.store("immortal", new SessionData("immortal", "", "0.0.0.0", 1, 2, 3, -1));
+
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            jedis.set("other", "not a session");
+            awaitReaped(map, 6);
+            assertNull(map.load("expired0"));
+            assertNull(map.load("large"));
+            assertTrue(jedis.scan("0", new ScanParams().match("s:large*").count(100)).getResult().isEmpty());
+            assertNotNull(map.load("live"));
+            assertNotNull(map.load("immortal"));
+            assertEquals("not a session", jedis.get("other"));
+
+            //no node sweeps while another holds the lock
+            jedis.psetex("s:" + SessionReaper.LOCK_KEY, 10000L, "other node");
+            map.store("late", newSession("late"));
+            Thread.sleep(300);
+            assertNotNull(map.load("late"));
+            jedis.del("s:" + SessionReaper.LOCK_KEY);
+            awaitReaped(map, 7);
+            assertNull(map.load("late"));
+        }
+    }
+
+    private static void awaitReaped(RedisSessionDataMap map, long reaped) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (map.getMetrics().getReaped() < reaped && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(reaped, map.getMetrics().getReaped());
+    }
+
+    /**
+     * A compressor registered with {@link java.util.ServiceLoader} in the test resources.
+     */
+    public static class TaggedCompressor extends DeflateCompressor {
+        public static final int ID = 9;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+    }
+
+    private static byte[] compressible(int size) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < size; i++) {
+            text.append("attribute value ").append(i % 10).append(' ');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDeflateCompressor() throws Exception {
+        byte[] data = compressible(8192);
+        byte[] framed = new byte[data.length + 6];
+        System.arraycopy(data, 0, framed, 3, data.length);
+        byte[] dictionary = "attribute value 0 1 2 3 4 5 6 7 8 9".getBytes(StandardCharsets.UTF_8);
+        DeflateCompressor plain = new DeflateCompressor();
+        DeflateCompressor preset = new DeflateCompressor(Deflater.BEST_SPEED, dictionary);
+        assertEquals(DeflateCompressor.ID, plain.getId());
+        assertEquals(DeflateCompressor.DICTIONARY_ID, preset.getId());
+        assertEquals(DeflateCompressor.ID, new DeflateCompressor(Deflater.BEST_SPEED, new byte[0]).getId());
+
+        for (DeflateCompressor compressor : Arrays.asList(plain, preset)) {
+            //pooled deflaters and inflaters are reset between uses
+            for (int i = 0; i < 50; i++) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                compressor.compress(framed, 3, data.length, compressed);
+                assertTrue(compressed.size() < data.length / 4, compressed.size() + " bytes");
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                compressor.decompress(compressed.toByteArray(), 0, compressed.size(), out);
+                assertArrayEquals(data, out.toByteArray());
+                out.reset();
+                try (InputStream in = compressor.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+                    IO.copy(in, out);
+                }
+                assertArrayEquals(data, out.toByteArray());
+            }
+        }
+
+        //a value compressed with a dictionary is only read with that dictionary
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        preset.compress(data, 0, data.length, compressed);
+        byte[] bytes = compressed.toByteArray();
+        ZipException e = assertThrows(ZipException.class,
+                () -> plain.decompress(bytes, 0, bytes.length, new ByteArrayOutputStream()));
+        assertEquals("No dictionary", e.getMessage());
+        assertThrows(ZipException.class, () -> IO.copy(plain.decompress(new ByteArrayInputStream(bytes)), new ByteArrayOutputStream()));
+        DeflateCompressor other = new DeflateCompressor(Deflater.BEST_SPEED, "another dictionary".getBytes(StandardCharsets.UTF_8));
+        e = assertThrows(ZipException.class,
+                () -> other.decompress(bytes, 0, bytes.length, new ByteArrayOutputStream()));
+        assertEquals("Wrong dictionary", e.getMessage());
+        e = assertThrows(ZipException.class,
+                () -> preset.decompress(bytes, 0, bytes.length / 2, new ByteArrayOutputStream()));
+        assertEquals("Truncated deflate stream", e.getMessage());
+        assertThrows(ZipException.class, () -> plain.decompress(data, 0, data.length, new ByteArrayOutputStream()));
+
+        //a failed inflate leaves the pooled inflater usable
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        preset.decompress(bytes, 0, bytes.length, out);
+        assertArrayEquals(data, out.toByteArray());
+
+        assertThrows(IllegalArgumentException.class, () -> new DeflateCompressor(10, null));
+        assertThrows(IllegalArgumentException.class, () -> new DeflateCompressor(-2, null));
+        plain.close();
+        preset.close();
+        other.close();
+    }
+
+    private static int compressorId(Jedis jedis, String key) {
+        return jedis.get(key.getBytes())[1] & RedisSessionDataMap.COMPRESSOR_MASK;
+    }
+
+    @Test
+    public void testCompressorSelection() throws Exception {
+        byte[] text = compressible(4096);
+        Path dictionaryFile = Files.createTempFile("session", ".dictionary");
+        try {
+            Files.write(dictionaryFile, Arrays.copyOf(text, 256));
+            RedisSessionDataMap plain = start(newMap());
+            RedisSessionDataMap uncompressed = newMap();
+            uncompressed.setCompression(false);
+            start(uncompressed);
+            RedisSessionDataMap tagged = newMap();
+            tagged.setCompressor(new TaggedCompressor());
+            start(tagged);
+            RedisSessionDataMap dictionary = newMap();
+            dictionary.setCompressionDictionary(dictionaryFile.toString());
+            start(dictionary);
+            RedisSessionDataMap otherDictionary = newMap();
+            otherDictionary.setCompressionDictionary(dictionaryFile.toString());
+            start(otherDictionary);
+
+            SessionData small = newSession("small");
+            small.setAttribute("text", "small");
+            SessionData random = newSession("random");
+            byte[] bytes = new byte[4096];
+            new Random(0).nextBytes(bytes);
+            random.setAttribute("bytes", bytes);
+            SessionData large = newSession("large");
+            large.setAttribute("text", new String(text, StandardCharsets.UTF_8));
+
+            try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+                //below the threshold, or no smaller compressed, sessions are stored as they are
+                long uncompressedValues = plain.getUncompressedValues();
+                plain.store("small", small);
+                plain.store("random", random);
+                assertEquals(0, compressorId(jedis, "small"));
+                assertEquals(0, compressorId(jedis, "random"));
+                assertEquals(0, plain.getCompressedValues());
+                assertEquals(uncompressedValues + 2, plain.getUncompressedValues());
+                assertArrayEquals(bytes, (byte[])plain.load("random").getAttribute("bytes"));
+
+                plain.store("large", large);
+                assertEquals(DeflateCompressor.ID, compressorId(jedis, "large"));
+                assertEquals(1, plain.getCompressedValues());
+                assertTrue(jedis.get("large".getBytes()).length < text.length / 4);
+                uncompressed.store("large", large);
+                assertEquals(0, compressorId(jedis, "large"));
+
+                //values are read with the compressor that wrote them, whichever one a node writes with
+                tagged.store("large", large);
+                assertEquals(TaggedCompressor.ID, compressorId(jedis, "large"));
+                for (RedisSessionDataMap map : Arrays.asList(plain, uncompressed, dictionary)) {
+                    assertEquals(large.getAttribute("text"), map.load("large").getAttribute("text"));
+                }
+                plain.store("large", large);
+                for (RedisSessionDataMap map : Arrays.asList(uncompressed, tagged, dictionary)) {
+                    assertEquals(large.getAttribute("text"), map.load("large").getAttribute("text"));
+                }
+
+                //a value compressed with a dictionary needs every reader to have it
+                dictionary.store("large", large);
+                assertEquals(DeflateCompressor.DICTIONARY_ID, compressorId(jedis, "large"));
+                assertEquals(large.getAttribute("text"), otherDictionary.load("large").getAttribute("text"));
+                assertThrows(Exception.class, () -> plain.load("large"));
+                assertThrows(Exception.class, () -> tagged.load("large"));
+            }
+        } finally {
+            Files.delete(dictionaryFile);
+        }
+    }
+
+    @Test
+    public void testReusableBuffer() throws Exception {
+        ReusableBuffer serialized = ReusableBuffer.get(ReusableBuffer.SERIALIZED);
+        serialized.write(new byte[]{1, 2, 3, 4}, 0, 4);
+        byte[] array = serialized.array();
+        assertSame(array, serialized.array());
+        serialized.truncate(2);
+        assertEquals(2, serialized.size());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        IO.copy(serialized.toInputStream(), content);
+        assertArrayEquals(new byte[]{1, 2}, content.toByteArray());
+
+        //each thread reuses its own buffers, emptied
+        assertSame(serialized, ReusableBuffer.get(ReusableBuffer.SERIALIZED));
+        assertEquals(0, serialized.size());
+        assertSame(array, serialized.array());
+        assertNotSame(serialized, ReusableBuffer.get(ReusableBuffer.COMPRESSED));
+        assertNotSame(serialized, ReusableBuffer.get(ReusableBuffer.DECOMPRESSED));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertNotSame(serialized, executor.submit(() -> ReusableBuffer.get(ReusableBuffer.SERIALIZED)).get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        //a buffer that grew is kept, unless it grew for an unusually large session
+        serialized.write(new byte[ReusableBuffer.MAX_RETAINED_SIZE / 2], 0, ReusableBuffer.MAX_RETAINED_SIZE / 2);
+        array = serialized.array();
+        assertSame(array, ReusableBuffer.get(ReusableBuffer.SERIALIZED).array());
+        serialized.write(new byte[256 * 1024], 0, 256 * 1024);
+        array = serialized.array();
+        assertNotSame(array, ReusableBuffer.get(ReusableBuffer.SERIALIZED).array());
+        assertTrue(serialized.array().length <= ReusableBuffer.MAX_RETAINED_SIZE);
+
+        //sessions of every size are stored and loaded through the same buffers
+        RedisSessionDataMap map = start(newMap());
+        RedisSessionDataMap uncompressed = newMap();
+        uncompressed.setCompression(false);
+        start(uncompressed);
+        Random random = new Random(0);
+        List<SessionData> sessions = new ArrayList<>();
+        for (int size : new int[]{16, 3 * 1024 * 1024, 600, 2 * 1024 * 1024, 16}) {
+            SessionData data = newSession("reused" + sessions.size());
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            data.setAttribute("bytes", bytes);
+            data.setAttribute("text", new String(compressible(size), StandardCharsets.UTF_8));
+            sessions.add(data);
+        }
+        for (RedisSessionDataMap writer : Arrays.asList(map, uncompressed)) {
+            for (SessionData data : sessions) {
+                writer.store(data.getId(), data);
+            }
+            for (SessionData data : sessions) {
+                SessionData loaded = map.load(data.getId());
+                assertArrayEquals((byte[])data.getAttribute("bytes"), (byte[])loaded.getAttribute("bytes"));
+                assertEquals(data.getAttribute("text"), loaded.getAttribute("text"));
+            }
+        }
+    }
+
+    private static void record(LatencyHistogram histogram, long micros) {
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    @Test
+    public void testLatencyHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(99));
+
+        //below 16us the buckets are exact
+        for (int micros = 1; micros <= 10; micros++) {
+            record(histogram, micros);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(10, histogram.getMax());
+        assertEquals(5.5, histogram.getMean(), 0);
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(9, histogram.getPercentile(90));
+        assertEquals(10, histogram.getPercentile(100));
+        histogram.record(-1);
+        assertEquals(0, histogram.getPercentile(1));
+
+        //above they are at most 12.5% wide, and no percentile exceeds the max
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+        for (int micros = 1; micros <= 100000; micros++) {
+            record(histogram, micros);
+        }
+        assertEquals(50000.5, histogram.getMean(), 0);
+        for (double percentile : new double[]{10, 50, 90, 99, 99.9}) {
+            long expected = (long) (100000 * percentile / 100);
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(actual >= expected && actual <= expected * 1.125, percentile + "%: " + actual + "us");
+        }
+        assertEquals(100000, histogram.getPercentile(100));
+        assertEquals(100000, histogram.getMax());
+        record(histogram, 16);
+        histogram.reset();
+        record(histogram, 16);
+        assertEquals(16, histogram.getPercentile(50));
+        assertTrue(histogram.toString().startsWith("count=1 mean=16.0us p50=16us"), histogram.toString());
+
+        //recording from many threads loses nothing
+        histogram.reset();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int micros = 0; micros < 10000; micros++) {
+                        record(histogram, micros % 1000);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(999, histogram.getMax());
+        assertEquals(499.5, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void testSessionMetrics() throws Exception {
+        RedisSessionDataMap map = start(newMap());
+        SessionMetrics metrics = map.getMetrics();
+        SessionData data = newSession("metered");
+        data.setAttribute("visits", 1);
+        map.store("metered", data);
+        map.store("other", newSession("other"));
+        assertNotNull(map.load("metered"));
+        assertNull(map.load("missing"));
+        map.delete("other");
+        try (Jedis jedis = new Jedis("localhost", _redis.getPort())) {
+            jedis.set("corrupt", "not a session");
+        }
+        assertThrows(Exception.class, () -> map.load("corrupt"));
+
+        assertEquals(2, metrics.getStores());
+        assertEquals(2, metrics.getWritesPerformed());
+        assertEquals(0, metrics.getStoreErrors());
+        assertEquals(1, metrics.getLoadHits());
+        assertEquals(1, metrics.getLoadMisses());
+        assertEquals(1, metrics.getLoadErrors());
+        assertEquals(1, metrics.getDeletes());
+        assertTrue(metrics.getBytesWritten() > 0);
+        assertTrue(metrics.getBytesRead() > 0);
+        assertTrue(metrics.getStoreLatency().startsWith("count=2 "), metrics.getStoreLatency());
+        assertTrue(metrics.getLoadLatency().startsWith("count=2 "), metrics.getLoadLatency());
+        assertTrue(metrics.getNetworkLatency().startsWith("count="), metrics.getNetworkLatency());
+        assertTrue(metrics.getStoreLatencyP99() >= 0);
+        assertEquals(0, metrics.getPoolActive());
+        assertTrue(metrics.getPoolIdle() > 0);
+
+        metrics.reset();
+        assertEquals(0, metrics.getStores());
+        assertEquals(0, metrics.getLoadHits());
+        assertEquals(0, metrics.getLoadErrors());
+        assertEquals(0, metrics.getBytesWritten());
+        assertTrue(metrics.getStoreLatency().startsWith("count=0 "), metrics.getStoreLatency());
+        assertTrue(metrics.getPoolIdle() > 0);
+        map.store("metered", data);
+        assertEquals(1, metrics.getStores());
+    }
+}
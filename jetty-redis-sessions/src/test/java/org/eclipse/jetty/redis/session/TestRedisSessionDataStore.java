@@ -0,0 +1,164 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * TestRedisSessionDataStore
+ *
+ * Exercises the expiry index of the store against a {@link FakeRedis}, with several stores
+ * standing in for several nodes sharing the sessions of a context.
+ */
+public class TestRedisSessionDataStore {
+    private FakeRedis _redis;
+    private final List<RedisSessionDataStore> _stores = new ArrayList<>();
+
+    @BeforeEach
+    public void startRedis() throws Exception {
+        _redis = new FakeRedis();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        for (RedisSessionDataStore store : _stores) {
+            store.stop();
+        }
+        _redis.close();
+    }
+
+    private RedisSessionDataStore newStore() throws Exception {
+        RedisSessionDataStore store = new RedisSessionDataStore(
+                new RedisSessionDataMap("localhost", Integer.toString(_redis.getPort())));
+        store.initialize(new SessionContext("node" + _stores.size(), null));
+        _stores.add(store);
+        store.start();
+        return store;
+    }
+
+    /**
+     * @param id the session id
+     * @param expiry the expiry time of the session, or 0 if it never expires
+     * @return a session with a changed attribute, so that it is stored in full
+     */
+    private static SessionData newSession(String id, long expiry) {
+        long now = System.currentTimeMillis();
+        SessionData data = new SessionData(id, "", "0.0.0.0", now, now, now, expiry > 0 ? 60000 : -1);
+        data.setExpiry(expiry);
+        data.setAttribute("a", id);
+        return data;
+    }
+
+    private static void store(RedisSessionDataStore store, SessionData data) throws Exception {
+        store.doStore(data.getId(), data, 0);
+    }
+
+    private static Set<String> set(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void testExpiredCandidates() throws Exception {
+        RedisSessionDataStore store = newStore();
+        long now = System.currentTimeMillis();
+        store(store, newSession("expired", now - 1000));
+        store(store, newSession("live", now + 60000));
+        store(store, newSession("eternal", 0));
+
+        assertEquals(set("expired"), store.doGetExpired(set("expired", "live", "eternal")));
+        assertEquals(Collections.emptySet(), store.doGetExpired(set("live")));
+    }
+
+    @Test
+    public void testCandidateRefreshedByAnotherNode() throws Exception {
+        RedisSessionDataStore node0 = newStore();
+        RedisSessionDataStore node1 = newStore();
+        long now = System.currentTimeMillis();
+        store(node0, newSession("shared", now - 1000));
+        assertEquals(set("shared"), node0.doGetExpired(set("shared")));
+
+        //another node served a request for the session, which pushed its expiry back
+        store(node1, newSession("shared", now + 60000));
+        assertEquals(Collections.emptySet(), node0.doGetExpired(set("shared")));
+        assertTrue(node0.exists("shared"));
+    }
+
+    @Test
+    public void testCandidatesMissingFromIndex() throws Exception {
+        RedisSessionDataStore node0 = newStore();
+        RedisSessionDataStore node1 = newStore();
+        long now = System.currentTimeMillis();
+        store(node0, newSession("eternal", 0));
+        store(node0, newSession("deleted", now + 60000));
+        store(node0, newSession("live", now + 60000));
+
+        //another node invalidated the session, removing it from the index and from redis
+        assertTrue(node1.delete("deleted"));
+
+        _redis.resetCounts();
+        assertEquals(set("deleted", "never"), node0.doGetExpired(set("eternal", "deleted", "never", "live")));
+        //one range query of the index, then one pipeline of EXISTS for the candidates it does not expire
+        assertEquals(2, _redis.getRoundTrips());
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        RedisSessionDataStore store = newStore();
+        long now = System.currentTimeMillis();
+        store(store, newSession("expired", now - 1000));
+        store(store, newSession("live", now + 60000));
+        store(store, newSession("eternal", 0));
+
+        //the value of an expired session outlives its expiry in redis, but the index has the last word
+        assertTrue(store.getSessionDataMap().existsAll(Collections.singleton("expired")).get("expired"));
+        assertFalse(store.exists("expired"));
+        assertTrue(store.exists("live"));
+        assertTrue(store.exists("eternal"));
+        assertFalse(store.exists("never"));
+    }
+
+    @Test
+    public void testGracePeriod() throws Exception {
+        RedisSessionDataStore node0 = newStore();
+        RedisSessionDataStore node1 = newStore();
+        node0.setGracePeriodSec(10);
+        node1.setGracePeriodSec(10);
+        long now = System.currentTimeMillis();
+        store(node0, newSession("recent", now - 1000));
+        store(node0, newSession("abandoned", now - 20000));
+        store(node0, newSession("live", now + 60000));
+
+        //sessions another node manages are left to it until they are expired for the grace period
+        assertEquals(set("abandoned"), node1.doGetExpired(Collections.emptySet()));
+        assertEquals(set("recent", "abandoned"), node0.doGetExpired(set("recent")));
+    }
+}
@@ -37,6 +37,7 @@ import org.eclipse.jetty.server.session.CachingSessionDataStore;
 import org.eclipse.jetty.server.session.NullSessionDataStore;
 import org.eclipse.jetty.server.session.Session;
 import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.server.session.SessionDataStore;
 import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -132,6 +133,38 @@ public class TestRedisSessions {
 
     @Test
     public void testRedis() throws Exception {
+        testSessionLifecycle(new CachingSessionDataStore(new RedisSessionDataMap("localhost", "6379"),
+                new NullSessionDataStore()));
+    }
+
+    @Test
+    public void testRedisStore() throws Exception {
+        testSessionLifecycle(new RedisSessionDataStore(new RedisSessionDataMap("localhost", "6379")));
+    }
+
+    @Test
+    public void testRedisStoreHashLayout() throws Exception {
+        RedisSessionDataMap map = new RedisSessionDataMap("localhost", "6379");
+        map.setHashLayout(true);
+        testSessionLifecycle(new RedisSessionDataStore(map));
+    }
+
+    @Test
+    public void testRedisStoreWriteBehind() throws Exception {
+        RedisSessionDataMap map = new RedisSessionDataMap("localhost", "6379");
+        map.setWriteBehind(true);
+        testSessionLifecycle(new RedisSessionDataStore(map));
+    }
+
+    @Test
+    public void testRedisStoreBinaryCodec() throws Exception {
+        RedisSessionDataMap map = new RedisSessionDataMap("localhost", "6379");
+        map.setCodec(new BinarySessionCodec());
+        map.setHashLayout(true);
+        testSessionLifecycle(new RedisSessionDataStore(map));
+    }
+
+    private void testSessionLifecycle(SessionDataStore store) throws Exception {
         String contextPath = "/";
         Server server = new Server(0);
 
@@ -140,8 +173,7 @@ public class TestRedisSessions {
         context.setResourceBase(System.getProperty("java.io.tmpdir"));
         server.setHandler(context);
         NullSessionCache dsc = new NullSessionCache(context.getSessionHandler());
-        dsc.setSessionDataStore(new CachingSessionDataStore(new RedisSessionDataMap("localhost", "6379"),
-                new NullSessionDataStore()));
+        dsc.setSessionDataStore(store);
         context.getSessionHandler().setSessionCache(dsc);
 
         // Add a test servlet
@@ -0,0 +1,127 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2018 Mort Bay Consulting Pty. Ltd., CloudBees, Inc.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+package org.eclipse.jetty.redis.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * TestSessionLoad
+ *
+ * Runs concurrent sessions against a {@link FakeRedis}, so that the session path is exercised
+ * under concurrency without a live redis.
+ */
+public class TestSessionLoad {
+    private static final Logger LOG = Log.getLogger(TestSessionLoad.class);
+
+    private FakeRedis _redis;
+
+    @BeforeEach
+    public void startRedis() throws Exception {
+        _redis = new FakeRedis();
+    }
+
+    @AfterEach
+    public void stopRedis() throws Exception {
+        _redis.close();
+    }
+
+    private RedisSessionDataMap newMap() {
+        RedisSessionDataMap map = new RedisSessionDataMap("localhost", Integer.toString(_redis.getPort()));
+        map.setMaxTotal(8);
+        return map;
+    }
+
+    private SessionLoad.Result run(RedisSessionDataMap map) throws Exception {
+        SessionLoad load = new SessionLoad(new RedisSessionDataStore(map), _redis);
+        load.setSessions(16);
+        load.setRequests(40);
+        SessionLoad.Result result = load.run();
+        LOG.info("{}", result);
+        assertEquals(16 * 40, result.getRequests());
+        assertEquals(0, result.getErrors());
+        return result;
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        SessionLoad.Result result = run(newMap());
+        assertTrue(result.getOperationsPerRequest() > 0);
+    }
+
+    @Test
+    public void testConcurrentSessionsHashLayout() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setHashLayout(true);
+        run(map);
+    }
+
+    @Test
+    public void testConcurrentSessionsWriteBehindWithLatency() throws Exception {
+        _redis.setLatency(1);
+        RedisSessionDataMap map = newMap();
+        map.setWriteBehind(true);
+        map.setCompressionThreshold(0);
+        run(map);
+    }
+
+    @Test
+    public void testConcurrentSessionsMultiplexed() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setAsyncConnections(2);
+        run(map);
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        RedisSessionDataMap map = newMap();
+        map.setAsyncConnections(1);
+        map.initialize(new SessionContext("node0", null));
+        map.start();
+        try {
+            List<CompletableFuture<Void>> stores = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                SessionData data = new SessionData("async" + i, "", "0.0.0.0", 1, 2, 3, 60000);
+                data.setAttribute("value", i);
+                stores.add(map.storeAsync(data.getId(), data));
+            }
+            CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[0])).get();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, map.loadAsync("async" + i).get().getAttribute("value"));
+            }
+            assertTrue(map.deleteAsync("async0").get());
+            assertFalse(map.deleteAsync("async0").get());
+            assertNull(map.loadAsync("async0").get());
+        } finally {
+            map.stop();
+        }
+    }
+}